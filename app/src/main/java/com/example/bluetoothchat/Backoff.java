@@ -0,0 +1,44 @@
+package com.example.bluetoothchat;
+
+import java.util.Random;
+
+/*
+ * Exponential backoff with jitter for retrying a connection.
+ * The ceiling doubles with every attempt up to maxMillis, and each delay is drawn at random
+ * from the upper half of the ceiling, so peers that lost a link at the same moment (every
+ * slave of a piconet when the master reboots) don't all retry in lockstep.
+ * Not thread safe.
+ * */
+class Backoff {
+
+    private final long mBaseMillis;
+    private final long mMaxMillis;
+    private final Random mRandom;
+    private int mAttempts;
+
+    Backoff(long baseMillis, long maxMillis, Random random){
+        mBaseMillis = baseMillis;
+        mMaxMillis = maxMillis;
+        mRandom = random;
+    }
+
+    //Delay before the next attempt
+    long nextDelayMillis(){
+        long ceiling = mBaseMillis << Math.min(mAttempts, 30);
+        if(ceiling <= 0 || ceiling > mMaxMillis){
+            ceiling = mMaxMillis;
+        }
+        mAttempts++;
+        long half = ceiling / 2;
+        return half + (long) (mRandom.nextDouble() * (ceiling - half));
+    }
+
+    int attempts(){
+        return mAttempts;
+    }
+
+    //Call once a connection has held, the next failure starts from baseMillis again
+    void reset(){
+        mAttempts = 0;
+    }
+}
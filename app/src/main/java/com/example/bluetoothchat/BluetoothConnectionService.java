@@ -1,318 +1,434 @@
 package com.example.bluetoothchat;
 
-import android.app.ProgressDialog;
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
-import android.bluetooth.BluetoothServerSocket;
-import android.bluetooth.BluetoothSocket;
 import android.content.Context;
-import android.content.Intent;
-import android.support.v4.content.LocalBroadcastManager;
+import android.os.Handler;
+import android.os.Looper;
 import android.util.Log;
 
+import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
-import java.nio.charset.Charset;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
 import java.util.UUID;
-
-
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+
+/*
+ * Android side of the chat connection. The accept/connect/connected threads live in
+ * ConnectionEngine, and ConnectionSupervisor keeps its links resumed across dropouts; this
+ * class runs them on RFCOMM and publishes incoming frames on a MessageBus. Text messages are batched
+ * onto the main thread for the activity by a CoalescingDispatcher, file frames go to a
+ * FileTransfer that saves into files/transfers.
+ * There is one per process, owned by ChatService, so it must not hold on to an activity:
+ * activities attach listeners while they are shown and follow connections through StateListener.
+ * Every connection is remembered in KnownPeers (files/peers) so the next launch can dial the
+ * likeliest peers right away, see connectMostLikely(), along with the way of dialling each
+ * that worked last (ConnectRace). Dial time goes in the "connect.nanos"
+ * histogram and the time from start to the first message either way in "first.message.nanos".
+ * In relay mode (setRelayMode) messages to every device are broadcast through a Relay instead,
+ * so they reach devices out of our range through the ones in it, and messages other devices
+ * broadcast are passed on. Relayed messages arrive from Relay.originAddress of their sender.
+ * */
  class BluetoothConnectionService {
 
     private static final String TAG = "Message";
     private static final String appName = "MYAPP";
-    private static final UUID MY_UUID_INSECURE = UUID.fromString("00001101-0000-1000-8000-00805F9B34FB");//8ce255c0-200a-11e0-ac64-0800200c9a66
+    //Address recorded in the message log for messages written to every peer
+    static final String ALL_PEERS = "*";
+    //Most frames in flight per peer, the supervisor sizes the window below this from the RTT
+    private static final int RELIABLE_WINDOW = 32;
+    //Connection state changes for the UI, called on the main thread
+    interface StateListener {
+        void onConnected(String address);
 
-    private final BluetoothAdapter mBluetoothAdapter;
+        void onConnectionFailed(String address);
 
-    private AcceptThread mInsecureAcceptThread;
-    private ConnectThread mConnectThread;
-    private ConnectedThread mConnectedThread;
+        void onDisconnected(String address);
+    }
 
-    private Context mContext;
+    private static final UUID MY_UUID_INSECURE = UUID.fromString("00001101-0000-1000-8000-00805F9B34FB");//8ce255c0-200a-11e0-ac64-0800200c9a66
 
-    private BluetoothDevice mmDevice;
-    private UUID deviceUUID;
-    private ProgressDialog progressDialog;
+    private final ConnectionSupervisor mEngine;
+    private final MessageBus mMessageBus = new MessageBus();
+    private final ByteBufferPool mBufferPool = new ByteBufferPool();
+    private final CoalescingDispatcher mUiDispatcher;
+    private final FileTransfer mFileTransfer;
+    private final Relay mRelay;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final List<StateListener> mStateListeners = new CopyOnWriteArrayList<>();
+    private final ExecutorService mPeerSaver = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            return new Thread(r, "KnownPeers");
+        }
+    });
+    private final KnownPeers mKnownPeers;
+    //Dials we started and are timing, by address
+    private final ConcurrentMap<String, Dial> mDials = new ConcurrentHashMap<>();
+    private final long mStartedNanos = System.nanoTime();
+    private final AtomicBoolean mFirstMessageSeen = new AtomicBoolean();
+    private final Metrics.Histogram mConnectNanos;
+    private final Metrics.Histogram mFirstMessageNanos;
+    //Known peers dialled together by connectMostLikely(), the first to connect wins
+    private final Set<String> mCandidates = new HashSet<>();
+    private static final int MAX_CANDIDATES = 2;
+
+    private static final class Dial {
+        final UUID mmUuid;
+        final long mmStartedNanos;
+
+        Dial(UUID uuid, long startedNanos){
+            mmUuid = uuid;
+            mmStartedNanos = startedNanos;
+        }
+    }
+    private volatile MessageLog mMessageLog;
+
+    //Records incoming text on the event loop, the log only queues it
+    private final MessageSubscriber mLogSubscriber = new MessageSubscriber() {
+        @Override
+        public void onMessage(String address, int type, ByteBuffer payload) {
+            MessageLog log = mMessageLog;
+            if(log != null){
+                log.append(address, false, System.currentTimeMillis(), payload);
+            }
+        }
+    };
 
 
      BluetoothConnectionService(Context context) {
-        mContext = context;
-        mBluetoothAdapter = BluetoothAdapter.getDefaultAdapter();
+        this(context, new RfcommTransport(BluetoothAdapter.getDefaultAdapter()));
+     }
+
+     BluetoothConnectionService(Context context, Transport transport) {
+        mBufferPool.setLeakDetection(BuildConfig.DEBUG);
+        mUiDispatcher = new CoalescingDispatcher(new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                mMainHandler.post(command);
+            }
+        }, mBufferPool);
+        mMessageBus.subscribe(FrameCodec.TYPE_TEXT, mUiDispatcher);
+        mEngine = new ConnectionSupervisor(transport, appName, MY_UUID_INSECURE, mListener);
+        mEngine.setReliableWindow(RELIABLE_WINDOW);
+        mConnectNanos = mEngine.getMetrics().histogram("connect.nanos");
+        mFirstMessageNanos = mEngine.getMetrics().histogram("first.message.nanos");
+        mKnownPeers = new KnownPeers(new File(context.getFilesDir(), "peers"), mPeerSaver);
+        for(KnownPeers.Peer peer : mKnownPeers.ranked()){
+            if(peer.strategy != null){
+                mEngine.setPreferredStrategy(peer.address, peer.strategy);
+            }
+        }
+        mFileTransfer = new FileTransfer(new File(context.getFilesDir(), "transfers"), new FileTransfer.Link() {
+            @Override
+            public boolean write(String address, int type, byte[] payload) {
+                return mEngine.write(address, type, payload);
+            }
+        }, mBufferPool);
+        for(int type = FrameCodec.TYPE_FILE_OFFER; type <= FrameCodec.TYPE_FILE_DONE; type++){
+            mMessageBus.subscribe(type, mFileTransfer);
+        }
+        mRelay = new Relay(mEngine.getNodeId(), new Relay.Link() {
+            @Override
+            public boolean write(String address, int type, byte[] payload) {
+                return mEngine.write(address, type, payload);
+            }
+
+            @Override
+            public Set<String> peers() {
+                return mEngine.getConnectedPeers();
+            }
+        }, mMessageBus, mEngine.getMetrics());
+        mMessageBus.subscribe(FrameCodec.TYPE_RELAY, mRelay);
         start();
      }
 
     /*
      * Start the communication service. Specifically start AcceptThread to begin a
-     * session in listening(server) mode. Called by the Activity onResume()
+     * session in listening(server) mode. Called once, by the constructor
      * */
      private synchronized void start(){
-        Log.d(TAG, "start");
+        mEngine.start();
+    }
 
-        //Cancel any thread attempting to make a connection
-        if(mConnectThread != null){
-            mConnectThread.cancel();
-            mConnectThread = null;
-        }
-        //Check for an existing AcceptThread
-        if(mInsecureAcceptThread == null){
-            mInsecureAcceptThread = new AcceptThread();
-            mInsecureAcceptThread.start();
-        }
+    //Close every connection and stop all threads, for when ChatService is destroyed
+    void stop(){
+        setMessageLog(null);
+        mUiDispatcher.setListener(null);
+        mStateListeners.clear();
+        mEngine.stop();
+        mFileTransfer.stop();
+        mPeerSaver.shutdown();
     }
 
-    /* This thread runs while listening for incoming connections. It behaves
-       like a server-side client. It runs until a connection is accepted
-       (or until cancelled)
-     * AcceptThread starts and sits waiting for a connection
-     * Then ConnectThread starts and attempts to make a connection with the other device's AcceptThread
-     * */
-     class AcceptThread extends Thread {
-        // The local server socket
-        private final BluetoothServerSocket mmServerSocket;
-
-         AcceptThread() {
-            BluetoothServerSocket tmp = null;
-
-            //create a new listening server socket
-            try {
-                tmp = mBluetoothAdapter.listenUsingInsecureRfcommWithServiceRecord(appName, MY_UUID_INSECURE);
-                Log.d(TAG, "AcceptThread: Setting up Server using" + MY_UUID_INSECURE);
-            } catch (IOException e) {
-                Log.d(TAG, "AcceptThread: IOException: " + e.getMessage());
+    private final ConnectionListener mListener = new ConnectionListener() {
+        @Override
+        public void onConnected(String address) {
+            mFileTransfer.onPeerConnected(address);
+            //Redials after a dropout and incoming connections aren't timed
+            Dial dial = mDials.remove(address);
+            long connectMillis = -1;
+            if(dial != null){
+                long nanos = System.nanoTime() - dial.mmStartedNanos;
+                mConnectNanos.record(nanos);
+                connectMillis = nanos / 1000000;
             }
-            mmServerSocket = tmp;
+            mKnownPeers.onConnected(address, dial == null ? null : dial.mmUuid, MY_UUID_INSECURE,
+                    mEngine.getPreferredStrategy(address), connectMillis, System.currentTimeMillis());
+            dropOtherCandidates(address);
+            notifyState(address, STATE_CONNECTED);
         }
 
-        public void run() {
-            Log.d(TAG, "run: AcceptThread running");
-            BluetoothSocket socket = null;
-            try {
-                //This is a blocking call and will only return on a
-                //successful connection or an exception
-                Log.d(TAG, "run: RFCOM server socket start...");
-                //Accept a connection
-                socket = mmServerSocket.accept();
-
-                Log.d(TAG, "run: RFCOM server socket accepted connection");
-            } catch (IOException e) {
-                Log.e(TAG, "AcceptThread: IOException: " + e.getMessage());
-            }
-
-            if (socket != null) {
-                connected(socket, mmDevice);
-            }
-            Log.i(TAG, "END mAcceptThread ");
-
+        @Override
+        public void onConnectionFailed(String address, IOException e) {
+            Log.e(TAG, "onConnectionFailed: " + address + ": " + e.getMessage());
+            mDials.remove(address);
+            mKnownPeers.onConnectFailed(address);
+            notifyState(address, STATE_FAILED);
         }
-        public void cancel() {
-            Log.d(TAG, "cancel: Cancelling AcceptThread");
-            try {
-                mmServerSocket.close();
-            } catch (IOException e) {
-                Log.e(TAG, "cancel: Close of AcceptThread ServerSocket failed. " + e.getMessage());
+
+        @Override
+        public void onFrame(String address, int type, ByteBuffer payload) {
+            if(type == FrameCodec.TYPE_TEXT){
+                onMessage();
             }
+            mMessageBus.publish(address, type, payload);
         }
-    }
 
-    /*
-        This thread runs while attempting to connect to make an outgoing connection
-        with a device. It runs straight through; the connection either
-        fails or succeeds.
-    */
-
-    private class ConnectThread extends Thread{
-        private BluetoothSocket socket;
-
-         ConnectThread(BluetoothDevice device, UUID uuid){
-            Log.d(TAG, "ConnectThread: started.");
-            mmDevice = device;
-            deviceUUID = uuid;
+        @Override
+        public void onDisconnected(String address) {
+            Log.d(TAG, "onDisconnected: " + address);
+            mFileTransfer.onPeerDisconnected(address);
+            notifyState(address, STATE_DISCONNECTED);
         }
 
-        public void run(){
-            BluetoothSocket tmp = null;
-            Log.i(TAG, "RUN mConnectThread");
-
-            //Get a BluetoothSocket for a connection with the given BluetoothDevice
-
-            try{
-                Log.d(TAG, "ConnectThread: Trying to create InsecureRFcommSocket using UUID: " + MY_UUID_INSECURE);
-                tmp = mmDevice.createRfcommSocketToServiceRecord(deviceUUID);
-            }catch(IOException e){
-                Log.e(TAG, "ConnectThread: Could not create InsecureRfcommSocket: " + e.getMessage());
-            }
-            socket = tmp;
-
-            //Always cancel discovery because it will slow down a connection
-            mBluetoothAdapter.cancelDiscovery();
-
-            /*Make a connection to the BluetoothSocket
-            *This is a blocking call and will only return on a
-            *successful connection or an exception.
-            */
-            try {
-                socket.connect();
-                Log.d(TAG, "run: ConnectThread connected");
-            } catch (IOException e) {
-                // Close the socket
-                try {
-                    socket.close();
-                    Log.d(TAG, "Closed socket");
-                } catch (IOException e1) {
-                    Log.e(TAG, "mConnectThread: run: Unable to close connection in socket " + e1.getMessage());
-                }
-                Log.e(TAG, "run: ConnectThread: could not connect to UUID: " + MY_UUID_INSECURE);
-            }
-            connected(socket, mmDevice);
+        @Override
+        public void onBackpressure(String address, boolean congested) {
+            Log.d(TAG, "onBackpressure: " + address + " congested=" + congested);
         }
-
-         void cancel(){
-            try{
-                Log.d(TAG, "cancel: Closing Client Socket");
-                socket.close();
-            }catch(IOException e){
-                Log.e(TAG, "cancel: close() of socket in ConnectThread failed. " + e.getMessage());
-            }
+    };
+
+    //Time to the first message since start, recorded once
+    private void onMessage(){
+        if(!mFirstMessageSeen.get() && mFirstMessageSeen.compareAndSet(false, true)){
+            long nanos = System.nanoTime() - mStartedNanos;
+            mFirstMessageNanos.record(nanos);
+            Log.d(TAG, "onMessage: First message " + nanos / 1000000 + "ms after start");
         }
     }
 
+    private static final int STATE_CONNECTED = 0;
+    private static final int STATE_FAILED = 1;
+    private static final int STATE_DISCONNECTED = 2;
 
-    void startClient(BluetoothDevice device, UUID uuid){
-       Log.d(TAG, "startClient: Started");
-       //initprogress dialog
-       progressDialog = ProgressDialog.show(mContext, "Connecting Bluetooth", "Please Wait...", true);
-
-       mConnectThread = new ConnectThread(device, uuid);
-       mConnectThread.start();
-
+    //Called on the engine's threads, the listeners hear about it on the main thread
+    private void notifyState(final String address, final int state){
+        if(mStateListeners.isEmpty()){
+            return;
+        }
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                for(StateListener listener : mStateListeners){
+                    switch(state){
+                        case STATE_CONNECTED:
+                            listener.onConnected(address);
+                            break;
+                        case STATE_FAILED:
+                            listener.onConnectionFailed(address);
+                            break;
+                        default:
+                            listener.onDisconnected(address);
+                            break;
+                    }
+                }
+            }
+        });
     }
 
-   private class ConnectedThread extends Thread{
-       private final BluetoothSocket mmSocket;
-       private final InputStream inputStream;
-       private final OutputStream outputStream;
-
-        ConnectedThread(BluetoothSocket socket){
-           Log.d(TAG, "ConnectedThread: starting");
-
-           mmSocket = socket;
-           InputStream tmpin = null;
-           OutputStream tmpout = null;
-
-           //Dismiss the progressDialog when connection is established
-           try{
-               progressDialog.dismiss();
-           }catch(NullPointerException e){
-                e.printStackTrace();
-           }
-
-           try {
-               tmpin = mmSocket.getInputStream();
-               tmpout = mmSocket.getOutputStream();
-           } catch (IOException e) {
-               e.printStackTrace();
-           }
-           inputStream = tmpin;
-           outputStream = tmpout;
-
-       }
-
-       public void run(){
-           byte[] buffer = new byte[1024]; // buffer store for the stream
-           int bytes; // bytes returned from read()
-
-           // Keep listening to the InputStream until an exception occurs
-           while(true){
-               // Read from the InputStream
-               try {
-                   bytes = inputStream.read(buffer);
-                   String incomingMessage = new String(buffer, 0, bytes);
-                   Log.d(TAG, incomingMessage);
-
-                   Intent intent = new Intent("incomingMessage");
-                   intent.putExtra("theMessage", incomingMessage);
-                   LocalBroadcastManager.getInstance(mContext).sendBroadcast(intent);
-               } catch (IOException e) {
-                   Log.e(TAG, "read: Error reading InputStream: "+ e.getMessage());
-                   break;
-               }
-           }
-       }
-
-       //Call this from the main activity to send data to the remote device i.e write to the OutputStream
-        void write(byte[] bytes){
-            String text = new String(bytes, Charset.defaultCharset());
-            Log.d(TAG, "write: Writing to outputstream: " + text);
-           try {
-               outputStream.write(bytes);
-           } catch (IOException e) {
-               Log.e(TAG, "write: Error writing to outputstream: " + e.getMessage());
-           }
-       }
-
-       //Call this from the main activity to cancel the connection
-       public void cancel(){
-           try {
-               mmSocket.close();
-           } catch (IOException e) {
-               e.printStackTrace();
-           }
-       }
-
-   }
-
-    private void connected(BluetoothSocket socket, BluetoothDevice mmDevice) {
-        Log.d(TAG, "connected: starting");
-        // Start the thread to manage the connection and perform transmissions
-        mConnectedThread = new ConnectedThread(socket);
-        mConnectedThread.start();
+    void addStateListener(StateListener listener){
+        mStateListeners.add(listener);
     }
 
-    /**
-    * Write to the ConnectedThread in an unsynchronized manner
-    * @param out The bytes to write*
-    * @see ConnectedThread#write(byte[])
-    * */
-     void write(byte[] out){
-       // Create temporary object
-        //Synchronise a copy of the ConnectedThread
-        Log.d(TAG, "write: write called");
-        //perform the write
-        mConnectedThread.write(out);
+    void removeStateListener(StateListener listener){
+        mStateListeners.remove(listener);
     }
 
-}
-
-
-
-
-
-
-
-
-
-
-
-
-
-
+    //In-process subscribers for incoming frames, called on the engine's threads
+    MessageBus getMessageBus(){
+        return mMessageBus;
+    }
 
+    //Receives incoming text messages in batches on the main thread, null to stop
+    void setMessageListener(CoalescingDispatcher.Listener listener){
+        mUiDispatcher.setListener(listener);
+    }
 
+    //Record every text message sent or received in log from now on, null to stop
+    void setMessageLog(MessageLog log){
+        if(log != null && mMessageLog == null){
+            mMessageBus.subscribe(FrameCodec.TYPE_TEXT, mLogSubscriber);
+        }else if(log == null && mMessageLog != null){
+            mMessageBus.unsubscribe(FrameCodec.TYPE_TEXT, mLogSubscriber);
+        }
+        mMessageLog = log;
+    }
 
+    //Stream file to a connected device in the background, see setTransferListener for how it went
+    void sendFile(String address, File file){
+        mFileTransfer.send(address, file);
+    }
 
+    //Progress and outcome of file transfers both ways, called on the transfer thread
+    void setTransferListener(FileTransfer.Listener listener){
+        mFileTransfer.setListener(listener);
+    }
 
+    List<FileTransfer.Progress> getTransfers(){
+        return mFileTransfer.getTransfers();
+    }
 
+    /*
+     * Forward what other devices broadcast, and broadcast what write(byte[]) sends, so it
+     * crosses up to Relay.DEFAULT_TTL hops. Every device on the way needs it on; off by default
+     * */
+    void setRelayMode(boolean enabled){
+        mRelay.setForwarding(enabled);
+    }
 
+    boolean isRelayMode(){
+        return mRelay.isForwarding();
+    }
 
+    //Traffic, latency and reconnect metrics of the connection layers, see Metrics
+    Metrics getMetrics(){
+        return mEngine.getMetrics();
+    }
 
+    private void logOutgoing(String address, byte[] out){
+        MessageLog log = mMessageLog;
+        if(log != null){
+            log.append(address, true, System.currentTimeMillis(), ByteBuffer.wrap(out));
+        }
+        onMessage();
+    }
 
+    void startClient(BluetoothDevice device, UUID uuid){
+       Log.d(TAG, "startClient: Started");
+       connect(device.getAddress(), uuid);
+    }
 
+    private void connect(String address, UUID uuid){
+        mDials.put(address, new Dial(uuid, System.nanoTime()));
+        mEngine.connect(address, uuid);
+    }
 
+    /*
+     * Dial the known peers most likely to be in range among candidates (the bonded devices), in
+     * the background and without waiting for discovery. Up to MAX_CANDIDATES are dialled at
+     * once and the first to connect wins, the others are hung up. Returns the best one's
+     * address, null if none of them has connected before.
+     * */
+    String connectMostLikely(Set<String> candidates){
+        List<KnownPeers.Peer> dial = mKnownPeers.mostLikely(candidates, MAX_CANDIDATES);
+        if(dial.isEmpty()){
+            return null;
+        }
+        synchronized (mCandidates) {
+            for(KnownPeers.Peer peer : dial){
+                mCandidates.add(peer.address);
+            }
+        }
+        for(KnownPeers.Peer peer : dial){
+            Log.d(TAG, "connectMostLikely: Dialling " + peer.address + ", usually takes "
+                    + peer.averageConnectMillis + "ms");
+            connect(peer.address, peer.uuid);
+        }
+        return dial.get(0).address;
+    }
 
+    //Hang up on every peer and stop dialling, for the notification's Disconnect. Incoming connections are still taken
+    void disconnectAll(){
+        Set<String> peers = new HashSet<>(mEngine.getConnectedPeers());
+        peers.addAll(mDials.keySet());
+        synchronized (mCandidates) {
+            mCandidates.clear();
+        }
+        for(String address : peers){
+            Log.d(TAG, "disconnectAll: Hanging up on " + address);
+            mDials.remove(address);
+            mEngine.disconnect(address);
+        }
+    }
 
+    //address won the race between candidates, stop dialling the rest
+    private void dropOtherCandidates(String address){
+        List<String> losers;
+        synchronized (mCandidates) {
+            if(!mCandidates.remove(address)){
+                return;
+            }
+            losers = new ArrayList<>(mCandidates);
+            mCandidates.clear();
+        }
+        for(String loser : losers){
+            Log.d(TAG, "dropOtherCandidates: " + address + " answered first, hanging up on " + loser);
+            mDials.remove(loser);
+            mEngine.disconnect(loser);
+        }
+    }
 
+    KnownPeers getKnownPeers(){
+        return mKnownPeers;
+    }
 
+    /**
+    * Queue bytes for one connected device, returns immediately
+    * @param address Address of the device to send to
+    * @param out The bytes to write*
+    * @return false if the message could not be queued
+    * @see ConnectionSupervisor#write(String, byte[])
+    * */
+     boolean write(String address, byte[] out){
+        if(!mEngine.write(address, out)){
+            return false;
+        }
+        logOutgoing(address, out);
+        return true;
+    }
 
+    Set<String> getConnectedDevices(){
+        return mEngine.getConnectedPeers();
+    }
 
+    /**
+    * Queue bytes for every connected device, returns immediately
+    * @param out The bytes to write*
+    * @return false if the message could not be queued
+    * @see ConnectionSupervisor#write(byte[])
+    * */
+     boolean write(byte[] out){
+        Log.d(TAG, "write: write called");
+        //perform the write
+        boolean queued = mRelay.isForwarding() ? mRelay.broadcast(FrameCodec.TYPE_TEXT, out, Relay.DEFAULT_TTL)
+                : mEngine.write(out);
+        if(!queued){
+            return false;
+        }
+        logOutgoing(ALL_PEERS, out);
+        return true;
+    }
 
+}
@@ -0,0 +1,178 @@
+package com.example.bluetoothchat;
+
+import android.util.Log;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Recycles ByteBuffers in power-of-two size classes so code that has to keep a payload past a
+ * callback (e.g. to hand it to the main thread) doesn't allocate per message.
+ * Buffers are lent out as refcounted PooledBuffers and the handles are recycled along with them,
+ * so a steady state acquire/release allocates nothing. A pool hands out either heap buffers,
+ * for code that needs array(), or direct ones, which channels can read and write without
+ * copying through a temporary buffer of the JDK's.
+ * Buffers bigger than the largest class, or released into a full class, are left to the GC.
+ * Safe to acquire and release from any thread.
+ *
+ * With leak detection on (debug builds) every loan remembers where it was acquired, and a
+ * PooledBuffer that is garbage collected without having been released is logged with that
+ * stack trace. That costs a stack trace per acquire, so it stays off in release builds.
+ * */
+class ByteBufferPool {
+
+    private static final String TAG = "ByteBufferPool";
+
+    static final int MIN_CLASS_BYTES = 64;
+    static final int DEFAULT_MAX_CLASS_BYTES = FrameCodec.DEFAULT_MAX_PAYLOAD;
+    static final int DEFAULT_BUFFERS_PER_CLASS = 64;
+
+    //Watches one loan, enqueued if the PooledBuffer is collected before it was released
+    static final class LeakTracker extends WeakReference<PooledBuffer> {
+        private final Throwable mmOrigin;
+        private final int mmCapacity;
+
+        LeakTracker(PooledBuffer buffer, ReferenceQueue<PooledBuffer> queue, int capacity){
+            super(buffer, queue);
+            mmOrigin = new Throwable("Acquired here");
+            mmCapacity = capacity;
+        }
+    }
+
+    private final List<ArrayBlockingQueue<PooledBuffer>> mClasses;
+    private final int mMaxClassBytes;
+    private final boolean mDirect;
+    private final AtomicInteger mOutstanding = new AtomicInteger();
+
+    private volatile boolean mLeakDetection;
+    private final ReferenceQueue<PooledBuffer> mLeakQueue = new ReferenceQueue<>();
+    //Keeps the trackers themselves reachable until their loan ends one way or the other
+    private final Set<LeakTracker> mTrackers =
+            Collections.newSetFromMap(new ConcurrentHashMap<LeakTracker, Boolean>());
+    private final AtomicLong mLeaks = new AtomicLong();
+
+    ByteBufferPool(){
+        this(DEFAULT_MAX_CLASS_BYTES, DEFAULT_BUFFERS_PER_CLASS);
+    }
+
+    ByteBufferPool(int maxClassBytes, int buffersPerClass){
+        this(maxClassBytes, buffersPerClass, false);
+    }
+
+    ByteBufferPool(int maxClassBytes, int buffersPerClass, boolean direct){
+        mMaxClassBytes = roundUp(maxClassBytes);
+        mDirect = direct;
+        int classes = classIndex(mMaxClassBytes) + 1;
+        mClasses = new ArrayList<>(classes);
+        for(int i = 0; i < classes; i++){
+            mClasses.add(new ArrayBlockingQueue<PooledBuffer>(buffersPerClass));
+        }
+    }
+
+    boolean isDirect(){
+        return mDirect;
+    }
+
+    //Track where every loan came from and report the ones never released. Off by default
+    void setLeakDetection(boolean enabled){
+        mLeakDetection = enabled;
+    }
+
+    //A cleared buffer with at least capacity bytes of room, holding one reference
+    PooledBuffer acquire(int capacity){
+        PooledBuffer pooled;
+        if(capacity > mMaxClassBytes){
+            pooled = new PooledBuffer(this, allocate(capacity), false);
+        }else{
+            int size = roundUp(capacity);
+            pooled = mClasses.get(classIndex(size)).poll();
+            if(pooled == null){
+                pooled = new PooledBuffer(this, allocate(size), true);
+            }
+        }
+        pooled.lend();
+        mOutstanding.incrementAndGet();
+        if(mLeakDetection){
+            checkLeaks();
+            LeakTracker tracker = new LeakTracker(pooled, mLeakQueue, pooled.rawBuffer().capacity());
+            mTrackers.add(tracker);
+            pooled.mTracker = tracker;
+        }
+        return pooled;
+    }
+
+    //Called by PooledBuffer once its last reference is gone
+    void recycle(PooledBuffer pooled){
+        mOutstanding.decrementAndGet();
+        LeakTracker tracker = pooled.mTracker;
+        if(tracker != null){
+            pooled.mTracker = null;
+            tracker.clear();
+            mTrackers.remove(tracker);
+        }
+        if(pooled.isPooled()){
+            mClasses.get(classIndex(pooled.rawBuffer().capacity())).offer(pooled);
+        }
+    }
+
+    /*
+     * Report loans whose PooledBuffer has been garbage collected without being released.
+     * Runs on every acquire while leak detection is on; returns the number found by this call.
+     * */
+    int checkLeaks(){
+        int found = 0;
+        Reference<? extends PooledBuffer> reference;
+        while((reference = mLeakQueue.poll()) != null){
+            LeakTracker tracker = (LeakTracker) reference;
+            if(!mTrackers.remove(tracker)){
+                continue;
+            }
+            found++;
+            mLeaks.incrementAndGet();
+            mOutstanding.decrementAndGet();
+            Log.e(TAG, "checkLeaks: " + tracker.mmCapacity + " byte buffer was never released",
+                    tracker.mmOrigin);
+        }
+        return found;
+    }
+
+    //Leaked buffers found so far, only counted while leak detection is on
+    long leaks(){
+        return mLeaks.get();
+    }
+
+    //Buffers lent out and not yet released
+    int outstanding(){
+        return mOutstanding.get();
+    }
+
+    //Buffers currently pooled in the class that serves capacity
+    int pooled(int capacity){
+        return mClasses.get(classIndex(roundUp(capacity))).size();
+    }
+
+    private ByteBuffer allocate(int capacity){
+        return mDirect ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+    }
+
+    private static int roundUp(int capacity){
+        if(capacity <= MIN_CLASS_BYTES){
+            return MIN_CLASS_BYTES;
+        }
+        return Integer.highestOneBit(capacity - 1) << 1;
+    }
+
+    private static int classIndex(int size){
+        return Integer.numberOfTrailingZeros(size) - Integer.numberOfTrailingZeros(MIN_CLASS_BYTES);
+    }
+}
@@ -0,0 +1,31 @@
+package com.example.bluetoothchat;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/*
+ * One end of a point to point byte stream between this device and a peer.
+ * This is what ConnectionEngine reads frames from and writes frames to, whether the other
+ * end is an RFCOMM socket, a TCP socket or an in-memory pipe.
+ * */
+interface Channel extends Closeable {
+
+    /*
+     * Establish the connection. This is a blocking call and will only return on a
+     * successful connection or an exception. Closing the channel from another thread aborts it.
+     * Channels returned by ServerChannel.accept() are already connected.
+     * */
+    void connect() throws IOException;
+
+    //Address of the peer, in whatever form the Transport that created this channel uses
+    String getRemoteAddress();
+
+    InputStream getInputStream() throws IOException;
+
+    OutputStream getOutputStream() throws IOException;
+
+    //Close the channel. Safe to call from any thread, unblocks pending reads, writes and connect()
+    void close() throws IOException;
+}
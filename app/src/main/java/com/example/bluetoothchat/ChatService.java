@@ -0,0 +1,331 @@
+package com.example.bluetoothchat;
+
+import android.app.Notification;
+import android.app.NotificationChannel;
+import android.app.NotificationManager;
+import android.app.PendingIntent;
+import android.app.Service;
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.ServiceConnection;
+import android.os.Binder;
+import android.os.Build;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.Looper;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/*
+ * Foreground service that owns the process's one BluetoothConnectionService, together with the
+ * message log and the metrics reporter, so connections, their threads and buffer pools outlive
+ * any activity. Rotating the screen or leaving the app only detaches the UI; coming back binds
+ * to the same engine instead of listening and dialling all over again.
+ * It is started as well as bound so unbinding doesn't destroy it. It stops when the
+ * notification's Disconnect action is used, which hangs up on every peer and asks the bound
+ * activities to finish, or when the activity is finished while nothing is connected (stopIfIdle).
+ * Every start other than Disconnect puts it back in the foreground, so binding again after a
+ * Disconnect, before the service is gone, keeps the startForegroundService() promise.
+ * On start it dials the bonded device it has most recently chatted with (KnownPeers) while the
+ * activity is still coming up, so there is usually a link by the time the user looks.
+ * The message log is opened on a thread of its own, since recovering it checks and indexes every
+ * record; activities hear when it is ready through whenMessageLogOpened. Messages that arrive
+ * before then are shown but not recorded.
+ * Activities attach through a Binding, everything here is called on the main thread.
+ * */
+public class ChatService extends Service {
+
+    private static final String TAG = "ChatService";
+    private static final String ACTION_STOP = "com.example.bluetoothchat.action.STOP";
+    private static final String CHANNEL_ID = "connection";
+    private static final int NOTIFICATION_ID = 1;
+
+    private final IBinder mBinder = new LocalBinder();
+    private BluetoothConnectionService mConnection;
+    private MessageLog mMessageLog;
+    //The log has been opened, or failed to
+    private boolean mMessageLogOpened;
+    private boolean mDestroyed;
+    private final List<MessageLogListener> mMessageLogListeners = new ArrayList<>();
+    private final List<Binding> mBindings = new ArrayList<>();
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private MetricsReporter mMetricsReporter;
+    private NotificationManager mNotificationManager;
+
+    //Keeps the notification's peer count current
+    private final BluetoothConnectionService.StateListener mStateListener = new BluetoothConnectionService.StateListener() {
+        @Override
+        public void onConnected(String address) {
+            updateNotification();
+        }
+
+        @Override
+        public void onConnectionFailed(String address) {
+        }
+
+        @Override
+        public void onDisconnected(String address) {
+            updateNotification();
+        }
+    };
+
+    //Called on the main thread once the message log is open, with null if it couldn't be
+    interface MessageLogListener {
+        void onMessageLogOpened(MessageLog log);
+    }
+
+    final class LocalBinder extends Binder {
+        ChatService getService(){
+            return ChatService.this;
+        }
+    }
+
+    /*
+     * An activity's attachment to the service: bind() in onCreate, unbind() in onDestroy.
+     * onAttached comes once the service is up, straight away if it already is, and onDetached
+     * before unbind() returns, so the activity never touches the engine after it is gone and
+     * never leaves its listeners on it. Calling bind() or unbind() twice does nothing.
+     * onStopRequested comes when the user disconnects from the notification; the service
+     * only goes away once every activity has unbound, so it should finish.
+     * */
+    abstract static class Binding implements ServiceConnection {
+        private Context mContext;
+        private ChatService mService;
+
+        abstract void onAttached(ChatService service);
+
+        abstract void onDetached(ChatService service);
+
+        abstract void onStopRequested();
+
+        void bind(Context context){
+            if(mContext != null){
+                return;
+            }
+            mContext = context;
+            Intent intent = new Intent(context, ChatService.class);
+            if(Build.VERSION.SDK_INT >= Build.VERSION_CODES.O){
+                context.startForegroundService(intent);
+            }else{
+                context.startService(intent);
+            }
+            context.bindService(intent, this, Context.BIND_AUTO_CREATE);
+        }
+
+        void unbind(){
+            if(mContext == null){
+                return;
+            }
+            detach();
+            mContext.unbindService(this);
+            mContext = null;
+        }
+
+        //Null until onAttached and after onDetached
+        ChatService getService(){
+            return mService;
+        }
+
+        @Override
+        public void onServiceConnected(ComponentName name, IBinder binder) {
+            mService = ((LocalBinder) binder).getService();
+            mService.mBindings.add(this);
+            onAttached(mService);
+        }
+
+        @Override
+        public void onServiceDisconnected(ComponentName name) {
+            detach();
+        }
+
+        private void detach(){
+            ChatService service = mService;
+            if(service != null){
+                mService = null;
+                service.mBindings.remove(this);
+                onDetached(service);
+            }
+        }
+    }
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        Log.d(TAG, "onCreate: Starting the connection engine");
+        mNotificationManager = (NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE);
+        if(Build.VERSION.SDK_INT >= Build.VERSION_CODES.O){
+            mNotificationManager.createNotificationChannel(
+                    new NotificationChannel(CHANNEL_ID, "Bluetooth connection", NotificationManager.IMPORTANCE_LOW));
+        }
+        startForeground(NOTIFICATION_ID, buildNotification());
+
+        //Application context, the engine lives longer than any activity
+        mConnection = new BluetoothConnectionService(getApplicationContext());
+        mConnection.addStateListener(mStateListener);
+        openMessageLog();
+        mMetricsReporter = new MetricsReporter(mConnection.getMetrics(), new File(getFilesDir(), "metrics.txt"));
+        mMetricsReporter.start();
+        connectMostLikely();
+    }
+
+    //Recovery and indexing read the whole log, so not on the main thread
+    private void openMessageLog(){
+        final File dir = new File(getFilesDir(), "messages");
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                MessageLog log = null;
+                try {
+                    ByteBufferPool pool = new ByteBufferPool();
+                    pool.setLeakDetection(BuildConfig.DEBUG);
+                    long start = System.nanoTime();
+                    log = new MessageLog(dir, pool, new MessageIndex(true));
+                    Log.d(TAG, "openMessageLog: Opened in " + (System.nanoTime() - start) / 1000000 + " ms");
+                } catch (IOException e) {
+                    Log.e(TAG, "openMessageLog: Could not open message log " + e.getMessage());
+                }
+                final MessageLog opened = log;
+                mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        onMessageLogOpened(opened);
+                    }
+                });
+            }
+        }, "MessageLog-open").start();
+    }
+
+    private void onMessageLogOpened(MessageLog log){
+        if(mDestroyed){
+            closeMessageLog(log);
+            return;
+        }
+        mMessageLog = log;
+        mMessageLogOpened = true;
+        if(log != null){
+            mConnection.setMessageLog(log);
+        }
+        List<MessageLogListener> listeners = new ArrayList<>(mMessageLogListeners);
+        mMessageLogListeners.clear();
+        for(MessageLogListener listener : listeners){
+            listener.onMessageLogOpened(log);
+        }
+    }
+
+    private void connectMostLikely(){
+        BluetoothAdapter adapter = BluetoothAdapter.getDefaultAdapter();
+        if(adapter == null || !adapter.isEnabled()){
+            return;
+        }
+        //Only bonded devices, dialling anything else would prompt for pairing
+        Set<String> bonded = new HashSet<>();
+        for(BluetoothDevice device : adapter.getBondedDevices()){
+            bonded.add(device.getAddress());
+        }
+        String address = mConnection.connectMostLikely(bonded);
+        Log.d(TAG, "connectMostLikely: " + (address == null ? "No known peer is bonded" : "Dialling " + address));
+    }
+
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        if(intent != null && ACTION_STOP.equals(intent.getAction())){
+            Log.d(TAG, "onStartCommand: Disconnect requested");
+            //Bound activities keep the service alive, so hang up now rather than when it is destroyed
+            mConnection.disconnectAll();
+            stopForeground(true);
+            stopSelf();
+            for(Binding binding : new ArrayList<>(mBindings)){
+                binding.onStopRequested();
+            }
+            return START_NOT_STICKY;
+        }
+        //Every startForegroundService() has to be answered, also when a Disconnect took us out of the foreground
+        startForeground(NOTIFICATION_ID, buildNotification());
+        return START_STICKY;
+    }
+
+    @Override
+    public IBinder onBind(Intent intent) {
+        return mBinder;
+    }
+
+    @Override
+    public void onDestroy() {
+        Log.d(TAG, "onDestroy: Stopping the connection engine");
+        super.onDestroy();
+        mDestroyed = true;
+        mMessageLogListeners.clear();
+        mConnection.stop();
+        mMetricsReporter.stop();
+        //One still opening is closed when it is ready
+        closeMessageLog(mMessageLog);
+    }
+
+    private static void closeMessageLog(MessageLog log){
+        if(log == null){
+            return;
+        }
+        try {
+            log.close();
+        } catch (IOException e) {
+            Log.e(TAG, "closeMessageLog: Could not close message log " + e.getMessage());
+        }
+    }
+
+    BluetoothConnectionService getConnection(){
+        return mConnection;
+    }
+
+    //Call listener once the message log is open, straight away if it already is
+    void whenMessageLogOpened(MessageLogListener listener){
+        if(mMessageLogOpened){
+            listener.onMessageLogOpened(mMessageLog);
+        }else{
+            mMessageLogListeners.add(listener);
+        }
+    }
+
+    void removeMessageLogListener(MessageLogListener listener){
+        mMessageLogListeners.remove(listener);
+    }
+
+    //Stop once the last activity unbinds, unless a device is still connected
+    void stopIfIdle(){
+        if(mConnection.getConnectedDevices().isEmpty()){
+            stopForeground(true);
+            stopSelf();
+        }
+    }
+
+    private void updateNotification(){
+        mNotificationManager.notify(NOTIFICATION_ID, buildNotification());
+    }
+
+    private Notification buildNotification(){
+        int connected = mConnection == null ? 0 : mConnection.getConnectedDevices().size();
+        String text = connected == 0 ? "Waiting for devices"
+                : connected == 1 ? "Connected to 1 device" : "Connected to " + connected + " devices";
+        PendingIntent open = PendingIntent.getActivity(this, 0,
+                new Intent(this, MainActivity.class).setFlags(Intent.FLAG_ACTIVITY_SINGLE_TOP), 0);
+        PendingIntent stop = PendingIntent.getService(this, 0,
+                new Intent(this, ChatService.class).setAction(ACTION_STOP), 0);
+        Notification.Builder builder = Build.VERSION.SDK_INT >= Build.VERSION_CODES.O
+                ? new Notification.Builder(this, CHANNEL_ID) : new Notification.Builder(this);
+        return builder.setSmallIcon(R.mipmap.ic_launcher)
+                .setContentTitle("BluetoothChat")
+                .setContentText(text)
+                .setContentIntent(open)
+                .setOngoing(true)
+                .addAction(0, "Disconnect", stop)
+                .build();
+    }
+}
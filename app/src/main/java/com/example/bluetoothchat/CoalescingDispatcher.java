@@ -0,0 +1,129 @@
+package com.example.bluetoothchat;
+
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Moves messages from the event loops to the UI thread in batches.
+ * Each message is copied once into a pooled buffer and queued; only the first message of a
+ * burst posts a drain task to the UI executor, and that one task delivers everything that has
+ * queued up by the time it runs, so a flood of messages costs one post and one redraw.
+ * Queue entries are recycled along with their buffers, so a message allocates nothing.
+ * */
+class CoalescingDispatcher implements MessageSubscriber {
+
+    private static final String TAG = "CoalescingDispatcher";
+
+    static final int DEFAULT_QUEUE_CAPACITY = 4096;
+
+    interface Listener {
+        //Called on the UI thread for each message in a batch. payload is recycled once this returns
+        void onMessage(String address, int type, ByteBuffer payload);
+
+        //Called on the UI thread after the last message of a batch
+        void onBatchEnd(int count);
+    }
+
+    //Recycled through mFreePending, fields are only set by whoever took it off the free list
+    private static final class Pending {
+        String address;
+        int type;
+        PooledBuffer payload;
+    }
+
+    private final Executor mUiExecutor;
+    private final ByteBufferPool mPool;
+    private final MpscArrayQueue<Pending> mQueue;
+    private final ArrayBlockingQueue<Pending> mFreePending;
+    private final AtomicBoolean mPosted = new AtomicBoolean();
+    private volatile Listener mListener;
+    private final AtomicLong mDropped = new AtomicLong();
+
+    private final Runnable mDrainTask = new Runnable() {
+        @Override
+        public void run() {
+            drain();
+        }
+    };
+
+    CoalescingDispatcher(Executor uiExecutor, ByteBufferPool pool){
+        this(uiExecutor, pool, DEFAULT_QUEUE_CAPACITY);
+    }
+
+    CoalescingDispatcher(Executor uiExecutor, ByteBufferPool pool, int queueCapacity){
+        mUiExecutor = uiExecutor;
+        mPool = pool;
+        mQueue = new MpscArrayQueue<>(queueCapacity);
+        mFreePending = new ArrayBlockingQueue<>(mQueue.capacity());
+    }
+
+    //Messages arriving while no listener is set are dropped
+    void setListener(Listener listener){
+        mListener = listener;
+    }
+
+    //Messages dropped because the UI fell a whole queue behind
+    long dropped(){
+        return mDropped.get();
+    }
+
+    @Override
+    public void onMessage(String address, int type, ByteBuffer payload) {
+        if(mListener == null){
+            return;
+        }
+        PooledBuffer copy = mPool.acquire(payload.remaining());
+        copy.buffer().put(payload).flip();
+        Pending pending = mFreePending.poll();
+        if(pending == null){
+            pending = new Pending();
+        }
+        pending.address = address;
+        pending.type = type;
+        pending.payload = copy;
+        if(!mQueue.offer(pending)){
+            recycle(pending);
+            mDropped.incrementAndGet();
+            Log.e(TAG, "onMessage: UI queue full, dropping message from " + address);
+            return;
+        }
+        if(mPosted.compareAndSet(false, true)){
+            mUiExecutor.execute(mDrainTask);
+        }
+    }
+
+    private void drain(){
+        //Cleared first so a message queued from here on posts a new drain
+        mPosted.set(false);
+        Listener listener = mListener;
+        //At most one queue's worth per turn so a steady stream can't hold the UI thread forever
+        int limit = mQueue.capacity();
+        int count = 0;
+        Pending pending;
+        while(count < limit && (pending = mQueue.poll()) != null){
+            if(listener != null){
+                listener.onMessage(pending.address, pending.type, pending.payload.buffer());
+            }
+            recycle(pending);
+            count++;
+        }
+        if(listener != null && count > 0){
+            listener.onBatchEnd(count);
+        }
+        if(!mQueue.isEmpty() && mPosted.compareAndSet(false, true)){
+            mUiExecutor.execute(mDrainTask);
+        }
+    }
+
+    private void recycle(Pending pending){
+        pending.payload.release();
+        pending.payload = null;
+        pending.address = null;
+        mFreePending.offer(pending);
+    }
+}
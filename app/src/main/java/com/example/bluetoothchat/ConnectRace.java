@@ -0,0 +1,240 @@
+package com.example.bluetoothchat;
+
+import android.util.Log;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * One outgoing connection dialled several ways at once, for transports that can reach a peer
+ * more than one way (RfcommTransport: secure or insecure socket, the service UUID or plain SPP,
+ * a fixed channel). HC-06 modules and older phones often answer only some of them.
+ *
+ * Attempts start in the order given, best first. The next one starts staggerMillis after the
+ * previous, or as soon as it fails, so the likely winner gets a head start without a dead
+ * strategy holding the others up. Each attempt is closed if it hasn't connected within
+ * attemptTimeoutMillis, which unblocks its connect(). The first channel to connect wins and
+ * every other attempt is closed; if they all fail the last error is reported.
+ * Each blocking connect() runs on its own thread while it lasts; timers run on loop.
+ * close() cancels the race without reporting anything.
+ * */
+final class ConnectRace implements Closeable {
+
+    private static final String TAG = "ConnectRace";
+
+    //Implemented by transports that can dial a peer more than one way
+    interface Dialer {
+        //Every way to dial address, best first
+        List<String> strategies(String address, UUID uuid);
+
+        //An unconnected channel to address made with strategy
+        Channel createChannel(String address, UUID uuid, String strategy) throws IOException;
+    }
+
+    interface Callback {
+        //channel is connected and the caller's to keep
+        void onWon(ConnectRace race, Channel channel, String strategy);
+
+        void onLost(ConnectRace race, IOException lastError);
+    }
+
+    private final String mAddress;
+    private final UUID mUuid;
+    private final Dialer mDialer;
+    private final List<String> mStrategies;
+    private final EventLoop mLoop;
+    private final long mStaggerMillis;
+    private final long mAttemptTimeoutMillis;
+    private final Callback mCallback;
+
+    //Guarded by this
+    private final List<Attempt> mRunning = new ArrayList<>();
+    private int mNext;
+    private boolean mDone;
+    private IOException mLastError;
+    private EventLoop.Timeout mStagger;
+
+    private final Runnable mStartNext = new Runnable() {
+        @Override
+        public void run() {
+            startNext();
+        }
+    };
+
+    private final class Attempt extends Thread {
+        final String mmStrategy;
+        final Channel mmChannel;
+        EventLoop.Timeout mmTimeout;
+
+        Attempt(String strategy, Channel channel){
+            super("ConnectThread-" + mAddress + "-" + strategy);
+            mmStrategy = strategy;
+            mmChannel = channel;
+        }
+
+        @Override
+        public void run() {
+            try {
+                mmChannel.connect();
+            } catch (IOException e) {
+                closeQuietly(mmChannel);
+                onAttemptFailed(this, e);
+                return;
+            }
+            onAttemptConnected(this);
+        }
+    }
+
+    ConnectRace(String address, UUID uuid, Dialer dialer, List<String> strategies, EventLoop loop,
+                long staggerMillis, long attemptTimeoutMillis, Callback callback){
+        mAddress = address;
+        mUuid = uuid;
+        mDialer = dialer;
+        mStrategies = strategies;
+        mLoop = loop;
+        mStaggerMillis = staggerMillis;
+        mAttemptTimeoutMillis = attemptTimeoutMillis;
+        mCallback = callback;
+    }
+
+    String getAddress(){
+        return mAddress;
+    }
+
+    void start(){
+        startNext();
+    }
+
+    //Start the next strategy, or report the loss if there is none left and nothing is running
+    private void startNext(){
+        while(true){
+            String strategy;
+            IOException lost = null;
+            synchronized (this) {
+                cancelStagger();
+                if(mDone){
+                    return;
+                }
+                if(mNext < mStrategies.size()){
+                    strategy = mStrategies.get(mNext++);
+                }else if(mRunning.isEmpty()){
+                    mDone = true;
+                    strategy = null;
+                    lost = mLastError != null ? mLastError : new IOException("No way to dial " + mAddress);
+                }else{
+                    //The last ones are still running
+                    return;
+                }
+            }
+            if(lost != null){
+                Log.e(TAG, "startNext: Every attempt to " + mAddress + " failed");
+                mCallback.onLost(this, lost);
+                return;
+            }
+            Channel channel;
+            try {
+                channel = mDialer.createChannel(mAddress, mUuid, strategy);
+            } catch (IOException e) {
+                Log.e(TAG, "startNext: Could not create " + strategy + " channel: " + e.getMessage());
+                synchronized (this) {
+                    mLastError = e;
+                }
+                continue;
+            }
+            final Attempt attempt = new Attempt(strategy, channel);
+            synchronized (this) {
+                if(mDone){
+                    closeQuietly(channel);
+                    return;
+                }
+                mRunning.add(attempt);
+                attempt.mmTimeout = mLoop.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        Log.d(TAG, "timeout: " + mAddress + " " + attempt.mmStrategy);
+                        closeQuietly(attempt.mmChannel);
+                    }
+                }, mAttemptTimeoutMillis, TimeUnit.MILLISECONDS);
+                if(mNext < mStrategies.size()){
+                    mStagger = mLoop.schedule(mStartNext, mStaggerMillis, TimeUnit.MILLISECONDS);
+                }
+            }
+            Log.d(TAG, "startNext: Dialling " + mAddress + " " + strategy);
+            attempt.start();
+            return;
+        }
+    }
+
+    private void onAttemptConnected(Attempt winner){
+        List<Attempt> losers;
+        synchronized (this) {
+            mRunning.remove(winner);
+            winner.mmTimeout.cancel();
+            if(mDone){
+                closeQuietly(winner.mmChannel);
+                return;
+            }
+            mDone = true;
+            cancelStagger();
+            losers = new ArrayList<>(mRunning);
+            mRunning.clear();
+        }
+        for(Attempt loser : losers){
+            loser.mmTimeout.cancel();
+            closeQuietly(loser.mmChannel);
+        }
+        Log.d(TAG, "onAttemptConnected: " + mAddress + " answered " + winner.mmStrategy);
+        mCallback.onWon(this, winner.mmChannel, winner.mmStrategy);
+    }
+
+    private void onAttemptFailed(Attempt attempt, IOException e){
+        Log.d(TAG, "onAttemptFailed: " + mAddress + " " + attempt.mmStrategy + ": " + e.getMessage());
+        synchronized (this) {
+            mRunning.remove(attempt);
+            attempt.mmTimeout.cancel();
+            if(mDone){
+                return;
+            }
+            mLastError = e;
+        }
+        //Don't wait out the stagger for a strategy that has already failed
+        startNext();
+    }
+
+    private void cancelStagger(){
+        if(mStagger != null){
+            mStagger.cancel();
+            mStagger = null;
+        }
+    }
+
+    @Override
+    public void close() {
+        List<Attempt> running;
+        synchronized (this) {
+            if(mDone){
+                return;
+            }
+            mDone = true;
+            cancelStagger();
+            running = new ArrayList<>(mRunning);
+            mRunning.clear();
+        }
+        for(Attempt attempt : running){
+            attempt.mmTimeout.cancel();
+            closeQuietly(attempt.mmChannel);
+        }
+    }
+
+    private static void closeQuietly(Channel channel){
+        try {
+            channel.close();
+        } catch (IOException e) {
+            Log.e(TAG, "close: Could not close channel " + e.getMessage());
+        }
+    }
+}
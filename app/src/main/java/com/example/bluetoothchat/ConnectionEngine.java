@@ -0,0 +1,803 @@
+package com.example.bluetoothchat;
+
+import android.util.Log;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * The accept/connect/connected logic behind BluetoothConnectionService.
+ * It only talks to a Transport and a ConnectionListener, so it runs the same on RFCOMM
+ * and on a plain JVM over TcpTransport or PipedTransport.
+ *
+ * Several peers can be connected at once (a hub talking to a handful of HC-06 modules and
+ * phones). They are kept in a registry keyed by the peer's address and every write names the
+ * peer it is for.
+ *
+ * All peers are run by a small fixed set of EventLoops: decoding, dispatch and timers happen
+ * on the loop a peer is assigned to. NIO channels (TcpTransport) are accepted, connected, read
+ * and written on the loop itself. Blocking channels (RFCOMM, pipes) can't be selected on, so
+ * each gets a ReadPump thread doing nothing but read(), writers borrow a pool thread only while
+ * they have frames queued, and accepting or connecting them uses a thread while it blocks.
+ *
+ * Transports that can dial a peer more than one way (ConnectRace.Dialer) are dialled every way
+ * at once, staggered, and the first to connect is kept. The way that won is tried first the
+ * next time that peer is dialled, see setPreferredStrategy().
+ * */
+class ConnectionEngine {
+
+    private static final String TAG = "Message";
+    //Per frame logging, off unless enabled with: adb shell setprop log.tag.Message VERBOSE
+    private static final boolean TRACE = Log.isLoggable(TAG, Log.VERBOSE);
+
+    //An RFCOMM piconet has at most 7 active slaves
+    static final int MAX_PEERS = 7;
+
+    static final int DEFAULT_EVENT_LOOPS = Math.max(1, Math.min(2, Runtime.getRuntime().availableProcessors()));
+    static final long CONNECT_TIMEOUT_MILLIS = 10000;
+    //Head start each way of dialling a peer gets over the next
+    static final long CONNECT_STAGGER_MILLIS = 1500;
+
+    private static final ByteBuffer NO_VIEW = ByteBuffer.allocate(0);
+
+    private final Transport mTransport;
+    private final ConnectionListener mListener;
+    private final String mServiceName;
+    private final UUID mServiceUuid;
+    private final int mMaxPeers;
+    private volatile int mMaxBatchBytes = FrameWriter.DEFAULT_MAX_BATCH_BYTES;
+    private volatile long mHighWatermarkBytes = FrameWriter.DEFAULT_HIGH_WATERMARK_BYTES;
+
+    private final Metrics mMetrics = new Metrics();
+    private final Metrics.Counter mFramesIn = mMetrics.counter("frames.in");
+    private final Metrics.Counter mFramesOut = mMetrics.counter("frames.out");
+    private final Metrics.Counter mBytesIn = mMetrics.counter("bytes.in");
+    private final Metrics.Counter mBytesOut = mMetrics.counter("bytes.out");
+    private final Metrics.Counter mConnections = mMetrics.counter("connections");
+    private final Metrics.Counter mDisconnects = mMetrics.counter("disconnects");
+    //Bytes per read from a stream or socket, and time per write to one
+    private final Metrics.Histogram mReadSizes = mMetrics.histogram("read.bytes");
+    private final Metrics.Histogram mWriteNanos = mMetrics.histogram("write.nanos");
+
+    private final EventLoop[] mLoops;
+    private final AtomicInteger mNextLoop = new AtomicInteger();
+
+    private ServerChannel mServerChannel;
+    private AcceptThread mInsecureAcceptThread;
+    //A Channel, or a ConnectRace for transports that dial more than one way
+    private final ConcurrentMap<String, Closeable> mConnecting = new ConcurrentHashMap<>();
+    //Strategy that last connected, by address
+    private final ConcurrentMap<String, String> mPreferredStrategies = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, PeerConnection> mPeers = new ConcurrentHashMap<>();
+    //Guarded by this
+    private boolean mStopped;
+
+    //Writers of blocking channels run here only while they have frames queued, idle threads exit after a minute
+    private final ExecutorService mWriterExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+        private final AtomicInteger mmCount = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "FrameWriter-" + mmCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    ConnectionEngine(Transport transport, String serviceName, UUID serviceUuid, ConnectionListener listener){
+        this(transport, serviceName, serviceUuid, listener, MAX_PEERS, DEFAULT_EVENT_LOOPS);
+    }
+
+    ConnectionEngine(Transport transport, String serviceName, UUID serviceUuid, ConnectionListener listener,
+                     int maxPeers, int eventLoops){
+        mTransport = transport;
+        mServiceName = serviceName;
+        mServiceUuid = serviceUuid;
+        mListener = listener;
+        mMaxPeers = maxPeers;
+        mMetrics.gauge("peers", new Metrics.Gauge() {
+            @Override
+            public long value() {
+                return mPeers.size();
+            }
+        });
+        mLoops = new EventLoop[eventLoops];
+        for(int i = 0; i < eventLoops; i++){
+            try {
+                mLoops[i] = new EventLoop("EventLoop-" + serviceName + "-" + i);
+            } catch (IOException e) {
+                throw new IllegalStateException("Could not open selector", e);
+            }
+        }
+    }
+
+    private EventLoop nextLoop(){
+        return mLoops[(mNextLoop.getAndIncrement() & Integer.MAX_VALUE) % mLoops.length];
+    }
+
+    //Traffic and connection counts of this engine; layers above add theirs to the same registry
+    Metrics getMetrics(){
+        return mMetrics;
+    }
+
+    /*
+     * Bound what each writer holds ahead of the stream: batches of at most maxBatchBytes, and
+     * onBackpressure(true) once more than highWatermarkBytes are queued. Small values keep a frame
+     * written now from waiting behind much older ones. Applies to connections made afterwards.
+     * */
+    void setWriteLimits(int maxBatchBytes, long highWatermarkBytes){
+        mMaxBatchBytes = maxBatchBytes;
+        mHighWatermarkBytes = highWatermarkBytes;
+    }
+
+    /*
+     * Start the communication service. Specifically start listening for incoming
+     * connections in listening(server) mode.
+     * */
+    synchronized void start(){
+        Log.d(TAG, "start");
+
+        //Cancel anything attempting to make a connection
+        cancelConnecting();
+        //Check for an existing server channel
+        if(mServerChannel != null){
+            return;
+        }
+        try {
+            mServerChannel = mTransport.listen(mServiceName, mServiceUuid);
+            Log.d(TAG, "start: Setting up Server using" + mServiceUuid);
+        } catch (IOException e) {
+            Log.d(TAG, "start: IOException: " + e.getMessage());
+            return;
+        }
+        if(mServerChannel instanceof NioServerChannel){
+            startNioAccept((NioServerChannel) mServerChannel);
+        }else{
+            mInsecureAcceptThread = new AcceptThread(mServerChannel);
+            mInsecureAcceptThread.start();
+        }
+    }
+
+    /*
+     * Cancel everything, close every channel and stop the event loops.
+     * The engine can't be started again afterwards.
+     * */
+    synchronized void stop(){
+        Log.d(TAG, "stop");
+        mStopped = true;
+        cancelConnecting();
+        if(mInsecureAcceptThread != null){
+            mInsecureAcceptThread.cancel();
+            mInsecureAcceptThread = null;
+        }
+        if(mServerChannel != null){
+            closeQuietly(mServerChannel);
+            mServerChannel = null;
+        }
+        for(PeerConnection peer : mPeers.values()){
+            peer.close(null);
+        }
+        for(EventLoop loop : mLoops){
+            loop.shutdown();
+        }
+        mWriterExecutor.shutdown();
+    }
+
+    private void cancelConnecting(){
+        for(Closeable connecting : mConnecting.values()){
+            closeQuietly(connecting);
+        }
+        mConnecting.clear();
+    }
+
+    //Addresses of the peers that are currently connected
+    Set<String> getConnectedPeers(){
+        return Collections.unmodifiableSet(new HashSet<>(mPeers.keySet()));
+    }
+
+    boolean isConnected(String address){
+        return mPeers.containsKey(address);
+    }
+
+    //Drop the connection to one peer, onDisconnected follows
+    void disconnect(String address){
+        PeerConnection peer = mPeers.get(address);
+        if(peer != null){
+            peer.close(null);
+        }
+    }
+
+    /* This thread runs while listening for incoming connections on a blocking
+       server channel. It behaves like a server-side client. It keeps accepting
+       connections, one after the other, until cancelled
+     * */
+    private class AcceptThread extends Thread {
+        // The local server channel
+        private final ServerChannel mmServerChannel;
+        private volatile boolean mmCancelled;
+
+        AcceptThread(ServerChannel serverChannel) {
+            super("AcceptThread-" + mServiceName);
+            mmServerChannel = serverChannel;
+        }
+
+        public void run() {
+            Log.d(TAG, "run: AcceptThread running");
+            while(!mmCancelled){
+                Channel channel;
+                try {
+                    //This is a blocking call and will only return on a
+                    //successful connection or an exception
+                    Log.d(TAG, "run: server channel start...");
+                    //Accept a connection
+                    channel = mmServerChannel.accept();
+
+                    Log.d(TAG, "run: server channel accepted connection");
+                } catch (IOException e) {
+                    Log.e(TAG, "AcceptThread: IOException: " + e.getMessage());
+                    break;
+                }
+                connected(channel);
+            }
+            Log.i(TAG, "END mAcceptThread ");
+
+        }
+
+        void cancel() {
+            Log.d(TAG, "cancel: Cancelling AcceptThread");
+            mmCancelled = true;
+            closeQuietly(mmServerChannel);
+        }
+    }
+
+    //Accept connections on a NIO server channel from the first event loop
+    private void startNioAccept(final NioServerChannel serverChannel){
+        mLoops[0].execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    mLoops[0].register(serverChannel.getServerSocketChannel(), SelectionKey.OP_ACCEPT,
+                            new EventLoop.IoHandler() {
+                                @Override
+                                public void onReady(SelectionKey key) throws IOException {
+                                    Channel channel;
+                                    while((channel = serverChannel.accept()) != null){
+                                        connected(channel);
+                                    }
+                                }
+
+                                @Override
+                                public void onFailure(IOException e) {
+                                    Log.e(TAG, "accept: IOException: " + e.getMessage());
+                                    closeQuietly(serverChannel);
+                                }
+                            });
+                } catch (IOException e) {
+                    Log.e(TAG, "startNioAccept: " + e.getMessage());
+                }
+            }
+        });
+    }
+
+    /*
+     * Connect to the peer at address, alongside any peers already connected.
+     * The result is reported to the ConnectionListener
+     * */
+    void connect(String address, UUID uuid){
+        Log.d(TAG, "connect: Started");
+        if(mTransport instanceof ConnectRace.Dialer){
+            race(address, uuid, (ConnectRace.Dialer) mTransport);
+            return;
+        }
+        final Channel channel;
+        try{
+            Log.d(TAG, "connect: Trying to create channel using UUID: " + uuid);
+            channel = mTransport.createChannel(address, uuid);
+        }catch(IOException e){
+            Log.e(TAG, "connect: Could not create channel: " + e.getMessage());
+            mListener.onConnectionFailed(address, e);
+            return;
+        }
+        Closeable previous = mConnecting.put(address, channel);
+        if(previous != null){
+            closeQuietly(previous);
+        }
+        if(channel instanceof NioChannel){
+            startNioConnect(address, (NioChannel) channel);
+        }else{
+            new ConnectThread(address, channel).start();
+        }
+    }
+
+    //Dial address every way dialer knows, the one that won last time first
+    private void race(String address, UUID uuid, ConnectRace.Dialer dialer){
+        List<String> strategies = new ArrayList<>(dialer.strategies(address, uuid));
+        String preferred = mPreferredStrategies.get(address);
+        if(preferred != null && strategies.remove(preferred)){
+            strategies.add(0, preferred);
+        }
+        ConnectRace race = new ConnectRace(address, uuid, dialer, strategies, nextLoop(),
+                CONNECT_STAGGER_MILLIS, CONNECT_TIMEOUT_MILLIS, mRaceCallback);
+        Closeable previous = mConnecting.put(address, race);
+        if(previous != null){
+            closeQuietly(previous);
+        }
+        race.start();
+    }
+
+    private final ConnectRace.Callback mRaceCallback = new ConnectRace.Callback() {
+        @Override
+        public void onWon(ConnectRace race, Channel channel, String strategy) {
+            mPreferredStrategies.put(race.getAddress(), strategy);
+            if(mConnecting.remove(race.getAddress(), race)){
+                connected(channel);
+            }else{
+                //Cancelled or superseded just as it connected
+                closeQuietly(channel);
+            }
+        }
+
+        @Override
+        public void onLost(ConnectRace race, IOException lastError) {
+            if(mConnecting.remove(race.getAddress(), race)){
+                mListener.onConnectionFailed(race.getAddress(), lastError);
+            }
+        }
+    };
+
+    //Abandon a dial to address still in progress. A blocking channel reports it as failed, a race doesn't
+    void cancelConnect(String address){
+        Closeable connecting = mConnecting.remove(address);
+        if(connecting != null){
+            closeQuietly(connecting);
+        }
+    }
+
+    //Strategy to dial address with first, null if there is none yet
+    String getPreferredStrategy(String address){
+        return mPreferredStrategies.get(address);
+    }
+
+    //Remembered from an earlier run, see ConnectRace.Dialer.strategies() for the names
+    void setPreferredStrategy(String address, String strategy){
+        mPreferredStrategies.put(address, strategy);
+    }
+
+    /*
+        This thread runs while attempting to connect to make an outgoing connection
+        over a blocking channel. It runs straight through; the connection either
+        fails or succeeds.
+    */
+    private class ConnectThread extends Thread{
+        private final String mmAddress;
+        private final Channel mmChannel;
+
+        ConnectThread(String address, Channel channel){
+            super("ConnectThread-" + address);
+            Log.d(TAG, "ConnectThread: started.");
+            mmAddress = address;
+            mmChannel = channel;
+        }
+
+        public void run(){
+            Log.i(TAG, "RUN mConnectThread");
+
+            /*Make a connection to the Channel
+            *This is a blocking call and will only return on a
+            *successful connection or an exception.
+            */
+            try {
+                mmChannel.connect();
+                Log.d(TAG, "run: ConnectThread connected");
+            } catch (IOException e) {
+                // Close the channel
+                closeQuietly(mmChannel);
+                Log.e(TAG, "run: ConnectThread: could not connect to " + mmAddress);
+                mConnecting.remove(mmAddress, mmChannel);
+                mListener.onConnectionFailed(mmAddress, e);
+                return;
+            }
+            if(mConnecting.remove(mmAddress, mmChannel)){
+                connected(mmChannel);
+            }else{
+                //Cancelled or superseded while connecting
+                closeQuietly(mmChannel);
+            }
+        }
+    }
+
+    //Non-blocking connect driven by an event loop, given up after CONNECT_TIMEOUT_MILLIS
+    private void startNioConnect(final String address, final NioChannel channel){
+        final EventLoop loop = nextLoop();
+        loop.execute(new Runnable() {
+            @Override
+            public void run() {
+                final SocketChannel socketChannel = channel.getSocketChannel();
+                final AtomicBoolean done = new AtomicBoolean();
+                final EventLoop.Timeout timeout = loop.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        if(done.compareAndSet(false, true)){
+                            failConnect(address, channel, new IOException("Connect timed out"));
+                        }
+                    }
+                }, CONNECT_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+                try {
+                    socketChannel.configureBlocking(false);
+                    channel.connect();
+                    if(socketChannel.isConnected()){
+                        done.set(true);
+                        timeout.cancel();
+                        finishConnect(address, channel);
+                        return;
+                    }
+                    loop.register(socketChannel, SelectionKey.OP_CONNECT, new EventLoop.IoHandler() {
+                        @Override
+                        public void onReady(SelectionKey key) throws IOException {
+                            if(socketChannel.finishConnect() && done.compareAndSet(false, true)){
+                                timeout.cancel();
+                                key.interestOps(0);
+                                channel.onConnected();
+                                finishConnect(address, channel);
+                            }
+                        }
+
+                        @Override
+                        public void onFailure(IOException e) {
+                            if(done.compareAndSet(false, true)){
+                                timeout.cancel();
+                                failConnect(address, channel, e);
+                            }
+                        }
+                    });
+                } catch (IOException e) {
+                    if(done.compareAndSet(false, true)){
+                        timeout.cancel();
+                        failConnect(address, channel, e);
+                    }
+                }
+            }
+        });
+    }
+
+    private void finishConnect(String address, Channel channel){
+        Log.d(TAG, "run: connected to " + address);
+        if(mConnecting.remove(address, channel)){
+            connected(channel);
+        }else{
+            closeQuietly(channel);
+        }
+    }
+
+    private void failConnect(String address, Channel channel, IOException e){
+        Log.e(TAG, "connect: could not connect to " + address + ": " + e.getMessage());
+        closeQuietly(channel);
+        mConnecting.remove(address, channel);
+        mListener.onConnectionFailed(address, e);
+    }
+
+    /*
+     * One connected peer. Decoding and dispatch run on the peer's event loop; bytes come
+     * either from the selector (NIO) or from a ReadPump (blocking streams).
+     * */
+    private class PeerConnection implements EventLoop.IoHandler, ReadPump.Sink, FrameWriter.Listener {
+        private final Channel mmChannel;
+        private final String mmAddress;
+        private final EventLoop mmLoop;
+        private final AtomicBoolean mmClosed = new AtomicBoolean();
+
+        //Only touched on mmLoop
+        private final FrameDecoder mmDecoder = new FrameDecoder();
+        //The decoder hands out slices of its ring or its scratch array, keep one view wrapping each
+        private ByteBuffer mmView = NO_VIEW;
+        private ByteBuffer mmSpareView = NO_VIEW;
+        private final FrameDecoder.FrameHandler mmHandler = new FrameDecoder.FrameHandler() {
+            @Override
+            public void onFrame(int type, byte[] buffer, int offset, int length) {
+                //A writer failure may close us from another thread halfway through a chunk
+                if(mmClosed.get()){
+                    return;
+                }
+                mFramesIn.increment();
+                ByteBuffer view = mmView;
+                if(view.array() != buffer){
+                    view = mmSpareView.array() == buffer ? mmSpareView : ByteBuffer.wrap(buffer);
+                    mmSpareView = mmView;
+                    mmView = view;
+                }
+                view.limit(offset + length).position(offset);
+                try {
+                    mListener.onFrame(mmAddress, type, view);
+                } catch (RuntimeException e) {
+                    //A listener choking on a malformed frame would leave the decoder mid chunk and the link wedged
+                    Log.e(TAG, "onFrame: Bad frame " + type + " from " + mmAddress + ": " + e);
+                    close(new IOException("Listener failed on frame " + type, e));
+                }
+            }
+        };
+
+        //NIO channels
+        private final NioFrameWriter mmNioWriter;
+        //Blocking channels
+        private final FrameWriter mmStreamWriter;
+        private final ReadPump mmPump;
+
+        private final Metrics.Counter mmBytesIn;
+        private final Metrics.Counter mmBytesOut;
+        private final String mmQueueMetric;
+        private final Metrics.Gauge mmQueueDepth = new Metrics.Gauge() {
+            @Override
+            public long value() {
+                return mmNioWriter != null ? mmNioWriter.queuedBytes() : mmStreamWriter.queuedBytes();
+            }
+        };
+
+        PeerConnection(Channel channel, EventLoop loop) throws IOException {
+            Log.d(TAG, "PeerConnection: starting");
+            mmChannel = channel;
+            mmAddress = channel.getRemoteAddress();
+            mmLoop = loop;
+            if(channel instanceof NioChannel){
+                mmNioWriter = new NioFrameWriter(((NioChannel) channel).getSocketChannel(), loop, this,
+                        FrameWriter.DEFAULT_QUEUE_CAPACITY, mMaxBatchBytes, mHighWatermarkBytes);
+                mmStreamWriter = null;
+                mmPump = null;
+            }else{
+                mmNioWriter = null;
+                mmStreamWriter = new FrameWriter(channel.getOutputStream(), mWriterExecutor, this,
+                        FrameWriter.DEFAULT_QUEUE_CAPACITY, mMaxBatchBytes, FrameWriter.DEFAULT_LINGER_NANOS,
+                        mHighWatermarkBytes);
+                mmPump = new ReadPump(mmAddress, channel.getInputStream(), loop, this);
+            }
+            mmBytesIn = mMetrics.counter(Metrics.peer(mmAddress, "bytes.in"));
+            mmBytesOut = mMetrics.counter(Metrics.peer(mmAddress, "bytes.out"));
+            mmQueueMetric = Metrics.peer(mmAddress, "queue.bytes");
+            mMetrics.gauge(mmQueueMetric, mmQueueDepth);
+        }
+
+        //Undo the constructor for a connection turned away before it started
+        void discard(){
+            closeQuietly(mmChannel);
+            mMetrics.removeGauge(mmQueueMetric, mmQueueDepth);
+        }
+
+        void start(){
+            if(mmNioWriter == null){
+                mmStreamWriter.start();
+                mmPump.start();
+                return;
+            }
+            mmLoop.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        SelectionKey key = mmLoop.register(((NioChannel) mmChannel).getSocketChannel(),
+                                SelectionKey.OP_READ, PeerConnection.this);
+                        mmNioWriter.attach(key);
+                    } catch (IOException e) {
+                        close(e);
+                    }
+                }
+            });
+        }
+
+        @Override
+        public void onReady(SelectionKey key) throws IOException {
+            if(key.isReadable()){
+                SocketChannel socketChannel = (SocketChannel) key.channel();
+                ByteBuffer buffer = mmLoop.readBuffer();
+                while(true){
+                    buffer.clear();
+                    int bytes = socketChannel.read(buffer);
+                    if(bytes < 0){
+                        Log.d(TAG, "read: Channel closed by remote device");
+                        close(null);
+                        return;
+                    }
+                    if(bytes == 0){
+                        break;
+                    }
+                    read(bytes);
+                    buffer.flip();
+                    mmDecoder.feed(buffer, mmHandler);
+                    if(mmClosed.get()){
+                        return;
+                    }
+                }
+            }
+            if(key.isValid() && key.isWritable()){
+                mmNioWriter.onWritable();
+            }
+        }
+
+        @Override
+        public void onFailure(IOException e) {
+            close(e);
+        }
+
+        @Override
+        public void onBytes(byte[] buffer, int offset, int length) {
+            if(mmClosed.get()){
+                return;
+            }
+            read(length);
+            try {
+                mmDecoder.feed(buffer, offset, length, mmHandler);
+            } catch (IOException e) {
+                close(e);
+            }
+        }
+
+        private void read(int bytes){
+            mBytesIn.add(bytes);
+            mmBytesIn.add(bytes);
+            mReadSizes.record(bytes);
+        }
+
+        @Override
+        public void onEndOfStream(IOException e) {
+            close(e);
+        }
+
+        //Queue a frame for the writer to send to the remote device
+        boolean write(int type, byte[] bytes){
+            if(TRACE && type == FrameCodec.TYPE_TEXT){
+                String text = Utf8.decode(bytes, 0, bytes.length);
+                Log.v(TAG, "write: Queueing for " + mmAddress + ": " + text);
+            }
+            boolean queued = mmNioWriter != null ? mmNioWriter.enqueue(type, bytes, 0, bytes.length)
+                    : mmStreamWriter.enqueue(type, bytes, 0, bytes.length);
+            if(queued){
+                mFramesOut.increment();
+            }
+            return queued;
+        }
+
+        @Override
+        public void onBackpressure(boolean congested) {
+            mListener.onBackpressure(mmAddress, congested);
+        }
+
+        @Override
+        public void onWriteFailed(IOException e) {
+            close(e);
+        }
+
+        @Override
+        public void onWritten(int bytes, long nanos) {
+            mBytesOut.add(bytes);
+            mmBytesOut.add(bytes);
+            mWriteNanos.record(nanos);
+        }
+
+        //Close the connection and report the disconnect once. Safe from any thread
+        void close(IOException cause){
+            if(!mmClosed.compareAndSet(false, true)){
+                return;
+            }
+            if(cause != null){
+                Log.e(TAG, "close: " + mmAddress + ": " + cause.getMessage());
+            }
+            if(mmNioWriter != null){
+                mmNioWriter.close();
+            }else{
+                mmStreamWriter.close();
+            }
+            //Also unblocks the ReadPump and cancels the selection key
+            closeQuietly(mmChannel);
+            mMetrics.removeGauge(mmQueueMetric, mmQueueDepth);
+            mDisconnects.increment();
+            //A newer connection from the same peer may already have taken our slot
+            if(mPeers.remove(mmAddress, this)){
+                mListener.onDisconnected(mmAddress);
+            }
+        }
+    }
+
+    private void connected(Channel channel) {
+        Log.d(TAG, "connected: starting");
+        String address = channel.getRemoteAddress();
+        // Set up the peer to manage the connection and perform transmissions
+        PeerConnection peer;
+        try {
+            peer = new PeerConnection(channel, nextLoop());
+        } catch (IOException e) {
+            Log.e(TAG, "connected: Could not open streams: " + e.getMessage());
+            closeQuietly(channel);
+            mListener.onConnectionFailed(address, e);
+            return;
+        }
+
+        PeerConnection previous;
+        synchronized (this) {
+            if(mStopped){
+                //A connect finished after stop()
+                peer.discard();
+                return;
+            }
+            previous = mPeers.get(address);
+            if(previous == null && mPeers.size() >= mMaxPeers){
+                Log.e(TAG, "connected: Already connected to " + mPeers.size() + " peers, refusing " + address);
+                peer.discard();
+                mListener.onConnectionFailed(address, new IOException("Too many peers"));
+                return;
+            }
+            //A reconnecting peer replaces its stale connection
+            mPeers.put(address, peer);
+        }
+        if(previous != null){
+            previous.close(null);
+        }
+        mConnections.increment();
+        mListener.onConnected(address);
+        synchronized (this) {
+            //stop() may have run since, and shut the writer pool
+            if(!mStopped){
+                peer.start();
+            }
+        }
+    }
+
+    /**
+     * Queue bytes for one peer's writer. Never blocks on the stream
+     * @param address The peer to send to
+     * @param out The bytes to write, must not be modified afterwards
+     * @return false if the peer is not connected or its send queue is full
+     * @see PeerConnection#write(int, byte[])
+     * */
+    boolean write(String address, byte[] out){
+        return write(address, FrameCodec.TYPE_TEXT, out);
+    }
+
+    //Queue a frame of any type for one peer, same contract as write(String, byte[])
+    boolean write(String address, int type, byte[] out){
+        PeerConnection peer = mPeers.get(address);
+        if(peer == null){
+            Log.e(TAG, "write: Not connected to " + address);
+            return false;
+        }
+        //perform the write
+        return peer.write(type, out);
+    }
+
+    /**
+     * Queue bytes for every connected peer
+     * @param out The bytes to write, must not be modified afterwards
+     * @return false if no peer accepted the message
+     * */
+    boolean write(byte[] out){
+        boolean queued = false;
+        for(PeerConnection peer : mPeers.values()){
+            queued |= peer.write(FrameCodec.TYPE_TEXT, out);
+        }
+        if(!queued){
+            Log.e(TAG, "write: No connected peer accepted the message");
+        }
+        return queued;
+    }
+
+    private static void closeQuietly(java.io.Closeable closeable){
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            Log.e(TAG, "close: Could not close channel " + e.getMessage());
+        }
+    }
+}
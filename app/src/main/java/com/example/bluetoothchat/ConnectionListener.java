@@ -0,0 +1,29 @@
+package com.example.bluetoothchat;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/*
+ * Callbacks from ConnectionEngine. They are called on the engine's own threads,
+ * never on the main thread.
+ * */
+interface ConnectionListener {
+
+    void onConnected(String address);
+
+    void onConnectionFailed(String address, IOException e);
+
+    /*
+     * payload is a view onto the peer's receive buffer holding the frame between its position
+     * and limit. It is reused for the next frame, so it is only valid until this method returns.
+     * */
+    void onFrame(String address, int type, ByteBuffer payload);
+
+    void onDisconnected(String address);
+
+    /*
+     * The send queue for address went above (congested) or back below its watermark.
+     * While congested, callers should hold back non-essential writes.
+     * */
+    void onBackpressure(String address, boolean congested);
+}
@@ -0,0 +1,1478 @@
+package com.example.bluetoothchat;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.SecureRandom;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Keeps sessions with peers alive across dropped links, on top of a ConnectionEngine.
+ *
+ * Every engine instance has a random node id. On each new connection both sides send HELLO
+ * with their node id, which ties the connection to an existing session with that node (or
+ * starts one), and answer with RESUME carrying how many frames of the session they have
+ * received. The links are ordered and lossless while up, so that count is all the sender needs:
+ * frames it sent are kept in a replay buffer until the peer ACKs them, and on RESUME whatever
+ * the peer didn't get is sent again before anything new.
+ *
+ * Writes don't go into that sequence straight away. Each session has three lanes, control,
+ * interactive and bulk, and frames wait in their lane until the writer below has room: the
+ * engine's writers are kept to a couple of KB ahead of the stream, so a chat line written
+ * during a file transfer only waits for what is already in flight, not for the whole file.
+ * Control goes first; interactive and bulk share what is left by deficit round robin, four
+ * bytes of interactive to one of bulk when both have something queued. Frames longer than
+ * FRAGMENT_BYTES go out as TYPE_FRAGMENT pieces so they can be interleaved, and are put back
+ * together per lane on the other side. Writes made while the link is down wait in the lanes too.
+ *
+ * In reliable mode (setReliableWindow) data frames carry their sequence number instead, and
+ * only a window of them is unacknowledged at a time. The window is sized from the measured round
+ * trip by SendWindow so the sender doesn't bury a slow peer under queued frames, and anything
+ * not acknowledged within the retransmit timeout is sent again; the receiver drops sequence
+ * numbers it already has.
+ *
+ * Both sides list the codecs they can inflate in HELLO. If both have DeflateCodec, payloads
+ * of MIN_COMPRESS_BYTES and up are sent as TYPE_COMPRESSED whenever that comes out smaller;
+ * the replay buffer keeps them compressed.
+ *
+ * Idle links are kept honest by heartbeats, for peers whose HELLO offers them: when nothing has
+ * arrived from the peer for a heartbeat interval a PING goes out, and its PONG gives a round
+ * trip that feeds a smoothed RTT and jitter per peer (RFC 6298, RFC 3550). After missedPings
+ * intervals in a row without a word from the peer the link is declared dead and closed, which
+ * a half-open RFCOMM link would otherwise never be, and the session resumes on a new one.
+ *
+ * Links this side dialed are redialed with jittered exponential backoff when they fail or
+ * drop. A session that stays down for sessionTimeoutMillis is given up and reported as
+ * disconnected; a short dropout is invisible to the ConnectionListener.
+ *
+ * The ConnectionListener hears about a peer once its HELLO has arrived; every build of the app
+ * sends it first. A link that sends data before HELLO, or says nothing for helloTimeoutMillis,
+ * is a plain FrameCodec peer such as a microcontroller on a serial module. It gets a legacy
+ * session: frames go out and come in as they are, with no sequencing, acknowledgements,
+ * fragments, compression or heartbeats, and the session ends with the link since there is
+ * nothing to resume.
+ * */
+class ConnectionSupervisor implements ConnectionListener {
+
+    private static final String TAG = "ConnectionSupervisor";
+
+    static final long DEFAULT_BASE_DELAY_MILLIS = 250;
+    static final long DEFAULT_MAX_DELAY_MILLIS = 30000;
+    static final long DEFAULT_SESSION_TIMEOUT_MILLIS = 5 * 60 * 1000;
+    //A peer that has never answered is reported as failed after this many attempts
+    static final int INITIAL_CONNECT_ATTEMPTS = 3;
+    //Kept under the writer queue so a resume always fits in it
+    static final int MAX_REPLAY_FRAMES = 512;
+    static final int ACK_EVERY_FRAMES = 32;
+    static final long ACK_DELAY_MILLIS = 50;
+    static final int INITIAL_WINDOW = 4;
+    static final long DEFAULT_HEARTBEAT_MILLIS = 5000;
+    static final int DEFAULT_MISSED_PINGS = 3;
+    //A link still quiet after this long is taken for a plain framed peer
+    static final long DEFAULT_HELLO_TIMEOUT_MILLIS = 2000;
+    //HELLO capability bit next to the codecs: this side answers PING
+    static final int CAPABILITY_HEARTBEAT = 0x80;
+    //TYPE_SESSION_DATA flags: last frame of a burst, the sender is waiting for the ACK
+    private static final int FLAG_ACK_NOW = 1;
+
+    //Lanes in order of priority
+    static final int LANE_CONTROL = 0;
+    static final int LANE_INTERACTIVE = 1;
+    static final int LANE_BULK = 2;
+    private static final int LANES = 3;
+    //Frames waiting in one lane before write() refuses more
+    static final int MAX_LANE_FRAMES = 1024;
+    //Longer frames are sent in pieces of this size so other lanes can get in between
+    static final int FRAGMENT_BYTES = 1024;
+    //Bytes a lane may send per round of the deficit round robin
+    private static final int[] LANE_QUANTUM = {0, 4 * FRAGMENT_BYTES, FRAGMENT_BYTES};
+    //TYPE_FRAGMENT flags
+    private static final int FRAGMENT_FIRST = 1;
+    private static final int FRAGMENT_LAST = 2;
+    //What the engine's writers may hold ahead of the stream; anything queued there can't be overtaken
+    static final int WRITE_BATCH_BYTES = 2048;
+    static final long WRITE_HIGH_WATERMARK_BYTES = 2048;
+    //The app is told to back off once this much waits in a session's lanes
+    static final long LANE_HIGH_WATERMARK_BYTES = 256 * 1024;
+
+    private static final class Outbound {
+        final int type;
+        final byte[] payload;
+        //Reliable mode
+        boolean sent;
+        boolean retransmitted;
+        long sentAtNanos;
+
+        Outbound(int type, byte[] payload){
+            this.type = type;
+            this.payload = payload;
+        }
+    }
+
+    //Frames of one priority waiting to be sequenced
+    private static final class Lane {
+        final int mmIndex;
+        final ArrayDeque<Outbound> mmFrames = new ArrayDeque<>();
+        //Bytes of the head frame already sent as fragments
+        int mmOffset;
+        int mmDeficit;
+
+        Lane(int index){
+            mmIndex = index;
+        }
+
+        //Payload bytes the next whole frame or fragment takes
+        int nextBytes(){
+            return Math.min(FRAGMENT_BYTES, mmFrames.peek().payload.length - mmOffset);
+        }
+    }
+
+    //A fragmented frame coming in on one lane
+    private static final class Reassembly {
+        int mmType;
+        byte[] mmBuffer;
+        int mmLength;
+    }
+
+    //A peer we dial
+    private final class Target {
+        final String mmAddress;
+        final UUID mmUuid;
+        final Backoff mmBackoff;
+        boolean mmEverConnected;
+        EventLoop.Timeout mmRetry;
+
+        Target(String address, UUID uuid){
+            mmAddress = address;
+            mmUuid = uuid;
+            mmBackoff = new Backoff(mBaseDelayMillis, mMaxDelayMillis, mRandom);
+        }
+    }
+
+    //Everything we know about one remote node, connected or not
+    private final class Session {
+        final long mmNode;
+        //What the app knows the peer as, stays the same across reconnects
+        final String mmAddress;
+        //Engine address of the live connection, null while the link is down
+        String mmConnection;
+        //RESUME received on mmConnection, new frames can go straight out
+        boolean mmReady;
+        //A plain framed peer that never said HELLO, see startLegacy
+        boolean mmLegacy;
+
+        long mmReceived;
+        long mmAckedUpTo;
+        boolean mmAckScheduled;
+
+        //Ring indexed by sequence, holds frames mmFirstUnacked up to mmNextSequence - 1
+        final Outbound[] mmReplay = new Outbound[MAX_REPLAY_FRAMES];
+        long mmFirstUnacked;
+        long mmNextSequence;
+        //Next frame to go out on the current link
+        long mmNextSend;
+
+        final Lane[] mmLanes = new Lane[LANES];
+        final Reassembly[] mmIncoming = new Reassembly[LANES];
+        //Lane whose turn it is in the round robin
+        int mmTurn = LANE_INTERACTIVE;
+        long mmQueuedBytes;
+        //The connection's writer is past WRITE_HIGH_WATERMARK_BYTES
+        boolean mmCongested;
+        //The app has been told to back off
+        boolean mmBackpressured;
+
+        //Both sides can inflate DeflateCodec frames
+        boolean mmCompress;
+
+        //Reliable mode, null otherwise
+        SendWindow mmWindow;
+        long mmRetransmitAt;
+        boolean mmRetransmitArmed;
+        boolean mmRetransmitScheduled;
+
+        EventLoop.Timeout mmGiveUp;
+
+        //The peer answers PING
+        boolean mmHeartbeats;
+        //Something arrived on the link since the last heartbeat tick
+        boolean mmHeard;
+        int mmMissedPings;
+        EventLoop.Timeout mmHeartbeat;
+        final Runnable mmHeartbeatTask = new Runnable() {
+            @Override
+            public void run() {
+                heartbeat(Session.this);
+            }
+        };
+        //From PONGs, -1 until the first one
+        long mmSrttNanos = -1;
+        long mmRttVarNanos;
+        long mmJitterNanos;
+        long mmLastRttNanos = -1;
+
+        final Metrics.Counter mmReconnects;
+        final Metrics.Histogram mmRtt;
+        final String mmLaneMetric;
+        final Metrics.Gauge mmLaneBytes = new Metrics.Gauge() {
+            @Override
+            public long value() {
+                synchronized (ConnectionSupervisor.this) {
+                    return mmQueuedBytes;
+                }
+            }
+        };
+
+        final String mmSrttMetric;
+        final Metrics.Gauge mmSrtt = new Metrics.Gauge() {
+            @Override
+            public long value() {
+                synchronized (ConnectionSupervisor.this) {
+                    return mmSrttNanos;
+                }
+            }
+        };
+        final String mmJitterMetric;
+        final Metrics.Gauge mmJitter = new Metrics.Gauge() {
+            @Override
+            public long value() {
+                synchronized (ConnectionSupervisor.this) {
+                    return mmJitterNanos;
+                }
+            }
+        };
+
+        Session(long node, String address){
+            mmNode = node;
+            mmAddress = address;
+            for(int i = 0; i < LANES; i++){
+                mmLanes[i] = new Lane(i);
+                mmIncoming[i] = new Reassembly();
+            }
+            Metrics metrics = mEngine.getMetrics();
+            mmReconnects = metrics.counter(Metrics.peer(address, "reconnects"));
+            mmRtt = metrics.histogram(Metrics.peer(address, "rtt.nanos"));
+            mmLaneMetric = Metrics.peer(address, "lane.bytes");
+            metrics.gauge(mmLaneMetric, mmLaneBytes);
+            mmSrttMetric = Metrics.peer(address, "srtt.nanos");
+            metrics.gauge(mmSrttMetric, mmSrtt);
+            mmJitterMetric = Metrics.peer(address, "jitter.nanos");
+            metrics.gauge(mmJitterMetric, mmJitter);
+        }
+    }
+
+    private final ConnectionEngine mEngine;
+    private final Metrics.Counter mReconnects;
+    private final Metrics.Counter mRetransmits;
+    private final Metrics.Counter mDeadPeers;
+    private final ConnectionListener mListener;
+    private final EventLoop mTimers;
+    private final Random mRandom = new SecureRandom();
+    private final long mNodeId = mRandom.nextLong();
+    private final long mBaseDelayMillis;
+    private final long mMaxDelayMillis;
+    private final long mSessionTimeoutMillis;
+    private volatile int mReliableWindow;
+    private volatile int mCodecs = DeflateCodec.CAPABILITY;
+    private volatile long mHeartbeatMillis = DEFAULT_HEARTBEAT_MILLIS;
+    private volatile int mMissedPings = DEFAULT_MISSED_PINGS;
+    private volatile long mHelloTimeoutMillis = DEFAULT_HELLO_TIMEOUT_MILLIS;
+    //Guarded by this, every send holds the lock anyway
+    private final DeflateCodec mCompressor = new DeflateCodec();
+    //Incoming frames are inflated outside the lock by the engine loop thread that delivers them,
+    //each with a codec and buffer of its own. Guarded by this, ended by stop()
+    private final Map<Thread, DeflateCodec> mInflaters = new HashMap<>();
+
+    //Guarded by this
+    private final Map<String, Target> mTargets = new HashMap<>();
+    private final Map<Long, Session> mSessions = new HashMap<>();
+    private final Map<String, Session> mByConnection = new HashMap<>();
+    private final Map<String, Session> mByAddress = new HashMap<>();
+    //Links that are up but haven't said HELLO, and the timers that stop waiting for it
+    private final Map<String, EventLoop.Timeout> mAwaitingHello = new HashMap<>();
+    private boolean mStopped;
+
+    ConnectionSupervisor(Transport transport, String serviceName, UUID serviceUuid, ConnectionListener listener){
+        this(transport, serviceName, serviceUuid, listener, DEFAULT_BASE_DELAY_MILLIS, DEFAULT_MAX_DELAY_MILLIS,
+                DEFAULT_SESSION_TIMEOUT_MILLIS);
+    }
+
+    ConnectionSupervisor(Transport transport, String serviceName, UUID serviceUuid, ConnectionListener listener,
+                         long baseDelayMillis, long maxDelayMillis, long sessionTimeoutMillis){
+        mListener = listener;
+        mBaseDelayMillis = baseDelayMillis;
+        mMaxDelayMillis = maxDelayMillis;
+        mSessionTimeoutMillis = sessionTimeoutMillis;
+        try {
+            mTimers = new EventLoop("Supervisor-" + serviceName);
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not open selector", e);
+        }
+        mEngine = new ConnectionEngine(transport, serviceName, serviceUuid, this);
+        mEngine.setWriteLimits(WRITE_BATCH_BYTES, WRITE_HIGH_WATERMARK_BYTES);
+        Metrics metrics = mEngine.getMetrics();
+        mReconnects = metrics.counter("reconnects");
+        mRetransmits = metrics.counter("retransmits");
+        mDeadPeers = metrics.counter("dead.peers");
+        metrics.gauge("sessions", new Metrics.Gauge() {
+            @Override
+            public long value() {
+                synchronized (ConnectionSupervisor.this) {
+                    return mSessions.size();
+                }
+            }
+        });
+    }
+
+    /*
+     * Turn on reliable mode with at most maxWindow unacknowledged frames per peer, or turn it
+     * off with 0. Sessions that already started keep their mode.
+     * */
+    void setReliableWindow(int maxWindow){
+        if(maxWindow < 0 || maxWindow > MAX_REPLAY_FRAMES){
+            throw new IllegalArgumentException("Window must be 0 to " + MAX_REPLAY_FRAMES + ": " + maxWindow);
+        }
+        mReliableWindow = maxWindow;
+    }
+
+    //Offer compression to peers that start a session from now on, on by default
+    void setCompression(boolean enabled){
+        mCodecs = enabled ? DeflateCodec.CAPABILITY : 0;
+    }
+
+    /*
+     * PING a peer that has been quiet for intervalMillis, and close its link once missedPings
+     * intervals have gone by without a word. 0 turns heartbeats off for links that come up from now on.
+     * */
+    void setHeartbeat(long intervalMillis, int missedPings){
+        if(intervalMillis < 0 || missedPings < 1){
+            throw new IllegalArgumentException("Bad heartbeat " + intervalMillis + " ms, " + missedPings + " pings");
+        }
+        mHeartbeatMillis = intervalMillis;
+        mMissedPings = missedPings;
+    }
+
+    //How long a new link may stay silent before it is taken for a plain framed peer
+    void setHelloTimeout(long timeoutMillis){
+        if(timeoutMillis <= 0){
+            throw new IllegalArgumentException("Bad HELLO timeout " + timeoutMillis + " ms");
+        }
+        mHelloTimeoutMillis = timeoutMillis;
+    }
+
+    //Smoothed round trip to address measured by heartbeats, -1 if not known yet
+    synchronized long getSmoothedRttNanos(String address){
+        Session session = mByAddress.get(address);
+        return session == null ? -1 : session.mmSrttNanos;
+    }
+
+    //Mean deviation between consecutive heartbeat round trips to address, -1 if not known yet
+    synchronized long getJitterNanos(String address){
+        Session session = mByAddress.get(address);
+        return session == null || session.mmSrttNanos < 0 ? -1 : session.mmJitterNanos;
+    }
+
+    void start(){
+        mEngine.start();
+    }
+
+    //Random id this side says HELLO with, new every time the process starts
+    long getNodeId(){
+        return mNodeId;
+    }
+
+    //See ConnectionEngine.getPreferredStrategy
+    String getPreferredStrategy(String address){
+        return mEngine.getPreferredStrategy(address);
+    }
+
+    void setPreferredStrategy(String address, String strategy){
+        mEngine.setPreferredStrategy(address, strategy);
+    }
+
+    //The engine's metrics, plus reconnects, retransmits, dead peers, and per peer RTT, jitter and lane backlog
+    Metrics getMetrics(){
+        return mEngine.getMetrics();
+    }
+
+    void stop(){
+        synchronized (this) {
+            mStopped = true;
+            for(Target target : mTargets.values()){
+                cancel(target.mmRetry);
+            }
+            for(Session session : mSessions.values()){
+                cancel(session.mmGiveUp);
+                cancel(session.mmHeartbeat);
+            }
+            for(EventLoop.Timeout wait : mAwaitingHello.values()){
+                cancel(wait);
+            }
+            mAwaitingHello.clear();
+        }
+        mEngine.stop();
+        mTimers.shutdown();
+        List<DeflateCodec> inflaters;
+        synchronized (this) {
+            mCompressor.end();
+            inflaters = new ArrayList<>(mInflaters.values());
+            mInflaters.clear();
+        }
+        //A loop may still be inflating its last frame, see inflate()
+        for(DeflateCodec inflater : inflaters){
+            synchronized (inflater) {
+                inflater.end();
+            }
+        }
+    }
+
+    //Dial address and keep redialing it whenever the link drops, until disconnect(address)
+    void connect(String address, UUID uuid){
+        Target target;
+        synchronized (this) {
+            if(mStopped){
+                return;
+            }
+            target = mTargets.get(address);
+            if(target == null){
+                target = new Target(address, uuid);
+                mTargets.put(address, target);
+            }
+            cancel(target.mmRetry);
+            target.mmRetry = null;
+        }
+        mEngine.connect(address, uuid);
+    }
+
+    //End the session with address for good, it is not redialed
+    void disconnect(String address){
+        String connection = address;
+        Session session;
+        Target target;
+        synchronized (this) {
+            target = mTargets.remove(address);
+            if(target != null){
+                cancel(target.mmRetry);
+            }
+            session = mByAddress.get(address);
+            if(session != null){
+                connection = session.mmConnection;
+                dropSession(session);
+            }
+        }
+        if(target != null){
+            //Don't let a dial in progress bring it back
+            mEngine.cancelConnect(address);
+        }
+        if(connection != null){
+            mEngine.disconnect(connection);
+        }
+        if(session != null){
+            mListener.onDisconnected(address);
+        }
+    }
+
+    //Peers with a session, including ones whose link is down while it is being resumed
+    synchronized Set<String> getConnectedPeers(){
+        return Collections.unmodifiableSet(new HashSet<>(mByAddress.keySet()));
+    }
+
+    synchronized boolean isConnected(String address){
+        return mByAddress.containsKey(address);
+    }
+
+    boolean write(String address, byte[] out){
+        return write(address, FrameCodec.TYPE_TEXT, out);
+    }
+
+    //Queue a frame for the peer's session on the lane its type belongs to, see laneOf
+    boolean write(String address, int type, byte[] out){
+        return write(address, laneOf(type), type, out);
+    }
+
+    /*
+     * Queue a frame for the peer's session on lane. While the link is down it is held and sent on
+     * resume. Returns false if there is no such peer, the frame is too large or the lane is full.
+     * */
+    synchronized boolean write(String address, int lane, int type, byte[] out){
+        if(lane < 0 || lane >= LANES){
+            throw new IllegalArgumentException("No lane " + lane);
+        }
+        Session session = mByAddress.get(address);
+        return session != null && send(session, session.mmLanes[lane], type, out);
+    }
+
+    //Queue bytes for every peer, false if none accepted them
+    boolean write(byte[] out){
+        boolean queued = false;
+        for(String address : getConnectedPeers()){
+            queued |= write(address, FrameCodec.TYPE_TEXT, out);
+        }
+        return queued;
+    }
+
+    /*
+     * Chat and sensor samples are interactive, file chunks are bulk, and the small frames that
+     * steer a transfer or a device go on control
+     * */
+    static int laneOf(int type){
+        switch(type){
+            case FrameCodec.TYPE_FILE_CHUNK:
+                return LANE_BULK;
+            case FrameCodec.TYPE_COMMAND:
+            case FrameCodec.TYPE_COMMAND_ACK:
+            case FrameCodec.TYPE_FILE_OFFER:
+            case FrameCodec.TYPE_FILE_ACCEPT:
+            case FrameCodec.TYPE_FILE_ACK:
+            case FrameCodec.TYPE_FILE_DONE:
+                return LANE_CONTROL;
+            default:
+                return LANE_INTERACTIVE;
+        }
+    }
+
+    //Guarded by this
+    private boolean send(Session session, Lane lane, int type, byte[] out){
+        if(out.length > FrameCodec.DEFAULT_MAX_PAYLOAD){
+            Log.e(TAG, "write: " + out.length + " bytes is more than a peer accepts in one frame");
+            return false;
+        }
+        if(lane.mmFrames.size() >= MAX_LANE_FRAMES){
+            Log.e(TAG, "write: Lane " + lane.mmIndex + " for " + session.mmAddress + " is full");
+            return false;
+        }
+        if(session.mmCompress){
+            byte[] compressed = mCompressor.compress(type, out, 0, out.length);
+            if(compressed != null){
+                type = FrameCodec.TYPE_COMPRESSED;
+                out = compressed;
+            }
+        }
+        lane.mmFrames.add(new Outbound(type, out));
+        session.mmQueuedBytes += out.length;
+        schedule(session);
+        return true;
+    }
+
+    /*
+     * Move frames from the lanes into the session sequence and out, for as long as the writer
+     * isn't backed up and the replay buffer or reliable window has room. Guarded by this
+     * */
+    private void schedule(final Session session){
+        if(session.mmReady){
+            int limit = session.mmWindow != null ? session.mmWindow.window() : MAX_REPLAY_FRAMES;
+            //Sequence order is wire order, so nothing new while a go-back-N is still resending
+            while(!session.mmCongested && session.mmNextSend == session.mmNextSequence
+                    && session.mmNextSequence - session.mmFirstUnacked < limit){
+                Lane lane = pick(session);
+                if(lane == null){
+                    break;
+                }
+                Outbound frame = take(session, lane);
+                session.mmReplay[slot(session.mmNextSequence++)] = frame;
+                if(session.mmWindow != null){
+                    pump(session);
+                    continue;
+                }
+                if(!mEngine.write(session.mmConnection, frame.type, frame.payload)){
+                    //Only a closing writer refuses frames while uncongested. The frame is sequenced but
+                    //not sent, so start over on a fresh link where RESUME picks it up
+                    final String broken = session.mmConnection;
+                    session.mmReady = false;
+                    mTimers.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            mEngine.disconnect(broken);
+                        }
+                    });
+                    break;
+                }
+                session.mmNextSend = session.mmNextSequence;
+                if(session.mmLegacy){
+                    //Nothing will ACK it or ask for it again
+                    trim(session, session.mmNextSequence);
+                }
+            }
+            if(session.mmWindow != null){
+                pump(session);
+            }
+        }
+        boolean backpressured = session.mmQueuedBytes > (session.mmBackpressured
+                ? LANE_HIGH_WATERMARK_BYTES / 2 : LANE_HIGH_WATERMARK_BYTES);
+        if(backpressured != session.mmBackpressured){
+            session.mmBackpressured = backpressured;
+            final boolean congested = backpressured;
+            //Not from under the lock; the timer thread keeps the calls in order
+            mTimers.execute(new Runnable() {
+                @Override
+                public void run() {
+                    mListener.onBackpressure(session.mmAddress, congested);
+                }
+            });
+        }
+    }
+
+    private static boolean lanesEmpty(Session session){
+        for(Lane lane : session.mmLanes){
+            if(!lane.mmFrames.isEmpty()){
+                return false;
+            }
+        }
+        return true;
+    }
+
+    //Control whenever it has something, else deficit round robin between interactive and bulk. Guarded by this
+    private static Lane pick(Session session){
+        Lane[] lanes = session.mmLanes;
+        if(!lanes[LANE_CONTROL].mmFrames.isEmpty()){
+            return lanes[LANE_CONTROL];
+        }
+        if(lanes[LANE_INTERACTIVE].mmFrames.isEmpty() && lanes[LANE_BULK].mmFrames.isEmpty()){
+            return null;
+        }
+        //A quantum always covers the next piece, so this ends within a round
+        while(true){
+            Lane lane = lanes[session.mmTurn];
+            if(lane.mmFrames.isEmpty()){
+                lane.mmDeficit = 0;
+            }else if(lane.mmDeficit >= lane.nextBytes()){
+                return lane;
+            }
+            session.mmTurn = session.mmTurn == LANE_INTERACTIVE ? LANE_BULK : LANE_INTERACTIVE;
+            Lane next = lanes[session.mmTurn];
+            if(!next.mmFrames.isEmpty()){
+                next.mmDeficit += LANE_QUANTUM[next.mmIndex];
+            }
+        }
+    }
+
+    //Take the head frame off lane, or its next fragment if it is longer than FRAGMENT_BYTES. Guarded by this
+    private static Outbound take(Session session, Lane lane){
+        Outbound head = lane.mmFrames.peek();
+        //A plain framed peer couldn't put fragments back together
+        int size = session.mmLegacy ? head.payload.length : lane.nextBytes();
+        lane.mmDeficit -= size;
+        session.mmQueuedBytes -= size;
+        if(lane.mmOffset == 0 && size == head.payload.length){
+            lane.mmFrames.poll();
+            return head;
+        }
+        boolean first = lane.mmOffset == 0;
+        boolean last = lane.mmOffset + size == head.payload.length;
+        int header = first ? 3 : 2;
+        byte[] piece = new byte[header + size];
+        piece[0] = (byte) lane.mmIndex;
+        piece[1] = (byte) ((first ? FRAGMENT_FIRST : 0) | (last ? FRAGMENT_LAST : 0));
+        if(first){
+            piece[2] = (byte) head.type;
+        }
+        System.arraycopy(head.payload, lane.mmOffset, piece, header, size);
+        lane.mmOffset += size;
+        if(last){
+            lane.mmFrames.poll();
+            lane.mmOffset = 0;
+        }
+        return new Outbound(FrameCodec.TYPE_FRAGMENT, piece);
+    }
+
+    //Reliable mode: send sequenced frames while the window has room and the writer keeps up. Guarded by this
+    private void pump(Session session){
+        int window = session.mmWindow.window();
+        while(!session.mmCongested && session.mmNextSend < session.mmNextSequence
+                && session.mmNextSend - session.mmFirstUnacked < window){
+            long sequence = session.mmNextSend;
+            Outbound frame = session.mmReplay[slot(sequence)];
+            //Nothing more goes out until this one is acknowledged, so don't let the peer sit on the ACK
+            boolean ackNow = sequence + 1 - session.mmFirstUnacked == window
+                    || (sequence + 1 == session.mmNextSequence && lanesEmpty(session));
+            if(!mEngine.write(session.mmConnection, FrameCodec.TYPE_SESSION_DATA, sequenced(sequence, ackNow, frame))){
+                //Writer queue is full, onBackpressure or the retransmit timer picks this up again
+                break;
+            }
+            frame.retransmitted = frame.sent;
+            frame.sent = true;
+            frame.sentAtNanos = System.nanoTime();
+            session.mmNextSend++;
+        }
+        armRetransmit(session, false);
+    }
+
+    private static byte[] sequenced(long sequence, boolean ackNow, Outbound frame){
+        //The low 32 bits are plenty, at most MAX_REPLAY_FRAMES are ever in doubt
+        int wireSequence = (int) sequence;
+        byte[] out = new byte[FrameCodec.varintSize(wireSequence) + 2 + frame.payload.length];
+        int offset = FrameCodec.putVarint(out, 0, wireSequence);
+        out[offset++] = (byte) (ackNow ? FLAG_ACK_NOW : 0);
+        out[offset++] = (byte) frame.type;
+        System.arraycopy(frame.payload, 0, out, offset, frame.payload.length);
+        return out;
+    }
+
+    private static int slot(long sequence){
+        return (int) (sequence % MAX_REPLAY_FRAMES);
+    }
+
+    @Override
+    public void onConnected(final String address) {
+        Log.d(TAG, "onConnected: " + address + ", saying hello");
+        synchronized (this) {
+            if(mStopped){
+                return;
+            }
+            cancel(mAwaitingHello.get(address));
+            mAwaitingHello.put(address, mTimers.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    helloTimedOut(address);
+                }
+            }, mHelloTimeoutMillis, TimeUnit.MILLISECONDS));
+        }
+        byte[] hello = new byte[9];
+        ByteBuffer.wrap(hello).putLong(mNodeId).put((byte) (mCodecs | CAPABILITY_HEARTBEAT));
+        mEngine.write(address, FrameCodec.TYPE_SESSION_HELLO, hello);
+    }
+
+    //Nothing came on connection, a peer of ours would have said HELLO by now
+    private void helloTimedOut(String connection){
+        boolean restarted;
+        synchronized (this) {
+            if(mStopped || !mAwaitingHello.containsKey(connection)){
+                return;
+            }
+            if(mByConnection.containsKey(connection)){
+                //A link that replaced one with a session already, its HELLO is just slow
+                mAwaitingHello.remove(connection);
+                return;
+            }
+            Log.d(TAG, "helloTimedOut: " + connection + " said nothing, taking it for a plain framed peer");
+            restarted = mByAddress.containsKey(connection);
+            startLegacy(connection);
+        }
+        if(restarted){
+            mListener.onDisconnected(connection);
+        }
+        mListener.onConnected(connection);
+    }
+
+    /*
+     * Give connection a session for a peer that doesn't speak the session protocol: ready at once,
+     * and never sequenced, acknowledged or resumed. A session held for the same address is
+     * dropped, the caller tells the listener. Guarded by this
+     * */
+    private Session startLegacy(String connection){
+        cancel(mAwaitingHello.remove(connection));
+        Session previous = mByAddress.get(connection);
+        if(previous != null){
+            dropSession(previous);
+        }
+        Session session = new Session(mRandom.nextLong(), connection);
+        session.mmLegacy = true;
+        session.mmConnection = connection;
+        session.mmReady = true;
+        mSessions.put(session.mmNode, session);
+        mByAddress.put(connection, session);
+        mByConnection.put(connection, session);
+        Target target = mTargets.get(connection);
+        if(target != null){
+            target.mmEverConnected = true;
+            target.mmBackoff.reset();
+        }
+        return session;
+    }
+
+    @Override
+    public void onConnectionFailed(String address, IOException e) {
+        boolean giveUp = false;
+        synchronized (this) {
+            Target target = mTargets.get(address);
+            if(target == null){
+                //An incoming connection we turned away
+                giveUp = true;
+            }else if(!target.mmEverConnected && target.mmBackoff.attempts() + 1 >= INITIAL_CONNECT_ATTEMPTS){
+                mTargets.remove(address);
+                giveUp = true;
+            }else{
+                scheduleRedial(target);
+            }
+        }
+        if(giveUp){
+            mListener.onConnectionFailed(address, e);
+        }
+    }
+
+    @Override
+    public void onDisconnected(String address) {
+        boolean ended = false;
+        synchronized (this) {
+            cancel(mAwaitingHello.remove(address));
+            Session session = mByConnection.remove(address);
+            if(session != null && session.mmLegacy){
+                //Nothing to resume, a plain peer starts from scratch on its next link
+                Log.d(TAG, "onDisconnected: Lost link to plain peer " + session.mmAddress);
+                session.mmConnection = null;
+                dropSession(session);
+                ended = true;
+            }else if(session != null){
+                Log.d(TAG, "onDisconnected: Lost link to " + session.mmAddress + ", holding its session");
+                session.mmConnection = null;
+                session.mmReady = false;
+                session.mmRetransmitArmed = false;
+                cancel(session.mmHeartbeat);
+                session.mmHeartbeat = null;
+                scheduleGiveUp(session);
+            }
+            Target target = mTargets.get(address);
+            if(target != null){
+                scheduleRedial(target);
+            }
+        }
+        if(ended){
+            mListener.onDisconnected(address);
+        }
+    }
+
+    @Override
+    public void onFrame(String address, int type, ByteBuffer payload) {
+        switch(type){
+            case FrameCodec.TYPE_SESSION_HELLO:
+                if(truncated(address, type, payload)){
+                    return;
+                }
+                //Builds without compression sent just the node id
+                int codecs = payload.remaining() > 8 ? payload.get(payload.position() + 8) : 0;
+                onHello(address, payload.getLong(payload.position()), codecs);
+                return;
+            case FrameCodec.TYPE_SESSION_RESUME:
+                if(!truncated(address, type, payload)){
+                    onResume(address, payload.getLong(payload.position()));
+                }
+                return;
+            case FrameCodec.TYPE_SESSION_ACK:
+                if(!truncated(address, type, payload)){
+                    onAck(address, payload.getLong(payload.position()));
+                }
+                return;
+            case FrameCodec.TYPE_SESSION_DATA:
+                onSequenced(address, payload);
+                return;
+            case FrameCodec.TYPE_SESSION_PING:
+                if(!truncated(address, type, payload)){
+                    onPing(address, payload);
+                }
+                return;
+            case FrameCodec.TYPE_SESSION_PONG:
+                if(!truncated(address, type, payload)){
+                    onPong(address, payload.getLong(payload.position()));
+                }
+                return;
+        }
+        deliver(address, type, payload, false, 0, 0);
+    }
+
+    //Session frames all start with a node id, a count or a clock; a peer that sends less is broken
+    private boolean truncated(String connection, int type, ByteBuffer payload){
+        if(payload.remaining() >= 8){
+            return false;
+        }
+        Log.e(TAG, "onFrame: " + connection + ": Truncated session frame " + type);
+        mEngine.disconnect(connection);
+        return true;
+    }
+
+    //Reliable mode: a data frame with its sequence number
+    private void onSequenced(String connection, ByteBuffer payload){
+        int sequence;
+        int flags;
+        int type;
+        try {
+            sequence = FrameCodec.getVarint(payload);
+            if(payload.remaining() < 2){
+                throw new IOException("Truncated data frame");
+            }
+            flags = payload.get();
+            type = payload.get() & 0xFF;
+        } catch (IOException e) {
+            Log.e(TAG, "onSequenced: " + connection + ": " + e.getMessage());
+            mEngine.disconnect(connection);
+            return;
+        }
+        deliver(connection, type, payload, true, sequence, flags);
+    }
+
+    /*
+     * Count a data frame, put fragments back together and hand whole frames to the app.
+     * Sequenced frames the session already has are dropped.
+     * */
+    private void deliver(String connection, int type, ByteBuffer payload, boolean sequenced, int sequence, int flags){
+        String sessionAddress;
+        DeflateCodec inflater = null;
+        boolean legacy;
+        boolean started = false;
+        boolean restarted = false;
+        synchronized (this) {
+            Session session = mByConnection.get(connection);
+            if(session == null){
+                if(sequenced || mStopped || !mAwaitingHello.containsKey(connection)){
+                    //A dropped link still draining
+                    return;
+                }
+                //Data before HELLO, our peers never do that: a plain framed peer
+                Log.d(TAG, "deliver: " + connection + " sent data before HELLO, taking it for a plain framed peer");
+                restarted = mByAddress.containsKey(connection);
+                session = startLegacy(connection);
+                started = true;
+            }
+            session.mmHeard = true;
+            if(sequenced && sequence != (int) session.mmReceived){
+                //A retransmit of something we already have, tell the sender where we are
+                if((flags & FLAG_ACK_NOW) != 0){
+                    sendAck(session);
+                }
+                return;
+            }
+            session.mmReceived++;
+            if((flags & FLAG_ACK_NOW) != 0){
+                sendAck(session);
+            }else if(!session.mmLegacy){
+                acknowledge(session);
+            }
+            sessionAddress = session.mmAddress;
+            //A plain framed peer's frames are all the app's, whatever their type
+            legacy = session.mmLegacy;
+            if(type == FrameCodec.TYPE_FRAGMENT && !legacy){
+                Reassembly whole;
+                try {
+                    whole = reassemble(session, payload);
+                } catch (IOException e) {
+                    Log.e(TAG, "deliver: " + connection + ": " + e.getMessage());
+                    whole = null;
+                    session.mmReady = false;
+                    mByConnection.remove(connection);
+                    session.mmConnection = null;
+                    scheduleGiveUp(session);
+                    final String broken = connection;
+                    mTimers.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            mEngine.disconnect(broken);
+                        }
+                    });
+                }
+                if(whole == null){
+                    return;
+                }
+                type = whole.mmType;
+                payload = ByteBuffer.wrap(whole.mmBuffer, 0, whole.mmLength);
+                //The app may still be reading this one when the next frame starts on a new link
+                whole.mmBuffer = null;
+            }
+            if(type == FrameCodec.TYPE_COMPRESSED && !legacy){
+                if(mStopped){
+                    return;
+                }
+                Thread loop = Thread.currentThread();
+                inflater = mInflaters.get(loop);
+                if(inflater == null){
+                    inflater = new DeflateCodec();
+                    mInflaters.put(loop, inflater);
+                }
+            }
+        }
+        if(restarted){
+            mListener.onDisconnected(sessionAddress);
+        }
+        if(started){
+            mListener.onConnected(sessionAddress);
+        }
+        if(inflater != null){
+            type = DeflateCodec.innerType(payload);
+            payload = inflate(connection, inflater, payload);
+            if(payload == null){
+                return;
+            }
+        }
+        mListener.onFrame(sessionAddress, type, payload);
+    }
+
+    //Add a fragment to its lane, returns the lane's Reassembly once the frame is complete. Guarded by this
+    private static Reassembly reassemble(Session session, ByteBuffer fragment) throws IOException {
+        if(fragment.remaining() < 2){
+            throw new IOException("Truncated fragment");
+        }
+        int lane = fragment.get() & 0xFF;
+        int flags = fragment.get();
+        if(lane >= LANES){
+            throw new IOException("Fragment on unknown lane " + lane);
+        }
+        Reassembly incoming = session.mmIncoming[lane];
+        if((flags & FRAGMENT_FIRST) != 0){
+            if(!fragment.hasRemaining()){
+                throw new IOException("Truncated fragment");
+            }
+            incoming.mmType = fragment.get() & 0xFF;
+            incoming.mmLength = 0;
+            if(incoming.mmBuffer == null){
+                incoming.mmBuffer = new byte[2 * FRAGMENT_BYTES];
+            }
+        }else if(incoming.mmBuffer == null){
+            throw new IOException("Fragment without a first piece on lane " + lane);
+        }
+        int size = fragment.remaining();
+        int length = incoming.mmLength + size;
+        if(length > FrameCodec.DEFAULT_MAX_PAYLOAD){
+            throw new IOException("Fragmented frame is over " + FrameCodec.DEFAULT_MAX_PAYLOAD + " bytes");
+        }
+        if(length > incoming.mmBuffer.length){
+            incoming.mmBuffer = Arrays.copyOf(incoming.mmBuffer,
+                    Math.min(FrameCodec.DEFAULT_MAX_PAYLOAD, Math.max(length, 2 * incoming.mmBuffer.length)));
+        }
+        fragment.get(incoming.mmBuffer, incoming.mmLength, size);
+        incoming.mmLength = length;
+        return (flags & FRAGMENT_LAST) != 0 ? incoming : null;
+    }
+
+    //Unwrap a TYPE_COMPRESSED body, null if it is corrupt
+    private ByteBuffer inflate(String connection, DeflateCodec inflater, ByteBuffer body){
+        try {
+            //Only ever contended by stop()
+            synchronized (inflater) {
+                if(inflater.isEnded()){
+                    return null;
+                }
+                return inflater.inflate(body, FrameCodec.DEFAULT_MAX_PAYLOAD);
+            }
+        } catch (IOException e) {
+            //Only a broken peer sends these, the frame is lost either way
+            Log.e(TAG, "inflate: " + connection + ": " + e.getMessage());
+            mEngine.disconnect(connection);
+            return null;
+        }
+    }
+
+    @Override
+    public void onBackpressure(String address, boolean congested) {
+        //The app hears about full lanes instead, see schedule()
+        synchronized (this) {
+            Session session = mByConnection.get(address);
+            if(session == null){
+                return;
+            }
+            session.mmCongested = congested;
+            if(!congested){
+                schedule(session);
+            }
+        }
+    }
+
+    //The peer on connection is node, tie the connection to its session and tell it what we have
+    private void onHello(String connection, long node, int codecs){
+        boolean isNew = false;
+        boolean restarted = false;
+        String stale = null;
+        String plain = null;
+        Session session;
+        synchronized (this) {
+            cancel(mAwaitingHello.remove(connection));
+            Session legacy = mByConnection.get(connection);
+            if(legacy != null && legacy.mmLegacy){
+                //Taken for a plain framed peer, its HELLO was only slow
+                plain = legacy.mmAddress;
+                dropSession(legacy);
+            }
+            session = mSessions.get(node);
+            if(session == null){
+                Session previous = mByAddress.get(connection);
+                if(previous != null){
+                    //Same address, new node id: the peer restarted and lost its side of the session
+                    Log.d(TAG, "onHello: " + connection + " restarted, dropping its old session");
+                    dropSession(previous);
+                    restarted = true;
+                }
+                session = new Session(node, connection);
+                session.mmCompress = (mCodecs & codecs & DeflateCodec.CAPABILITY) != 0;
+                int maxWindow = mReliableWindow;
+                if(maxWindow > 0){
+                    session.mmWindow = new SendWindow(Math.min(INITIAL_WINDOW, maxWindow), maxWindow);
+                }
+                mSessions.put(node, session);
+                mByAddress.put(connection, session);
+                isNew = true;
+            }else{
+                mReconnects.increment();
+                session.mmReconnects.increment();
+                if(session.mmConnection != null && !session.mmConnection.equals(connection)){
+                    //The old link hasn't noticed it is dead yet
+                    stale = session.mmConnection;
+                    mByConnection.remove(stale);
+                }
+            }
+            cancel(session.mmGiveUp);
+            session.mmGiveUp = null;
+            session.mmConnection = connection;
+            session.mmReady = false;
+            session.mmCongested = false;
+            session.mmHeartbeats = (codecs & CAPABILITY_HEARTBEAT) != 0;
+            session.mmHeard = true;
+            session.mmMissedPings = 0;
+            scheduleHeartbeat(session);
+            mByConnection.put(connection, session);
+            Target target = mTargets.get(connection);
+            if(target != null){
+                //The app knows the peer now, so a failed redial is a dropout and not an unreachable peer
+                target.mmEverConnected = true;
+            }
+
+            byte[] resume = new byte[8];
+            ByteBuffer.wrap(resume).putLong(session.mmReceived);
+            session.mmAckedUpTo = session.mmReceived;
+            mEngine.write(connection, FrameCodec.TYPE_SESSION_RESUME, resume);
+        }
+        if(stale != null){
+            mEngine.disconnect(stale);
+        }
+        if(plain != null){
+            mListener.onDisconnected(plain);
+        }
+        if(restarted){
+            mListener.onDisconnected(session.mmAddress);
+        }
+        if(isNew){
+            mListener.onConnected(session.mmAddress);
+        }
+    }
+
+    //The peer has received everything before received, send it the rest
+    private void onResume(String connection, long received){
+        String broken = null;
+        synchronized (this) {
+            Session session = mByConnection.get(connection);
+            if(session == null || session.mmLegacy){
+                return;
+            }
+            session.mmHeard = true;
+            if(received < session.mmFirstUnacked || received > session.mmNextSequence){
+                Log.e(TAG, "onResume: " + session.mmAddress + " claims " + received + " frames, we have "
+                        + session.mmFirstUnacked + " to " + session.mmNextSequence);
+                broken = connection;
+            }else{
+                trim(session, received);
+                Log.d(TAG, "onResume: Resending " + (session.mmNextSequence - received) + " frames to "
+                        + session.mmAddress);
+                //Whatever went out after received was lost with the old link
+                session.mmNextSend = received;
+                if(session.mmWindow != null){
+                    session.mmReady = true;
+                    schedule(session);
+                }else{
+                    for(long sequence = received; sequence < session.mmNextSequence; sequence++){
+                        Outbound frame = session.mmReplay[slot(sequence)];
+                        if(!mEngine.write(connection, frame.type, frame.payload)){
+                            broken = connection;
+                            break;
+                        }
+                    }
+                    session.mmNextSend = session.mmNextSequence;
+                    session.mmReady = broken == null;
+                    schedule(session);
+                }
+                Target target = mTargets.get(connection);
+                if(target != null){
+                    target.mmBackoff.reset();
+                }
+            }
+        }
+        if(broken != null){
+            //Start over on a fresh link rather than leave a gap in the session
+            mEngine.disconnect(broken);
+        }
+    }
+
+    private void onAck(String connection, long received){
+        synchronized (this) {
+            Session session = mByConnection.get(connection);
+            if(session != null){
+                session.mmHeard = true;
+            }
+            if(session == null || session.mmLegacy || received <= session.mmFirstUnacked
+                    || received > session.mmNextSequence){
+                return;
+            }
+            if(session.mmWindow == null){
+                trim(session, received);
+                schedule(session);
+                return;
+            }
+            //Karn: a retransmitted frame's ACK could belong to either copy, so it says nothing about the RTT
+            Outbound newest = session.mmReplay[slot(received - 1)];
+            long rttNanos = newest.retransmitted ? -1 : System.nanoTime() - newest.sentAtNanos;
+            if(rttNanos >= 0){
+                session.mmRtt.record(rttNanos);
+            }
+            trim(session, received);
+            //After a go-back-N the originals may still be arriving
+            session.mmNextSend = Math.max(session.mmNextSend, received);
+            session.mmWindow.onAck(received, rttNanos, session.mmNextSend);
+            if(session.mmReady){
+                armRetransmit(session, true);
+                schedule(session);
+            }
+        }
+    }
+
+    //Answer at once with the sender's clock, which is all a PONG carries
+    private void onPing(String connection, ByteBuffer payload){
+        byte[] pong = new byte[8];
+        payload.get(pong);
+        synchronized (this) {
+            Session session = mByConnection.get(connection);
+            if(session == null){
+                return;
+            }
+            session.mmHeard = true;
+            mEngine.write(connection, FrameCodec.TYPE_SESSION_PONG, pong);
+        }
+    }
+
+    private void onPong(String connection, long sentAtNanos){
+        long rttNanos = System.nanoTime() - sentAtNanos;
+        synchronized (this) {
+            Session session = mByConnection.get(connection);
+            if(session == null){
+                return;
+            }
+            session.mmHeard = true;
+            session.mmMissedPings = 0;
+            if(rttNanos < 0){
+                //Not our clock, a peer that doesn't echo
+                return;
+            }
+            session.mmRtt.record(rttNanos);
+            if(session.mmSrttNanos < 0){
+                session.mmSrttNanos = rttNanos;
+                session.mmRttVarNanos = rttNanos / 2;
+            }else{
+                //RFC 6298: RTTVAR = 3/4 RTTVAR + 1/4 |SRTT - R|, SRTT = 7/8 SRTT + 1/8 R
+                session.mmRttVarNanos += (Math.abs(session.mmSrttNanos - rttNanos) - session.mmRttVarNanos) / 4;
+                session.mmSrttNanos += (rttNanos - session.mmSrttNanos) / 8;
+            }
+            if(session.mmLastRttNanos >= 0){
+                //RFC 3550: J += (|D| - J) / 16
+                session.mmJitterNanos += (Math.abs(rttNanos - session.mmLastRttNanos) - session.mmJitterNanos) / 16;
+            }
+            session.mmLastRttNanos = rttNanos;
+        }
+    }
+
+    //Guarded by this
+    private void scheduleHeartbeat(Session session){
+        long interval = mHeartbeatMillis;
+        if(mStopped || interval == 0 || !session.mmHeartbeats || session.mmHeartbeat != null){
+            return;
+        }
+        session.mmHeartbeat = mTimers.schedule(session.mmHeartbeatTask, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /*
+     * Once per interval while the link is up: a peer that has been heard from is fine, a quiet
+     * one is pinged, and one that has let missedPings intervals pass in silence is dead
+     * */
+    private void heartbeat(Session session){
+        String dead;
+        synchronized (this) {
+            session.mmHeartbeat = null;
+            dead = session.mmConnection;
+            if(mStopped || dead == null || mSessions.get(session.mmNode) != session){
+                return;
+            }
+            if(session.mmHeard){
+                session.mmHeard = false;
+                session.mmMissedPings = 0;
+                dead = null;
+            }else if(session.mmMissedPings < mMissedPings){
+                byte[] ping = new byte[8];
+                ByteBuffer.wrap(ping).putLong(System.nanoTime());
+                //A writer too backed up to take it counts as a miss
+                mEngine.write(dead, FrameCodec.TYPE_SESSION_PING, ping);
+                session.mmMissedPings++;
+                dead = null;
+            }
+            if(dead == null){
+                scheduleHeartbeat(session);
+            }else{
+                Log.d(TAG, "heartbeat: " + session.mmAddress + " missed " + session.mmMissedPings
+                        + " pings, dropping the link");
+                mDeadPeers.increment();
+            }
+        }
+        if(dead != null){
+            //onDisconnected follows, and the session resumes like after any other dropout
+            mEngine.disconnect(dead);
+        }
+    }
+
+    //Drop frames the peer has confirmed. Guarded by this
+    private void trim(Session session, long received){
+        while(session.mmFirstUnacked < received){
+            session.mmReplay[slot(session.mmFirstUnacked)] = null;
+            session.mmFirstUnacked++;
+        }
+    }
+
+    /*
+     * Reliable mode: start the retransmit timer if it isn't running, or restart it because
+     * the peer acknowledged something. One timer per session follows the deadline around
+     * instead of being rescheduled on every ACK. Guarded by this
+     * */
+    private void armRetransmit(Session session, boolean restart){
+        if(session.mmFirstUnacked == session.mmNextSequence){
+            session.mmRetransmitArmed = false;
+            return;
+        }
+        if(session.mmRetransmitArmed && !restart){
+            return;
+        }
+        long rtoNanos = TimeUnit.MILLISECONDS.toNanos(session.mmWindow.rtoMillis());
+        session.mmRetransmitAt = System.nanoTime() + rtoNanos;
+        session.mmRetransmitArmed = true;
+        if(!session.mmRetransmitScheduled){
+            scheduleRetransmit(session, rtoNanos);
+        }
+    }
+
+    //Guarded by this
+    private void scheduleRetransmit(final Session session, long delayNanos){
+        session.mmRetransmitScheduled = true;
+        mTimers.schedule(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (ConnectionSupervisor.this) {
+                    session.mmRetransmitScheduled = false;
+                    if(mStopped || !session.mmReady || !session.mmRetransmitArmed
+                            || mSessions.get(session.mmNode) != session){
+                        return;
+                    }
+                    long remaining = session.mmRetransmitAt - System.nanoTime();
+                    if(remaining > 0){
+                        scheduleRetransmit(session, remaining);
+                        return;
+                    }
+                    //Go back N: send everything unacknowledged again
+                    Log.d(TAG, "retransmit: " + session.mmAddress + " acknowledged nothing for "
+                            + session.mmWindow.rtoMillis() + " ms, resending from " + session.mmFirstUnacked);
+                    session.mmWindow.onTimeout();
+                    mRetransmits.add(session.mmNextSend - session.mmFirstUnacked);
+                    session.mmNextSend = session.mmFirstUnacked;
+                    session.mmRetransmitArmed = false;
+                    pump(session);
+                }
+            }
+        }, delayNanos, TimeUnit.NANOSECONDS);
+    }
+
+    //ACK every ACK_EVERY_FRAMES frames, or ACK_DELAY_MILLIS after the last one if fewer arrive. Guarded by this
+    private void acknowledge(final Session session){
+        if(session.mmReceived - session.mmAckedUpTo >= ACK_EVERY_FRAMES){
+            sendAck(session);
+        }else if(!session.mmAckScheduled){
+            session.mmAckScheduled = true;
+            mTimers.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (ConnectionSupervisor.this) {
+                        session.mmAckScheduled = false;
+                        if(session.mmReceived > session.mmAckedUpTo){
+                            sendAck(session);
+                        }
+                    }
+                }
+            }, ACK_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void sendAck(Session session){
+        if(session.mmConnection == null){
+            return;
+        }
+        byte[] ack = new byte[8];
+        ByteBuffer.wrap(ack).putLong(session.mmReceived);
+        if(mEngine.write(session.mmConnection, FrameCodec.TYPE_SESSION_ACK, ack)){
+            session.mmAckedUpTo = session.mmReceived;
+        }
+    }
+
+    //Guarded by this
+    private void scheduleRedial(final Target target){
+        if(mStopped || target.mmRetry != null){
+            return;
+        }
+        long delay = target.mmBackoff.nextDelayMillis();
+        Log.d(TAG, "scheduleRedial: Redialing " + target.mmAddress + " in " + delay + " ms");
+        target.mmRetry = mTimers.schedule(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (ConnectionSupervisor.this) {
+                    target.mmRetry = null;
+                    if(mStopped || mTargets.get(target.mmAddress) != target){
+                        return;
+                    }
+                }
+                mEngine.connect(target.mmAddress, target.mmUuid);
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    //Guarded by this
+    private void scheduleGiveUp(final Session session){
+        cancel(session.mmGiveUp);
+        session.mmGiveUp = mTimers.schedule(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (ConnectionSupervisor.this) {
+                    if(session.mmConnection != null || mSessions.get(session.mmNode) != session){
+                        return;
+                    }
+                    Log.d(TAG, "giveUp: " + session.mmAddress + " stayed away too long");
+                    dropSession(session);
+                    Target target = mTargets.remove(session.mmAddress);
+                    if(target != null){
+                        cancel(target.mmRetry);
+                    }
+                }
+                mListener.onDisconnected(session.mmAddress);
+            }
+        }, mSessionTimeoutMillis, TimeUnit.MILLISECONDS);
+    }
+
+    //Guarded by this
+    private void dropSession(Session session){
+        cancel(session.mmGiveUp);
+        cancel(session.mmHeartbeat);
+        Metrics metrics = mEngine.getMetrics();
+        metrics.removeGauge(session.mmLaneMetric, session.mmLaneBytes);
+        metrics.removeGauge(session.mmSrttMetric, session.mmSrtt);
+        metrics.removeGauge(session.mmJitterMetric, session.mmJitter);
+        mSessions.remove(session.mmNode);
+        mByAddress.remove(session.mmAddress);
+        if(session.mmConnection != null){
+            mByConnection.remove(session.mmConnection);
+        }
+    }
+
+    private static void cancel(EventLoop.Timeout timeout){
+        if(timeout != null){
+            timeout.cancel();
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package com.example.bluetoothchat;
+
+/*
+ * CRC-32C (Castagnoli), as used by iSCSI and ext4. java.util.zip.CRC32C only arrived in
+ * API 26, so this is the usual slicing-by-8 table implementation: eight table lookups consume
+ * eight bytes per step instead of one.
+ * Stateless, safe from any thread.
+ * */
+final class Crc32c {
+
+    //Reversed Castagnoli polynomial
+    private static final int POLY = 0x82F63B78;
+    private static final int[][] TABLES = new int[8][256];
+
+    static {
+        for(int i = 0; i < 256; i++){
+            int crc = i;
+            for(int bit = 0; bit < 8; bit++){
+                crc = (crc & 1) != 0 ? (crc >>> 1) ^ POLY : crc >>> 1;
+            }
+            TABLES[0][i] = crc;
+        }
+        for(int i = 0; i < 256; i++){
+            int crc = TABLES[0][i];
+            for(int t = 1; t < 8; t++){
+                crc = (crc >>> 8) ^ TABLES[0][crc & 0xFF];
+                TABLES[t][i] = crc;
+            }
+        }
+    }
+
+    private Crc32c(){
+    }
+
+    static int compute(byte[] data, int offset, int length){
+        return update(0, data, offset, length);
+    }
+
+    //Continue crc, a previous result of compute() or update(), over more bytes
+    static int update(int crc, byte[] data, int offset, int length){
+        int[] t0 = TABLES[0], t1 = TABLES[1], t2 = TABLES[2], t3 = TABLES[3];
+        int[] t4 = TABLES[4], t5 = TABLES[5], t6 = TABLES[6], t7 = TABLES[7];
+        crc = ~crc;
+        int end = offset + length;
+        while(end - offset >= 8){
+            int lo = crc ^ ((data[offset] & 0xFF) | (data[offset + 1] & 0xFF) << 8
+                    | (data[offset + 2] & 0xFF) << 16 | (data[offset + 3] & 0xFF) << 24);
+            crc = t7[lo & 0xFF] ^ t6[(lo >>> 8) & 0xFF] ^ t5[(lo >>> 16) & 0xFF] ^ t4[lo >>> 24]
+                    ^ t3[data[offset + 4] & 0xFF] ^ t2[data[offset + 5] & 0xFF]
+                    ^ t1[data[offset + 6] & 0xFF] ^ t0[data[offset + 7] & 0xFF];
+            offset += 8;
+        }
+        while(offset < end){
+            crc = (crc >>> 8) ^ t0[(crc ^ data[offset++]) & 0xFF];
+        }
+        return ~crc;
+    }
+}
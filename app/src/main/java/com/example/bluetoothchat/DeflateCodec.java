@@ -0,0 +1,166 @@
+package com.example.bluetoothchat;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/*
+ * Compresses frame payloads with raw Deflate and a preset dictionary.
+ *
+ * Each message is compressed on its own, the Deflater is reset in between, so any frame can
+ * be inflated without the ones before it. Frames are replayed after a resume and retransmitted
+ * in reliable mode, and a streaming context wouldn't survive either. The dictionary makes up
+ * for most of what the resets cost on short chat lines: the first words of a message already
+ * have something to match against.
+ *
+ * LZ4 would be cheaper on the CPU but needs a native library; Deflate ships with every
+ * Android version and the radio, not the CPU, is what limits us.
+ *
+ * A compressed frame body is [original type : 1 byte][deflate stream]. The Deflater, the
+ * Inflater and the inflate buffer are reused from message to message.
+ * Not thread safe.
+ * */
+final class DeflateCodec {
+
+    //Capability bit in the session HELLO
+    static final int CAPABILITY = 1;
+    //Shorter payloads rarely come out smaller
+    static final int MIN_COMPRESS_BYTES = 48;
+
+    //zlib matches against the end of the dictionary first, so the most common strings go last
+    private static final byte[] DICTIONARY = (
+            "{\"device\":\"HC-06\",\"firmware\":\"1.0\",\"uptime\":0,\"battery\":100,\"rssi\":-60,"
+            + "\"temperature\":21.5,\"humidity\":45,\"pressure\":1013,\"voltage\":3.3,\"current\":0.1,"
+            + "\"status\":\"ok\",\"error\":null,\"timestamp\":1600000000000,\"sensor\":\"\",\"value\":0.0}"
+            + "the quick brown fox jumps over the lazy dog. "
+            + "Hello, hi, hey, thanks, thank you, please, sorry, okay, ok, yes, no, maybe, sure, "
+            + "good morning, good night, see you later, on my way, where are you? what are you doing? "
+            + "I will be there in 5 minutes. Can you hear me? Are you there? Let me know when you get this. "
+            + "I don't know, I think so, I'm not sure, that's right, that is great, sounds good, "
+            + "what do you think about it? it was really good, have you seen the message I sent you? "
+            + "the and that have with this from they would there their what about which when make can "
+            + "like time just know take people into year your good some could them other than then "
+            + "now look only come over think also back after use two how our work first well way even "
+            + "new want because any these give day most us is was are been has had were said did "
+            + "going get got it's I'm you're don't can't didn't isn't won't let's ").getBytes(Charset.forName("UTF-8"));
+
+    private Deflater mDeflater;
+    private Inflater mInflater;
+    private byte[] mOut = new byte[1024];
+    private byte[] mIn = new byte[0];
+    private ByteBuffer mView = ByteBuffer.wrap(mOut);
+    private boolean mEnded;
+
+    /*
+     * Compress payload into a new frame body, or return null if it wouldn't come out smaller.
+     * The result is a fresh array because the writer keeps it; everything else is reused.
+     * */
+    byte[] compress(int type, byte[] payload, int offset, int length){
+        if(length < MIN_COMPRESS_BYTES){
+            return null;
+        }
+        if(mDeflater == null){
+            mDeflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        }
+        mDeflater.reset();
+        mDeflater.setDictionary(DICTIONARY);
+        mDeflater.setInput(payload, offset, length);
+        mDeflater.finish();
+        //Type byte plus deflate output has to stay under the original length
+        int budget = length - 2;
+        if(mOut.length < budget + 1){
+            mOut = new byte[budget + 1];
+        }
+        int produced = 0;
+        while(!mDeflater.finished()){
+            if(produced == budget){
+                return null;
+            }
+            produced += mDeflater.deflate(mOut, 1 + produced, budget - produced);
+        }
+        byte[] body = Arrays.copyOf(mOut, 1 + produced);
+        body[0] = (byte) type;
+        return body;
+    }
+
+    //Original frame type of a compressed body
+    static int innerType(ByteBuffer body){
+        return body.get(body.position()) & 0xFF;
+    }
+
+    /*
+     * Inflate a body made by compress(). The result is a view of a buffer reused by the next
+     * call, valid until then.
+     * */
+    ByteBuffer inflate(ByteBuffer body, int maxBytes) throws IOException {
+        int length = body.remaining() - 1;
+        if(length < 0){
+            throw new IOException("Empty compressed frame");
+        }
+        byte[] input;
+        int offset;
+        if(body.hasArray()){
+            input = body.array();
+            offset = body.arrayOffset() + body.position() + 1;
+        }else{
+            if(mIn.length < length){
+                mIn = new byte[length];
+            }
+            ByteBuffer source = body.duplicate();
+            source.position(source.position() + 1);
+            source.get(mIn, 0, length);
+            input = mIn;
+            offset = 0;
+        }
+        if(mInflater == null){
+            mInflater = new Inflater(true);
+        }
+        mInflater.reset();
+        mInflater.setDictionary(DICTIONARY);
+        mInflater.setInput(input, offset, length);
+        int produced = 0;
+        try {
+            while(!mInflater.finished()){
+                if(produced == mOut.length){
+                    if(produced >= maxBytes){
+                        throw new IOException("Compressed frame inflates past " + maxBytes + " bytes");
+                    }
+                    mOut = Arrays.copyOf(mOut, Math.min(maxBytes, mOut.length * 2));
+                }
+                int inflated = mInflater.inflate(mOut, produced, mOut.length - produced);
+                if(inflated == 0 && mInflater.needsInput()){
+                    throw new IOException("Truncated compressed frame");
+                }
+                produced += inflated;
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt compressed frame: " + e.getMessage());
+        }
+        if(mView.array() != mOut){
+            mView = ByteBuffer.wrap(mOut);
+        }
+        mView.limit(produced).position(0);
+        return mView;
+    }
+
+    //Free the native zlib state. Views handed out by inflate() stay readable
+    void end(){
+        if(mDeflater != null){
+            mDeflater.end();
+            mDeflater = null;
+        }
+        if(mInflater != null){
+            mInflater.end();
+            mInflater = null;
+        }
+        mEnded = true;
+    }
+
+    boolean isEnded(){
+        return mEnded;
+    }
+}
@@ -2,43 +2,141 @@ package com.example.bluetoothchat;
 
 import android.bluetooth.BluetoothDevice;
 import android.content.Context;
+import android.view.Choreographer;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
-import android.widget.ArrayAdapter;
+import android.widget.BaseAdapter;
+import android.widget.ListView;
 import android.widget.TextView;
 
-import java.util.ArrayList;
+/*
+ * Shows a DiscoveryCache in a ListView, rows recycled through convertView.
+ * Devices found or evicted change the row count, so those are announced at most once per frame
+ * like TranscriptAdapter does. A device whose RSSI, name or bond state changed only has its own
+ * row rebound, in place, and only if it is on screen, so a scan in a crowded room doesn't
+ * relayout the whole list for every report.
+ * */
+class DeviceListAdapter extends BaseAdapter implements DiscoveryCache.Listener<BluetoothDevice> {
 
-public class DeviceListAdapter extends ArrayAdapter<BluetoothDevice> {
+    private final DiscoveryCache<BluetoothDevice> mCache;
+    private final ListView mListView;
+    private final LayoutInflater mLayoutInflater;
+    private boolean mFramePosted;
 
-    private LayoutInflater mLayoutInflater;
-    private ArrayList<BluetoothDevice> mDevices;
-    private int mViewResourceId;
+    private final Choreographer.FrameCallback mFrameCallback = new Choreographer.FrameCallback() {
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            mFramePosted = false;
+            notifyDataSetChanged();
+        }
+    };
+
+    private static class ViewHolder {
+        TextView name;
+        TextView address;
+        TextView details;
+    }
 
-    public DeviceListAdapter(Context context, int tvResourceId, ArrayList<BluetoothDevice> devices){
-        super(context, tvResourceId, devices);
-        this.mDevices = devices;
-        mLayoutInflater = (LayoutInflater) context.getSystemService(Context.LAYOUT_INFLATER_SERVICE);
-        mViewResourceId = tvResourceId;
+    DeviceListAdapter(Context context, DiscoveryCache<BluetoothDevice> cache, ListView listView){
+        mCache = cache;
+        mListView = listView;
+        mLayoutInflater = LayoutInflater.from(context);
+        cache.setListener(this);
     }
 
-    public View getView(int position, View convertView, ViewGroup parent){
-        convertView = mLayoutInflater.inflate(mViewResourceId, null);
-        BluetoothDevice device = mDevices.get(position);
+    //Drop a pending refresh, e.g. when the activity goes away
+    void cancelPendingFrame(){
+        if(mFramePosted){
+            mFramePosted = false;
+            Choreographer.getInstance().removeFrameCallback(mFrameCallback);
+        }
+    }
+
+    @Override
+    public void onDeviceAdded(int position, DiscoveryCache.Entry<BluetoothDevice> entry) {
+        invalidateOnNextFrame();
+    }
 
-        if(device != null){
-            TextView deviceName = convertView.findViewById(R.id.deviceName);
-            TextView deviceAddress = convertView.findViewById(R.id.deviceAddress);
+    @Override
+    public void onDeviceChanged(int position, DiscoveryCache.Entry<BluetoothDevice> entry) {
+        if(mFramePosted){
+            //Every row gets rebound on the next frame anyway
+            return;
+        }
+        int first = mListView.getFirstVisiblePosition();
+        if(position < first || position > mListView.getLastVisiblePosition()){
+            return;
+        }
+        View row = mListView.getChildAt(position - first);
+        if(row != null && row.getTag() instanceof ViewHolder){
+            bind((ViewHolder) row.getTag(), entry);
+        }
+    }
+
+    @Override
+    public void onDeviceRemoved(int position, DiscoveryCache.Entry<BluetoothDevice> entry) {
+        invalidateOnNextFrame();
+    }
 
-            if(deviceName != null){
-                deviceName.setText(device.getName());
-            }
-            if(deviceAddress != null){
-                deviceAddress.setText(device.getAddress());
-            }
+    private void invalidateOnNextFrame(){
+        if(!mFramePosted){
+            mFramePosted = true;
+            Choreographer.getInstance().postFrameCallback(mFrameCallback);
         }
+    }
+
+    @Override
+    public int getCount() {
+        return mCache.size();
+    }
+
+    @Override
+    public DiscoveryCache.Entry<BluetoothDevice> getItem(int position) {
+        return mCache.get(position);
+    }
+
+    @Override
+    public long getItemId(int position) {
+        return mCache.get(position).id;
+    }
 
+    @Override
+    public boolean hasStableIds() {
+        return true;
+    }
+
+    @Override
+    public View getView(int position, View convertView, ViewGroup parent) {
+        ViewHolder holder;
+        if(convertView == null){
+            convertView = mLayoutInflater.inflate(R.layout.device_adapter_view, parent, false);
+            holder = new ViewHolder();
+            holder.name = convertView.findViewById(R.id.deviceName);
+            holder.address = convertView.findViewById(R.id.deviceAddress);
+            holder.details = convertView.findViewById(R.id.deviceDetails);
+            convertView.setTag(holder);
+        }else{
+            holder = (ViewHolder) convertView.getTag();
+        }
+        bind(holder, mCache.get(position));
         return convertView;
     }
+
+    private static void bind(ViewHolder holder, DiscoveryCache.Entry<BluetoothDevice> entry){
+        holder.name.setText(entry.name != null ? entry.name : "(unnamed)");
+        holder.address.setText(entry.address);
+        String signal = entry.rssi == DiscoveryCache.UNKNOWN_RSSI ? "signal unknown" : entry.rssi + " dBm";
+        switch(entry.bondState){
+            case BluetoothDevice.BOND_BONDED:
+                holder.details.setText(signal + ", paired");
+                break;
+            case BluetoothDevice.BOND_BONDING:
+                holder.details.setText(signal + ", pairing");
+                break;
+            default:
+                holder.details.setText(signal);
+                break;
+        }
+    }
 }
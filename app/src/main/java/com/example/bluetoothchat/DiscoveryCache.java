@@ -0,0 +1,172 @@
+package com.example.bluetoothchat;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * What discovery has found, one entry per address however often a device is reported.
+ * Each entry keeps the latest name, RSSI and bond state plus when the device was last heard.
+ * Devices not heard for the TTL are evicted, except bonded ones, which can still be dialled
+ * when they are out of range of the scan.
+ * Entries stay in the order they were first found so rows don't jump around while scanning,
+ * and every change is reported to the Listener as one insert, change or removal at a position,
+ * so a list only has to redraw what actually changed. A report that changes nothing shown
+ * (only the last-seen time) isn't passed on at all.
+ * Not thread safe, it is only touched on the main thread. D is the platform's device handle.
+ * */
+class DiscoveryCache<D> {
+
+    static final long DEFAULT_TTL_MILLIS = 2 * 60 * 1000;
+    //Reported when a device is found without a signal strength
+    static final int UNKNOWN_RSSI = Short.MIN_VALUE;
+    //BluetoothDevice.BOND_ values, copied so the cache also builds off Android (the benchmarks)
+    static final int BOND_NONE = 10;
+    static final int BOND_BONDING = 11;
+    static final int BOND_BONDED = 12;
+
+    interface Listener<D> {
+        void onDeviceAdded(int position, Entry<D> entry);
+
+        void onDeviceChanged(int position, Entry<D> entry);
+
+        void onDeviceRemoved(int position, Entry<D> entry);
+    }
+
+    static final class Entry<D> {
+        //Unique for the life of the cache, for stable list ids
+        final long id;
+        final String address;
+        D device;
+        String name;
+        int rssi = UNKNOWN_RSSI;
+        int bondState = BOND_NONE;
+        long firstSeenMillis;
+        long lastSeenMillis;
+
+        Entry(long id, String address){
+            this.id = id;
+            this.address = address;
+        }
+
+        boolean isBonded(){
+            return bondState == BOND_BONDED;
+        }
+    }
+
+    private final long mTtlMillis;
+    private final List<Entry<D>> mEntries = new ArrayList<>();
+    private final Map<String, Entry<D>> mByAddress = new HashMap<>();
+    private Listener<D> mListener;
+    private long mNextId;
+
+    DiscoveryCache(){
+        this(DEFAULT_TTL_MILLIS);
+    }
+
+    DiscoveryCache(long ttlMillis){
+        mTtlMillis = ttlMillis;
+    }
+
+    void setListener(Listener<D> listener){
+        mListener = listener;
+    }
+
+    /*
+     * A device was reported by discovery at nowMillis. name may be null (not resolved yet), in
+     * which case a name already known is kept; so is a known RSSI if rssi is UNKNOWN_RSSI.
+     * bondState is one of the BOND_ constants.
+     * */
+    void onFound(String address, D device, String name, int rssi, int bondState, long nowMillis){
+        Entry<D> entry = mByAddress.get(address);
+        if(entry == null){
+            entry = new Entry<>(mNextId++, address);
+            entry.device = device;
+            entry.name = name;
+            entry.rssi = rssi;
+            entry.bondState = bondState;
+            entry.firstSeenMillis = nowMillis;
+            entry.lastSeenMillis = nowMillis;
+            mByAddress.put(address, entry);
+            mEntries.add(entry);
+            if(mListener != null){
+                mListener.onDeviceAdded(mEntries.size() - 1, entry);
+            }
+            return;
+        }
+        entry.device = device;
+        entry.lastSeenMillis = nowMillis;
+        boolean changed = false;
+        if(name != null && !name.equals(entry.name)){
+            entry.name = name;
+            changed = true;
+        }
+        if(rssi != UNKNOWN_RSSI && rssi != entry.rssi){
+            entry.rssi = rssi;
+            changed = true;
+        }
+        if(bondState != entry.bondState){
+            entry.bondState = bondState;
+            changed = true;
+        }
+        if(changed){
+            notifyChanged(entry);
+        }
+    }
+
+    //Pairing with a device started, finished or failed. Ignored for devices not in the cache
+    void onBondStateChanged(String address, int bondState){
+        Entry<D> entry = mByAddress.get(address);
+        if(entry != null && entry.bondState != bondState){
+            entry.bondState = bondState;
+            notifyChanged(entry);
+        }
+    }
+
+    //Drop devices not heard for the TTL, bonded ones excepted. Returns how many were dropped
+    int evictExpired(long nowMillis){
+        int evicted = 0;
+        for(int i = mEntries.size() - 1; i >= 0; i--){
+            Entry<D> entry = mEntries.get(i);
+            if(!entry.isBonded() && nowMillis - entry.lastSeenMillis > mTtlMillis){
+                mEntries.remove(i);
+                mByAddress.remove(entry.address);
+                evicted++;
+                if(mListener != null){
+                    mListener.onDeviceRemoved(i, entry);
+                }
+            }
+        }
+        return evicted;
+    }
+
+    int size(){
+        return mEntries.size();
+    }
+
+    Entry<D> get(int position){
+        return mEntries.get(position);
+    }
+
+    //Null if the device isn't cached
+    Entry<D> get(String address){
+        return mByAddress.get(address);
+    }
+
+    void clear(){
+        for(int i = mEntries.size() - 1; i >= 0; i--){
+            Entry<D> entry = mEntries.remove(i);
+            mByAddress.remove(entry.address);
+            if(mListener != null){
+                mListener.onDeviceRemoved(i, entry);
+            }
+        }
+    }
+
+    private void notifyChanged(Entry<D> entry){
+        if(mListener != null){
+            mListener.onDeviceChanged(mEntries.indexOf(entry), entry);
+        }
+    }
+}
@@ -0,0 +1,289 @@
+package com.example.bluetoothchat;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/*
+ * A single thread that multiplexes I/O readiness, timers and tasks for many connections.
+ * Non-blocking channels are registered with its Selector; blocking streams feed it through
+ * a ReadPump. Everything registered with a loop (handlers, timers, tasks) runs on its thread,
+ * so per-connection state needs no locking as long as it is only touched from there.
+ * Timers go on a TimerWheel with millisecond ticks, so scheduling and cancelling stay O(1)
+ * with thousands pending, and fire no earlier than asked and usually within a tick of it.
+ * */
+class EventLoop {
+
+    private static final String TAG = "EventLoop";
+    private static final int MAX_TASKS_PER_TURN = 1024;
+    private static final int POSTED_CAPACITY = 256;
+    private static final long TICK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    interface IoHandler {
+        //The channel is ready for the operations in key.readyOps(). Called on the loop thread
+        void onReady(SelectionKey key) throws IOException;
+
+        //onReady threw, the handler should close its channel. Called on the loop thread
+        void onFailure(IOException e);
+    }
+
+    //Handle for a scheduled task
+    final class Timeout extends TimerWheel.Node {
+        private final Runnable mmTask;
+        private final long mmDeadlineTick;
+        private volatile boolean mmCancelled;
+
+        private Timeout(Runnable task, long deadlineTick){
+            mmTask = task;
+            mmDeadlineTick = deadlineTick;
+        }
+
+        /*
+         * Prevent the task from running if it hasn't already. Safe from any thread, on the loop
+         * thread the timer also leaves the wheel at once, elsewhere when the wheel comes across it.
+         * */
+        void cancel(){
+            mmCancelled = true;
+            if(inEventLoop()){
+                mTimers.remove(this);
+            }
+        }
+
+        @Override
+        boolean isCancelled() {
+            return mmCancelled;
+        }
+    }
+
+    private final Selector mSelector;
+    private final Thread mThread;
+    private final ConcurrentLinkedQueue<Runnable> mTasks = new ConcurrentLinkedQueue<>();
+    //Tasks from post(), a fixed array so queueing one allocates nothing
+    private final MpscArrayQueue<Runnable> mPosted = new MpscArrayQueue<>(POSTED_CAPACITY);
+    private final AtomicBoolean mWakeupPending = new AtomicBoolean();
+
+    //Only touched on the loop thread
+    private final long mTimerOrigin = System.nanoTime();
+    private final TimerWheel mTimers = new TimerWheel(0);
+    private final List<TimerWheel.Node> mExpired = new ArrayList<>();
+    //Direct so channel reads land in it without a copy through a temporary buffer of the JDK's
+    private final ByteBuffer mReadBuffer = ByteBuffer.allocateDirect(16 * 1024);
+
+    private volatile boolean mShutdown;
+
+    EventLoop(String name) throws IOException {
+        mSelector = Selector.open();
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                loop();
+            }
+        }, name);
+        mThread.setDaemon(true);
+        mThread.start();
+    }
+
+    boolean inEventLoop(){
+        return Thread.currentThread() == mThread;
+    }
+
+    //Run task on the loop thread, in submission order. Safe from any thread
+    void execute(Runnable task){
+        mTasks.add(task);
+        if(!inEventLoop() && mWakeupPending.compareAndSet(false, true)){
+            mSelector.wakeup();
+        }
+    }
+
+    /*
+     * Like execute() but without allocating, for a task that is posted over and over by the same
+     * owner, e.g. whenever a ReadPump has filled a chunk. The task must not be posted again until
+     * it has started running, and it isn't ordered with respect to tasks passed to execute().
+     * Safe from any thread.
+     * */
+    void post(Runnable task){
+        if(!mPosted.offer(task)){
+            //More owners than slots, each of them only has one task queued so order isn't at stake
+            execute(task);
+            return;
+        }
+        if(!inEventLoop() && mWakeupPending.compareAndSet(false, true)){
+            mSelector.wakeup();
+        }
+    }
+
+    //Run task on the loop thread after delay. Safe from any thread
+    Timeout schedule(Runnable task, long delay, TimeUnit unit){
+        //Rounded up, a timer never fires early
+        long elapsed = System.nanoTime() - mTimerOrigin + unit.toNanos(delay);
+        final Timeout timeout = new Timeout(task, (elapsed + TICK_NANOS - 1) / TICK_NANOS);
+        if(inEventLoop()){
+            mTimers.add(timeout, timeout.mmDeadlineTick);
+            return timeout;
+        }
+        //Ties between timers scheduled from other threads are broken arbitrarily
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                if(!timeout.mmCancelled){
+                    mTimers.add(timeout, timeout.mmDeadlineTick);
+                }
+            }
+        });
+        return timeout;
+    }
+
+    /*
+     * Register a channel for the given interest set. Must be called on the loop thread.
+     * The channel is switched to non-blocking mode.
+     * */
+    SelectionKey register(SelectableChannel channel, int ops, IoHandler handler) throws IOException {
+        if(!inEventLoop()){
+            throw new IllegalStateException("register() must be called on the event loop");
+        }
+        channel.configureBlocking(false);
+        try {
+            return channel.register(mSelector, ops, handler);
+        } catch (ClosedChannelException e) {
+            throw new IOException("Channel closed before it was registered");
+        }
+    }
+
+    //Scratch buffer for reads done on the loop thread. Contents are only valid until the handler returns
+    ByteBuffer readBuffer(){
+        return mReadBuffer;
+    }
+
+    void shutdown(){
+        mShutdown = true;
+        mSelector.wakeup();
+    }
+
+    private void loop(){
+        while(!mShutdown){
+            try {
+                mWakeupPending.set(false);
+                if(!mTasks.isEmpty() || !mPosted.isEmpty()){
+                    mSelector.selectNow();
+                }else{
+                    long waitMillis = millisUntilNextTimer();
+                    if(waitMillis < 0){
+                        mSelector.select();
+                    }else if(waitMillis == 0){
+                        mSelector.selectNow();
+                    }else{
+                        mSelector.select(waitMillis);
+                    }
+                }
+            } catch (IOException e) {
+                Log.e(TAG, "loop: select failed " + e.getMessage());
+                break;
+            }
+            processSelectedKeys();
+            runExpiredTimers();
+            runTasks();
+        }
+        closeSelector();
+    }
+
+    private void processSelectedKeys(){
+        Set<SelectionKey> selected = mSelector.selectedKeys();
+        //Most turns are for tasks, don't create an iterator just to find nothing
+        if(selected.isEmpty()){
+            return;
+        }
+        Iterator<SelectionKey> keys = selected.iterator();
+        while(keys.hasNext()){
+            SelectionKey key = keys.next();
+            keys.remove();
+            IoHandler handler = (IoHandler) key.attachment();
+            try {
+                if(key.isValid()){
+                    handler.onReady(key);
+                }
+            } catch (IOException e) {
+                key.cancel();
+                handler.onFailure(e);
+            } catch (RuntimeException e) {
+                Log.e(TAG, "processSelectedKeys: handler threw " + e);
+                key.cancel();
+                handler.onFailure(new IOException(e.toString()));
+            }
+        }
+    }
+
+    //-1 if there are no timers, otherwise milliseconds until the earliest one is due
+    private long millisUntilNextTimer(){
+        long next = mTimers.nextDeadlineTick();
+        if(next < 0){
+            return -1;
+        }
+        long nanos = mTimerOrigin + next * TICK_NANOS - System.nanoTime();
+        if(nanos <= 0){
+            return 0;
+        }
+        //Round up so we don't wake a little early and spin
+        return Math.max(1, TimeUnit.NANOSECONDS.toMillis(nanos + 999999));
+    }
+
+    private void runExpiredTimers(){
+        mTimers.advance((System.nanoTime() - mTimerOrigin) / TICK_NANOS, mExpired);
+        //Indexed, timers run here may schedule and cancel others
+        for(int i = 0; i < mExpired.size(); i++){
+            Timeout timeout = (Timeout) mExpired.get(i);
+            if(!timeout.mmCancelled){
+                safeRun(timeout.mmTask);
+            }
+        }
+        mExpired.clear();
+    }
+
+    private void runTasks(){
+        //Bounded so a flood of tasks can't starve I/O, the rest wait for the next turn
+        for(int i = 0; i < MAX_TASKS_PER_TURN; i++){
+            Runnable task = mPosted.poll();
+            if(task == null){
+                task = mTasks.poll();
+            }
+            if(task == null){
+                return;
+            }
+            safeRun(task);
+        }
+    }
+
+    private static void safeRun(Runnable task){
+        try {
+            task.run();
+        } catch (RuntimeException e) {
+            Log.e(TAG, "task threw " + e);
+        }
+    }
+
+    private void closeSelector(){
+        for(SelectionKey key : mSelector.keys()){
+            try {
+                key.channel().close();
+            } catch (IOException e) {
+                Log.e(TAG, "closeSelector: " + e.getMessage());
+            }
+        }
+        try {
+            mSelector.close();
+        } catch (IOException e) {
+            Log.e(TAG, "closeSelector: " + e.getMessage());
+        }
+    }
+}
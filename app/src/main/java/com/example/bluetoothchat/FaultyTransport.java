@@ -0,0 +1,348 @@
+package com.example.bluetoothchat;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Random;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Wraps another Transport and breaks it on demand, to exercise reconnect and resume paths
+ * without real radios: connects can be made to fail and every open channel can be dropped
+ * at once, like an HC-06 going out of range. Writes can also be throttled to a radio's speed,
+ * delayed, and lost: a lost write vanishes whole, and since the engine's writers only ever write
+ * whole frames that is a lost packet, which only reliable mode recovers from.
+ * Only for stream transports (RFCOMM, PipedTransport), wrapped NIO channels lose their selector path.
+ * */
+class FaultyTransport implements Transport {
+
+    private final Transport mDelegate;
+    private final AtomicInteger mFailConnects = new AtomicInteger();
+    private final AtomicInteger mConnectAttempts = new AtomicInteger();
+    private volatile long mBytesPerSecond;
+    private volatile long mLatencyNanos;
+    private volatile long mJitterNanos;
+    private volatile double mLossRate;
+    private final Random mRandom = new Random();
+    private final AtomicLong mLostWrites = new AtomicLong();
+    private final Set<Channel> mOpen = Collections.newSetFromMap(new ConcurrentHashMap<Channel, Boolean>());
+
+    FaultyTransport(Transport delegate){
+        mDelegate = delegate;
+    }
+
+    //The next count connect() calls fail with an IOException
+    void failNextConnects(int count){
+        mFailConnects.set(count);
+    }
+
+    //Close every channel opened so far, on both the connecting and the accepting side
+    void breakConnections(){
+        for(Channel channel : mOpen){
+            try {
+                channel.close();
+            } catch (IOException e) {
+                //Already broken
+            }
+        }
+    }
+
+    //Limit every channel opened from now on to bytesPerSecond each way, 0 for no limit
+    void setBytesPerSecond(long bytesPerSecond){
+        mBytesPerSecond = bytesPerSecond;
+    }
+
+    //Deliver every write on channels opened from now on latency later, give or take up to jitter, in order
+    void setLatency(long latencyMillis, long jitterMillis){
+        mLatencyNanos = TimeUnit.MILLISECONDS.toNanos(latencyMillis);
+        mJitterNanos = TimeUnit.MILLISECONDS.toNanos(jitterMillis);
+    }
+
+    //Drop each write from now on with probability rate, 0 for none
+    void setLossRate(double rate){
+        mLossRate = rate;
+    }
+
+    long lostWrites(){
+        return mLostWrites.get();
+    }
+
+    int connectAttempts(){
+        return mConnectAttempts.get();
+    }
+
+    @Override
+    public ServerChannel listen(String name, UUID uuid) throws IOException {
+        final ServerChannel server = mDelegate.listen(name, uuid);
+        return new ServerChannel() {
+            @Override
+            public Channel accept() throws IOException {
+                return track(new FaultyChannel(server.accept(), false));
+            }
+
+            @Override
+            public void close() throws IOException {
+                server.close();
+            }
+        };
+    }
+
+    @Override
+    public Channel createChannel(String address, UUID uuid) throws IOException {
+        return new FaultyChannel(mDelegate.createChannel(address, uuid), true);
+    }
+
+    private Channel track(Channel channel){
+        mOpen.add(channel);
+        return channel;
+    }
+
+    private class FaultyChannel implements Channel {
+        private final Channel mmDelegate;
+        private final boolean mmOutgoing;
+        private OutputStream mmOut;
+        private DelayedOutputStream mmDelayed;
+
+        FaultyChannel(Channel delegate, boolean outgoing){
+            mmDelegate = delegate;
+            mmOutgoing = outgoing;
+        }
+
+        @Override
+        public void connect() throws IOException {
+            mConnectAttempts.incrementAndGet();
+            int failures = mFailConnects.get();
+            while(failures > 0){
+                if(mFailConnects.compareAndSet(failures, failures - 1)){
+                    throw new IOException("Injected connect failure");
+                }
+                failures = mFailConnects.get();
+            }
+            mmDelegate.connect();
+            if(mmOutgoing){
+                track(this);
+            }
+        }
+
+        @Override
+        public String getRemoteAddress() {
+            return mmDelegate.getRemoteAddress();
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            return mmDelegate.getInputStream();
+        }
+
+        //Airtime is spent first, then the write may be lost, then it takes latency to arrive
+        @Override
+        public synchronized OutputStream getOutputStream() throws IOException {
+            if(mmOut == null){
+                OutputStream out = mmDelegate.getOutputStream();
+                if(mLatencyNanos > 0){
+                    out = mmDelayed = new DelayedOutputStream(out, mLatencyNanos, mJitterNanos, mRandom);
+                }
+                out = new LossyOutputStream(out);
+                long bytesPerSecond = mBytesPerSecond;
+                mmOut = bytesPerSecond > 0 ? new ThrottledOutputStream(out, bytesPerSecond) : out;
+            }
+            return mmOut;
+        }
+
+        @Override
+        public void close() throws IOException {
+            mOpen.remove(this);
+            DelayedOutputStream delayed;
+            synchronized (this) {
+                delayed = mmDelayed;
+            }
+            if(delayed != null){
+                delayed.stop();
+            }
+            mmDelegate.close();
+        }
+    }
+
+    private class LossyOutputStream extends FilterOutputStream {
+
+        LossyOutputStream(OutputStream out){
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if(!lost()){
+                out.write(b);
+            }
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if(!lost()){
+                out.write(b, off, len);
+            }
+        }
+
+        private boolean lost(){
+            double rate = mLossRate;
+            if(rate > 0 && mRandom.nextDouble() < rate){
+                mLostWrites.incrementAndGet();
+                return true;
+            }
+            return false;
+        }
+    }
+
+    //Holds each write back for as long as the link would take to send it, idle time doesn't bank credit
+    private static class ThrottledOutputStream extends FilterOutputStream {
+        private final long mmBytesPerSecond;
+        private long mmFreeAtNanos = System.nanoTime();
+
+        ThrottledOutputStream(OutputStream out, long bytesPerSecond){
+            super(out);
+            mmBytesPerSecond = bytesPerSecond;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            pace(1);
+            out.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            pace(len);
+            out.write(b, off, len);
+        }
+
+        private void pace(int bytes) throws IOException {
+            long now = System.nanoTime();
+            mmFreeAtNanos = Math.max(mmFreeAtNanos, now) + bytes * 1000000000L / mmBytesPerSecond;
+            long wait = mmFreeAtNanos - now;
+            if(wait <= 0){
+                return;
+            }
+            try {
+                Thread.sleep(wait / 1000000L, (int) (wait % 1000000L));
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException("Interrupted while throttled");
+            }
+        }
+    }
+
+    /*
+     * Hands each write to its own thread, which writes it to the stream underneath once it is due.
+     * The write is copied, the caller may reuse its buffer. Jitter never reorders writes: one is
+     * never due before the one written ahead of it. A failure of the stream underneath is thrown
+     * from the next write.
+     * */
+    private static final class DelayedWrite {
+        final long due;
+        final byte[] bytes;
+
+        DelayedWrite(long due, byte[] bytes){
+            this.due = due;
+            this.bytes = bytes;
+        }
+    }
+
+    private static class DelayedOutputStream extends OutputStream {
+        private final OutputStream mmOut;
+        private final long mmLatencyNanos;
+        private final long mmJitterNanos;
+        private final Random mmRandom;
+        private final ArrayDeque<DelayedWrite> mmWrites = new ArrayDeque<>();
+        private final Thread mmThread;
+        private long mmLastDue;
+        private IOException mmFailure;
+        private boolean mmStopped;
+
+        DelayedOutputStream(OutputStream out, long latencyNanos, long jitterNanos, Random random){
+            mmOut = out;
+            mmLatencyNanos = latencyNanos;
+            mmJitterNanos = jitterNanos;
+            mmRandom = random;
+            mmThread = new Thread("DelayedOutputStream") {
+                @Override
+                public void run() {
+                    deliver();
+                }
+            };
+            mmThread.setDaemon(true);
+            mmThread.start();
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public synchronized void write(byte[] b, int off, int len) throws IOException {
+            if(mmFailure != null){
+                throw mmFailure;
+            }
+            if(mmStopped){
+                throw new IOException("Stream closed");
+            }
+            long jitter = mmJitterNanos > 0 ? (long) ((mmRandom.nextDouble() * 2 - 1) * mmJitterNanos) : 0;
+            long due = Math.max(mmLastDue, System.nanoTime() + mmLatencyNanos + jitter);
+            mmLastDue = due;
+            mmWrites.add(new DelayedWrite(due, Arrays.copyOfRange(b, off, off + len)));
+            notifyAll();
+        }
+
+        //Drop whatever hasn't been delivered yet and end the thread
+        synchronized void stop(){
+            mmStopped = true;
+            mmWrites.clear();
+            notifyAll();
+        }
+
+        @Override
+        public void close() throws IOException {
+            stop();
+            mmOut.close();
+        }
+
+        private void deliver(){
+            try {
+                while(true){
+                    DelayedWrite write;
+                    synchronized (this) {
+                        while(!mmStopped && (mmWrites.isEmpty() || mmWrites.peek().due > System.nanoTime())){
+                            if(mmWrites.isEmpty()){
+                                wait();
+                            }else{
+                                TimeUnit.NANOSECONDS.timedWait(this, mmWrites.peek().due - System.nanoTime());
+                            }
+                        }
+                        if(mmStopped){
+                            return;
+                        }
+                        write = mmWrites.poll();
+                    }
+                    mmOut.write(write.bytes);
+                    mmOut.flush();
+                }
+            } catch (IOException e) {
+                synchronized (this) {
+                    mmFailure = e;
+                    mmWrites.clear();
+                }
+            } catch (InterruptedException e) {
+                //Only stop() ends the thread
+            }
+        }
+    }
+}
@@ -0,0 +1,687 @@
+package com.example.bluetoothchat;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Sends and receives files over the chat link in checksummed chunks.
+ *
+ *   OFFER  [id : 8][size : 8][chunk size : 4][SHA-256 : 32][name : UTF-8]
+ *   ACCEPT [id : 8][offset : 8]                 the receiver already has offset bytes
+ *   CHUNK  [id : 8][offset : 8][CRC-32C : 4][data]
+ *   ACK    [id : 8][confirmed : 8][flags : 1]   cumulative, RESEND asks for everything after confirmed again
+ *   DONE   [id : 8][ok : 1]                     the whole file matched the digest
+ *
+ * The sender reads the file as it goes, so memory stays at one window of chunks however big the
+ * file is, and keeps WINDOW_CHUNKS in flight ahead of the ACKs. The id comes from the file's
+ * digest and the receiver keeps a partial file under it until the digest checks out, so a
+ * transfer cut off with its session (or by either app restarting) picks up from the last
+ * confirmed offset when it is offered again.
+ *
+ * All transfer state lives on one EventLoop thread, which also does the file I/O.
+ * */
+class FileTransfer implements MessageSubscriber {
+
+    private static final String TAG = "FileTransfer";
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    static final int DEFAULT_CHUNK_BYTES = 4096;
+    static final int WINDOW_CHUNKS = 8;
+    static final String PART_SUFFIX = ".part";
+    private static final int CHUNK_HEADER_BYTES = 8 + 8 + 4;
+    private static final int DIGEST_BYTES = 32;
+    private static final int ACK_RESEND = 1;
+    //Wait before trying a write the link refused again
+    private static final long RETRY_MILLIS = 50;
+    private static final long METER_SAMPLE_NANOS = TimeUnit.MILLISECONDS.toNanos(250);
+
+    //Where frames go out, normally ConnectionSupervisor
+    interface Link {
+        boolean write(String address, int type, byte[] payload);
+    }
+
+    //Called on the transfer thread
+    interface Listener {
+        void onProgress(Progress progress);
+
+        //file is the received file for incoming transfers, the source for outgoing ones
+        void onComplete(Progress progress, File file);
+
+        void onFailed(Progress progress, IOException e);
+    }
+
+    //Snapshot of one transfer
+    static final class Progress {
+        final long id;
+        final String address;
+        final String name;
+        final boolean outgoing;
+        final long size;
+        //Bytes the receiver has checked and written
+        final long confirmed;
+        final long bytesPerSecond;
+        final long elapsedMillis;
+
+        Progress(long id, String address, String name, boolean outgoing, long size, long confirmed,
+                 long bytesPerSecond, long elapsedMillis){
+            this.id = id;
+            this.address = address;
+            this.name = name;
+            this.outgoing = outgoing;
+            this.size = size;
+            this.confirmed = confirmed;
+            this.bytesPerSecond = bytesPerSecond;
+            this.elapsedMillis = elapsedMillis;
+        }
+    }
+
+    //Smoothed throughput over quarter second samples
+    private static final class Meter {
+        private final long mmStartNanos = System.nanoTime();
+        private long mmSampleStart = mmStartNanos;
+        private long mmSampleBytes;
+        private double mmRate;
+
+        void add(long bytes){
+            mmSampleBytes += bytes;
+            long now = System.nanoTime();
+            long elapsed = now - mmSampleStart;
+            if(elapsed >= METER_SAMPLE_NANOS){
+                double rate = mmSampleBytes * 1e9 / elapsed;
+                mmRate = mmRate == 0 ? rate : 0.7 * mmRate + 0.3 * rate;
+                mmSampleStart = now;
+                mmSampleBytes = 0;
+            }
+        }
+
+        long bytesPerSecond(){
+            if(mmRate == 0){
+                long elapsed = System.nanoTime() - mmSampleStart;
+                return elapsed <= 0 ? 0 : (long) (mmSampleBytes * 1e9 / elapsed);
+            }
+            return (long) mmRate;
+        }
+
+        long elapsedMillis(){
+            return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - mmStartNanos);
+        }
+    }
+
+    private final class Outgoing {
+        final String mmAddress;
+        final File mmFile;
+        final FileChannel mmChannel;
+        final long mmSize;
+        final byte[] mmDigest;
+        final long mmId;
+        final Meter mmMeter = new Meter();
+        //Set by ACCEPT, cleared when the session is lost
+        boolean mmAccepted;
+        long mmSent;
+        long mmAcked;
+        boolean mmRetryScheduled;
+
+        Outgoing(String address, File file, FileChannel channel, byte[] digest){
+            mmAddress = address;
+            mmFile = file;
+            mmChannel = channel;
+            mmDigest = digest;
+            mmId = ByteBuffer.wrap(digest).getLong();
+            mmSize = file.length();
+        }
+
+        Progress progress(){
+            return new Progress(mmId, mmAddress, mmFile.getName(), true, mmSize, mmAcked,
+                    mmMeter.bytesPerSecond(), mmMeter.elapsedMillis());
+        }
+    }
+
+    private final class Incoming {
+        final String mmAddress;
+        final long mmId;
+        final long mmSize;
+        final int mmChunkBytes;
+        final byte[] mmDigest;
+        final String mmName;
+        final File mmPart;
+        final FileChannel mmChannel;
+        final Meter mmMeter = new Meter();
+        long mmConfirmed;
+        //A RESEND for mmConfirmed is on its way, ignore everything until the sender rewinds
+        boolean mmResendRequested;
+
+        Incoming(String address, long id, long size, int chunkBytes, byte[] digest, String name, File part,
+                 FileChannel channel){
+            mmAddress = address;
+            mmId = id;
+            mmSize = size;
+            mmChunkBytes = chunkBytes;
+            mmDigest = digest;
+            mmName = name;
+            mmPart = part;
+            mmChannel = channel;
+        }
+
+        Progress progress(){
+            return new Progress(mmId, mmAddress, mmName, false, mmSize, mmConfirmed,
+                    mmMeter.bytesPerSecond(), mmMeter.elapsedMillis());
+        }
+    }
+
+    private final File mDirectory;
+    private final Link mLink;
+    private final ByteBufferPool mPool;
+    private final int mChunkBytes;
+    private final EventLoop mLoop;
+    private volatile Listener mListener;
+
+    //Keyed by address and id. Only touched on mLoop
+    private final Map<String, Outgoing> mOutgoing = new HashMap<>();
+    private final Map<String, Incoming> mIncoming = new HashMap<>();
+    //Readable from any thread
+    private final Map<String, Progress> mProgress = new ConcurrentHashMap<>();
+
+    FileTransfer(File directory, Link link, ByteBufferPool pool){
+        this(directory, link, pool, DEFAULT_CHUNK_BYTES);
+    }
+
+    FileTransfer(File directory, Link link, ByteBufferPool pool, int chunkBytes){
+        if(chunkBytes <= 0 || chunkBytes + CHUNK_HEADER_BYTES > FrameCodec.DEFAULT_MAX_PAYLOAD){
+            throw new IllegalArgumentException("Bad chunk size " + chunkBytes);
+        }
+        mDirectory = directory;
+        mLink = link;
+        mPool = pool;
+        mChunkBytes = chunkBytes;
+        try {
+            mLoop = new EventLoop("FileTransfer");
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not open selector", e);
+        }
+        if(!directory.isDirectory() && !directory.mkdirs()){
+            Log.e(TAG, "FileTransfer: Could not create " + directory);
+        }
+    }
+
+    void setListener(Listener listener){
+        mListener = listener;
+    }
+
+    //Transfers in progress, in no particular order
+    List<Progress> getTransfers(){
+        return new ArrayList<>(mProgress.values());
+    }
+
+    //Offer file to the peer at address. Progress and the outcome go to the Listener
+    void send(final String address, final File file){
+        mLoop.execute(new Runnable() {
+            @Override
+            public void run() {
+                startSending(address, file);
+            }
+        });
+    }
+
+    //A session with address started, offer it what it missed
+    void onPeerConnected(final String address){
+        mLoop.execute(new Runnable() {
+            @Override
+            public void run() {
+                for(Outgoing out : mOutgoing.values()){
+                    if(out.mmAddress.equals(address) && !out.mmAccepted){
+                        offer(out);
+                    }
+                }
+            }
+        });
+    }
+
+    //The session with address is gone, hold its transfers until it comes back
+    void onPeerDisconnected(final String address){
+        mLoop.execute(new Runnable() {
+            @Override
+            public void run() {
+                for(Outgoing out : mOutgoing.values()){
+                    if(out.mmAddress.equals(address)){
+                        out.mmAccepted = false;
+                    }
+                }
+                List<Incoming> lost = new ArrayList<>();
+                for(Incoming in : mIncoming.values()){
+                    if(in.mmAddress.equals(address)){
+                        lost.add(in);
+                    }
+                }
+                //The partial files stay for the next offer
+                for(Incoming in : lost){
+                    forget(in);
+                }
+            }
+        });
+    }
+
+    void stop(){
+        mLoop.execute(new Runnable() {
+            @Override
+            public void run() {
+                for(Outgoing out : mOutgoing.values()){
+                    closeQuietly(out.mmChannel);
+                }
+                for(Incoming in : mIncoming.values()){
+                    closeQuietly(in.mmChannel);
+                }
+                mOutgoing.clear();
+                mIncoming.clear();
+                mProgress.clear();
+                mLoop.shutdown();
+            }
+        });
+    }
+
+    //Called on the engine's threads, the payload is copied and handled on mLoop
+    @Override
+    public void onMessage(final String address, final int type, ByteBuffer payload) {
+        final PooledBuffer copy = mPool.acquire(payload.remaining());
+        copy.buffer().put(payload).flip();
+        mLoop.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    handle(address, type, copy.buffer());
+                } catch (RuntimeException e) {
+                    //A short frame from a confused peer, BufferUnderflowException and friends
+                    Log.e(TAG, "onMessage: Bad frame " + type + " from " + address + ": " + e);
+                } finally {
+                    copy.release();
+                }
+            }
+        });
+    }
+
+    private void handle(String address, int type, ByteBuffer payload){
+        switch(type){
+            case FrameCodec.TYPE_FILE_OFFER:
+                onOffer(address, payload);
+                break;
+            case FrameCodec.TYPE_FILE_ACCEPT:
+                onAccept(address, payload.getLong(), payload.getLong());
+                break;
+            case FrameCodec.TYPE_FILE_CHUNK:
+                onChunk(address, payload);
+                break;
+            case FrameCodec.TYPE_FILE_ACK:
+                onAck(address, payload.getLong(), payload.getLong(), payload.get());
+                break;
+            case FrameCodec.TYPE_FILE_DONE:
+                onDone(address, payload.getLong(), payload.get() != 0);
+                break;
+        }
+    }
+
+    private void startSending(String address, File file){
+        FileChannel channel = null;
+        try {
+            channel = new RandomAccessFile(file, "r").getChannel();
+            //One pass up front for the digest, the receiver checks the whole file against it
+            Outgoing out = new Outgoing(address, file, channel, digest(channel, file.length()));
+            String key = key(address, out.mmId);
+            Outgoing previous = mOutgoing.put(key, out);
+            if(previous != null){
+                closeQuietly(previous.mmChannel);
+            }
+            mProgress.put(key, out.progress());
+            Log.d(TAG, "send: Offering " + file.getName() + " (" + out.mmSize + " bytes) to " + address);
+            offer(out);
+        } catch (IOException e) {
+            Log.e(TAG, "send: Could not read " + file + ": " + e.getMessage());
+            if(channel != null){
+                closeQuietly(channel);
+            }
+            Listener listener = mListener;
+            if(listener != null){
+                listener.onFailed(new Progress(0, address, file.getName(), true, file.length(), 0, 0, 0), e);
+            }
+        }
+    }
+
+    private void offer(Outgoing out){
+        byte[] name = out.mmFile.getName().getBytes(UTF_8);
+        ByteBuffer offer = ByteBuffer.allocate(8 + 8 + 4 + DIGEST_BYTES + name.length);
+        offer.putLong(out.mmId).putLong(out.mmSize).putInt(mChunkBytes).put(out.mmDigest).put(name);
+        writeControl(out.mmAddress, FrameCodec.TYPE_FILE_OFFER, offer.array());
+    }
+
+    private void onAccept(String address, long id, long offset){
+        Outgoing out = mOutgoing.get(key(address, id));
+        if(out == null || offset < 0 || offset > out.mmSize){
+            return;
+        }
+        Log.d(TAG, "onAccept: " + address + " has " + offset + " of " + out.mmSize + " bytes of " + out.mmFile.getName());
+        out.mmAccepted = true;
+        out.mmAcked = offset;
+        out.mmSent = offset;
+        pump(out);
+    }
+
+    //Read and send chunks while the window has room
+    private void pump(final Outgoing out){
+        long window = (long) WINDOW_CHUNKS * mChunkBytes;
+        try {
+            while(out.mmAccepted && out.mmSent < out.mmSize && out.mmSent - out.mmAcked < window){
+                int length = (int) Math.min(mChunkBytes, out.mmSize - out.mmSent);
+                byte[] frame = new byte[CHUNK_HEADER_BYTES + length];
+                ByteBuffer buffer = ByteBuffer.wrap(frame);
+                buffer.position(CHUNK_HEADER_BYTES);
+                while(buffer.hasRemaining()){
+                    int read = out.mmChannel.read(buffer, out.mmSent + buffer.position() - CHUNK_HEADER_BYTES);
+                    if(read < 0){
+                        throw new IOException("File shrank while sending");
+                    }
+                }
+                buffer.clear();
+                buffer.putLong(out.mmId).putLong(out.mmSent).putInt(Crc32c.compute(frame, CHUNK_HEADER_BYTES, length));
+                if(!mLink.write(out.mmAddress, FrameCodec.TYPE_FILE_CHUNK, frame)){
+                    //Link queue full or the session is between links
+                    if(!out.mmRetryScheduled){
+                        out.mmRetryScheduled = true;
+                        mLoop.schedule(new Runnable() {
+                            @Override
+                            public void run() {
+                                out.mmRetryScheduled = false;
+                                if(mOutgoing.get(key(out.mmAddress, out.mmId)) == out){
+                                    pump(out);
+                                }
+                            }
+                        }, RETRY_MILLIS, TimeUnit.MILLISECONDS);
+                    }
+                    return;
+                }
+                out.mmSent += length;
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "pump: " + out.mmFile + ": " + e.getMessage());
+            finish(out, e);
+        }
+    }
+
+    private void onAck(String address, long id, long confirmed, int flags){
+        Outgoing out = mOutgoing.get(key(address, id));
+        //Older than what we know, e.g. a retried ACK overtaken by a newer one
+        if(out == null || confirmed < out.mmAcked || confirmed > out.mmSize){
+            return;
+        }
+        if(confirmed > out.mmAcked){
+            out.mmMeter.add(confirmed - out.mmAcked);
+            out.mmAcked = confirmed;
+            reportProgress(key(address, id), out.progress());
+        }
+        if((flags & ACK_RESEND) != 0){
+            Log.d(TAG, "onAck: " + address + " asks for " + out.mmFile.getName() + " again from " + confirmed);
+            out.mmSent = confirmed;
+        }
+        out.mmSent = Math.max(out.mmSent, confirmed);
+        pump(out);
+    }
+
+    private void onDone(String address, long id, boolean ok){
+        Outgoing out = mOutgoing.get(key(address, id));
+        if(out != null){
+            finish(out, ok ? null : new IOException(address + " got a different file, digest mismatch"));
+        }
+    }
+
+    //Stop an outgoing transfer and report how it ended
+    private void finish(Outgoing out, IOException failure){
+        String key = key(out.mmAddress, out.mmId);
+        mOutgoing.remove(key);
+        mProgress.remove(key);
+        closeQuietly(out.mmChannel);
+        Listener listener = mListener;
+        if(listener == null){
+            return;
+        }
+        if(failure == null){
+            Log.d(TAG, "finish: Sent " + out.mmFile.getName() + " to " + out.mmAddress + " in "
+                    + out.mmMeter.elapsedMillis() + " ms");
+            listener.onComplete(out.progress(), out.mmFile);
+        }else{
+            listener.onFailed(out.progress(), failure);
+        }
+    }
+
+    private void onOffer(String address, ByteBuffer payload){
+        long id = payload.getLong();
+        long size = payload.getLong();
+        int chunkBytes = payload.getInt();
+        byte[] digest = new byte[DIGEST_BYTES];
+        payload.get(digest);
+        String name = UTF_8.decode(payload).toString();
+        if(size < 0 || chunkBytes <= 0 || chunkBytes + CHUNK_HEADER_BYTES > FrameCodec.DEFAULT_MAX_PAYLOAD){
+            Log.e(TAG, "onOffer: Bad offer from " + address + ": " + size + " bytes in " + chunkBytes + " byte chunks");
+            return;
+        }
+        String key = key(address, id);
+        Incoming previous = mIncoming.get(key);
+        if(previous != null){
+            forget(previous);
+        }
+        File part = new File(mDirectory, Long.toHexString(id) + PART_SUFFIX);
+        FileChannel channel = null;
+        try {
+            channel = new RandomAccessFile(part, "rw").getChannel();
+            //Whole chunks only, whatever the last run left after that is suspect
+            long offset = Math.min(size, channel.size() / chunkBytes * chunkBytes);
+            channel.truncate(offset);
+            Incoming in = new Incoming(address, id, size, chunkBytes, digest, name, part, channel);
+            in.mmConfirmed = offset;
+            mIncoming.put(key, in);
+            mProgress.put(key, in.progress());
+            Log.d(TAG, "onOffer: Receiving " + name + " (" + size + " bytes) from " + address + " at " + offset);
+            ByteBuffer accept = ByteBuffer.allocate(16);
+            accept.putLong(id).putLong(offset);
+            writeControl(address, FrameCodec.TYPE_FILE_ACCEPT, accept.array());
+            if(offset == size){
+                complete(in);
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "onOffer: Could not open " + part + ": " + e.getMessage());
+            if(channel != null){
+                closeQuietly(channel);
+            }
+        }
+    }
+
+    private void onChunk(String address, ByteBuffer payload){
+        long id = payload.getLong();
+        long offset = payload.getLong();
+        int crc = payload.getInt();
+        Incoming in = mIncoming.get(key(address, id));
+        //Duplicates, and the rest of the window after a bad chunk, until the sender rewinds
+        if(in == null || offset != in.mmConfirmed){
+            return;
+        }
+        int length = payload.remaining();
+        int expected = (int) Math.min(in.mmChunkBytes, in.mmSize - offset);
+        if(length != expected
+                || Crc32c.compute(payload.array(), payload.arrayOffset() + payload.position(), length) != crc){
+            Log.e(TAG, "onChunk: Bad chunk at " + offset + " of " + in.mmName + " from " + address);
+            if(!in.mmResendRequested){
+                in.mmResendRequested = true;
+                ack(in, ACK_RESEND);
+            }
+            return;
+        }
+        try {
+            while(payload.hasRemaining()){
+                in.mmChannel.write(payload, offset + length - payload.remaining());
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "onChunk: Could not write " + in.mmPart + ": " + e.getMessage());
+            forget(in);
+            report(in, e);
+            return;
+        }
+        in.mmConfirmed += length;
+        in.mmResendRequested = false;
+        in.mmMeter.add(length);
+        ack(in, 0);
+        reportProgress(key(address, id), in.progress());
+        if(in.mmConfirmed == in.mmSize){
+            complete(in);
+        }
+    }
+
+    private void ack(Incoming in, int flags){
+        ByteBuffer ack = ByteBuffer.allocate(17);
+        ack.putLong(in.mmId).putLong(in.mmConfirmed).put((byte) flags);
+        writeControl(in.mmAddress, FrameCodec.TYPE_FILE_ACK, ack.array());
+    }
+
+    //Every byte is in, check the whole file and move it in place
+    private void complete(Incoming in){
+        forget(in);
+        IOException failure = null;
+        File target = null;
+        try {
+            FileChannel channel = new RandomAccessFile(in.mmPart, "r").getChannel();
+            byte[] digest;
+            try {
+                digest = digest(channel, in.mmSize);
+            } finally {
+                closeQuietly(channel);
+            }
+            if(!Arrays.equals(digest, in.mmDigest)){
+                failure = new IOException("Digest mismatch, discarding " + in.mmName);
+            }else{
+                target = uniqueFile(in.mmName);
+                if(!in.mmPart.renameTo(target)){
+                    failure = new IOException("Could not move " + in.mmPart + " to " + target);
+                }
+            }
+        } catch (IOException e) {
+            failure = e;
+        }
+        if(failure != null && !in.mmPart.delete()){
+            Log.e(TAG, "complete: Could not delete " + in.mmPart);
+        }
+        ByteBuffer done = ByteBuffer.allocate(9);
+        done.putLong(in.mmId).put((byte) (failure == null ? 1 : 0));
+        writeControl(in.mmAddress, FrameCodec.TYPE_FILE_DONE, done.array());
+        if(failure == null){
+            Log.d(TAG, "complete: Received " + target + " in " + in.mmMeter.elapsedMillis() + " ms");
+            Listener listener = mListener;
+            if(listener != null){
+                listener.onComplete(in.progress(), target);
+            }
+        }else{
+            report(in, failure);
+        }
+    }
+
+    private void report(Incoming in, IOException e){
+        Log.e(TAG, "report: " + in.mmName + " from " + in.mmAddress + ": " + e.getMessage());
+        Listener listener = mListener;
+        if(listener != null){
+            listener.onFailed(in.progress(), e);
+        }
+    }
+
+    private void forget(Incoming in){
+        String key = key(in.mmAddress, in.mmId);
+        if(mIncoming.get(key) == in){
+            mIncoming.remove(key);
+            mProgress.remove(key);
+        }
+        closeQuietly(in.mmChannel);
+    }
+
+    private void reportProgress(String key, Progress progress){
+        mProgress.put(key, progress);
+        Listener listener = mListener;
+        if(listener != null){
+            listener.onProgress(progress);
+        }
+    }
+
+    //Control frames are tiny but must not get lost when the link is momentarily full
+    private void writeControl(final String address, final int type, final byte[] payload){
+        if(mLink.write(address, type, payload)){
+            return;
+        }
+        mLoop.schedule(new Runnable() {
+            @Override
+            public void run() {
+                writeControl(address, type, payload);
+            }
+        }, RETRY_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    //Free name in mDirectory, name (1).ext and so on if it is taken
+    private File uniqueFile(String name){
+        String safe = name.replace('/', '_').replace('\\', '_');
+        if(safe.isEmpty() || safe.equals(".") || safe.equals("..") || safe.endsWith(PART_SUFFIX)){
+            safe = "file_" + safe;
+        }
+        File file = new File(mDirectory, safe);
+        int dot = safe.lastIndexOf('.');
+        String base = dot > 0 ? safe.substring(0, dot) : safe;
+        String extension = dot > 0 ? safe.substring(dot) : "";
+        for(int i = 1; file.exists(); i++){
+            file = new File(mDirectory, base + " (" + i + ")" + extension);
+        }
+        return file;
+    }
+
+    //SHA-256 of the first size bytes of channel, read in blocks
+    private static byte[] digest(FileChannel channel, long size) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException("No SHA-256", e);
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+        long position = 0;
+        while(position < size){
+            buffer.clear();
+            if(size - position < buffer.capacity()){
+                buffer.limit((int) (size - position));
+            }
+            int read = channel.read(buffer, position);
+            if(read < 0){
+                throw new IOException("File ended at " + position + " of " + size + " bytes");
+            }
+            buffer.flip();
+            digest.update(buffer);
+            position += read;
+        }
+        return digest.digest();
+    }
+
+    private static String key(String address, long id){
+        return address + '/' + id;
+    }
+
+    private static void closeQuietly(FileChannel channel){
+        try {
+            channel.close();
+        } catch (IOException e) {
+            Log.e(TAG, "close: " + e.getMessage());
+        }
+    }
+}
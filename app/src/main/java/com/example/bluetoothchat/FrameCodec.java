@@ -0,0 +1,137 @@
+package com.example.bluetoothchat;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/*
+ * Wire format shared by both ends of a connection. Every message is sent as one frame:
+ *
+ *   [payload length : unsigned varint][type : 1 byte][payload : length bytes]
+ *
+ * RFCOMM is a byte stream, so a single write can arrive split over several reads or glued
+ * to the next one. The length prefix lets FrameDecoder put the original messages back together.
+ * */
+final class FrameCodec {
+
+    //Frame types
+    //Bare UTF-8 text, see Messages.Text
+    static final int TYPE_TEXT = 1;
+    //File transfer, see FileTransfer
+    static final int TYPE_FILE_OFFER = 2;
+    static final int TYPE_FILE_ACCEPT = 3;
+    static final int TYPE_FILE_CHUNK = 4;
+    static final int TYPE_FILE_ACK = 5;
+    static final int TYPE_FILE_DONE = 6;
+    //Typed messages, see Messages
+    static final int TYPE_COMMAND = 7;
+    static final int TYPE_COMMAND_ACK = 8;
+    static final int TYPE_SENSOR_SAMPLE = 9;
+    //0x70 and up are control frames used by the connection layers, never handed to the app
+    static final int TYPE_SESSION_HELLO = 0x70;
+    static final int TYPE_SESSION_RESUME = 0x71;
+    static final int TYPE_SESSION_ACK = 0x72;
+    //Reliable mode: [sequence : varint][flags : 1 byte][type : 1 byte][payload]
+    static final int TYPE_SESSION_DATA = 0x73;
+    //[original type : 1 byte][deflate stream], see DeflateCodec
+    static final int TYPE_COMPRESSED = 0x74;
+    //Piece of a larger frame: [lane : 1 byte][flags : 1 byte][type : 1 byte, first piece only][data]
+    static final int TYPE_FRAGMENT = 0x75;
+    //Keepalive, [sender's clock : 8 bytes], answered with a PONG echoing it
+    static final int TYPE_SESSION_PING = 0x76;
+    static final int TYPE_SESSION_PONG = 0x77;
+    //Frame passed on hop by hop, see Relay
+    static final int TYPE_RELAY = 0x78;
+    static final int FIRST_CONTROL_TYPE = 0x70;
+
+    //Largest payload a peer may send in one frame
+    static final int DEFAULT_MAX_PAYLOAD = 64 * 1024;
+
+    //A 32 bit varint never needs more than 5 bytes
+    static final int MAX_VARINT_BYTES = 5;
+    static final int MAX_HEADER_BYTES = MAX_VARINT_BYTES + 1;
+
+    private FrameCodec(){
+    }
+
+    static int varintSize(int value){
+        int size = 1;
+        while((value & ~0x7F) != 0){
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    /*
+     * Write value as an unsigned varint into dst starting at offset.
+     * Returns the offset just past the last byte written.
+     * */
+    static int putVarint(byte[] dst, int offset, int value){
+        while((value & ~0x7F) != 0){
+            dst[offset++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        dst[offset++] = (byte) value;
+        return offset;
+    }
+
+    //Read an unsigned varint from src, advancing its position past it
+    static int getVarint(ByteBuffer src) throws IOException {
+        int value = 0;
+        for(int shift = 0; shift < 7 * MAX_VARINT_BYTES; shift += 7){
+            if(!src.hasRemaining()){
+                throw new IOException("Truncated varint");
+            }
+            int b = src.get();
+            value |= (b & 0x7F) << shift;
+            if((b & 0x80) == 0){
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    //Total bytes a frame carrying payloadLength bytes takes up on the wire
+    static int frameSize(int payloadLength){
+        return varintSize(payloadLength) + 1 + payloadLength;
+    }
+
+    /*
+     * Write the frame header for a payload of the given length into dst.
+     * Returns the offset where the payload should be copied.
+     * */
+    static int putHeader(byte[] dst, int offset, int type, int payloadLength){
+        offset = putVarint(dst, offset, payloadLength);
+        dst[offset++] = (byte) type;
+        return offset;
+    }
+
+    /*
+     * Encode a whole frame into dst. dst must have room for frameSize(length) bytes.
+     * Returns the offset just past the end of the frame.
+     * */
+    static int encode(byte[] dst, int offset, int type, byte[] payload, int payloadOffset, int length){
+        offset = putHeader(dst, offset, type, length);
+        System.arraycopy(payload, payloadOffset, dst, offset, length);
+        return offset + length;
+    }
+
+    //Encode a frame into a new array sized exactly to fit it
+    static byte[] encode(int type, byte[] payload, int payloadOffset, int length){
+        byte[] frame = new byte[frameSize(length)];
+        encode(frame, 0, type, payload, payloadOffset, length);
+        return frame;
+    }
+
+    /*
+     * Write a single frame to the stream. The header is written separately from the payload,
+     * so callers that care about syscall count should wrap out in a buffered stream.
+     * */
+    static void writeFrame(OutputStream out, int type, byte[] payload, int payloadOffset, int length) throws IOException {
+        byte[] header = new byte[MAX_HEADER_BYTES];
+        int headerLength = putHeader(header, 0, type, length);
+        out.write(header, 0, headerLength);
+        out.write(payload, payloadOffset, length);
+    }
+}
@@ -0,0 +1,140 @@
+package com.example.bluetoothchat;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/*
+ * Incremental decoder for frames written with FrameCodec.
+ * Bytes are read straight into a fixed ring buffer and every complete frame in it is handed
+ * to the FrameHandler. Nothing is allocated per read: a payload that wraps around the end
+ * of the ring is copied into a reusable scratch array, otherwise it is passed as a slice of the ring.
+ * */
+class FrameDecoder {
+
+    interface FrameHandler {
+        /*
+         * Called once per complete frame. The buffer is owned by the decoder and is
+         * only valid until this method returns.
+         * */
+        void onFrame(int type, byte[] buffer, int offset, int length) throws IOException;
+    }
+
+    private final byte[] ring;
+    private final int mask;
+    private final byte[] scratch;
+    private final int maxPayload;
+
+    //Absolute positions; (position & mask) gives the index into the ring
+    private int head; //next byte to be written
+    private int tail; //next byte to be decoded
+
+    FrameDecoder(){
+        this(FrameCodec.DEFAULT_MAX_PAYLOAD);
+    }
+
+    FrameDecoder(int maxPayload){
+        this.maxPayload = maxPayload;
+        int capacity = Integer.highestOneBit(maxPayload + FrameCodec.MAX_HEADER_BYTES - 1) << 1;
+        ring = new byte[capacity];
+        mask = capacity - 1;
+        scratch = new byte[maxPayload];
+    }
+
+    //Number of bytes received but not yet part of a complete frame
+    int buffered(){
+        return head - tail;
+    }
+
+    /*
+     * Do one read() from the stream and deliver every frame that is now complete.
+     * Returns the number of bytes read, or -1 at the end of the stream.
+     * */
+    int readFrom(InputStream in, FrameHandler handler) throws IOException {
+        int index = head & mask;
+        int free = Math.min(ring.length - index, ring.length - buffered());
+        int bytes = in.read(ring, index, free);
+        if(bytes > 0){
+            head += bytes;
+            drain(handler);
+        }
+        return bytes;
+    }
+
+    //Copy bytes that were read elsewhere into the ring and deliver every complete frame
+    void feed(byte[] src, int offset, int length, FrameHandler handler) throws IOException {
+        while(length > 0){
+            int index = head & mask;
+            int chunk = Math.min(length, Math.min(ring.length - index, ring.length - buffered()));
+            System.arraycopy(src, offset, ring, index, chunk);
+            head += chunk;
+            offset += chunk;
+            length -= chunk;
+            drain(handler);
+        }
+    }
+
+    //Same as above for bytes in a buffer, e.g. a direct one a channel read into. Consumes src
+    void feed(ByteBuffer src, FrameHandler handler) throws IOException {
+        while(src.hasRemaining()){
+            int index = head & mask;
+            int chunk = Math.min(src.remaining(), Math.min(ring.length - index, ring.length - buffered()));
+            src.get(ring, index, chunk);
+            head += chunk;
+            drain(handler);
+        }
+    }
+
+    void reset(){
+        head = 0;
+        tail = 0;
+    }
+
+    private void drain(FrameHandler handler) throws IOException {
+        while(true){
+            int available = buffered();
+            if(available < 2){
+                return;
+            }
+
+            //Parse the length prefix, bailing out if it hasn't fully arrived yet
+            int length = 0;
+            int shift = 0;
+            int position = tail;
+            while(true){
+                if(position - tail >= available){
+                    return;
+                }
+                int b = ring[position++ & mask];
+                length |= (b & 0x7F) << shift;
+                if((b & 0x80) == 0){
+                    break;
+                }
+                shift += 7;
+                if(shift >= 7 * FrameCodec.MAX_VARINT_BYTES){
+                    throw new IOException("Malformed frame length");
+                }
+            }
+            if(length < 0 || length > maxPayload){
+                throw new IOException("Frame too large: " + (length & 0xFFFFFFFFL) + " bytes");
+            }
+
+            int headerLength = position - tail + 1;
+            if(available < headerLength + length){
+                return;
+            }
+            int type = ring[position++ & mask] & 0xFF;
+
+            int start = position & mask;
+            if(start + length <= ring.length){
+                handler.onFrame(type, ring, start, length);
+            }else{
+                int first = ring.length - start;
+                System.arraycopy(ring, start, scratch, 0, first);
+                System.arraycopy(ring, 0, scratch, first, length - first);
+                handler.onFrame(type, scratch, 0, length);
+            }
+            tail += headerLength + length;
+        }
+    }
+}
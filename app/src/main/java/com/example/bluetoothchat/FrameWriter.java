@@ -0,0 +1,261 @@
+package com.example.bluetoothchat;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/*
+ * Writes frames to a connection's OutputStream off the caller's thread.
+ * Callers only enqueue, so a slow link never blocks them (in particular the main thread).
+ * A drain task is scheduled on the shared executor only while frames are pending, so idle peers
+ * don't hold a thread. It packs every pending frame, waiting up to the linger time for more,
+ * into one buffer and sends it with a single write() so small messages share RFCOMM packets.
+ * */
+class FrameWriter {
+
+    private static final String TAG = "FrameWriter";
+
+    static final int DEFAULT_QUEUE_CAPACITY = 1024;
+    static final int DEFAULT_MAX_BATCH_BYTES = 8 * 1024;
+    static final long DEFAULT_LINGER_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+    static final long DEFAULT_HIGH_WATERMARK_BYTES = 256 * 1024;
+
+    interface Listener {
+        /*
+         * Called with true when the bytes waiting to be written go above the high watermark,
+         * and with false once the writer has drained them below half of it.
+         * */
+        void onBackpressure(boolean congested);
+
+        //The stream failed, the writer has stopped and drops everything still queued
+        void onWriteFailed(IOException e);
+
+        //bytes went to the stream in one write that took nanos, for metrics. Called on the writing thread
+        void onWritten(int bytes, long nanos);
+    }
+
+    private static final class PendingFrame {
+        final int type;
+        final byte[] payload;
+        final int offset;
+        final int length;
+
+        PendingFrame(int type, byte[] payload, int offset, int length){
+            this.type = type;
+            this.payload = payload;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    private final OutputStream mOut;
+    private final Listener mListener;
+    private final MpscArrayQueue<PendingFrame> mQueue;
+    private final byte[] mBatch;
+    private final long mLingerNanos;
+    private final long mHighWatermark;
+    private final Executor mExecutor;
+
+    private final AtomicLong mQueuedBytes = new AtomicLong();
+    private final AtomicBoolean mCongested = new AtomicBoolean();
+    private final AtomicBoolean mScheduled = new AtomicBoolean();
+    private final CountDownLatch mTerminated = new CountDownLatch(1);
+    private volatile Thread mDrainThread;
+    private volatile boolean mStarted;
+    private volatile boolean mWaiting;
+    private volatile boolean mClosed;
+
+    private final Runnable mDrainTask = new Runnable() {
+        @Override
+        public void run() {
+            drain();
+        }
+    };
+
+    FrameWriter(OutputStream out, Executor executor, Listener listener){
+        this(out, executor, listener, DEFAULT_QUEUE_CAPACITY, DEFAULT_MAX_BATCH_BYTES,
+                DEFAULT_LINGER_NANOS, DEFAULT_HIGH_WATERMARK_BYTES);
+    }
+
+    FrameWriter(OutputStream out, Executor executor, Listener listener, int queueCapacity, int maxBatchBytes,
+                long lingerNanos, long highWatermarkBytes){
+        mOut = out;
+        mExecutor = executor;
+        mListener = listener;
+        mQueue = new MpscArrayQueue<>(queueCapacity);
+        mBatch = new byte[maxBatchBytes];
+        mLingerNanos = lingerNanos;
+        mHighWatermark = highWatermarkBytes;
+    }
+
+    //Frames enqueued before start() are held until it is called
+    void start(){
+        mStarted = true;
+        schedule();
+    }
+
+    /*
+     * Queue a frame for sending. Never blocks. Returns false if the queue is full or the
+     * writer is closed, in which case the frame is dropped and the caller should back off.
+     * The payload must not be modified after this call.
+     * */
+    boolean enqueue(int type, byte[] payload, int offset, int length){
+        if(mClosed || !mQueue.offer(new PendingFrame(type, payload, offset, length))){
+            return false;
+        }
+        long queued = mQueuedBytes.addAndGet(FrameCodec.frameSize(length));
+        if(queued > mHighWatermark && mCongested.compareAndSet(false, true)){
+            mListener.onBackpressure(true);
+        }
+        Thread drainThread = mDrainThread;
+        if(mWaiting && drainThread != null){
+            LockSupport.unpark(drainThread);
+        }
+        schedule();
+        return true;
+    }
+
+    boolean isCongested(){
+        return mCongested.get();
+    }
+
+    //Bytes queued but not yet handed to the OutputStream
+    long queuedBytes(){
+        return mQueuedBytes.get();
+    }
+
+    //Stop accepting frames. Whatever is already queued is still written before the thread exits
+    void close(){
+        mClosed = true;
+        Thread drainThread = mDrainThread;
+        if(drainThread != null){
+            LockSupport.unpark(drainThread);
+        }
+        schedule();
+    }
+
+    //Wait until everything queued before close() has been written, returns false on timeout
+    boolean awaitClosed(long timeoutMillis) throws InterruptedException {
+        return mTerminated.await(timeoutMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void schedule(){
+        if(mStarted && mScheduled.compareAndSet(false, true)){
+            mExecutor.execute(mDrainTask);
+        }
+    }
+
+    private void drain(){
+        mDrainThread = Thread.currentThread();
+        try {
+            while(true){
+                PendingFrame frame = mQueue.poll();
+                if(frame == null){
+                    //Give up the thread, unless a producer slipped a frame in after the poll
+                    mDrainThread = null;
+                    mScheduled.set(false);
+                    if(mQueue.isEmpty() || !mScheduled.compareAndSet(false, true)){
+                        break;
+                    }
+                    mDrainThread = Thread.currentThread();
+                    continue;
+                }
+                writeBatch(frame);
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "write: Error writing to outputstream: " + e.getMessage());
+            mClosed = true;
+            mDrainThread = null;
+            mTerminated.countDown();
+            mListener.onWriteFailed(e);
+            //Left scheduled on purpose so a failed writer never runs again
+            return;
+        }
+        if(mClosed && mQueue.isEmpty()){
+            mTerminated.countDown();
+        }
+    }
+
+    /*
+     * Copy frames into the batch buffer until it is full or nothing more arrives within the
+     * linger time, then hand the whole batch to the stream in one write.
+     * */
+    private void writeBatch(PendingFrame first) throws IOException {
+        int position = 0;
+        long deadline = 0;
+        PendingFrame frame = first;
+        while(true){
+            int size = FrameCodec.frameSize(frame.length);
+            if(size > mBatch.length - position){
+                //Doesn't fit, send what we have first
+                flush(position);
+                position = 0;
+            }
+            if(size > mBatch.length){
+                //Bigger than a whole batch, write it straight through
+                position = FrameCodec.putHeader(mBatch, 0, frame.type, frame.length);
+                long start = System.nanoTime();
+                mOut.write(mBatch, 0, position);
+                mOut.write(frame.payload, frame.offset, frame.length);
+                mListener.onWritten(position + frame.length, System.nanoTime() - start);
+                position = 0;
+            }else{
+                position = FrameCodec.encode(mBatch, position, frame.type, frame.payload, frame.offset, frame.length);
+            }
+            released(size);
+
+            frame = mQueue.poll();
+            while(frame == null && position < mBatch.length && mLingerNanos > 0 && !mClosed){
+                if(deadline == 0){
+                    deadline = System.nanoTime() + mLingerNanos;
+                }
+                long remaining = deadline - System.nanoTime();
+                if(remaining <= 0){
+                    break;
+                }
+                waitForFrames(remaining);
+                frame = mQueue.poll();
+            }
+            if(frame == null){
+                break;
+            }
+        }
+        flush(position);
+    }
+
+    private void flush(int length) throws IOException {
+        if(length > 0){
+            long start = System.nanoTime();
+            mOut.write(mBatch, 0, length);
+            mOut.flush();
+            mListener.onWritten(length, System.nanoTime() - start);
+        }
+    }
+
+    private void released(int bytes){
+        long queued = mQueuedBytes.addAndGet(-bytes);
+        if(queued < mHighWatermark / 2 && mCongested.compareAndSet(true, false)){
+            mListener.onBackpressure(false);
+        }
+    }
+
+    //Park until a producer signals a new frame, or for at most nanos when nanos > 0
+    private void waitForFrames(long nanos){
+        mWaiting = true;
+        if(mQueue.isEmpty() && !mClosed){
+            if(nanos > 0){
+                LockSupport.parkNanos(this, nanos);
+            }else{
+                LockSupport.park(this);
+            }
+        }
+        mWaiting = false;
+    }
+}
@@ -0,0 +1,278 @@
+package com.example.bluetoothchat;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.Executor;
+
+/*
+ * The devices we have been connected to recently, kept in a small file so the next launch can
+ * dial the one most likely to be around straight away instead of waiting for discovery.
+ * For each peer: address, the UUID it was reached on, when it last connected, how many dials
+ * have failed since, a moving average of how long a dial takes and which way of dialling it
+ * (see ConnectRace) last worked, so that one is tried first.
+ * Peers rank by their last success, pushed back FAILURE_PENALTY_MILLIS for every failed dial
+ * since, so a device that has moved away stops being tried first. Only MAX_PEERS are kept.
+ * Thread safe. Changes are written behind on saver, the whole file at once through a
+ * temporary file and a rename, so a crash leaves the old list or the new one. A file that
+ * can't be read is treated as empty.
+ * */
+final class KnownPeers {
+
+    private static final String TAG = "KnownPeers";
+    //1 had no strategy
+    private static final int VERSION = 2;
+
+    static final int MAX_PEERS = 8;
+    static final long FAILURE_PENALTY_MILLIS = 24 * 60 * 60 * 1000L;
+
+    static final class Peer {
+        final String address;
+        final UUID uuid;
+        long lastSuccessMillis;
+        int successes;
+        //Failed dials since the last success
+        int failures;
+        //Moving average of dial to connected, -1 until a dial has been timed
+        long averageConnectMillis = -1;
+        //Way of dialling that last connected, null if not known
+        String strategy;
+
+        Peer(String address, UUID uuid){
+            this.address = address;
+            this.uuid = uuid;
+        }
+
+        long score(){
+            return lastSuccessMillis - failures * FAILURE_PENALTY_MILLIS;
+        }
+
+        private Peer copy(){
+            Peer copy = new Peer(address, uuid);
+            copy.lastSuccessMillis = lastSuccessMillis;
+            copy.successes = successes;
+            copy.failures = failures;
+            copy.averageConnectMillis = averageConnectMillis;
+            copy.strategy = strategy;
+            return copy;
+        }
+    }
+
+    private static final Comparator<Peer> BY_SCORE = new Comparator<Peer>() {
+        @Override
+        public int compare(Peer a, Peer b) {
+            long x = a.score();
+            long y = b.score();
+            return x > y ? -1 : x < y ? 1 : 0;
+        }
+    };
+
+    private final File mFile;
+    private final Executor mSaver;
+    private final Map<String, Peer> mPeers = new LinkedHashMap<>();
+    private boolean mSavePending;
+
+    private final Runnable mSave = new Runnable() {
+        @Override
+        public void run() {
+            List<Peer> peers;
+            synchronized (KnownPeers.this) {
+                mSavePending = false;
+                peers = copyPeers();
+            }
+            try {
+                write(peers);
+            } catch (IOException e) {
+                Log.e(TAG, "save: Could not write " + mFile + ": " + e.getMessage());
+            }
+        }
+    };
+
+    KnownPeers(File file, Executor saver){
+        mFile = file;
+        mSaver = saver;
+        try {
+            read();
+        } catch (FileNotFoundException e) {
+            //Nothing known yet
+        } catch (IOException e) {
+            Log.e(TAG, "KnownPeers: Could not read " + file + ", starting empty: " + e.getMessage());
+            mPeers.clear();
+        }
+    }
+
+    /*
+     * A connection to address is up. uuid is what it was dialled on, null if it dialled us,
+     * in which case the one already known (or fallbackUuid) is kept. connectMillis is how long
+     * our dial took, -1 if it wasn't timed. strategy is how it was dialled, null keeps the old one.
+     * */
+    void onConnected(String address, UUID uuid, UUID fallbackUuid, String strategy, long connectMillis, long nowMillis){
+        synchronized (this) {
+            Peer peer = mPeers.get(address);
+            if(peer == null || (uuid != null && !uuid.equals(peer.uuid))){
+                Peer replaced = new Peer(address, uuid != null ? uuid : fallbackUuid);
+                if(peer != null){
+                    replaced.successes = peer.successes;
+                    replaced.averageConnectMillis = peer.averageConnectMillis;
+                    replaced.strategy = peer.strategy;
+                }
+                peer = replaced;
+                mPeers.put(address, peer);
+            }
+            peer.lastSuccessMillis = nowMillis;
+            peer.successes++;
+            peer.failures = 0;
+            if(strategy != null){
+                peer.strategy = strategy;
+            }
+            if(connectMillis >= 0){
+                peer.averageConnectMillis = peer.averageConnectMillis < 0 ? connectMillis
+                        : peer.averageConnectMillis + (connectMillis - peer.averageConnectMillis) / 4;
+            }
+            trim();
+        }
+        scheduleSave();
+    }
+
+    //A dial to address failed. Ignored for peers that have never connected
+    void onConnectFailed(String address){
+        synchronized (this) {
+            Peer peer = mPeers.get(address);
+            if(peer == null){
+                return;
+            }
+            peer.failures++;
+        }
+        scheduleSave();
+    }
+
+    //Copy of what is known about address, null if nothing
+    synchronized Peer get(String address){
+        Peer peer = mPeers.get(address);
+        return peer == null ? null : peer.copy();
+    }
+
+    //Copies of every known peer, most likely first
+    synchronized List<Peer> ranked(){
+        List<Peer> peers = copyPeers();
+        Collections.sort(peers, BY_SCORE);
+        return peers;
+    }
+
+    //Up to max of the best ranked peers whose address is in candidates, such as the bonded devices, most likely first
+    List<Peer> mostLikely(Set<String> candidates, int max){
+        List<Peer> likely = new ArrayList<>();
+        for(Peer peer : ranked()){
+            if(likely.size() == max){
+                break;
+            }
+            if(candidates.contains(peer.address)){
+                likely.add(peer);
+            }
+        }
+        return likely;
+    }
+
+    synchronized int size(){
+        return mPeers.size();
+    }
+
+    private void trim(){
+        while(mPeers.size() > MAX_PEERS){
+            Peer worst = null;
+            for(Peer peer : mPeers.values()){
+                if(worst == null || BY_SCORE.compare(peer, worst) > 0){
+                    worst = peer;
+                }
+            }
+            mPeers.remove(worst.address);
+        }
+    }
+
+    private List<Peer> copyPeers(){
+        List<Peer> peers = new ArrayList<>(mPeers.size());
+        for(Peer peer : mPeers.values()){
+            peers.add(peer.copy());
+        }
+        return peers;
+    }
+
+    //Bursts of changes are written once
+    private void scheduleSave(){
+        synchronized (this) {
+            if(mSavePending){
+                return;
+            }
+            mSavePending = true;
+        }
+        mSaver.execute(mSave);
+    }
+
+    private void read() throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(mFile)));
+        try {
+            int version = in.readInt();
+            if(version < 1 || version > VERSION){
+                throw new IOException("Unknown version " + version);
+            }
+            int count = in.readInt();
+            for(int i = 0; i < count; i++){
+                Peer peer = new Peer(in.readUTF(), new UUID(in.readLong(), in.readLong()));
+                peer.lastSuccessMillis = in.readLong();
+                peer.successes = in.readInt();
+                peer.failures = in.readInt();
+                peer.averageConnectMillis = in.readLong();
+                if(version >= 2){
+                    String strategy = in.readUTF();
+                    peer.strategy = strategy.isEmpty() ? null : strategy;
+                }
+                mPeers.put(peer.address, peer);
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    private void write(List<Peer> peers) throws IOException {
+        File temp = new File(mFile.getPath() + ".tmp");
+        FileOutputStream file = new FileOutputStream(temp);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file));
+        try {
+            out.writeInt(VERSION);
+            out.writeInt(peers.size());
+            for(Peer peer : peers){
+                out.writeUTF(peer.address);
+                out.writeLong(peer.uuid.getMostSignificantBits());
+                out.writeLong(peer.uuid.getLeastSignificantBits());
+                out.writeLong(peer.lastSuccessMillis);
+                out.writeInt(peer.successes);
+                out.writeInt(peer.failures);
+                out.writeLong(peer.averageConnectMillis);
+                out.writeUTF(peer.strategy == null ? "" : peer.strategy);
+            }
+            out.flush();
+            file.getFD().sync();
+        } finally {
+            out.close();
+        }
+        if(!temp.renameTo(mFile)){
+            throw new IOException("Could not rename " + temp + " to " + mFile);
+        }
+    }
+}
@@ -1,6 +1,7 @@
 package com.example.bluetoothchat;
 
 import android.Manifest;
+import android.app.ProgressDialog;
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
 import android.content.BroadcastReceiver;
@@ -9,7 +10,8 @@ import android.content.Intent;
 import android.content.IntentFilter;
 import android.os.Build;
 import android.os.Bundle;
-import android.support.v4.content.LocalBroadcastManager;
+import android.os.Handler;
+import android.os.SystemClock;
 import android.support.v7.app.AppCompatActivity;
 import android.util.Log;
 import android.view.View;
@@ -20,22 +22,41 @@ import android.widget.ListView;
 import android.widget.TextView;
 import android.widget.Toast;
 
-import java.nio.charset.Charset;
+import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.UUID;
 
 public class MainActivity extends AppCompatActivity implements AdapterView.OnItemClickListener{
 
     private static final String TAG = "MainActivity";
     BluetoothAdapter adapter;
-    public ArrayList<BluetoothDevice> mBTDevices = new ArrayList<>();
-    public DeviceListAdapter mDeviceListAdapter;
+    //Every device discovery has reported, once each, shown in devicesList
+    final DiscoveryCache<BluetoothDevice> discoveryCache = new DiscoveryCache<>();
+    DeviceListAdapter mDeviceListAdapter;
     ListView devicesList;
+    //How often devices that have gone quiet are swept out of discoveryCache
+    private static final long DISCOVERY_SWEEP_MILLIS = 15 * 1000;
+    private final Handler mSweepHandler = new Handler();
+    private final Runnable mSweepTask = new Runnable() {
+        @Override
+        public void run() {
+            discoveryCache.evictExpired(SystemClock.elapsedRealtime());
+            mSweepHandler.postDelayed(this, DISCOVERY_SWEEP_MILLIS);
+        }
+    };
 
-    TextView incomingMessages;
-    StringBuilder messages;
+    ListView incomingMessages;
+    TranscriptModel transcript;
+    TranscriptAdapter transcriptAdapter;
 
+    //Owned by ChatService, null until the binding attaches
     BluetoothConnectionService bluetoothConnectionService;
+    StatsOverlay statsOverlay;
+    ProgressDialog progressDialog;
 
     Button startconnection;
     Button send;
@@ -44,6 +65,10 @@ public class MainActivity extends AppCompatActivity implements AdapterView.OnIte
 
     BluetoothDevice mBTdevice;
 
+    //Receivers 1 and 2 are only registered once their button is tapped, see onDestroy
+    private boolean mReceiver1Registered;
+    private boolean mReceiver2Registered;
+
     //Create a broadcast receiver for ACTION_FOUND
     private final BroadcastReceiver mBroadcastReceiver1 = new BroadcastReceiver() {
         @Override
@@ -115,20 +140,10 @@ public class MainActivity extends AppCompatActivity implements AdapterView.OnIte
 
             if(action.equals(BluetoothDevice.ACTION_FOUND)){
                 BluetoothDevice device = intent.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
-                mBTDevices.add(device);
-                String name = device.getName();
-                Log.d(TAG, "Bluetooth device found" + device.getName() + "" + device.getAddress());
-                if(name.equals("HC-06")){
-                    mDeviceListAdapter = new DeviceListAdapter(context, R.layout.device_adapter_view, mBTDevices);
-                    devicesList.setAdapter(mDeviceListAdapter);
-                }
-                //create the bond
-                //Note: requires API 17+
-                if(Build.VERSION.SDK_INT > Build.VERSION_CODES.JELLY_BEAN_MR2){
-                    Log.d(TAG, "Trying to piar with " + name);
-                    device.createBond();
-                    bluetoothConnectionService = new BluetoothConnectionService(MainActivity.this);
-                }
+                //The same device is reported again and again during a scan, the cache keeps one row per address
+                discoveryCache.onFound(device.getAddress(), device, device.getName(),
+                        intent.getShortExtra(BluetoothDevice.EXTRA_RSSI, (short) DiscoveryCache.UNKNOWN_RSSI),
+                        device.getBondState(), SystemClock.elapsedRealtime());
             }
         }
     };
@@ -139,6 +154,7 @@ public class MainActivity extends AppCompatActivity implements AdapterView.OnIte
             final String action = intent.getAction();
             if(action.equals(BluetoothDevice.ACTION_BOND_STATE_CHANGED)){
                 BluetoothDevice mDevice = intent.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
+                discoveryCache.onBondStateChanged(mDevice.getAddress(), mDevice.getBondState());
                 //3 cases
                 //case1: bonded already
                 if(mDevice.getBondState() == BluetoothDevice.BOND_BONDED){
@@ -160,6 +176,8 @@ public class MainActivity extends AppCompatActivity implements AdapterView.OnIte
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
+        //First, so the service can start dialling the last peer while the views inflate
+        mBinding.bind(this);
         setContentView(R.layout.activity_main);
 
         startconnection = findViewById(R.id.startconnection);
@@ -172,15 +190,20 @@ public class MainActivity extends AppCompatActivity implements AdapterView.OnIte
         devicesList = findViewById(R.id.devicelist);
 
         devicesList.setOnItemClickListener(MainActivity.this);
+        mDeviceListAdapter = new DeviceListAdapter(this, discoveryCache, devicesList);
+        devicesList.setAdapter(mDeviceListAdapter);
+        mSweepHandler.postDelayed(mSweepTask, DISCOVERY_SWEEP_MILLIS);
 
         //Broadcasts when bond state changes(i.e pairing)
         IntentFilter intentFilter = new IntentFilter(BluetoothDevice.ACTION_BOND_STATE_CHANGED);
         registerReceiver(mBroadcastReceiver4, intentFilter);
+        //Registered once, registering again for every scan would deliver each device several times
+        registerReceiver(mBroadcastReceiver3, new IntentFilter(BluetoothDevice.ACTION_FOUND));
 
         incomingMessages = findViewById(R.id.display);
-        messages = new StringBuilder();
-
-        LocalBroadcastManager.getInstance(this).registerReceiver(mReceiver, new IntentFilter("incomingMessage"));
+        transcript = new TranscriptModel();
+        transcriptAdapter = new TranscriptAdapter(this, transcript);
+        incomingMessages.setAdapter(transcriptAdapter);
 
         Button discover = findViewById(R.id.discover);
         discover.setOnClickListener(new View.OnClickListener() {
@@ -193,6 +216,7 @@ public class MainActivity extends AppCompatActivity implements AdapterView.OnIte
 
                 IntentFilter intentFilter = new IntentFilter(adapter.ACTION_SCAN_MODE_CHANGED);
                 registerReceiver(mBroadcastReceiver2, intentFilter);
+                mReceiver2Registered = true;
             }
         });
 
@@ -209,47 +233,213 @@ public class MainActivity extends AppCompatActivity implements AdapterView.OnIte
             }
         });
 
+        statsOverlay = new StatsOverlay((TextView) findViewById(R.id.stats));
+        send.setOnLongClickListener(new View.OnLongClickListener() {
+            @Override
+            public boolean onLongClick(View v) {
+                statsOverlay.toggle();
+                return true;
+            }
+        });
+
         send.setOnClickListener(new View.OnClickListener() {
             @Override
             public void onClick(View v) {
-                String themessage = "y";
-                byte[] mybyte = themessage.getBytes(Charset.defaultCharset());
-                bluetoothConnectionService.write(mybyte);
-                byte[] bytes = Message.getText().toString().getBytes(Charset.defaultCharset());
-                bluetoothConnectionService.write(bytes);
+                //Prefix and message go out together as one frame
+                String themessage = "y" + Message.getText().toString();
+                byte[] bytes = Messages.Text.encode(themessage);
+                if(bluetoothConnectionService == null || !bluetoothConnectionService.write(bytes)){
+                    Toast.makeText(MainActivity.this, "Message not sent, connection busy", Toast.LENGTH_SHORT).show();
+                    return;
+                }
                 Message.setText("");
             }
         });
     }
 
-    BroadcastReceiver mReceiver = new BroadcastReceiver() {
+    //Incoming messages arrive in batches, the list is refreshed at most once per frame
+    private final CoalescingDispatcher.Listener mMessageListener = new CoalescingDispatcher.Listener() {
         @Override
-        public void onReceive(Context context, Intent intent) {
-            String text = intent.getStringExtra("theMessage");
-            messages.append(text + "\n");
-            incomingMessages.setText(messages);
+        public void onMessage(String address, int type, ByteBuffer payload) {
+            String text = Messages.Text.decode(payload);
+            transcript.add(address, text, System.currentTimeMillis());
+        }
+
+        @Override
+        public void onBatchEnd(int count) {
+            transcriptAdapter.invalidateOnNextFrame();
         }
     };
 
+    //Dismiss the progressDialog when the connection is established or has failed
+    private final BluetoothConnectionService.StateListener mStateListener = new BluetoothConnectionService.StateListener() {
+        @Override
+        public void onConnected(String address) {
+            dismissProgressDialog();
+        }
+
+        @Override
+        public void onConnectionFailed(String address) {
+            dismissProgressDialog();
+        }
+
+        @Override
+        public void onDisconnected(String address) {
+        }
+    };
+
+    /*
+     * Put the most recent incoming messages back on screen from the service's message log once it
+     * is open, so the transcript survives rotation and process death. Messages that arrived while
+     * it was opening aren't in the log and stay below the replayed ones.
+     * */
+    private final ChatService.MessageLogListener mMessageLogListener = new ChatService.MessageLogListener() {
+        @Override
+        public void onMessageLogOpened(MessageLog log) {
+            if(log == null){
+                return;
+            }
+            List<TranscriptModel.Entry> live = new ArrayList<>();
+            for(int i = 0; i < transcript.size(); i++){
+                TranscriptModel.Entry entry = transcript.get(i);
+                TranscriptModel.Entry copy = new TranscriptModel.Entry();
+                copy.address = entry.address;
+                copy.text = entry.text;
+                copy.timeMillis = entry.timeMillis;
+                live.add(copy);
+            }
+            transcript.clear();
+            try {
+                log.replayTail(transcript.capacity(), new MessageLog.RecordVisitor() {
+                    @Override
+                    public void onRecord(long sequence, long timeMillis, boolean outgoing, String address, ByteBuffer payload) {
+                        if(!outgoing){
+                            String text = Messages.Text.decode(payload);
+                            transcript.add(address, text, timeMillis);
+                        }
+                    }
+                });
+            } catch (IOException e) {
+                Log.e(TAG, "onMessageLogOpened: Could not read message log " + e.getMessage());
+            }
+            for(TranscriptModel.Entry entry : live){
+                transcript.add(entry.address, entry.text, entry.timeMillis);
+            }
+            transcriptAdapter.notifyDataSetChanged();
+        }
+    };
+
+    //The connection lives in ChatService, this activity only attaches to it while it exists
+    private final ChatService.Binding mBinding = new ChatService.Binding() {
+        @Override
+        void onAttached(ChatService service) {
+            Log.d(TAG, "onAttached: Connection service attached");
+            bluetoothConnectionService = service.getConnection();
+            service.whenMessageLogOpened(mMessageLogListener);
+            bluetoothConnectionService.setMessageListener(mMessageListener);
+            bluetoothConnectionService.addStateListener(mStateListener);
+            statsOverlay.setMetrics(bluetoothConnectionService.getMetrics());
+            addBondedDevices(bluetoothConnectionService.getKnownPeers());
+        }
+
+        @Override
+        void onDetached(ChatService service) {
+            Log.d(TAG, "onDetached: Connection service detached");
+            service.removeMessageLogListener(mMessageLogListener);
+            bluetoothConnectionService.setMessageListener(null);
+            bluetoothConnectionService.removeStateListener(mStateListener);
+            bluetoothConnectionService = null;
+        }
+
+        @Override
+        void onStopRequested() {
+            Log.d(TAG, "onStopRequested: Disconnected from the notification, closing");
+            finish();
+        }
+    };
+
+    /*
+     * List the bonded devices without a scan, the ones we've chatted with first and most likely
+     * first, and pick the likeliest so Startconnection works straight away
+     * */
+    private void addBondedDevices(KnownPeers knownPeers){
+        if(adapter == null || !adapter.isEnabled()){
+            return;
+        }
+        Map<String, BluetoothDevice> bonded = new LinkedHashMap<>();
+        for(BluetoothDevice device : adapter.getBondedDevices()){
+            bonded.put(device.getAddress(), device);
+        }
+        long now = SystemClock.elapsedRealtime();
+        for(KnownPeers.Peer peer : knownPeers.ranked()){
+            BluetoothDevice device = bonded.remove(peer.address);
+            if(device != null){
+                discoveryCache.onFound(peer.address, device, device.getName(), DiscoveryCache.UNKNOWN_RSSI,
+                        BluetoothDevice.BOND_BONDED, now);
+                if(mBTdevice == null){
+                    mBTdevice = device;
+                }
+            }
+        }
+        for(BluetoothDevice device : bonded.values()){
+            discoveryCache.onFound(device.getAddress(), device, device.getName(), DiscoveryCache.UNKNOWN_RSSI,
+                    BluetoothDevice.BOND_BONDED, now);
+        }
+    }
+
     //Starting chat service method
     public void startBTConnection(BluetoothDevice device, UUID uuid){
         Log.d(TAG, "startBTConnection: Initializing RFCOM Bluetooth Connection");
+        if(bluetoothConnectionService == null){
+            Toast.makeText(this, "Bluetooth service is starting, try again", Toast.LENGTH_SHORT).show();
+            return;
+        }
+        //initprogress dialog
+        progressDialog = ProgressDialog.show(this, "Connecting Bluetooth", "Please Wait...", true);
         bluetoothConnectionService.startClient(device, uuid);
     }
 
     //create method for starting connection
-    //remember the connection will fail and app will crash if you haven't paired yet
+    //remember the connection will fail if you haven't paired yet
     public void startconnection(){
+        if(mBTdevice == null){
+            Toast.makeText(this, "Pick a device first", Toast.LENGTH_SHORT).show();
+            return;
+        }
         startBTConnection(mBTdevice, MY_UUID_INSECURE);
     }
 
+    private void dismissProgressDialog(){
+        if(progressDialog != null){
+            progressDialog.dismiss();
+            progressDialog = null;
+        }
+    }
+
 
     @Override
     protected void onDestroy() {
         Log.d(TAG, "onDestroy called");
         super.onDestroy();
-        unregisterReceiver(mBroadcastReceiver1);
-        unregisterReceiver(mBroadcastReceiver2);
+        transcriptAdapter.cancelPendingFrame();
+        mDeviceListAdapter.cancelPendingFrame();
+        mSweepHandler.removeCallbacks(mSweepTask);
+        statsOverlay.hide();
+        dismissProgressDialog();
+        //Leaving the app for good with nothing connected, there's nothing to keep running for
+        ChatService service = mBinding.getService();
+        if(service != null && isFinishing()){
+            service.stopIfIdle();
+        }
+        //The connection stays up in the service, only this activity lets go of it
+        mBinding.unbind();
+        //Unregistering one that never was throws, which would take the service's links down on a rotation
+        if(mReceiver1Registered){
+            unregisterReceiver(mBroadcastReceiver1);
+        }
+        if(mReceiver2Registered){
+            unregisterReceiver(mBroadcastReceiver2);
+        }
         unregisterReceiver(mBroadcastReceiver3);
         unregisterReceiver(mBroadcastReceiver4);
     }
@@ -266,6 +456,7 @@ public class MainActivity extends AppCompatActivity implements AdapterView.OnIte
 
             IntentFilter BTIntent = new IntentFilter(adapter.ACTION_STATE_CHANGED);
             registerReceiver(mBroadcastReceiver1, BTIntent);
+            mReceiver1Registered = true;
         }
 
         if(adapter.isEnabled()){
@@ -273,6 +464,7 @@ public class MainActivity extends AppCompatActivity implements AdapterView.OnIte
             adapter.disable();
             IntentFilter BTIntent = new IntentFilter(adapter.ACTION_STATE_CHANGED);
             registerReceiver(mBroadcastReceiver1, BTIntent);
+            mReceiver1Registered = true;
         }
 
     }
@@ -288,15 +480,11 @@ public class MainActivity extends AppCompatActivity implements AdapterView.OnIte
             checkBTPermissions();
 
             adapter.startDiscovery();
-            IntentFilter intentFilter = new IntentFilter(BluetoothDevice.ACTION_FOUND);
-            registerReceiver(mBroadcastReceiver3, intentFilter);
         }
         if(!adapter.isDiscovering()){
             checkBTPermissions();
 
             adapter.startDiscovery();
-            IntentFilter intentFilter = new IntentFilter(BluetoothDevice.ACTION_FOUND);
-            registerReceiver(mBroadcastReceiver3, intentFilter);
         }
     }
 
@@ -319,19 +507,20 @@ public class MainActivity extends AppCompatActivity implements AdapterView.OnIte
         adapter.cancelDiscovery();
 
         Log.d(TAG, "onItemClick: You clicked on a device");
-        String deviceName = mBTDevices.get(position).getName();
-        String deviceAddress = mBTDevices.get(position).getAddress();
-        Log.d(TAG, "onItemClick: deviceName = " + deviceName);
-        Log.d(TAG, "onItemClick: deviceName = " + deviceAddress);
+        DiscoveryCache.Entry<BluetoothDevice> entry = discoveryCache.get(position);
+        Log.d(TAG, "onItemClick: deviceName = " + entry.name);
+        Log.d(TAG, "onItemClick: deviceAddress = " + entry.address);
 
         //create the bond
         //Note: requires API 17+
         if(Build.VERSION.SDK_INT > Build.VERSION_CODES.JELLY_BEAN_MR2){
-            Log.d(TAG, "Trying to pair with " + deviceName);
-            mBTDevices.get(position).createBond();
+            if(!entry.isBonded()){
+                Log.d(TAG, "Trying to pair with " + entry.name);
+                entry.device.createBond();
+            }
 
-            mBTdevice = mBTDevices.get(position);
-            bluetoothConnectionService = new BluetoothConnectionService(MainActivity.this);
+            //One engine for all peers in ChatService, picking a device only chooses whom to dial
+            mBTdevice = entry.device;
         }
     }
 
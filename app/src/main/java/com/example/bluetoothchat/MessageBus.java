@@ -0,0 +1,69 @@
+package com.example.bluetoothchat;
+
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/*
+ * Routes incoming frames to the subscribers registered for their type, on the thread that
+ * received them. Subscribers are kept in copy-on-write arrays indexed by frame type, so
+ * publishing takes no lock and allocates nothing.
+ * */
+class MessageBus {
+
+    private static final String TAG = "MessageBus";
+    //Per frame logging, off unless enabled with: adb shell setprop log.tag.MessageBus VERBOSE
+    private static final boolean TRACE = Log.isLoggable(TAG, Log.VERBOSE);
+    private static final MessageSubscriber[] NONE = new MessageSubscriber[0];
+
+    //Indexed by frame type, each array is replaced rather than modified
+    private final AtomicReferenceArray<MessageSubscriber[]> mSubscribers = new AtomicReferenceArray<>(256);
+
+    MessageBus(){
+        for(int i = 0; i < mSubscribers.length(); i++){
+            mSubscribers.set(i, NONE);
+        }
+    }
+
+    synchronized void subscribe(int type, MessageSubscriber subscriber){
+        MessageSubscriber[] current = mSubscribers.get(type);
+        MessageSubscriber[] updated = new MessageSubscriber[current.length + 1];
+        System.arraycopy(current, 0, updated, 0, current.length);
+        updated[current.length] = subscriber;
+        mSubscribers.set(type, updated);
+    }
+
+    synchronized void unsubscribe(int type, MessageSubscriber subscriber){
+        MessageSubscriber[] current = mSubscribers.get(type);
+        for(int i = 0; i < current.length; i++){
+            if(current[i] == subscriber){
+                MessageSubscriber[] updated = new MessageSubscriber[current.length - 1];
+                System.arraycopy(current, 0, updated, 0, i);
+                System.arraycopy(current, i + 1, updated, i, current.length - i - 1);
+                mSubscribers.set(type, updated);
+                return;
+            }
+        }
+    }
+
+    /*
+     * Hand payload to every subscriber of type. Each one sees the same position and limit,
+     * whatever the previous one did with them.
+     * */
+    void publish(String address, int type, ByteBuffer payload){
+        MessageSubscriber[] subscribers = mSubscribers.get(type & 0xFF);
+        if(subscribers.length == 0){
+            if(TRACE){
+                Log.v(TAG, "publish: No subscriber for frame type " + type);
+            }
+            return;
+        }
+        int position = payload.position();
+        int limit = payload.limit();
+        for(MessageSubscriber subscriber : subscribers){
+            payload.limit(limit).position(position);
+            subscriber.onMessage(address, type, payload);
+        }
+    }
+}
@@ -0,0 +1,417 @@
+package com.example.bluetoothchat;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * In-memory secondary index over a MessageLog, fed record by record as the log writes them
+ * (and rebuilt from the mapped segments when the log opens). It holds:
+ *  - a sparse block index: for every BLOCK_RECORDS consecutive records, where the first one
+ *    lives and the block's earliest and latest timestamp
+ *  - a posting list of sequence numbers per peer address
+ *  - optionally, a posting list per lower-cased byte trigram of the payload
+ * A query intersects the posting lists, keeps the candidates whose block overlaps the time
+ * range, then reads just those blocks back through a MessageLog.Reader to check each record.
+ *
+ * Nothing is saved: the index is rebuilt from the records every time the log opens, a single
+ * sequential pass that grows with the log (capped at MessageLog.DEFAULT_MAX_TOTAL_BYTES). That
+ * keeps it from ever disagreeing with segments recovery truncated or retention dropped, at the
+ * cost of start-up work, which is why ChatService opens the log on a thread of its own.
+ *
+ * Sequence numbers are kept as ints, which is fine until a log has seen 2^31 records.
+ * Thread safe: the log's writer thread adds while queries run on other threads.
+ * */
+class MessageIndex implements MessageLog.Indexer {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    static final int BLOCK_SHIFT = 6;
+    static final int BLOCK_RECORDS = 1 << BLOCK_SHIFT;
+    //Only the start of long payloads is tokenized
+    static final int MAX_INDEXED_TEXT_BYTES = 1024;
+
+    //Growable sorted list of sequence numbers
+    private static final class IntList {
+        int[] values = new int[4];
+        int size;
+
+        void add(int value){
+            if(size == values.length){
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+
+        int last(){
+            return size == 0 ? -1 : values[size - 1];
+        }
+
+        //First index whose value is >= value, starting the search at from
+        int lowerBound(int from, int value){
+            int low = from;
+            int high = size;
+            while(low < high){
+                int mid = (low + high) >>> 1;
+                if(values[mid] < value){
+                    low = mid + 1;
+                }else{
+                    high = mid;
+                }
+            }
+            return low;
+        }
+
+        void removeBelow(int value){
+            int cut = lowerBound(0, value);
+            if(cut > 0){
+                System.arraycopy(values, cut, values, 0, size - cut);
+                size -= cut;
+            }
+        }
+    }
+
+    //Open addressing map from a trigram to its posting list, no boxing on the append path
+    private static final class TrigramTable {
+        int[] keys = new int[1024];
+        IntList[] lists = new IntList[1024];
+        int size;
+
+        IntList get(int key){
+            int mask = keys.length - 1;
+            for(int i = mix(key) & mask; ; i = (i + 1) & mask){
+                if(keys[i] == key){
+                    return lists[i];
+                }
+                if(keys[i] == 0){
+                    return null;
+                }
+            }
+        }
+
+        IntList getOrCreate(int key){
+            int mask = keys.length - 1;
+            int i = mix(key) & mask;
+            while(keys[i] != 0){
+                if(keys[i] == key){
+                    return lists[i];
+                }
+                i = (i + 1) & mask;
+            }
+            if(size * 2 >= keys.length){
+                grow();
+                return getOrCreate(key);
+            }
+            keys[i] = key;
+            lists[i] = new IntList();
+            size++;
+            return lists[i];
+        }
+
+        private void grow(){
+            int[] oldKeys = keys;
+            IntList[] oldLists = lists;
+            keys = new int[oldKeys.length * 2];
+            lists = new IntList[oldKeys.length * 2];
+            int mask = keys.length - 1;
+            for(int j = 0; j < oldKeys.length; j++){
+                if(oldKeys[j] != 0){
+                    int i = mix(oldKeys[j]) & mask;
+                    while(keys[i] != 0){
+                        i = (i + 1) & mask;
+                    }
+                    keys[i] = oldKeys[j];
+                    lists[i] = oldLists[j];
+                }
+            }
+        }
+
+        private static int mix(int key){
+            int h = key * 0x9E3779B9;
+            return h ^ (h >>> 16);
+        }
+    }
+
+    private final boolean mIndexText;
+
+    //Guarded by this
+    private long[] mBlockSegment = new long[64];
+    private int[] mBlockOffset = new int[64];
+    private long[] mBlockMinTime = new long[64];
+    private long[] mBlockMaxTime = new long[64];
+    private int mBlocks;
+    private long mFirstSequence;
+    private long mNextSequence;
+    private final Map<String, IntList> mPeers = new HashMap<>();
+    private final TrigramTable mTrigrams = new TrigramTable();
+
+    MessageIndex(boolean indexText){
+        mIndexText = indexText;
+        Arrays.fill(mBlockSegment, -1);
+    }
+
+    @Override
+    public synchronized void onRecord(long segmentBase, int offset, long sequence, long timeMillis, boolean outgoing,
+                                      String address, ByteBuffer payload) {
+        int seq = (int) sequence;
+        int block = seq >>> BLOCK_SHIFT;
+        if(block >= mBlocks || mBlockSegment[block] < 0){
+            ensureBlocks(block + 1);
+            mBlockSegment[block] = segmentBase;
+            mBlockOffset[block] = offset;
+            mBlockMinTime[block] = timeMillis;
+            mBlockMaxTime[block] = timeMillis;
+        }else{
+            mBlockMinTime[block] = Math.min(mBlockMinTime[block], timeMillis);
+            mBlockMaxTime[block] = Math.max(mBlockMaxTime[block], timeMillis);
+        }
+        mNextSequence = sequence + 1;
+
+        IntList peer = mPeers.get(address);
+        if(peer == null){
+            peer = new IntList();
+            mPeers.put(address, peer);
+        }
+        peer.add(seq);
+
+        if(mIndexText){
+            byte[] bytes = payload.array();
+            int start = payload.arrayOffset() + payload.position();
+            int end = start + Math.min(payload.remaining(), MAX_INDEXED_TEXT_BYTES);
+            for(int i = start; i + 3 <= end; i++){
+                IntList list = mTrigrams.getOrCreate(trigram(bytes, i));
+                //A trigram repeated within one message is only posted once
+                if(list.last() != seq){
+                    list.add(seq);
+                }
+            }
+        }
+    }
+
+    @Override
+    public synchronized void onTruncated(long firstSequence) {
+        mFirstSequence = firstSequence;
+        int first = (int) firstSequence;
+        for(IntList list : mPeers.values()){
+            list.removeBelow(first);
+        }
+        for(IntList list : mTrigrams.lists){
+            if(list != null){
+                list.removeBelow(first);
+            }
+        }
+    }
+
+    synchronized long size(){
+        return mNextSequence - mFirstSequence;
+    }
+
+    /*
+     * Visit, oldest first, up to limit records from address (any peer if null) timestamped
+     * within [fromMillis, toMillis] whose payload contains text (ignoring ASCII case; any
+     * payload if null). Returns the number of records visited.
+     * */
+    int query(MessageLog log, String address, long fromMillis, long toMillis, String text, int limit,
+              MessageLog.RecordVisitor visitor) throws IOException {
+        byte[] needle = text == null ? null : lowerCase(text.getBytes(UTF_8));
+        int[] candidates;
+        long[] segments;
+        int[] offsets;
+        int[] blocks;
+        synchronized (this) {
+            List<IntList> lists = new ArrayList<>();
+            if(address != null){
+                IntList peer = mPeers.get(address);
+                if(peer == null){
+                    return 0;
+                }
+                lists.add(peer);
+            }
+            if(needle != null && mIndexText){
+                for(int i = 0; i + 3 <= needle.length; i++){
+                    IntList list = mTrigrams.get(trigram(needle, i));
+                    if(list == null){
+                        return 0;
+                    }
+                    lists.add(list);
+                }
+            }
+            candidates = lists.isEmpty() ? null : intersect(lists, (int) mFirstSequence);
+            blocks = matchingBlocks(candidates, fromMillis, toMillis);
+            segments = new long[blocks.length];
+            offsets = new int[blocks.length];
+            for(int i = 0; i < blocks.length; i++){
+                segments[i] = mBlockSegment[blocks[i]];
+                offsets[i] = mBlockOffset[blocks[i]];
+            }
+        }
+
+        Matcher matcher = new Matcher(candidates, address, fromMillis, toMillis, needle, limit, visitor);
+        MessageLog.Reader reader = log.newReader();
+        try {
+            for(int i = 0; i < blocks.length && matcher.mmCount < limit; i++){
+                long blockEnd = ((long) (blocks[i] + 1) << BLOCK_SHIFT) - 1;
+                reader.read(segments[i], offsets[i], blockEnd, matcher);
+            }
+        } finally {
+            reader.close();
+        }
+        return matcher.mmCount;
+    }
+
+    //Blocks, in order, that hold a candidate (or any record if candidates is null) and overlap the time range
+    private int[] matchingBlocks(int[] candidates, long fromMillis, long toMillis){
+        IntList blocks = new IntList();
+        int firstBlock = (int) (mFirstSequence >>> BLOCK_SHIFT);
+        if(candidates == null){
+            for(int block = firstBlock; block < mBlocks; block++){
+                if(overlaps(block, fromMillis, toMillis)){
+                    blocks.add(block);
+                }
+            }
+        }else{
+            for(int seq : candidates){
+                int block = seq >>> BLOCK_SHIFT;
+                if(block != blocks.last() && overlaps(block, fromMillis, toMillis)){
+                    blocks.add(block);
+                }
+            }
+        }
+        return Arrays.copyOf(blocks.values, blocks.size);
+    }
+
+    private boolean overlaps(int block, long fromMillis, long toMillis){
+        return mBlockSegment[block] >= 0 && mBlockMinTime[block] <= toMillis && mBlockMaxTime[block] >= fromMillis;
+    }
+
+    //Sequence numbers present in every list, walking the shortest one and binary searching the rest
+    private static int[] intersect(List<IntList> lists, int first){
+        IntList shortest = lists.get(0);
+        for(IntList list : lists){
+            if(list.size < shortest.size){
+                shortest = list;
+            }
+        }
+        int[] cursors = new int[lists.size()];
+        IntList result = new IntList();
+        outer:
+        for(int i = shortest.lowerBound(0, first); i < shortest.size; i++){
+            int value = shortest.values[i];
+            for(int j = 0; j < lists.size(); j++){
+                IntList list = lists.get(j);
+                if(list == shortest){
+                    continue;
+                }
+                cursors[j] = list.lowerBound(cursors[j], value);
+                if(cursors[j] == list.size){
+                    break outer;
+                }
+                if(list.values[cursors[j]] != value){
+                    continue outer;
+                }
+            }
+            result.add(value);
+        }
+        return Arrays.copyOf(result.values, result.size);
+    }
+
+    //Checks each record read back against the query, the index only narrows things down
+    private static final class Matcher implements MessageLog.RecordVisitor {
+        private final int[] mmCandidates;
+        private final String mmAddress;
+        private final long mmFrom;
+        private final long mmTo;
+        private final byte[] mmNeedle;
+        private final int mmLimit;
+        private final MessageLog.RecordVisitor mmVisitor;
+        private int mmCursor;
+        int mmCount;
+
+        Matcher(int[] candidates, String address, long from, long to, byte[] needle, int limit,
+                MessageLog.RecordVisitor visitor){
+            mmCandidates = candidates;
+            mmAddress = address;
+            mmFrom = from;
+            mmTo = to;
+            mmNeedle = needle;
+            mmLimit = limit;
+            mmVisitor = visitor;
+        }
+
+        @Override
+        public void onRecord(long sequence, long timeMillis, boolean outgoing, String address, ByteBuffer payload) {
+            if(mmCount >= mmLimit){
+                return;
+            }
+            if(mmCandidates != null){
+                while(mmCursor < mmCandidates.length && mmCandidates[mmCursor] < sequence){
+                    mmCursor++;
+                }
+                if(mmCursor == mmCandidates.length || mmCandidates[mmCursor] != sequence){
+                    return;
+                }
+            }
+            if(timeMillis < mmFrom || timeMillis > mmTo){
+                return;
+            }
+            if(mmAddress != null && !mmAddress.equals(address)){
+                return;
+            }
+            if(mmNeedle != null && !contains(payload, mmNeedle)){
+                return;
+            }
+            mmCount++;
+            mmVisitor.onRecord(sequence, timeMillis, outgoing, address, payload);
+        }
+    }
+
+    private void ensureBlocks(int blocks){
+        if(blocks > mBlockSegment.length){
+            int capacity = Math.max(blocks, mBlockSegment.length * 2);
+            int oldLength = mBlockSegment.length;
+            mBlockSegment = Arrays.copyOf(mBlockSegment, capacity);
+            mBlockOffset = Arrays.copyOf(mBlockOffset, capacity);
+            mBlockMinTime = Arrays.copyOf(mBlockMinTime, capacity);
+            mBlockMaxTime = Arrays.copyOf(mBlockMaxTime, capacity);
+            Arrays.fill(mBlockSegment, oldLength, capacity, -1);
+        }
+        mBlocks = Math.max(mBlocks, blocks);
+    }
+
+    private static int trigram(byte[] bytes, int offset){
+        return 1 << 24 | (lower(bytes[offset]) & 0xFF) << 16 | (lower(bytes[offset + 1]) & 0xFF) << 8
+                | (lower(bytes[offset + 2]) & 0xFF);
+    }
+
+    private static byte lower(byte b){
+        return b >= 'A' && b <= 'Z' ? (byte) (b + ('a' - 'A')) : b;
+    }
+
+    private static byte[] lowerCase(byte[] bytes){
+        for(int i = 0; i < bytes.length; i++){
+            bytes[i] = lower(bytes[i]);
+        }
+        return bytes;
+    }
+
+    private static boolean contains(ByteBuffer payload, byte[] needle){
+        byte[] bytes = payload.array();
+        int start = payload.arrayOffset() + payload.position();
+        int last = start + payload.remaining() - needle.length;
+        outer:
+        for(int i = start; i <= last; i++){
+            for(int j = 0; j < needle.length; j++){
+                if(lower(bytes[i + j]) != needle[j]){
+                    continue outer;
+                }
+            }
+            return true;
+        }
+        return false;
+    }
+}
@@ -0,0 +1,665 @@
+package com.example.bluetoothchat;
+
+import android.util.Log;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.zip.CRC32;
+
+/*
+ * Append-only store of every message sent or received, kept in a directory of segment files.
+ *
+ * Each record is [int length][int crc32][long sequence][long time][byte flags]
+ * [byte address length][address][payload], where length counts the bytes after the crc.
+ * A segment is named after the sequence number of its first record and is rolled once it
+ * reaches maxSegmentBytes; the oldest segments are deleted when the log goes over
+ * maxTotalBytes.
+ *
+ * append() only copies the record into a queue, so it is safe on an event loop or the main
+ * thread. A writer thread drains the queue in groups: everything pending goes out in one
+ * write and, if sync is on, one fsync. Replay maps segments read-only rather than streaming them.
+ * A torn record at the end of the newest segment (power loss mid-write) is cut off on open.
+ * */
+class MessageLog implements Closeable {
+
+    private static final String TAG = "MessageLog";
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final String SUFFIX = ".log";
+
+    static final int DEFAULT_MAX_SEGMENT_BYTES = 4 * 1024 * 1024;
+    static final long DEFAULT_MAX_TOTAL_BYTES = 64L * 1024 * 1024;
+    static final int DEFAULT_QUEUE_CAPACITY = 4096;
+
+    static final int FLAG_OUTGOING = 1;
+
+    //length and crc
+    private static final int PREFIX_BYTES = 8;
+    //sequence, time, flags, address length
+    private static final int FIXED_BYTES = 8 + 8 + 1 + 1;
+    private static final int WRITE_BUFFER_BYTES = 64 * 1024;
+
+    interface RecordVisitor {
+        //payload is only valid until this method returns. Called on the replaying thread
+        void onRecord(long sequence, long timeMillis, boolean outgoing, String address, ByteBuffer payload);
+    }
+
+    /*
+     * Told where every record lives, so it can build an index next to the log. Called for the
+     * records already on disk while the log opens, then on the writer thread for each record
+     * it writes. payload is only valid until onRecord returns.
+     * */
+    interface Indexer {
+        void onRecord(long segmentBase, int offset, long sequence, long timeMillis, boolean outgoing,
+                      String address, ByteBuffer payload);
+
+        //Retention deleted every record before firstSequence
+        void onTruncated(long firstSequence);
+    }
+
+    //Recycled through mFreeRecords, fields are only set by whoever took it off the free list
+    private static final class PendingRecord {
+        String address;
+        int flags;
+        long timeMillis;
+        PooledBuffer payload;
+    }
+
+    private final File mDirectory;
+    private final Indexer mIndexer;
+    private final int mMaxSegmentBytes;
+    private final long mMaxTotalBytes;
+    private final boolean mSync;
+    private final ByteBufferPool mPool;
+    private final MpscArrayQueue<PendingRecord> mQueue;
+    private final ArrayBlockingQueue<PendingRecord> mFreeRecords;
+    private final Thread mWriterThread;
+    private final AtomicLong mDropped = new AtomicLong();
+    private volatile boolean mWaiting;
+    private volatile boolean mClosed;
+
+    //Only touched on the writer thread once it has started
+    private final List<Long> mSegmentBases = new ArrayList<>();
+    private final CRC32 mCrc = new CRC32();
+    private ByteBuffer mWriteBuffer = ByteBuffer.allocate(WRITE_BUFFER_BYTES);
+    //Shows the indexer the payload just encoded in mWriteBuffer
+    private ByteBuffer mIndexView = ByteBuffer.wrap(mWriteBuffer.array());
+    //Most records come from a handful of peers, so the last address is only encoded once
+    private String mLastAddress;
+    private byte[] mLastAddressBytes;
+    private long mActiveBase;
+    private RandomAccessFile mActiveFile;
+    private FileChannel mActiveChannel;
+    private long mTotalBytes;
+    private volatile long mNextSequence;
+
+    MessageLog(File directory, ByteBufferPool pool) throws IOException {
+        this(directory, pool, null);
+    }
+
+    MessageLog(File directory, ByteBufferPool pool, Indexer indexer) throws IOException {
+        this(directory, pool, indexer, DEFAULT_MAX_SEGMENT_BYTES, DEFAULT_MAX_TOTAL_BYTES, true);
+    }
+
+    MessageLog(File directory, ByteBufferPool pool, Indexer indexer, int maxSegmentBytes, long maxTotalBytes,
+               boolean sync) throws IOException {
+        if(!directory.isDirectory() && !directory.mkdirs()){
+            throw new IOException("Could not create " + directory);
+        }
+        mDirectory = directory;
+        mIndexer = indexer;
+        mPool = pool;
+        mMaxSegmentBytes = maxSegmentBytes;
+        mMaxTotalBytes = maxTotalBytes;
+        mSync = sync;
+        mQueue = new MpscArrayQueue<>(DEFAULT_QUEUE_CAPACITY);
+        mFreeRecords = new ArrayBlockingQueue<>(mQueue.capacity());
+        recover();
+        mWriterThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writeLoop();
+            }
+        }, "MessageLog");
+        mWriterThread.setDaemon(true);
+        mWriterThread.start();
+    }
+
+    /*
+     * Queue a record for the log. Never blocks and never touches the disk. The payload is
+     * copied from its position to its limit, which are left as they were.
+     * Returns false if the log is closed or too far behind, in which case the record is lost.
+     * */
+    boolean append(String address, boolean outgoing, long timeMillis, ByteBuffer payload){
+        if(mClosed){
+            return false;
+        }
+        PooledBuffer copy = mPool.acquire(payload.remaining());
+        ByteBuffer buffer = copy.buffer();
+        int position = payload.position();
+        buffer.put(payload).flip();
+        payload.position(position);
+        PendingRecord record = mFreeRecords.poll();
+        if(record == null){
+            record = new PendingRecord();
+        }
+        record.address = address;
+        record.flags = outgoing ? FLAG_OUTGOING : 0;
+        record.timeMillis = timeMillis;
+        record.payload = copy;
+        if(!mQueue.offer(record)){
+            recycle(record);
+            mDropped.incrementAndGet();
+            Log.e(TAG, "append: Log queue full, dropping record for " + address);
+            return false;
+        }
+        if(mWaiting){
+            LockSupport.unpark(mWriterThread);
+        }
+        return true;
+    }
+
+    //Sequence number the next record written will get
+    long nextSequence(){
+        return mNextSequence;
+    }
+
+    //Records lost because the queue was full
+    long dropped(){
+        return mDropped.get();
+    }
+
+    /*
+     * Visit every record with a sequence number of at least fromSequence, oldest first.
+     * Records still queued are not included. Safe to call while appending.
+     * */
+    void replay(long fromSequence, RecordVisitor visitor) throws IOException {
+        List<Long> bases = listSegmentBases();
+        for(int i = 0; i < bases.size(); i++){
+            //Segments that end before fromSequence aren't even mapped
+            if(i + 1 < bases.size() && bases.get(i + 1) <= fromSequence){
+                continue;
+            }
+            replaySegment(bases.get(i), fromSequence, visitor);
+        }
+    }
+
+    //Visit the newest count records that have been written
+    void replayTail(int count, RecordVisitor visitor) throws IOException {
+        replay(Math.max(0, mNextSequence - count), visitor);
+    }
+
+    /*
+     * Reads records at positions given to an Indexer. It keeps the last segment it mapped, so
+     * jumping around within one segment is cheap. Use from one thread, and close() it.
+     * */
+    final class Reader implements Closeable {
+        private long mmBase = -1;
+        private MappedByteBuffer mmMap;
+
+        /*
+         * Visit records from the one at offset in segmentBase up to toSequence, carrying on
+         * into the following segment if the records run past the end of this one.
+         * Returns the sequence number of the last record visited, or -1 if none was.
+         * */
+        long read(long segmentBase, int offset, long toSequence, RecordVisitor visitor) throws IOException {
+            final long[] last = {-1};
+            RecordVisitor tracking = trackLast(visitor, last);
+            long base = segmentBase;
+            int position = offset;
+            while(true){
+                if(!map(base)){
+                    return last[0];
+                }
+                mmMap.position(position);
+                long lastBefore = last[0];
+                visitRecords(mmMap, Long.MIN_VALUE, toSequence, adapt(tracking), base);
+                if(last[0] >= toSequence || last[0] == lastBefore || mmMap.hasRemaining()){
+                    //Done, nothing more was found, or the records stopped mid-segment
+                    return last[0];
+                }
+                base = last[0] + 1;
+                position = 0;
+            }
+        }
+
+        private boolean map(long base) throws IOException {
+            if(base == mmBase){
+                return true;
+            }
+            mmBase = -1;
+            mmMap = null;
+            RandomAccessFile raf;
+            try {
+                raf = new RandomAccessFile(segmentFile(base), "r");
+            } catch (IOException e) {
+                //Never written or deleted by retention
+                return false;
+            }
+            try {
+                long size = raf.length();
+                if(size == 0){
+                    return false;
+                }
+                mmMap = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, size);
+                mmBase = base;
+                return true;
+            } finally {
+                raf.close();
+            }
+        }
+
+        @Override
+        public void close() {
+            mmMap = null;
+            mmBase = -1;
+        }
+    }
+
+    Reader newReader(){
+        return new Reader();
+    }
+
+    //Write out everything queued and close the files
+    @Override
+    public void close() throws IOException {
+        if(mClosed){
+            return;
+        }
+        mClosed = true;
+        LockSupport.unpark(mWriterThread);
+        try {
+            mWriterThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void writeLoop(){
+        try {
+            while(true){
+                boolean closed = mClosed;
+                if(!writeGroup()){
+                    if(closed){
+                        break;
+                    }
+                    waitForRecords();
+                }
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "writeLoop: Could not write log " + e.getMessage());
+            mClosed = true;
+        } finally {
+            //Whatever is left in the queue can't be written any more
+            PendingRecord record;
+            while((record = mQueue.poll()) != null){
+                recycle(record);
+            }
+            closeActive();
+        }
+    }
+
+    private void waitForRecords(){
+        mWaiting = true;
+        if(mQueue.isEmpty() && !mClosed){
+            LockSupport.park(this);
+        }
+        mWaiting = false;
+    }
+
+    //Write everything queued as one group. Returns false if there was nothing to write
+    private boolean writeGroup() throws IOException {
+        PendingRecord record = mQueue.poll();
+        if(record == null){
+            return false;
+        }
+        while(record != null){
+            ByteBuffer payload = record.payload.buffer();
+            byte[] address = encodeAddress(record.address);
+            int addressLength = Math.min(address.length, 255);
+            int bodyLength = FIXED_BYTES + addressLength + payload.remaining();
+            int recordLength = PREFIX_BYTES + bodyLength;
+
+            if(mActiveChannel.position() + mWriteBuffer.position() + recordLength > mMaxSegmentBytes
+                    && mActiveChannel.position() + mWriteBuffer.position() > 0){
+                flushWriteBuffer();
+                rollSegment();
+            }
+            if(mWriteBuffer.remaining() < recordLength){
+                flushWriteBuffer();
+                if(mWriteBuffer.capacity() < recordLength){
+                    mWriteBuffer = ByteBuffer.allocate(recordLength);
+                }
+            }
+            int start = mWriteBuffer.position();
+            long offset = mActiveChannel.position() + start;
+            mWriteBuffer.putInt(bodyLength);
+            mWriteBuffer.putInt(0);
+            mWriteBuffer.putLong(mNextSequence);
+            mWriteBuffer.putLong(record.timeMillis);
+            mWriteBuffer.put((byte) record.flags);
+            mWriteBuffer.put((byte) addressLength);
+            mWriteBuffer.put(address, 0, addressLength);
+            int payloadStart = mWriteBuffer.position();
+            mWriteBuffer.put(payload);
+            mCrc.reset();
+            mCrc.update(mWriteBuffer.array(), start + PREFIX_BYTES, bodyLength);
+            mWriteBuffer.putInt(start + 4, (int) mCrc.getValue());
+            if(mIndexer != null){
+                if(mIndexView.array() != mWriteBuffer.array()){
+                    mIndexView = ByteBuffer.wrap(mWriteBuffer.array());
+                }
+                mIndexView.limit(mWriteBuffer.position()).position(payloadStart);
+                mIndexer.onRecord(mActiveBase, (int) offset, mNextSequence, record.timeMillis,
+                        (record.flags & FLAG_OUTGOING) != 0, record.address, mIndexView);
+            }
+            mNextSequence++;
+            recycle(record);
+
+            record = mQueue.poll();
+        }
+        flushWriteBuffer();
+        if(mSync){
+            mActiveChannel.force(false);
+        }
+        return true;
+    }
+
+    private byte[] encodeAddress(String address){
+        if(!address.equals(mLastAddress)){
+            mLastAddressBytes = address.getBytes(UTF_8);
+            mLastAddress = address;
+        }
+        return mLastAddressBytes;
+    }
+
+    private void recycle(PendingRecord record){
+        record.payload.release();
+        record.payload = null;
+        record.address = null;
+        mFreeRecords.offer(record);
+    }
+
+    private void flushWriteBuffer() throws IOException {
+        mWriteBuffer.flip();
+        mTotalBytes += mWriteBuffer.remaining();
+        while(mWriteBuffer.hasRemaining()){
+            mActiveChannel.write(mWriteBuffer);
+        }
+        mWriteBuffer.clear();
+    }
+
+    private void rollSegment() throws IOException {
+        if(mSync){
+            mActiveChannel.force(false);
+        }
+        closeActive();
+        openActive(mNextSequence);
+        applyRetention();
+    }
+
+    //Delete the oldest segments until the log fits in mMaxTotalBytes, never the active one
+    private void applyRetention(){
+        boolean deleted = false;
+        while(mTotalBytes > mMaxTotalBytes && mSegmentBases.size() > 1){
+            File oldest = segmentFile(mSegmentBases.remove(0));
+            long length = oldest.length();
+            if(!oldest.delete()){
+                Log.e(TAG, "applyRetention: Could not delete " + oldest);
+                return;
+            }
+            mTotalBytes -= length;
+            deleted = true;
+            Log.d(TAG, "applyRetention: Deleted " + oldest.getName());
+        }
+        if(deleted && mIndexer != null){
+            mIndexer.onTruncated(mSegmentBases.get(0));
+        }
+    }
+
+    private void openActive(long base) throws IOException {
+        mActiveFile = new RandomAccessFile(segmentFile(base), "rw");
+        mActiveChannel = mActiveFile.getChannel();
+        mActiveChannel.position(mActiveChannel.size());
+        mActiveBase = base;
+        if(mSegmentBases.isEmpty() || mSegmentBases.get(mSegmentBases.size() - 1) != base){
+            mSegmentBases.add(base);
+        }
+    }
+
+    private void closeActive(){
+        if(mActiveFile == null){
+            return;
+        }
+        try {
+            mActiveFile.close();
+        } catch (IOException e) {
+            Log.e(TAG, "closeActive: " + e.getMessage());
+        }
+        mActiveFile = null;
+        mActiveChannel = null;
+    }
+
+    /*
+     * Find the segments, the next sequence number and cut off a torn tail, and show the
+     * indexer every record on disk. Runs before the writer starts
+     * */
+    private void recover() throws IOException {
+        mSegmentBases.addAll(listSegmentBases());
+        for(long base : mSegmentBases){
+            mTotalBytes += segmentFile(base).length();
+        }
+        if(mSegmentBases.isEmpty()){
+            mNextSequence = 0;
+            openActive(0);
+            return;
+        }
+        if(mIndexer != null){
+            mIndexer.onTruncated(mSegmentBases.get(0));
+            for(int i = 0; i < mSegmentBases.size() - 1; i++){
+                replaySegment(mSegmentBases.get(i), mIndexer);
+            }
+        }
+        long base = mSegmentBases.get(mSegmentBases.size() - 1);
+        final long[] last = {base - 1};
+        RecordVisitor tracking = trackLast(null, last);
+        long validBytes = replaySegment(base, mIndexer != null ? both(mIndexer, tracking) : adapt(tracking));
+        mNextSequence = last[0] + 1;
+        File file = segmentFile(base);
+        if(validBytes < file.length()){
+            Log.e(TAG, "recover: Dropping " + (file.length() - validBytes) + " torn bytes from " + file.getName());
+            mTotalBytes -= file.length() - validBytes;
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                raf.getChannel().truncate(validBytes);
+            } finally {
+                raf.close();
+            }
+        }
+        openActive(base);
+    }
+
+    private long replaySegment(long base, long fromSequence, RecordVisitor visitor) throws IOException {
+        return replaySegment(base, fromSequence, adapt(visitor));
+    }
+
+    private long replaySegment(long base, Indexer indexer) throws IOException {
+        return replaySegment(base, Long.MIN_VALUE, indexer);
+    }
+
+    //Returns the number of bytes of valid records in the segment
+    private long replaySegment(long base, long fromSequence, Indexer indexer) throws IOException {
+        File file = segmentFile(base);
+        RandomAccessFile raf;
+        try {
+            raf = new RandomAccessFile(file, "r");
+        } catch (IOException e) {
+            //Deleted by retention since it was listed
+            return 0;
+        }
+        try {
+            long size = raf.length();
+            if(size == 0){
+                return 0;
+            }
+            MappedByteBuffer map = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, size);
+            return visitRecords(map, fromSequence, Long.MAX_VALUE, indexer, base);
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static RecordVisitor trackLast(final RecordVisitor visitor, final long[] last){
+        return new RecordVisitor() {
+            @Override
+            public void onRecord(long sequence, long timeMillis, boolean outgoing, String address, ByteBuffer payload) {
+                last[0] = sequence;
+                if(visitor != null){
+                    visitor.onRecord(sequence, timeMillis, outgoing, address, payload);
+                }
+            }
+        };
+    }
+
+    private static Indexer adapt(final RecordVisitor visitor){
+        return new Indexer() {
+            @Override
+            public void onRecord(long segmentBase, int offset, long sequence, long timeMillis, boolean outgoing,
+                                 String address, ByteBuffer payload) {
+                visitor.onRecord(sequence, timeMillis, outgoing, address, payload);
+            }
+
+            @Override
+            public void onTruncated(long firstSequence) {
+            }
+        };
+    }
+
+    private static Indexer both(final Indexer indexer, final RecordVisitor visitor){
+        return new Indexer() {
+            @Override
+            public void onRecord(long segmentBase, int offset, long sequence, long timeMillis, boolean outgoing,
+                                 String address, ByteBuffer payload) {
+                int position = payload.position();
+                indexer.onRecord(segmentBase, offset, sequence, timeMillis, outgoing, address, payload);
+                payload.position(position);
+                visitor.onRecord(sequence, timeMillis, outgoing, address, payload);
+            }
+
+            @Override
+            public void onTruncated(long firstSequence) {
+                indexer.onTruncated(firstSequence);
+            }
+        };
+    }
+
+    /*
+     * Visit the records from map's position on, stopping after toSequence or at the first bad
+     * record. Leaves map positioned after the last record read and returns that position.
+     * */
+    private static long visitRecords(ByteBuffer map, long fromSequence, long toSequence, Indexer indexer,
+                                     long segmentBase){
+        CRC32 crc = new CRC32();
+        //The body is copied out of the mapping once to check its crc, CRC32.update(ByteBuffer) needs API 26
+        byte[] scratch = new byte[256];
+        ByteBuffer body = ByteBuffer.wrap(scratch);
+        String lastAddress = null;
+        byte[] lastAddressBytes = new byte[0];
+        while(map.remaining() >= PREFIX_BYTES + FIXED_BYTES){
+            int start = map.position();
+            int bodyLength = map.getInt();
+            int expectedCrc = map.getInt();
+            if(bodyLength < FIXED_BYTES || bodyLength > map.remaining()){
+                map.position(start);
+                break;
+            }
+            if(scratch.length < bodyLength){
+                scratch = new byte[Math.max(bodyLength, scratch.length * 2)];
+                body = ByteBuffer.wrap(scratch);
+            }
+            map.get(scratch, 0, bodyLength);
+            crc.reset();
+            crc.update(scratch, 0, bodyLength);
+            if((int) crc.getValue() != expectedCrc){
+                map.position(start);
+                break;
+            }
+            body.limit(bodyLength).position(0);
+            long sequence = body.getLong();
+            long timeMillis = body.getLong();
+            int flags = body.get();
+            int addressLength = body.get() & 0xFF;
+            if(addressLength > body.remaining()){
+                map.position(start);
+                break;
+            }
+            if(sequence > toSequence){
+                map.position(start);
+                break;
+            }
+            if(sequence < fromSequence){
+                continue;
+            }
+            //Consecutive records usually come from the same peer, don't decode its address every time
+            if(lastAddress == null || !regionEquals(scratch, body.position(), lastAddressBytes, addressLength)){
+                lastAddressBytes = Arrays.copyOfRange(scratch, body.position(), body.position() + addressLength);
+                lastAddress = new String(lastAddressBytes, UTF_8);
+            }
+            body.position(body.position() + addressLength);
+            indexer.onRecord(segmentBase, start, sequence, timeMillis, (flags & FLAG_OUTGOING) != 0, lastAddress, body);
+        }
+        return map.position();
+    }
+
+    private static boolean regionEquals(byte[] buffer, int offset, byte[] other, int length){
+        if(other.length != length){
+            return false;
+        }
+        for(int i = 0; i < length; i++){
+            if(buffer[offset + i] != other[i]){
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private List<Long> listSegmentBases(){
+        String[] names = mDirectory.list(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.endsWith(SUFFIX);
+            }
+        });
+        List<Long> bases = new ArrayList<>();
+        if(names == null){
+            return bases;
+        }
+        for(String name : names){
+            try {
+                bases.add(Long.parseLong(name.substring(0, name.length() - SUFFIX.length())));
+            } catch (NumberFormatException e) {
+                Log.e(TAG, "listSegmentBases: Ignoring " + name);
+            }
+        }
+        Collections.sort(bases);
+        return bases;
+    }
+
+    private File segmentFile(long base){
+        return new File(mDirectory, String.format(Locale.US, "%020d%s", base, SUFFIX));
+    }
+}
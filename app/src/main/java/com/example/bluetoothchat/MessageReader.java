@@ -0,0 +1,201 @@
+package com.example.bluetoothchat;
+
+import java.nio.ByteBuffer;
+
+/*
+ * Reads a payload written by MessageWriter in place, heap or direct, without copying it.
+ * Decoding is lazy: wrap() parses nothing, the first field asked for walks the keys once and
+ * records where every field's value starts, and from then on each accessor jumps straight to
+ * its field and decodes only that value. Text is only turned into a String when asked for, so
+ * a subscriber that looks at one number, or a relay that forwards the frame untouched, never
+ * pays for the rest.
+ * Fields numbered above MAX_FIELD and wire types nobody asks for are skipped. A payload that
+ * can't be walked throws IllegalArgumentException from the accessor that ran into it.
+ * Reuse one reader per thread; the payload must stay put while it is being read.
+ * */
+final class MessageReader {
+
+    static final int MAX_FIELD = 31;
+
+    private static final int ABSENT = -1;
+
+    private ByteBuffer mBuffer;
+    private int mStart;
+    private int mLimit;
+    private boolean mIndexed;
+    //Per field number: absolute index of the value, its wire type and, for WIRE_BYTES, its length
+    private final int[] mOffsets = new int[MAX_FIELD + 1];
+    private final int[] mWireTypes = new int[MAX_FIELD + 1];
+    private final int[] mLengths = new int[MAX_FIELD + 1];
+    //Scratch result of readVarint()
+    private int mVarintEnd;
+
+    //Read payload from its position to its limit, which are left as they were
+    MessageReader wrap(ByteBuffer payload){
+        mBuffer = payload;
+        mStart = payload.position();
+        mLimit = payload.limit();
+        mIndexed = false;
+        return this;
+    }
+
+    boolean has(int field){
+        return offset(field, -1) != ABSENT;
+    }
+
+    long varint(int field, long defaultValue){
+        int offset = offset(field, MessageWriter.WIRE_VARINT);
+        return offset == ABSENT ? defaultValue : readVarint(offset);
+    }
+
+    long signedVarint(int field, long defaultValue){
+        int offset = offset(field, MessageWriter.WIRE_VARINT);
+        if(offset == ABSENT){
+            return defaultValue;
+        }
+        long value = readVarint(offset);
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    int fixed32(int field, int defaultValue){
+        int offset = offset(field, MessageWriter.WIRE_FIXED32);
+        return offset == ABSENT ? defaultValue : readFixed32(offset);
+    }
+
+    long fixed64(int field, long defaultValue){
+        int offset = offset(field, MessageWriter.WIRE_FIXED64);
+        if(offset == ABSENT){
+            return defaultValue;
+        }
+        long value = 0;
+        for(int i = 0; i < 8; i++){
+            value |= (mBuffer.get(offset + i) & 0xFFL) << (8 * i);
+        }
+        return value;
+    }
+
+    float float32(int field, float defaultValue){
+        int offset = offset(field, MessageWriter.WIRE_FIXED32);
+        return offset == ABSENT ? defaultValue : Float.intBitsToFloat(readFixed32(offset));
+    }
+
+    //Null if the field is absent
+    String string(int field){
+        int offset = offset(field, MessageWriter.WIRE_BYTES);
+        return offset == ABSENT ? null : Utf8.decode(mBuffer, offset, mLengths[field]);
+    }
+
+    //Bytes in a length-delimited field, -1 if it is absent
+    int length(int field){
+        return offset(field, MessageWriter.WIRE_BYTES) == ABSENT ? -1 : mLengths[field];
+    }
+
+    //Absolute index into the wrapped buffer where a length-delimited field's bytes start, -1 if absent
+    int bytesOffset(int field){
+        return offset(field, MessageWriter.WIRE_BYTES);
+    }
+
+    //Number of values in a field written with MessageWriter.packedFloats(), 0 if it is absent
+    int packedFloatCount(int field){
+        int length = length(field);
+        return length < 0 ? 0 : length / 4;
+    }
+
+    float packedFloat(int field, int index){
+        if(index < 0 || index >= packedFloatCount(field)){
+            throw new IndexOutOfBoundsException("No value " + index + " in field " + field);
+        }
+        return Float.intBitsToFloat(readFixed32(mOffsets[field] + 4 * index));
+    }
+
+    //ABSENT, or where field's value starts after checking it has wireType (-1 accepts any)
+    private int offset(int field, int wireType){
+        if(field <= 0 || field > MAX_FIELD){
+            throw new IllegalArgumentException("Field number out of range: " + field);
+        }
+        if(!mIndexed){
+            index();
+        }
+        int offset = mOffsets[field];
+        if(offset != ABSENT && wireType >= 0 && mWireTypes[field] != wireType){
+            throw new IllegalArgumentException("Field " + field + " has wire type " + mWireTypes[field]
+                    + ", expected " + wireType);
+        }
+        return offset;
+    }
+
+    //Walk every key once. A field that appears twice keeps its last value
+    private void index(){
+        for(int i = 0; i <= MAX_FIELD; i++){
+            mOffsets[i] = ABSENT;
+        }
+        int position = mStart;
+        while(position < mLimit){
+            long key = readVarint(position);
+            position = mVarintEnd;
+            long field = key >>> 3;
+            int wireType = (int) (key & 7);
+            if(field == 0){
+                throw new IllegalArgumentException("Malformed message: field number 0");
+            }
+            int value = position;
+            int length = 0;
+            switch(wireType){
+                case MessageWriter.WIRE_VARINT:
+                    readVarint(position);
+                    position = mVarintEnd;
+                    break;
+                case MessageWriter.WIRE_FIXED64:
+                    position += 8;
+                    break;
+                case MessageWriter.WIRE_FIXED32:
+                    position += 4;
+                    break;
+                case MessageWriter.WIRE_BYTES:
+                    long declared = readVarint(position);
+                    if(declared > mLimit - mVarintEnd){
+                        throw new IllegalArgumentException("Malformed message: field " + field + " runs past the end");
+                    }
+                    length = (int) declared;
+                    value = mVarintEnd;
+                    position = value + length;
+                    break;
+                default:
+                    throw new IllegalArgumentException("Malformed message: wire type " + wireType);
+            }
+            if(position > mLimit){
+                throw new IllegalArgumentException("Malformed message: field " + field + " runs past the end");
+            }
+            if(field <= MAX_FIELD){
+                mOffsets[(int) field] = value;
+                mWireTypes[(int) field] = wireType;
+                mLengths[(int) field] = length;
+            }
+        }
+        mIndexed = true;
+    }
+
+    //Varint starting at the absolute index position, sets mVarintEnd to just past it
+    private long readVarint(int position){
+        long value = 0;
+        for(int shift = 0; shift < 64; shift += 7){
+            if(position >= mLimit){
+                throw new IllegalArgumentException("Malformed message: truncated varint");
+            }
+            int b = mBuffer.get(position++);
+            value |= (long) (b & 0x7F) << shift;
+            if((b & 0x80) == 0){
+                mVarintEnd = position;
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("Malformed message: varint too long");
+    }
+
+    private int readFixed32(int offset){
+        return (mBuffer.get(offset) & 0xFF)
+                | (mBuffer.get(offset + 1) & 0xFF) << 8
+                | (mBuffer.get(offset + 2) & 0xFF) << 16
+                | (mBuffer.get(offset + 3) & 0xFF) << 24;
+    }
+}
@@ -0,0 +1,17 @@
+package com.example.bluetoothchat;
+
+import java.nio.ByteBuffer;
+
+/*
+ * In-process consumer of incoming frames, registered with a MessageBus for one frame type.
+ * Called on the peer's event loop thread, so it must be quick and must not block.
+ * */
+interface MessageSubscriber {
+
+    /*
+     * payload is a view straight onto the receive buffer, between its position and limit.
+     * It is only valid until this method returns and must not be modified; copy it (into a
+     * ByteBufferPool buffer) to keep it.
+     * */
+    void onMessage(String address, int type, ByteBuffer payload);
+}
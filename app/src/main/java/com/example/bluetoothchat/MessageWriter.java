@@ -0,0 +1,142 @@
+package com.example.bluetoothchat;
+
+/*
+ * Builds the payload of a typed message (see Messages). A payload is a run of fields:
+ *
+ *   [key : varint, field number << 3 | wire type][value]
+ *
+ * where the value is a varint, 4 or 8 little-endian bytes, or a varint length followed by that
+ * many bytes (UTF-8 text, raw bytes, packed numbers). Fields can come in any order and a reader
+ * skips the ones it doesn't know, so either end can add fields without breaking the other.
+ * A writer is reused: reset() it, add fields, then take the payload with toByteArray().
+ * */
+final class MessageWriter {
+
+    static final int WIRE_VARINT = 0;
+    static final int WIRE_FIXED64 = 1;
+    static final int WIRE_BYTES = 2;
+    static final int WIRE_FIXED32 = 5;
+
+    private byte[] mBuffer;
+    private int mPosition;
+
+    MessageWriter(){
+        this(64);
+    }
+
+    MessageWriter(int initialCapacity){
+        mBuffer = new byte[initialCapacity];
+    }
+
+    MessageWriter reset(){
+        mPosition = 0;
+        return this;
+    }
+
+    //Unsigned varint, for ids, counts and anything else that is never negative
+    MessageWriter varint(int field, long value){
+        key(field, WIRE_VARINT);
+        putVarint(value);
+        return this;
+    }
+
+    //Zigzag varint, small negative values stay small
+    MessageWriter signedVarint(int field, long value){
+        return varint(field, (value << 1) ^ (value >> 63));
+    }
+
+    MessageWriter fixed32(int field, int value){
+        key(field, WIRE_FIXED32);
+        putFixed32(value);
+        return this;
+    }
+
+    MessageWriter fixed64(int field, long value){
+        key(field, WIRE_FIXED64);
+        ensure(8);
+        for(int i = 0; i < 8; i++){
+            mBuffer[mPosition++] = (byte) (value >>> (8 * i));
+        }
+        return this;
+    }
+
+    MessageWriter float32(int field, float value){
+        return fixed32(field, Float.floatToIntBits(value));
+    }
+
+    //A null value writes no field at all
+    MessageWriter string(int field, CharSequence value){
+        if(value == null){
+            return this;
+        }
+        int length = Utf8.encodedLength(value);
+        key(field, WIRE_BYTES);
+        putVarint(length);
+        ensure(length);
+        mPosition = Utf8.encode(value, mBuffer, mPosition);
+        return this;
+    }
+
+    MessageWriter bytes(int field, byte[] value, int offset, int length){
+        key(field, WIRE_BYTES);
+        putVarint(length);
+        ensure(length);
+        System.arraycopy(value, offset, mBuffer, mPosition, length);
+        mPosition += length;
+        return this;
+    }
+
+    //count floats as one field of 4 bytes each, so a sample of many values costs one key
+    MessageWriter packedFloats(int field, float[] values, int offset, int count){
+        key(field, WIRE_BYTES);
+        putVarint(4L * count);
+        ensure(4 * count);
+        for(int i = 0; i < count; i++){
+            putFixed32(Float.floatToIntBits(values[offset + i]));
+        }
+        return this;
+    }
+
+    int size(){
+        return mPosition;
+    }
+
+    //The payload so far, in a new array the caller can hand to a writer queue
+    byte[] toByteArray(){
+        byte[] payload = new byte[mPosition];
+        System.arraycopy(mBuffer, 0, payload, 0, mPosition);
+        return payload;
+    }
+
+    private void key(int field, int wireType){
+        if(field <= 0 || field > MessageReader.MAX_FIELD){
+            throw new IllegalArgumentException("Field number out of range: " + field);
+        }
+        putVarint((field << 3) | wireType);
+    }
+
+    private void putVarint(long value){
+        ensure(10);
+        while((value & ~0x7FL) != 0){
+            mBuffer[mPosition++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        mBuffer[mPosition++] = (byte) value;
+    }
+
+    private void putFixed32(int value){
+        ensure(4);
+        mBuffer[mPosition++] = (byte) value;
+        mBuffer[mPosition++] = (byte) (value >>> 8);
+        mBuffer[mPosition++] = (byte) (value >>> 16);
+        mBuffer[mPosition++] = (byte) (value >>> 24);
+    }
+
+    private void ensure(int bytes){
+        if(mBuffer.length - mPosition < bytes){
+            byte[] grown = new byte[Math.max(mBuffer.length * 2, mPosition + bytes)];
+            System.arraycopy(mBuffer, 0, grown, 0, mPosition);
+            mBuffer = grown;
+        }
+    }
+}
@@ -0,0 +1,146 @@
+package com.example.bluetoothchat;
+
+import java.nio.ByteBuffer;
+
+/*
+ * The typed messages the app exchanges, one per application frame type. Each has static
+ * encode methods and a reusable view that reads a received payload in place through a
+ * MessageReader, decoding a field only when its accessor is called.
+ * Chat text is the exception: its payload is the bare UTF-8 text, which is what a serial
+ * terminal or an HC-06 sketch sends anyway.
+ *
+ * Field numbers are the schema. Never reuse or renumber one; add new fields with new numbers
+ * and peers that don't know them will skip them.
+ * */
+final class Messages {
+
+    private Messages(){
+    }
+
+    //TYPE_TEXT
+    static final class Text {
+        private Text(){
+        }
+
+        static byte[] encode(CharSequence text){
+            return Utf8.encode(text);
+        }
+
+        //The text in payload, from its position to its limit, which are left as they were
+        static String decode(ByteBuffer payload){
+            return Utf8.decode(payload);
+        }
+    }
+
+    //TYPE_COMMAND: ask the device to do something, answered by a CommandAck with the same id
+    static final class Command {
+        static final int FIELD_ID = 1;
+        static final int FIELD_NAME = 2;
+        static final int FIELD_ARGUMENT = 3;
+
+        private final MessageReader mReader = new MessageReader();
+
+        static byte[] encode(MessageWriter writer, long id, String name, String argument){
+            return writer.reset()
+                    .varint(FIELD_ID, id)
+                    .string(FIELD_NAME, name)
+                    .string(FIELD_ARGUMENT, argument)
+                    .toByteArray();
+        }
+
+        Command wrap(ByteBuffer payload){
+            mReader.wrap(payload);
+            return this;
+        }
+
+        long id(){
+            return mReader.varint(FIELD_ID, 0);
+        }
+
+        String name(){
+            return mReader.string(FIELD_NAME);
+        }
+
+        //Null if the command takes none
+        String argument(){
+            return mReader.string(FIELD_ARGUMENT);
+        }
+    }
+
+    //TYPE_COMMAND_ACK
+    static final class CommandAck {
+        static final int FIELD_COMMAND_ID = 1;
+        static final int FIELD_STATUS = 2;
+        static final int FIELD_DETAIL = 3;
+
+        static final int STATUS_OK = 0;
+        static final int STATUS_UNKNOWN_COMMAND = 1;
+        static final int STATUS_FAILED = 2;
+
+        private final MessageReader mReader = new MessageReader();
+
+        static byte[] encode(MessageWriter writer, long commandId, int status, String detail){
+            return writer.reset()
+                    .varint(FIELD_COMMAND_ID, commandId)
+                    .varint(FIELD_STATUS, status)
+                    .string(FIELD_DETAIL, detail)
+                    .toByteArray();
+        }
+
+        CommandAck wrap(ByteBuffer payload){
+            mReader.wrap(payload);
+            return this;
+        }
+
+        long commandId(){
+            return mReader.varint(FIELD_COMMAND_ID, 0);
+        }
+
+        int status(){
+            return (int) mReader.varint(FIELD_STATUS, STATUS_OK);
+        }
+
+        //Null unless the device had something to say
+        String detail(){
+            return mReader.string(FIELD_DETAIL);
+        }
+    }
+
+    //TYPE_SENSOR_SAMPLE: one or more readings of a sensor taken at the same time
+    static final class SensorSample {
+        static final int FIELD_SENSOR = 1;
+        static final int FIELD_TIME_MILLIS = 2;
+        static final int FIELD_VALUES = 3;
+
+        private final MessageReader mReader = new MessageReader();
+
+        static byte[] encode(MessageWriter writer, int sensor, long timeMillis, float[] values, int count){
+            return writer.reset()
+                    .varint(FIELD_SENSOR, sensor)
+                    .fixed64(FIELD_TIME_MILLIS, timeMillis)
+                    .packedFloats(FIELD_VALUES, values, 0, count)
+                    .toByteArray();
+        }
+
+        SensorSample wrap(ByteBuffer payload){
+            mReader.wrap(payload);
+            return this;
+        }
+
+        int sensor(){
+            return (int) mReader.varint(FIELD_SENSOR, 0);
+        }
+
+        long timeMillis(){
+            return mReader.fixed64(FIELD_TIME_MILLIS, 0);
+        }
+
+        int valueCount(){
+            return mReader.packedFloatCount(FIELD_VALUES);
+        }
+
+        float value(int index){
+            return mReader.packedFloat(FIELD_VALUES, index);
+        }
+    }
+}
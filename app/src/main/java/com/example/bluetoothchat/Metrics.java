@@ -0,0 +1,259 @@
+package com.example.bluetoothchat;
+
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/*
+ * Counters, gauges and histograms for the connection layers, readable from any thread.
+ *
+ * Recording is an atomic add or two, with no lock and no allocation, so the engine can count
+ * every frame and every write. Metrics are looked up by name once (per peer ones once per
+ * address) and the object is kept by whoever records into it; the lookup itself isn't meant
+ * for the hot path. snapshot() copies everything out for the debug overlay and MetricsReporter.
+ *
+ * Names are dotted and end in their unit where there is one: "write.nanos", "read.bytes".
+ * Per peer metrics are named by peer(address, name).
+ * */
+final class Metrics {
+
+    static final class Counter {
+        private final AtomicLong mValue = new AtomicLong();
+
+        void increment(){
+            mValue.incrementAndGet();
+        }
+
+        void add(long delta){
+            mValue.addAndGet(delta);
+        }
+
+        long get(){
+            return mValue.get();
+        }
+    }
+
+    //Sampled when a snapshot is taken, must be safe to call from any thread
+    interface Gauge {
+        long value();
+    }
+
+    /*
+     * Distribution of non-negative values, bucketed the way HdrHistogram does it: exact below
+     * 2^SUB_BUCKET_BITS, then each power of two split into 2^(SUB_BUCKET_BITS - 1) linear steps,
+     * so any recorded value is known to within about 3%. 1888 buckets cover every long.
+     * */
+    static final class Histogram {
+        private static final int SUB_BUCKET_BITS = 6;
+        private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+        private static final int HALF = SUB_BUCKETS / 2;
+        private static final int BUCKETS = SUB_BUCKETS + (63 - SUB_BUCKET_BITS) * HALF;
+
+        private final AtomicLongArray mCounts = new AtomicLongArray(BUCKETS);
+        private final AtomicLong mSum = new AtomicLong();
+        private final AtomicLong mMax = new AtomicLong();
+        private final AtomicLong mMin = new AtomicLong(Long.MAX_VALUE);
+
+        void record(long value){
+            if(value < 0){
+                value = 0;
+            }
+            mCounts.incrementAndGet(index(value));
+            mSum.addAndGet(value);
+            long max;
+            while(value > (max = mMax.get()) && !mMax.compareAndSet(max, value)){
+                //Lost a race with a bigger value, look again
+            }
+            long min;
+            while(value < (min = mMin.get()) && !mMin.compareAndSet(min, value)){
+                //Lost a race with a smaller value, look again
+            }
+        }
+
+        static int index(long value){
+            if(value < SUB_BUCKETS){
+                return (int) value;
+            }
+            int shift = 63 - Long.numberOfLeadingZeros(value) - (SUB_BUCKET_BITS - 1);
+            return SUB_BUCKETS + (shift - 1) * HALF + (int) (value >>> shift) - HALF;
+        }
+
+        //Largest value that lands in bucket index
+        static long highestValue(int index){
+            if(index < SUB_BUCKETS){
+                return index;
+            }
+            int shift = (index - SUB_BUCKETS) / HALF + 1;
+            long top = (index - SUB_BUCKETS) % HALF + HALF;
+            return ((top + 1) << shift) - 1;
+        }
+
+        HistogramSnapshot snapshot(){
+            long[] counts = new long[BUCKETS];
+            long count = 0;
+            for(int i = 0; i < BUCKETS; i++){
+                counts[i] = mCounts.get(i);
+                count += counts[i];
+            }
+            return new HistogramSnapshot(counts, count, mSum.get(), count == 0 ? 0 : mMin.get(), mMax.get());
+        }
+    }
+
+    static final class HistogramSnapshot {
+        private final long[] mCounts;
+        final long count;
+        final long sum;
+        final long min;
+        final long max;
+
+        private HistogramSnapshot(long[] counts, long count, long sum, long min, long max){
+            mCounts = counts;
+            this.count = count;
+            this.sum = sum;
+            this.min = min;
+            this.max = max;
+        }
+
+        double mean(){
+            return count == 0 ? 0 : (double) sum / count;
+        }
+
+        //Smallest value that at least percentile percent of the samples are at or below, within bucket precision
+        long percentile(double percentile){
+            if(count == 0){
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(count * percentile / 100));
+            long seen = 0;
+            for(int i = 0; i < mCounts.length; i++){
+                seen += mCounts[i];
+                if(seen >= rank){
+                    return Math.min(max, Histogram.highestValue(i));
+                }
+            }
+            return max;
+        }
+    }
+
+    //Everything at one point in time, sorted by name
+    static final class Snapshot {
+        final long timeMillis;
+        final SortedMap<String, Long> values;
+        final SortedMap<String, HistogramSnapshot> histograms;
+
+        private Snapshot(long timeMillis, SortedMap<String, Long> values, SortedMap<String, HistogramSnapshot> histograms){
+            this.timeMillis = timeMillis;
+            this.values = values;
+            this.histograms = histograms;
+        }
+
+        //A counter or gauge, 0 if there is none by that name
+        long value(String name){
+            Long value = values.get(name);
+            return value == null ? 0 : value;
+        }
+
+        HistogramSnapshot histogram(String name){
+            return histograms.get(name);
+        }
+
+        //One metric per line; histograms as count, p50, p99, p99.9 and max, nanos shown as ms
+        String format(){
+            StringBuilder text = new StringBuilder();
+            for(Map.Entry<String, Long> entry : values.entrySet()){
+                text.append(entry.getKey()).append(' ').append(entry.getValue()).append('\n');
+            }
+            for(Map.Entry<String, HistogramSnapshot> entry : histograms.entrySet()){
+                HistogramSnapshot histogram = entry.getValue();
+                boolean nanos = entry.getKey().endsWith(".nanos");
+                text.append(entry.getKey()).append(" n=").append(histogram.count);
+                if(histogram.count > 0){
+                    appendValue(text.append(" p50="), histogram.percentile(50), nanos);
+                    appendValue(text.append(" p99="), histogram.percentile(99), nanos);
+                    appendValue(text.append(" p999="), histogram.percentile(99.9), nanos);
+                    appendValue(text.append(" max="), histogram.max, nanos);
+                }
+                text.append('\n');
+            }
+            return text.toString();
+        }
+
+        private static void appendValue(StringBuilder text, long value, boolean nanos){
+            if(nanos){
+                //Tenths of a millisecond are as fine as anything on this link gets
+                long tenths = (value + 50000) / 100000;
+                text.append(tenths / 10).append('.').append(tenths % 10).append("ms");
+            }else{
+                text.append(value);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return format();
+        }
+    }
+
+    private final ConcurrentMap<String, Counter> mCounters = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Gauge> mGauges = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Histogram> mHistograms = new ConcurrentHashMap<>();
+
+    static String peer(String address, String name){
+        return "peer." + address + "." + name;
+    }
+
+    //The counter called name, created on first use
+    Counter counter(String name){
+        Counter counter = mCounters.get(name);
+        if(counter == null){
+            Counter created = new Counter();
+            counter = mCounters.putIfAbsent(name, created);
+            if(counter == null){
+                counter = created;
+            }
+        }
+        return counter;
+    }
+
+    //The histogram called name, created on first use
+    Histogram histogram(String name){
+        Histogram histogram = mHistograms.get(name);
+        if(histogram == null){
+            Histogram created = new Histogram();
+            histogram = mHistograms.putIfAbsent(name, created);
+            if(histogram == null){
+                histogram = created;
+            }
+        }
+        return histogram;
+    }
+
+    //Report gauge as name, replacing whatever was registered under it
+    void gauge(String name, Gauge gauge){
+        mGauges.put(name, gauge);
+    }
+
+    //Stop reporting name, unless it has been replaced by another gauge since
+    void removeGauge(String name, Gauge gauge){
+        mGauges.remove(name, gauge);
+    }
+
+    Snapshot snapshot(){
+        SortedMap<String, Long> values = new TreeMap<>();
+        for(Map.Entry<String, Counter> entry : mCounters.entrySet()){
+            values.put(entry.getKey(), entry.getValue().get());
+        }
+        for(Map.Entry<String, Gauge> entry : mGauges.entrySet()){
+            values.put(entry.getKey(), entry.getValue().value());
+        }
+        SortedMap<String, HistogramSnapshot> histograms = new TreeMap<>();
+        for(Map.Entry<String, Histogram> entry : mHistograms.entrySet()){
+            histograms.put(entry.getKey(), entry.getValue().snapshot());
+        }
+        return new Snapshot(System.currentTimeMillis(), values, histograms);
+    }
+}
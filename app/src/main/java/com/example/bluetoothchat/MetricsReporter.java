@@ -0,0 +1,124 @@
+package com.example.bluetoothchat;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Appends a Metrics snapshot to a file every period, so a session can be looked at after the
+ * fact: adb shell run-as com.example.bluetoothchat cat files/metrics.txt
+ * Once the file passes maxBytes it becomes metrics.txt.1 and a new one is started, so the two
+ * together stay under twice that. Snapshots are taken and written on the reporter's own loop.
+ * */
+final class MetricsReporter {
+
+    private static final String TAG = "MetricsReporter";
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    static final long DEFAULT_PERIOD_MILLIS = 60 * 1000;
+    static final long DEFAULT_MAX_BYTES = 1024 * 1024;
+
+    private final Metrics mMetrics;
+    private final File mFile;
+    private final long mPeriodMillis;
+    private final long mMaxBytes;
+    private final EventLoop mLoop;
+    //Only touched on mLoop
+    private final SimpleDateFormat mDateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS", Locale.US);
+    private EventLoop.Timeout mNext;
+    private boolean mStopped;
+
+    private final Runnable mReport = new Runnable() {
+        @Override
+        public void run() {
+            if(mStopped){
+                return;
+            }
+            report();
+            mNext = mLoop.schedule(this, mPeriodMillis, TimeUnit.MILLISECONDS);
+        }
+    };
+
+    MetricsReporter(Metrics metrics, File file){
+        this(metrics, file, DEFAULT_PERIOD_MILLIS, DEFAULT_MAX_BYTES);
+    }
+
+    MetricsReporter(Metrics metrics, File file, long periodMillis, long maxBytes){
+        mMetrics = metrics;
+        mFile = file;
+        mPeriodMillis = periodMillis;
+        mMaxBytes = maxBytes;
+        try {
+            mLoop = new EventLoop("MetricsReporter");
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not open selector", e);
+        }
+    }
+
+    //First report after one period
+    void start(){
+        mLoop.execute(new Runnable() {
+            @Override
+            public void run() {
+                if(!mStopped && mNext == null){
+                    mNext = mLoop.schedule(mReport, mPeriodMillis, TimeUnit.MILLISECONDS);
+                }
+            }
+        });
+    }
+
+    //Write one last report and stop
+    void stop(){
+        mLoop.execute(new Runnable() {
+            @Override
+            public void run() {
+                if(mStopped){
+                    return;
+                }
+                mStopped = true;
+                if(mNext != null){
+                    mNext.cancel();
+                }
+                report();
+                mLoop.shutdown();
+            }
+        });
+    }
+
+    private void report(){
+        Metrics.Snapshot snapshot = mMetrics.snapshot();
+        String text = "# " + mDateFormat.format(new Date(snapshot.timeMillis)) + "\n" + snapshot.format() + "\n";
+        try {
+            write(text.getBytes(UTF_8));
+        } catch (IOException e) {
+            Log.e(TAG, "report: Could not write " + mFile + ": " + e.getMessage());
+        }
+    }
+
+    private void write(byte[] report) throws IOException {
+        File parent = mFile.getParentFile();
+        if(parent != null && !parent.isDirectory() && !parent.mkdirs()){
+            throw new IOException("Could not create " + parent);
+        }
+        if(mFile.length() + report.length > mMaxBytes && mFile.length() > 0){
+            File old = new File(mFile.getPath() + ".1");
+            if(old.exists() && !old.delete() || !mFile.renameTo(old)){
+                throw new IOException("Could not roll over to " + old);
+            }
+        }
+        OutputStream out = new FileOutputStream(mFile, true);
+        try {
+            out.write(report);
+        } finally {
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package com.example.bluetoothchat;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/*
+ * Bounded lock-free queue for many producers and a single consumer.
+ * Every slot carries a sequence number saying whether it is free for the producer at a given
+ * position or holds an element for the consumer, so producers only contend on one CAS and
+ * the consumer never takes a lock (Vyukov's bounded queue).
+ * */
+final class MpscArrayQueue<E> {
+
+    private final AtomicReferenceArray<E> mElements;
+    private final AtomicLongArray mSequences;
+    private final int mMask;
+
+    private final AtomicLong mTail = new AtomicLong();
+    private volatile long mHead;
+
+    MpscArrayQueue(int capacity){
+        int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+        mElements = new AtomicReferenceArray<>(size);
+        mSequences = new AtomicLongArray(size);
+        for(int i = 0; i < size; i++){
+            mSequences.set(i, i);
+        }
+        mMask = size - 1;
+    }
+
+    int capacity(){
+        return mMask + 1;
+    }
+
+    //Add an element, returns false if the queue is full. Safe to call from any thread
+    boolean offer(E element){
+        long position = mTail.get();
+        int index;
+        while(true){
+            index = (int) (position & mMask);
+            long difference = mSequences.get(index) - position;
+            if(difference == 0){
+                if(mTail.compareAndSet(position, position + 1)){
+                    break;
+                }
+                position = mTail.get();
+            }else if(difference < 0){
+                return false;
+            }else{
+                position = mTail.get();
+            }
+        }
+        mElements.lazySet(index, element);
+        mSequences.lazySet(index, position + 1);
+        return true;
+    }
+
+    //Remove the oldest element, or return null if there is none. Only the consumer thread may call this
+    E poll(){
+        long position = mHead;
+        int index = (int) (position & mMask);
+        if(mSequences.get(index) != position + 1){
+            return null;
+        }
+        E element = mElements.get(index);
+        mElements.lazySet(index, null);
+        mSequences.lazySet(index, position + mMask + 1);
+        mHead = position + 1;
+        return element;
+    }
+
+    //Oldest element without removing it, only the consumer thread may call this
+    E peek(){
+        long position = mHead;
+        int index = (int) (position & mMask);
+        if(mSequences.get(index) != position + 1){
+            return null;
+        }
+        return mElements.get(index);
+    }
+
+    boolean isEmpty(){
+        return size() == 0;
+    }
+
+    //Approximate when producers are active
+    int size(){
+        return (int) Math.max(0, mTail.get() - mHead);
+    }
+}
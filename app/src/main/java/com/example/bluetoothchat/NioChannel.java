@@ -0,0 +1,19 @@
+package com.example.bluetoothchat;
+
+import java.io.IOException;
+import java.nio.channels.SocketChannel;
+
+/*
+ * A Channel backed by a SocketChannel, which ConnectionEngine drives from its EventLoop
+ * instead of giving it a reader thread.
+ * Once the channel has been put in non-blocking mode, connect() only starts the connection;
+ * it is complete when getSocketChannel().finishConnect() returns true.
+ * The stream getters only work while the channel is in blocking mode.
+ * */
+interface NioChannel extends Channel {
+
+    SocketChannel getSocketChannel();
+
+    //Called once the connection is established, for socket options that need a connected socket
+    void onConnected() throws IOException;
+}
@@ -0,0 +1,185 @@
+package com.example.bluetoothchat;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Non-blocking counterpart of FrameWriter for channels driven by an EventLoop.
+ * Frames are queued from any thread and written on the loop thread: everything pending is
+ * packed into one buffer and sent with a gathering write, and when the socket can't take it
+ * all the rest waits for OP_WRITE instead of blocking the loop.
+ * */
+class NioFrameWriter {
+
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    private static final class PendingFrame {
+        final int type;
+        final byte[] payload;
+        final int offset;
+        final int length;
+
+        PendingFrame(int type, byte[] payload, int offset, int length){
+            this.type = type;
+            this.payload = payload;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    private final SocketChannel mChannel;
+    private final EventLoop mLoop;
+    private final FrameWriter.Listener mListener;
+    private final MpscArrayQueue<PendingFrame> mQueue;
+    private final long mHighWatermark;
+
+    private final AtomicLong mQueuedBytes = new AtomicLong();
+    private final AtomicBoolean mCongested = new AtomicBoolean();
+    private final AtomicBoolean mFlushScheduled = new AtomicBoolean();
+    private volatile boolean mClosed;
+
+    //Only touched on the loop thread. mBuffers[0] is the batch, mBuffers[1] an oversized payload
+    private final ByteBuffer mBatch;
+    private final ByteBuffer[] mBuffers = new ByteBuffer[2];
+    private SelectionKey mKey;
+
+    private final Runnable mFlushTask = new Runnable() {
+        @Override
+        public void run() {
+            mFlushScheduled.set(false);
+            try {
+                flush();
+            } catch (IOException e) {
+                failed(e);
+            }
+        }
+    };
+
+    NioFrameWriter(SocketChannel channel, EventLoop loop, FrameWriter.Listener listener){
+        this(channel, loop, listener, FrameWriter.DEFAULT_QUEUE_CAPACITY, FrameWriter.DEFAULT_MAX_BATCH_BYTES,
+                FrameWriter.DEFAULT_HIGH_WATERMARK_BYTES);
+    }
+
+    NioFrameWriter(SocketChannel channel, EventLoop loop, FrameWriter.Listener listener, int queueCapacity,
+                   int maxBatchBytes, long highWatermarkBytes){
+        mChannel = channel;
+        mLoop = loop;
+        mListener = listener;
+        mQueue = new MpscArrayQueue<>(queueCapacity);
+        mHighWatermark = highWatermarkBytes;
+        mBatch = ByteBuffer.allocate(maxBatchBytes);
+        mBatch.flip();
+        mBuffers[0] = mBatch;
+        mBuffers[1] = EMPTY;
+    }
+
+    //Key the channel is registered under, called on the loop thread once it is registered
+    void attach(SelectionKey key){
+        mKey = key;
+        if(!mQueue.isEmpty()){
+            mLoop.execute(mFlushTask);
+        }
+    }
+
+    //Same contract as FrameWriter.enqueue(), never blocks
+    boolean enqueue(int type, byte[] payload, int offset, int length){
+        if(mClosed || !mQueue.offer(new PendingFrame(type, payload, offset, length))){
+            return false;
+        }
+        long queued = mQueuedBytes.addAndGet(FrameCodec.frameSize(length));
+        if(queued > mHighWatermark && mCongested.compareAndSet(false, true)){
+            mListener.onBackpressure(true);
+        }
+        if(mFlushScheduled.compareAndSet(false, true)){
+            mLoop.execute(mFlushTask);
+        }
+        return true;
+    }
+
+    boolean isCongested(){
+        return mCongested.get();
+    }
+
+    long queuedBytes(){
+        return mQueuedBytes.get();
+    }
+
+    void close(){
+        mClosed = true;
+    }
+
+    //The socket can take more bytes. Called on the loop thread
+    void onWritable() throws IOException {
+        flush();
+    }
+
+    private void flush() throws IOException {
+        if(mKey == null || !mKey.isValid()){
+            //Not registered yet (attach() flushes) or already closed
+            return;
+        }
+        while(true){
+            if(mBatch.hasRemaining() || mBuffers[1].hasRemaining()){
+                long start = System.nanoTime();
+                long written = mChannel.write(mBuffers);
+                mListener.onWritten((int) written, System.nanoTime() - start);
+                if(mBatch.hasRemaining() || mBuffers[1].hasRemaining()){
+                    //Socket buffer is full, carry on when the selector says it has room
+                    mKey.interestOps(mKey.interestOps() | SelectionKey.OP_WRITE);
+                    return;
+                }
+                mBuffers[1] = EMPTY;
+            }
+            if(!fill()){
+                mKey.interestOps(mKey.interestOps() & ~SelectionKey.OP_WRITE);
+                return;
+            }
+        }
+    }
+
+    //Pack queued frames into the batch buffer. Returns false if there was nothing to pack
+    private boolean fill(){
+        byte[] batch = mBatch.array();
+        int position = 0;
+        while(true){
+            PendingFrame frame = mQueue.peek();
+            if(frame == null){
+                break;
+            }
+            int size = FrameCodec.frameSize(frame.length);
+            if(size > batch.length - position){
+                if(size <= batch.length || batch.length - position < FrameCodec.MAX_HEADER_BYTES){
+                    break;
+                }
+                //Too big for any batch: send its header from the batch and the payload as-is
+                position = FrameCodec.putHeader(batch, position, frame.type, frame.length);
+                mBuffers[1] = ByteBuffer.wrap(frame.payload, frame.offset, frame.length);
+                mQueue.poll();
+                released(size);
+                break;
+            }
+            position = FrameCodec.encode(batch, position, frame.type, frame.payload, frame.offset, frame.length);
+            mQueue.poll();
+            released(size);
+        }
+        mBatch.clear();
+        mBatch.limit(position);
+        return position > 0;
+    }
+
+    private void released(int bytes){
+        long queued = mQueuedBytes.addAndGet(-bytes);
+        if(queued < mHighWatermark / 2 && mCongested.compareAndSet(true, false)){
+            mListener.onBackpressure(false);
+        }
+    }
+
+    private void failed(IOException e){
+        mClosed = true;
+        mListener.onWriteFailed(e);
+    }
+}
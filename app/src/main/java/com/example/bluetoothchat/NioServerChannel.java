@@ -0,0 +1,12 @@
+package com.example.bluetoothchat;
+
+import java.nio.channels.ServerSocketChannel;
+
+/*
+ * A ServerChannel backed by a ServerSocketChannel, accepted from ConnectionEngine's EventLoop.
+ * In non-blocking mode accept() returns null when no connection is pending.
+ * */
+interface NioServerChannel extends ServerChannel {
+
+    ServerSocketChannel getServerSocketChannel();
+}
@@ -0,0 +1,273 @@
+package com.example.bluetoothchat;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * In-memory Transport, every connection is a pair of bounded byte pipes.
+ * Servers listen under their service name and clients use that name as the address.
+ * Both ends must be created from the same PipedTransport instance.
+ * */
+class PipedTransport implements Transport {
+
+    static final int DEFAULT_PIPE_SIZE = 64 * 1024;
+
+    private final ConcurrentMap<String, PipedServerChannel> mListeners = new ConcurrentHashMap<>();
+    private final AtomicInteger mNextClientId = new AtomicInteger();
+    private final int mPipeSize;
+
+    PipedTransport(){
+        this(DEFAULT_PIPE_SIZE);
+    }
+
+    PipedTransport(int pipeSize){
+        mPipeSize = pipeSize;
+    }
+
+    @Override
+    public ServerChannel listen(String name, UUID uuid) throws IOException {
+        PipedServerChannel server = new PipedServerChannel(name);
+        if(mListeners.putIfAbsent(name, server) != null){
+            throw new IOException("Address already in use: " + name);
+        }
+        return server;
+    }
+
+    @Override
+    public Channel createChannel(String address, UUID uuid) {
+        return new PipedChannel("pipe-" + mNextClientId.incrementAndGet(), address);
+    }
+
+    private class PipedServerChannel implements ServerChannel {
+        private final String mmName;
+        private final ArrayDeque<PipedChannel> mmPending = new ArrayDeque<>();
+        private boolean mmClosed;
+
+        PipedServerChannel(String name){
+            mmName = name;
+        }
+
+        synchronized void enqueue(PipedChannel channel) throws IOException {
+            if(mmClosed){
+                throw new IOException("Connection refused: " + mmName);
+            }
+            mmPending.add(channel);
+            notifyAll();
+        }
+
+        @Override
+        public synchronized Channel accept() throws IOException {
+            while(mmPending.isEmpty()){
+                if(mmClosed){
+                    throw new IOException("Server channel closed");
+                }
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while accepting");
+                }
+            }
+            return mmPending.poll();
+        }
+
+        @Override
+        public void close() {
+            synchronized (this) {
+                mmClosed = true;
+                notifyAll();
+            }
+            mListeners.remove(mmName, this);
+        }
+    }
+
+    private class PipedChannel implements Channel {
+        private final String mmLocalName;
+        private final String mmRemoteAddress;
+        private Pipe mmIn;
+        private Pipe mmOut;
+        private volatile boolean mmClosed;
+
+        PipedChannel(String localName, String remoteAddress){
+            mmLocalName = localName;
+            mmRemoteAddress = remoteAddress;
+        }
+
+        //Accepted end of a connection, wired to the client's pipes the other way round
+        PipedChannel(String remoteAddress, Pipe in, Pipe out){
+            this(null, remoteAddress);
+            mmIn = in;
+            mmOut = out;
+        }
+
+        @Override
+        public synchronized void connect() throws IOException {
+            if(mmClosed){
+                throw new IOException("Channel closed");
+            }
+            PipedServerChannel server = mListeners.get(mmRemoteAddress);
+            if(server == null){
+                throw new IOException("Connection refused: " + mmRemoteAddress);
+            }
+            mmIn = new Pipe(mPipeSize);
+            mmOut = new Pipe(mPipeSize);
+            server.enqueue(new PipedChannel(mmLocalName, mmOut, mmIn));
+        }
+
+        @Override
+        public String getRemoteAddress() {
+            return mmRemoteAddress;
+        }
+
+        @Override
+        public synchronized InputStream getInputStream() throws IOException {
+            if(mmIn == null){
+                throw new IOException("Not connected");
+            }
+            return mmIn.mInput;
+        }
+
+        @Override
+        public synchronized OutputStream getOutputStream() throws IOException {
+            if(mmOut == null){
+                throw new IOException("Not connected");
+            }
+            return mmOut.mOutput;
+        }
+
+        @Override
+        public void close() {
+            mmClosed = true;
+            Pipe in;
+            Pipe out;
+            synchronized (this) {
+                in = mmIn;
+                out = mmOut;
+            }
+            if(in != null){
+                in.close();
+            }
+            if(out != null){
+                out.close();
+            }
+        }
+    }
+
+    /*
+     * Bounded single producer/single consumer byte pipe. Unlike java.io.PipedInputStream it doesn't
+     * care which threads read and write, so it works with thread pools.
+     * */
+    private static class Pipe {
+        private final byte[] mBuffer;
+        private int mReadPos;
+        private int mCount;
+        private boolean mClosed;
+
+        final InputStream mInput = new InputStream() {
+            @Override
+            public int read() throws IOException {
+                byte[] one = new byte[1];
+                return read(one, 0, 1) < 0 ? -1 : one[0] & 0xFF;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                return Pipe.this.read(b, off, len);
+            }
+
+            @Override
+            public int available() {
+                synchronized (Pipe.this) {
+                    return mCount;
+                }
+            }
+
+            @Override
+            public void close() {
+                Pipe.this.close();
+            }
+        };
+
+        final OutputStream mOutput = new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[]{(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                Pipe.this.write(b, off, len);
+            }
+
+            @Override
+            public void close() {
+                Pipe.this.close();
+            }
+        };
+
+        Pipe(int size){
+            mBuffer = new byte[size];
+        }
+
+        synchronized int read(byte[] b, int off, int len) throws IOException {
+            if(len == 0){
+                return 0;
+            }
+            while(mCount == 0){
+                if(mClosed){
+                    return -1;
+                }
+                await();
+            }
+            int total = 0;
+            while(total < len && mCount > 0){
+                int chunk = Math.min(len - total, Math.min(mCount, mBuffer.length - mReadPos));
+                System.arraycopy(mBuffer, mReadPos, b, off + total, chunk);
+                mReadPos = (mReadPos + chunk) % mBuffer.length;
+                mCount -= chunk;
+                total += chunk;
+            }
+            notifyAll();
+            return total;
+        }
+
+        synchronized void write(byte[] b, int off, int len) throws IOException {
+            while(len > 0){
+                if(mClosed){
+                    throw new IOException("Pipe closed");
+                }
+                if(mCount == mBuffer.length){
+                    await();
+                    continue;
+                }
+                int writePos = (mReadPos + mCount) % mBuffer.length;
+                int chunk = Math.min(len, Math.min(mBuffer.length - mCount, mBuffer.length - writePos));
+                System.arraycopy(b, off, mBuffer, writePos, chunk);
+                mCount += chunk;
+                off += chunk;
+                len -= chunk;
+                notifyAll();
+            }
+        }
+
+        synchronized void close(){
+            mClosed = true;
+            notifyAll();
+        }
+
+        private void await() throws IOException {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted");
+            }
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package com.example.bluetoothchat;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * A ByteBuffer on loan from a ByteBufferPool, with a reference count so one copy of a payload
+ * can be handed to several stages. It starts with one reference; every retain() needs a matching
+ * release() and the last release gives the buffer back. Neither the handle nor its buffer may be
+ * used after that, they are handed out again by the next acquire().
+ * */
+final class PooledBuffer {
+
+    private final ByteBufferPool mPool;
+    private final ByteBuffer mBuffer;
+    //False for buffers too big for any size class, the GC gets those back
+    private final boolean mPooled;
+    private final AtomicInteger mRefs = new AtomicInteger();
+    //Set while leak detection is watching this loan
+    volatile ByteBufferPool.LeakTracker mTracker;
+
+    PooledBuffer(ByteBufferPool pool, ByteBuffer buffer, boolean pooled){
+        mPool = pool;
+        mBuffer = buffer;
+        mPooled = pooled;
+    }
+
+    ByteBuffer buffer(){
+        if(mRefs.get() <= 0){
+            throw new IllegalStateException("Buffer used after release");
+        }
+        return mBuffer;
+    }
+
+    int refCount(){
+        return mRefs.get();
+    }
+
+    boolean isPooled(){
+        return mPooled;
+    }
+
+    //Take another reference, e.g. before handing the buffer to another thread
+    PooledBuffer retain(){
+        while(true){
+            int refs = mRefs.get();
+            if(refs <= 0){
+                throw new IllegalStateException("Buffer retained after release");
+            }
+            if(mRefs.compareAndSet(refs, refs + 1)){
+                return this;
+            }
+        }
+    }
+
+    //Drop a reference. Returns true if that was the last one and the buffer went back to the pool
+    boolean release(){
+        int refs = mRefs.decrementAndGet();
+        if(refs > 0){
+            return false;
+        }
+        if(refs < 0){
+            mRefs.incrementAndGet();
+            throw new IllegalStateException("Buffer released more often than retained");
+        }
+        mPool.recycle(this);
+        return true;
+    }
+
+    //Called by the pool when the buffer is lent out
+    void lend(){
+        mBuffer.clear();
+        mRefs.set(1);
+    }
+
+    ByteBuffer rawBuffer(){
+        return mBuffer;
+    }
+}
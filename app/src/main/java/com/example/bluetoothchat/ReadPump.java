@@ -0,0 +1,121 @@
+package com.example.bluetoothchat;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/*
+ * Adapts a blocking InputStream (an RFCOMM socket, say) to an EventLoop.
+ * The pump thread only does blocking read() calls; the bytes are handed to the sink on the
+ * loop thread. A small fixed set of chunks is recycled between the two, so nothing is
+ * allocated per read and a slow loop makes the pump wait instead of buffering without bound.
+ * Filled chunks go through a lock-free queue and a single delivery task is posted with
+ * EventLoop.post() whenever the loop isn't already due to run it, so handing a read over
+ * doesn't allocate either.
+ * */
+class ReadPump extends Thread {
+
+    private static final String TAG = "ReadPump";
+    private static final int CHUNKS = 4;
+    private static final int CHUNK_SIZE = 4096;
+
+    interface Sink {
+        //Called on the loop thread, the bytes are only valid until it returns
+        void onBytes(byte[] buffer, int offset, int length);
+
+        //The stream ended (e is null) or failed. Called on the loop thread
+        void onEndOfStream(IOException e);
+    }
+
+    private static final class Chunk {
+        final byte[] data;
+        int length;
+
+        Chunk(int size){
+            data = new byte[size];
+        }
+    }
+
+    private final InputStream mInput;
+    private final EventLoop mLoop;
+    private final Sink mSink;
+    private final BlockingQueue<Chunk> mFreeChunks = new ArrayBlockingQueue<>(CHUNKS);
+    //Filled by the pump, emptied by the loop. Queued after the last chunk when the stream ends
+    private final MpscArrayQueue<Chunk> mFilledChunks = new MpscArrayQueue<>(CHUNKS + 1);
+    private final Chunk mEnd = new Chunk(0);
+    private final AtomicBoolean mDeliveryPosted = new AtomicBoolean();
+    private volatile IOException mFailure;
+
+    private final Runnable mDeliverTask = new Runnable() {
+        @Override
+        public void run() {
+            //Cleared first so a chunk filled from here on posts the task again
+            mDeliveryPosted.set(false);
+            try {
+                Chunk chunk;
+                while((chunk = mFilledChunks.poll()) != null){
+                    if(chunk == mEnd){
+                        mSink.onEndOfStream(mFailure);
+                        return;
+                    }
+                    try {
+                        mSink.onBytes(chunk.data, 0, chunk.length);
+                    } finally {
+                        mFreeChunks.offer(chunk);
+                    }
+                }
+            } finally {
+                //The sink threw, don't strand the chunks behind the one it choked on
+                if(!mFilledChunks.isEmpty()){
+                    postDelivery();
+                }
+            }
+        }
+    };
+
+    ReadPump(String name, InputStream input, EventLoop loop, Sink sink){
+        super("ReadPump-" + name);
+        setDaemon(true);
+        mInput = input;
+        mLoop = loop;
+        mSink = sink;
+        for(int i = 0; i < CHUNKS; i++){
+            mFreeChunks.add(new Chunk(CHUNK_SIZE));
+        }
+    }
+
+    @Override
+    public void run() {
+        IOException failure = null;
+        try {
+            while(true){
+                Chunk chunk = mFreeChunks.take();
+                int bytes = mInput.read(chunk.data, 0, chunk.data.length);
+                if(bytes < 0){
+                    break;
+                }
+                chunk.length = bytes;
+                mFilledChunks.offer(chunk);
+                postDelivery();
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "read: Error reading InputStream: " + e.getMessage());
+            failure = e;
+        } catch (InterruptedException e) {
+            failure = new IOException("Read pump interrupted");
+        }
+        mFailure = failure;
+        mFilledChunks.offer(mEnd);
+        postDelivery();
+    }
+
+    private void postDelivery(){
+        if(mDeliveryPosted.compareAndSet(false, true)){
+            mLoop.post(mDeliverTask);
+        }
+    }
+}
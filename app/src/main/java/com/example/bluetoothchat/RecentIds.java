@@ -0,0 +1,86 @@
+package com.example.bluetoothchat;
+
+import java.util.Arrays;
+
+/*
+ * The ids seen lately, for dropping repeats. Two generations of open addressed tables of longs:
+ * ids go into the current one and lookups check both. Once the current one is half full, or
+ * generationMillis old, it becomes the previous one and the old previous one is wiped. So an id is
+ * remembered for at least one generation, memory stays fixed, and adding one allocates nothing.
+ * Thread safe.
+ * */
+final class RecentIds {
+
+    private final long[][] mTables = new long[2][];
+    //0 marks an empty slot, so whether 0 itself was seen is kept apart
+    private final boolean[] mHasZero = new boolean[2];
+    private final int[] mCounts = new int[2];
+    private final int mCapacity;
+    private final int mMask;
+    private final long mGenerationMillis;
+    private int mCurrent;
+    private long mGenerationStartMillis = -1;
+
+    //Remembers at least capacity ids, or the last generationMillis worth if that is fewer
+    RecentIds(int capacity, long generationMillis){
+        if(capacity < 1){
+            throw new IllegalArgumentException("Capacity must be positive: " + capacity);
+        }
+        int size = Integer.highestOneBit(capacity) << 2;
+        mTables[0] = new long[size];
+        mTables[1] = new long[size];
+        mMask = size - 1;
+        mCapacity = size / 2;
+        mGenerationMillis = generationMillis;
+    }
+
+    //Records id, false if it was already there
+    synchronized boolean add(long id, long nowMillis){
+        if(contains(mCurrent, id) || contains(1 - mCurrent, id)){
+            return false;
+        }
+        if(mGenerationStartMillis < 0){
+            mGenerationStartMillis = nowMillis;
+        }else if(mCounts[mCurrent] >= mCapacity || nowMillis - mGenerationStartMillis >= mGenerationMillis){
+            mCurrent = 1 - mCurrent;
+            Arrays.fill(mTables[mCurrent], 0);
+            mHasZero[mCurrent] = false;
+            mCounts[mCurrent] = 0;
+            mGenerationStartMillis = nowMillis;
+        }
+        if(id == 0){
+            mHasZero[mCurrent] = true;
+        }else{
+            long[] table = mTables[mCurrent];
+            int slot = slot(id);
+            while(table[slot] != 0){
+                slot = (slot + 1) & mMask;
+            }
+            table[slot] = id;
+        }
+        mCounts[mCurrent]++;
+        return true;
+    }
+
+    private boolean contains(int generation, long id){
+        if(id == 0){
+            return mHasZero[generation];
+        }
+        long[] table = mTables[generation];
+        //Never more than half full, so there is always an empty slot to stop at
+        for(int slot = slot(id); table[slot] != 0; slot = (slot + 1) & mMask){
+            if(table[slot] == id){
+                return true;
+            }
+        }
+        return false;
+    }
+
+    //Ids may be sequential, so spread them over the table (the finalizer of MurmurHash3)
+    private int slot(long id){
+        id ^= id >>> 33;
+        id *= 0xff51afd7ed558ccdL;
+        id ^= id >>> 33;
+        return (int) id & mMask;
+    }
+}
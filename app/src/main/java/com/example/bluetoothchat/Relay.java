@@ -0,0 +1,144 @@
+package com.example.bluetoothchat;
+
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * Multi-hop broadcast, for devices out of range of the hub: a frame broadcast here goes to every
+ * connected peer, and peers that are forwarding pass it on to their other peers until its TTL
+ * runs out.
+ *
+ *   RELAY [origin : 8][message id : 4][ttl : 1][type : 1][payload]
+ *
+ * origin is the node id of the device that broadcast it (ConnectionSupervisor.getNodeId) and
+ * message ids count up per origin. Every (origin, id) seen lately is kept in RecentIds and a
+ * frame seen before is dropped, which ends loops and the extra copies that arrive over other
+ * paths. Passing a frame on copies it whole and lowers the TTL byte; the payload isn't decoded.
+ * The inner frame is published on the MessageBus from originAddress(origin), once per node.
+ * Called on the event loop threads that deliver frames, thread safe.
+ * */
+final class Relay implements MessageSubscriber {
+
+    private static final String TAG = "Relay";
+
+    static final int HEADER_BYTES = 8 + 4 + 1 + 1;
+    private static final int TTL_OFFSET = 12;
+    //Hops a broadcast may take, enough to cover a site from one hub
+    static final int DEFAULT_TTL = 4;
+    static final int MAX_TTL = 255;
+    //Ids remembered, at least a few minutes' worth of chat whatever the rate
+    private static final int SEEN_IDS = 4096;
+    private static final long SEEN_GENERATION_MILLIS = TimeUnit.MINUTES.toMillis(2);
+    private static final String ORIGIN_PREFIX = "relay:";
+
+    //Where frames go out, normally ConnectionSupervisor
+    interface Link {
+        boolean write(String address, int type, byte[] payload);
+
+        Set<String> peers();
+    }
+
+    private final long mNodeId;
+    private final Link mLink;
+    private final MessageBus mBus;
+    private final RecentIds mSeen = new RecentIds(SEEN_IDS, SEEN_GENERATION_MILLIS);
+    private final AtomicInteger mNextId = new AtomicInteger();
+    private final Metrics.Counter mForwarded;
+    private final Metrics.Counter mDuplicates;
+    private volatile boolean mForwarding;
+
+    Relay(long nodeId, Link link, MessageBus bus, Metrics metrics){
+        mNodeId = nodeId;
+        mLink = link;
+        mBus = bus;
+        mForwarded = metrics.counter("relay.forwarded");
+        mDuplicates = metrics.counter("relay.duplicates");
+    }
+
+    //Pass frames from other nodes on, off by default: they are still delivered here, just not forwarded
+    void setForwarding(boolean forwarding){
+        mForwarding = forwarding;
+    }
+
+    boolean isForwarding(){
+        return mForwarding;
+    }
+
+    //What frames broadcast by origin are published as
+    static String originAddress(long origin){
+        return ORIGIN_PREFIX + Long.toHexString(origin);
+    }
+
+    /*
+     * Send a frame of type to every connected peer, to be passed on up to ttl hops in all.
+     * Returns false if no peer took it.
+     * */
+    boolean broadcast(int type, byte[] payload, int ttl){
+        if(type == FrameCodec.TYPE_RELAY || ttl < 1 || ttl > MAX_TTL){
+            throw new IllegalArgumentException("Can't broadcast type " + type + " with TTL " + ttl);
+        }
+        if(HEADER_BYTES + payload.length > FrameCodec.DEFAULT_MAX_PAYLOAD){
+            Log.e(TAG, "broadcast: " + payload.length + " bytes is more than a peer accepts in one frame");
+            return false;
+        }
+        int id = mNextId.getAndIncrement();
+        //Don't take our own frames back from a neighbour that passes them on
+        mSeen.add(key(mNodeId, id), System.currentTimeMillis());
+        byte[] frame = new byte[HEADER_BYTES + payload.length];
+        ByteBuffer.wrap(frame).putLong(mNodeId).putInt(id).put((byte) ttl).put((byte) type).put(payload);
+        return send(frame, null);
+    }
+
+    @Override
+    public void onMessage(String address, int type, ByteBuffer payload) {
+        int start = payload.position();
+        if(payload.remaining() < HEADER_BYTES){
+            Log.e(TAG, "onMessage: Truncated relay frame from " + address);
+            return;
+        }
+        long origin = payload.getLong(start);
+        int id = payload.getInt(start + 8);
+        int ttl = payload.get(start + TTL_OFFSET) & 0xFF;
+        int innerType = payload.get(start + TTL_OFFSET + 1) & 0xFF;
+        if(innerType == FrameCodec.TYPE_RELAY){
+            //Nesting would let a frame outlive its TTL
+            Log.e(TAG, "onMessage: Nested relay frame from " + address);
+            return;
+        }
+        if(origin == mNodeId || !mSeen.add(key(origin, id), System.currentTimeMillis())){
+            mDuplicates.increment();
+            return;
+        }
+        if(ttl > 1 && mForwarding){
+            //Copied before the bus, subscribers may move the position around
+            byte[] frame = new byte[payload.remaining()];
+            payload.get(frame);
+            payload.position(start);
+            frame[TTL_OFFSET] = (byte) (ttl - 1);
+            if(send(frame, address)){
+                mForwarded.increment();
+            }
+        }
+        payload.position(start + HEADER_BYTES);
+        mBus.publish(originAddress(origin), innerType, payload);
+    }
+
+    //One array for every peer, the links only read it
+    private boolean send(byte[] frame, String except){
+        boolean sent = false;
+        for(String peer : mLink.peers()){
+            if(!peer.equals(except)){
+                sent |= mLink.write(peer, FrameCodec.TYPE_RELAY, frame);
+            }
+        }
+        return sent;
+    }
+
+    private static long key(long origin, int id){
+        return origin * 0x9E3779B97F4A7C15L + id;
+    }
+}
@@ -0,0 +1,128 @@
+package com.example.bluetoothchat;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothServerSocket;
+import android.bluetooth.BluetoothSocket;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+/*
+ * Transport over Bluetooth RFCOMM sockets. Addresses are Bluetooth MAC addresses.
+ * A peer can be dialled several ways, which ConnectionEngine races: an authenticated socket to
+ * the service UUID, an insecure one (some HC-06 firmwares refuse anything else), an insecure one
+ * to the Serial Port Profile UUID when the service UUID is a different one, and channel 1
+ * directly, skipping the SDP lookup that some modules answer wrongly.
+ * */
+class RfcommTransport implements Transport, ConnectRace.Dialer {
+
+    static final String STRATEGY_SECURE = "secure";
+    static final String STRATEGY_INSECURE = "insecure";
+    static final String STRATEGY_SPP_INSECURE = "spp-insecure";
+    static final String STRATEGY_CHANNEL_1 = "channel-1";
+
+    private static final UUID SPP_UUID = UUID.fromString("00001101-0000-1000-8000-00805F9B34FB");
+
+    private final BluetoothAdapter mBluetoothAdapter;
+
+    RfcommTransport(BluetoothAdapter adapter){
+        mBluetoothAdapter = adapter;
+    }
+
+    @Override
+    public ServerChannel listen(String name, UUID uuid) throws IOException {
+        final BluetoothServerSocket serverSocket = mBluetoothAdapter.listenUsingInsecureRfcommWithServiceRecord(name, uuid);
+        return new ServerChannel() {
+            @Override
+            public Channel accept() throws IOException {
+                return new RfcommChannel(serverSocket.accept());
+            }
+
+            @Override
+            public void close() throws IOException {
+                serverSocket.close();
+            }
+        };
+    }
+
+    @Override
+    public Channel createChannel(String address, UUID uuid) throws IOException {
+        return createChannel(address, uuid, STRATEGY_SECURE);
+    }
+
+    @Override
+    public List<String> strategies(String address, UUID uuid) {
+        List<String> strategies = new ArrayList<>();
+        strategies.add(STRATEGY_SECURE);
+        strategies.add(STRATEGY_INSECURE);
+        if(!SPP_UUID.equals(uuid)){
+            strategies.add(STRATEGY_SPP_INSECURE);
+        }
+        strategies.add(STRATEGY_CHANNEL_1);
+        return strategies;
+    }
+
+    @Override
+    public Channel createChannel(String address, UUID uuid, String strategy) throws IOException {
+        BluetoothDevice device = mBluetoothAdapter.getRemoteDevice(address);
+        switch(strategy){
+            case STRATEGY_SECURE:
+                return new RfcommChannel(device.createRfcommSocketToServiceRecord(uuid));
+            case STRATEGY_INSECURE:
+                return new RfcommChannel(device.createInsecureRfcommSocketToServiceRecord(uuid));
+            case STRATEGY_SPP_INSECURE:
+                return new RfcommChannel(device.createInsecureRfcommSocketToServiceRecord(SPP_UUID));
+            case STRATEGY_CHANNEL_1:
+                //Hidden API, the usual workaround for modules whose SDP record is broken
+                try {
+                    return new RfcommChannel((BluetoothSocket) device.getClass()
+                            .getMethod("createRfcommSocket", int.class).invoke(device, 1));
+                } catch (NoSuchMethodException | IllegalAccessException | InvocationTargetException e) {
+                    throw new IOException("createRfcommSocket not available: " + e);
+                }
+            default:
+                throw new IOException("Unknown strategy " + strategy);
+        }
+    }
+
+    private class RfcommChannel implements Channel {
+        private final BluetoothSocket mmSocket;
+
+        RfcommChannel(BluetoothSocket socket){
+            mmSocket = socket;
+        }
+
+        @Override
+        public void connect() throws IOException {
+            //Always cancel discovery because it will slow down a connection
+            mBluetoothAdapter.cancelDiscovery();
+            mmSocket.connect();
+        }
+
+        @Override
+        public String getRemoteAddress() {
+            return mmSocket.getRemoteDevice().getAddress();
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            return mmSocket.getInputStream();
+        }
+
+        @Override
+        public OutputStream getOutputStream() throws IOException {
+            return mmSocket.getOutputStream();
+        }
+
+        @Override
+        public void close() throws IOException {
+            mmSocket.close();
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package com.example.bluetoothchat;
+
+/*
+ * Send window and retransmit timeout for a reliable session.
+ *
+ * RFCOMM doesn't lose frames, it queues them: a sender that outruns the link (or a slow HC-06
+ * draining its UART at 9600 baud) just grows the queues in front of the radio, and every
+ * message written after that waits behind them. So the window is sized TCP Vegas style from
+ * delay rather than from loss. minRtt is what an empty pipe costs; if the last round trip took
+ * longer, window * (rtt - minRtt) / rtt frames were sitting in queues. Below ALPHA queued frames
+ * the window grows by one per round trip, above BETA it shrinks by one. At the start it doubles
+ * every round until frames begin to queue.
+ *
+ * The retransmit timeout follows RFC 6298: srtt + 4 * rttvar, doubled on every timeout until
+ * a fresh sample arrives. Samples must not come from retransmitted frames.
+ * Not thread safe.
+ * */
+class SendWindow {
+
+    static final long INITIAL_RTO_MILLIS = 1000;
+    static final long MIN_RTO_MILLIS = 200;
+    static final long MAX_RTO_MILLIS = 10000;
+    //Frames allowed to queue at the bottleneck
+    private static final int ALPHA = 2;
+    private static final int BETA = 4;
+
+    private final int mMaxWindow;
+    private int mWindow;
+    private boolean mSlowStart = true;
+
+    private long mSrttNanos = -1;
+    private long mRttVarNanos;
+    private long mMinRttNanos = Long.MAX_VALUE;
+    private long mLastRttNanos = -1;
+    private long mRtoNanos = INITIAL_RTO_MILLIS * 1000000L;
+
+    //The window is resized once per round trip, when this sequence is acknowledged
+    private long mRoundEnd;
+
+    SendWindow(int initialWindow, int maxWindow){
+        if(initialWindow < 1 || maxWindow < initialWindow){
+            throw new IllegalArgumentException("Bad window " + initialWindow + " of " + maxWindow);
+        }
+        mWindow = initialWindow;
+        mMaxWindow = maxWindow;
+    }
+
+    //Frames that may be unacknowledged at once
+    int window(){
+        return mWindow;
+    }
+
+    long rtoMillis(){
+        return mRtoNanos / 1000000L;
+    }
+
+    //Smoothed round trip time, -1 before the first sample
+    long srttMillis(){
+        return mSrttNanos < 0 ? -1 : mSrttNanos / 1000000L;
+    }
+
+    /*
+     * Everything before ackedUpTo has been acknowledged.
+     * rttNanos is the round trip of the newest acknowledged frame, or -1 if it was retransmitted.
+     * sentUpTo is one past the last sequence sent so far.
+     * */
+    void onAck(long ackedUpTo, long rttNanos, long sentUpTo){
+        if(rttNanos >= 0){
+            sample(rttNanos);
+        }
+        if(ackedUpTo < mRoundEnd){
+            return;
+        }
+        mRoundEnd = sentUpTo;
+        if(mLastRttNanos <= 0){
+            return;
+        }
+        double queued = mWindow * (double) (mLastRttNanos - mMinRttNanos) / mLastRttNanos;
+        if(mSlowStart){
+            if(queued > BETA){
+                mSlowStart = false;
+                mWindow--;
+            }else{
+                mWindow *= 2;
+            }
+        }else if(queued < ALPHA){
+            mWindow++;
+        }else if(queued > BETA){
+            mWindow--;
+        }
+        mWindow = Math.max(1, Math.min(mMaxWindow, mWindow));
+    }
+
+    //Nothing was acknowledged for rtoMillis()
+    void onTimeout(){
+        mSlowStart = false;
+        mWindow = Math.max(1, mWindow / 2);
+        mRtoNanos = Math.min(mRtoNanos * 2, MAX_RTO_MILLIS * 1000000L);
+    }
+
+    private void sample(long rttNanos){
+        mLastRttNanos = rttNanos;
+        mMinRttNanos = Math.min(mMinRttNanos, rttNanos);
+        if(mSrttNanos < 0){
+            mSrttNanos = rttNanos;
+            mRttVarNanos = rttNanos / 2;
+        }else{
+            mRttVarNanos = (3 * mRttVarNanos + Math.abs(mSrttNanos - rttNanos)) / 4;
+            mSrttNanos = (7 * mSrttNanos + rttNanos) / 8;
+        }
+        long rto = mSrttNanos + 4 * mRttVarNanos;
+        mRtoNanos = Math.max(MIN_RTO_MILLIS * 1000000L, Math.min(MAX_RTO_MILLIS * 1000000L, rto));
+    }
+}
@@ -0,0 +1,16 @@
+package com.example.bluetoothchat;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+//Listening end of a Transport, hands out a connected Channel for every incoming connection
+interface ServerChannel extends Closeable {
+
+    /*
+     * This is a blocking call and will only return on a
+     * successful connection or an exception (for example when the server channel is closed)
+     * */
+    Channel accept() throws IOException;
+
+    void close() throws IOException;
+}
@@ -0,0 +1,64 @@
+package com.example.bluetoothchat;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.view.View;
+import android.widget.TextView;
+
+/*
+ * Debug overlay: a TextView laid over the activity showing the connection metrics, refreshed
+ * once a second while it is visible. Nothing is sampled while it is hidden.
+ * Main thread only.
+ * */
+class StatsOverlay {
+
+    static final long REFRESH_MILLIS = 1000;
+
+    private final TextView mView;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private Metrics mMetrics;
+    private boolean mShowing;
+
+    private final Runnable mRefresh = new Runnable() {
+        @Override
+        public void run() {
+            if(!mShowing){
+                return;
+            }
+            mView.setText(mMetrics == null ? "No connection service" : mMetrics.snapshot().format());
+            mHandler.postDelayed(this, REFRESH_MILLIS);
+        }
+    };
+
+    StatsOverlay(TextView view){
+        mView = view;
+    }
+
+    //Show metrics from now on, null for none
+    void setMetrics(Metrics metrics){
+        mMetrics = metrics;
+    }
+
+    void toggle(){
+        if(mShowing){
+            hide();
+        }else{
+            show();
+        }
+    }
+
+    void show(){
+        if(mShowing){
+            return;
+        }
+        mShowing = true;
+        mView.setVisibility(View.VISIBLE);
+        mRefresh.run();
+    }
+
+    void hide(){
+        mShowing = false;
+        mHandler.removeCallbacks(mRefresh);
+        mView.setVisibility(View.GONE);
+    }
+}
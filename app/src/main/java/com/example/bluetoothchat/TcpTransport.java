@@ -0,0 +1,136 @@
+package com.example.bluetoothchat;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.UUID;
+
+/*
+ * Transport over TCP sockets, used to run ConnectionEngine on a plain JVM.
+ * Addresses are "host:port", or just "port" for the loopback interface.
+ * The service name and UUID are ignored; listen() binds the port given to the constructor.
+ * Channels are NIO socket channels, so the engine drives them from its event loop.
+ * */
+class TcpTransport implements Transport {
+
+    private final int mPort;
+    private volatile int mLocalPort = -1;
+
+    //Listen on the given port, 0 picks a free one (see getLocalPort())
+    TcpTransport(int port){
+        mPort = port;
+    }
+
+    //Port the most recent listen() is bound to, or -1 if listen() hasn't been called
+    int getLocalPort(){
+        return mLocalPort;
+    }
+
+    @Override
+    public ServerChannel listen(String name, UUID uuid) throws IOException {
+        final ServerSocketChannel serverChannel = ServerSocketChannel.open();
+        serverChannel.socket().setReuseAddress(true);
+        serverChannel.socket().bind(new InetSocketAddress(InetAddress.getByName(null), mPort));
+        mLocalPort = serverChannel.socket().getLocalPort();
+        return new NioServerChannel() {
+            @Override
+            public Channel accept() throws IOException {
+                SocketChannel socketChannel = serverChannel.accept();
+                if(socketChannel == null){
+                    return null;
+                }
+                TcpChannel channel = new TcpChannel(socketChannel, null, null);
+                channel.onConnected();
+                return channel;
+            }
+
+            @Override
+            public ServerSocketChannel getServerSocketChannel() {
+                return serverChannel;
+            }
+
+            @Override
+            public void close() throws IOException {
+                serverChannel.close();
+            }
+        };
+    }
+
+    @Override
+    public Channel createChannel(String address, UUID uuid) throws IOException {
+        int colon = address.lastIndexOf(':');
+        String host = colon < 0 ? null : address.substring(0, colon);
+        int port;
+        try {
+            port = Integer.parseInt(address.substring(colon + 1));
+        } catch (NumberFormatException e) {
+            throw new IOException("Not a TCP address: " + address);
+        }
+        InetSocketAddress remote = host == null
+                ? new InetSocketAddress(InetAddress.getByName(null), port)
+                : new InetSocketAddress(host, port);
+        return new TcpChannel(SocketChannel.open(), remote, address);
+    }
+
+    private static class TcpChannel implements NioChannel {
+        private final SocketChannel mmChannel;
+        private final InetSocketAddress mmRemote;
+        //What an outgoing channel was created with, so it reports the address it was asked for
+        private final String mmAddress;
+
+        TcpChannel(SocketChannel channel, InetSocketAddress remote, String address){
+            mmChannel = channel;
+            mmRemote = remote;
+            mmAddress = address;
+        }
+
+        @Override
+        public void connect() throws IOException {
+            if(mmChannel.connect(mmRemote)){
+                onConnected();
+            }
+        }
+
+        @Override
+        public void onConnected() throws IOException {
+            mmChannel.socket().setTcpNoDelay(true);
+        }
+
+        @Override
+        public SocketChannel getSocketChannel() {
+            return mmChannel;
+        }
+
+        @Override
+        public String getRemoteAddress() {
+            if(mmAddress != null){
+                return mmAddress;
+            }
+            Socket socket = mmChannel.socket();
+            if(socket.getInetAddress() != null){
+                return socket.getInetAddress().getHostAddress() + ":" + socket.getPort();
+            }
+            return mmRemote.getAddress().getHostAddress() + ":" + mmRemote.getPort();
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            return mmChannel.socket().getInputStream();
+        }
+
+        @Override
+        public OutputStream getOutputStream() throws IOException {
+            return mmChannel.socket().getOutputStream();
+        }
+
+        @Override
+        public void close() throws IOException {
+            mmChannel.close();
+        }
+    }
+}
@@ -0,0 +1,182 @@
+package com.example.bluetoothchat;
+
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/*
+ * Hashed timer wheel (Varghese and Lauck): time is counted in ticks and a timer due at tick t
+ * goes in bucket t % WHEEL_SIZE, an intrusive doubly linked list, so adding or removing one is
+ * O(1) however many are pending, and advancing the clock only visits the buckets it passes.
+ * A timer more than a rotation out sits in its bucket until its round comes.
+ * Every heartbeat, retransmit and connect timeout of every peer shares one of these per EventLoop,
+ * which is what keeps timer cost flat as peers are added. Not thread safe, the loop owns it.
+ * */
+final class TimerWheel {
+
+    static final int WHEEL_SIZE = 1024;
+    private static final int MASK = WHEEL_SIZE - 1;
+
+    //What the wheel links, extended by the timer type
+    abstract static class Node {
+        private Node mPrev;
+        private Node mNext;
+        private long mDeadlineTick;
+        //-1 while not in the wheel
+        private int mBucket = -1;
+
+        long deadlineTick(){
+            return mDeadlineTick;
+        }
+
+        //Timers cancelled where they couldn't be unlinked say so here, and are dropped when found
+        abstract boolean isCancelled();
+    }
+
+    private static final Comparator<Node> BY_DEADLINE = new Comparator<Node>() {
+        @Override
+        public int compare(Node a, Node b) {
+            return a.mDeadlineTick < b.mDeadlineTick ? -1 : a.mDeadlineTick > b.mDeadlineTick ? 1 : 0;
+        }
+    };
+
+    private final Node[] mHeads = new Node[WHEEL_SIZE];
+    private final Node[] mTails = new Node[WHEEL_SIZE];
+    //Every bucket up to and including this tick has been expired
+    private long mTick;
+    private int mSize;
+    //Earliest deadline, recomputed when the timer that had it goes
+    private long mNextDeadline = -1;
+    private boolean mNextKnown = true;
+
+    TimerWheel(long startTick){
+        mTick = startTick;
+    }
+
+    //Links node to fire at deadlineTick, or on the next tick if that has passed
+    void add(Node node, long deadlineTick){
+        if(node.mBucket >= 0){
+            throw new IllegalStateException("Timer is already scheduled");
+        }
+        long tick = Math.max(deadlineTick, mTick + 1);
+        int bucket = (int) (tick & MASK);
+        node.mDeadlineTick = tick;
+        node.mBucket = bucket;
+        node.mNext = null;
+        node.mPrev = mTails[bucket];
+        //Appended, so timers due on the same tick fire in the order they were added
+        if(mTails[bucket] == null){
+            mHeads[bucket] = node;
+        }else{
+            mTails[bucket].mNext = node;
+        }
+        mTails[bucket] = node;
+        if(mSize++ == 0){
+            mNextDeadline = tick;
+            mNextKnown = true;
+        }else if(mNextKnown && tick < mNextDeadline){
+            mNextDeadline = tick;
+        }
+    }
+
+    //Unlinks node, does nothing if it isn't in the wheel
+    void remove(Node node){
+        if(node.mBucket < 0){
+            return;
+        }
+        unlink(node);
+        if(node.mDeadlineTick == mNextDeadline){
+            mNextKnown = false;
+        }
+    }
+
+    /*
+     * Moves the clock to nowTick and appends every timer that became due to expired, earliest
+     * first. Cancelled timers found on the way are dropped. At most one rotation of buckets is
+     * visited however far the clock jumps.
+     * */
+    void advance(long nowTick, List<Node> expired){
+        if(nowTick <= mTick){
+            return;
+        }
+        if(mSize == 0){
+            mTick = nowTick;
+            return;
+        }
+        long ticks = Math.min(nowTick - mTick, WHEEL_SIZE);
+        int first = expired.size();
+        for(long t = mTick + 1; t <= mTick + ticks; t++){
+            Node node = mHeads[(int) (t & MASK)];
+            while(node != null){
+                Node next = node.mNext;
+                if(node.isCancelled()){
+                    unlink(node);
+                }else if(node.mDeadlineTick <= nowTick){
+                    unlink(node);
+                    expired.add(node);
+                }
+                node = next;
+            }
+        }
+        if(ticks == WHEEL_SIZE && expired.size() - first > 1){
+            //A whole rotation was swept, buckets no longer come in deadline order
+            Collections.sort(expired.subList(first, expired.size()), BY_DEADLINE);
+        }
+        mTick = nowTick;
+        if(mNextKnown && mNextDeadline <= nowTick){
+            mNextKnown = false;
+        }
+    }
+
+    //Tick the earliest timer is due at, -1 if there are none. May be that of a cancelled timer
+    long nextDeadlineTick(){
+        if(mSize == 0){
+            return -1;
+        }
+        if(!mNextKnown){
+            mNextDeadline = findNextDeadline();
+            mNextKnown = true;
+        }
+        return mNextDeadline;
+    }
+
+    int size(){
+        return mSize;
+    }
+
+    //Walks the next rotation for the first bucket due in it, then everything if none is
+    private long findNextDeadline(){
+        for(long t = mTick + 1; t <= mTick + WHEEL_SIZE; t++){
+            for(Node node = mHeads[(int) (t & MASK)]; node != null; node = node.mNext){
+                if(node.mDeadlineTick == t){
+                    return t;
+                }
+            }
+        }
+        long earliest = Long.MAX_VALUE;
+        for(Node head : mHeads){
+            for(Node node = head; node != null; node = node.mNext){
+                earliest = Math.min(earliest, node.mDeadlineTick);
+            }
+        }
+        return earliest;
+    }
+
+    private void unlink(Node node){
+        int bucket = node.mBucket;
+        if(node.mPrev == null){
+            mHeads[bucket] = node.mNext;
+        }else{
+            node.mPrev.mNext = node.mNext;
+        }
+        if(node.mNext == null){
+            mTails[bucket] = node.mPrev;
+        }else{
+            node.mNext.mPrev = node.mPrev;
+        }
+        node.mPrev = null;
+        node.mNext = null;
+        node.mBucket = -1;
+        mSize--;
+    }
+}
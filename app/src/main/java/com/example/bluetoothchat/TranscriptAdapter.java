@@ -0,0 +1,90 @@
+package com.example.bluetoothchat;
+
+import android.content.Context;
+import android.view.Choreographer;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.BaseAdapter;
+import android.widget.TextView;
+
+/*
+ * Shows a TranscriptModel in a ListView. Only visible rows are bound and their views are
+ * recycled through convertView. Changes to the model are announced at most once per frame:
+ * callers mark it dirty and the ListView is notified on the next Choreographer callback, so a
+ * burst of messages costs one layout per vsync however many arrive.
+ * */
+class TranscriptAdapter extends BaseAdapter {
+
+    private final TranscriptModel mModel;
+    private final LayoutInflater mLayoutInflater;
+    private boolean mFramePosted;
+
+    private final Choreographer.FrameCallback mFrameCallback = new Choreographer.FrameCallback() {
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            mFramePosted = false;
+            notifyDataSetChanged();
+        }
+    };
+
+    private static class ViewHolder {
+        TextView text;
+    }
+
+    TranscriptAdapter(Context context, TranscriptModel model){
+        mModel = model;
+        mLayoutInflater = LayoutInflater.from(context);
+    }
+
+    //The model changed, refresh the list on the next frame. Main thread only
+    void invalidateOnNextFrame(){
+        if(!mFramePosted){
+            mFramePosted = true;
+            Choreographer.getInstance().postFrameCallback(mFrameCallback);
+        }
+    }
+
+    //Drop a pending refresh, e.g. when the activity goes away
+    void cancelPendingFrame(){
+        if(mFramePosted){
+            mFramePosted = false;
+            Choreographer.getInstance().removeFrameCallback(mFrameCallback);
+        }
+    }
+
+    @Override
+    public int getCount() {
+        return mModel.size();
+    }
+
+    @Override
+    public Object getItem(int position) {
+        return mModel.get(position);
+    }
+
+    @Override
+    public long getItemId(int position) {
+        return mModel.sequenceAt(position);
+    }
+
+    @Override
+    public boolean hasStableIds() {
+        return true;
+    }
+
+    @Override
+    public View getView(int position, View convertView, ViewGroup parent) {
+        ViewHolder holder;
+        if(convertView == null){
+            convertView = mLayoutInflater.inflate(R.layout.transcript_row, parent, false);
+            holder = new ViewHolder();
+            holder.text = convertView.findViewById(R.id.transcriptText);
+            convertView.setTag(holder);
+        }else{
+            holder = (ViewHolder) convertView.getTag();
+        }
+        holder.text.setText(mModel.get(position).text);
+        return convertView;
+    }
+}
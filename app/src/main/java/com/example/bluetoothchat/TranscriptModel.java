@@ -0,0 +1,78 @@
+package com.example.bluetoothchat;
+
+/*
+ * The chat transcript: the most recent messages in a fixed ring of records.
+ * Once the ring is full the oldest message is overwritten, so memory stays flat however long
+ * the session runs. Records are reused in place rather than reallocated. Not thread safe, it
+ * is only touched on the main thread.
+ * */
+class TranscriptModel {
+
+    static final int DEFAULT_CAPACITY = 500;
+
+    static final class Entry {
+        String address;
+        String text;
+        long timeMillis;
+    }
+
+    private final Entry[] mEntries;
+    //Messages ever added, the newest one lives at (mAdded - 1) % capacity
+    private long mAdded;
+
+    TranscriptModel(){
+        this(DEFAULT_CAPACITY);
+    }
+
+    TranscriptModel(int capacity){
+        mEntries = new Entry[capacity];
+        for(int i = 0; i < capacity; i++){
+            mEntries[i] = new Entry();
+        }
+    }
+
+    void add(String address, String text, long timeMillis){
+        Entry entry = mEntries[(int) (mAdded % mEntries.length)];
+        entry.address = address;
+        entry.text = text;
+        entry.timeMillis = timeMillis;
+        mAdded++;
+    }
+
+    //Messages currently held, at most capacity()
+    int size(){
+        return (int) Math.min(mAdded, mEntries.length);
+    }
+
+    int capacity(){
+        return mEntries.length;
+    }
+
+    /*
+     * Message at position, 0 being the oldest one still held. The Entry is overwritten
+     * once capacity() newer messages have been added.
+     * */
+    Entry get(int position){
+        if(position < 0 || position >= size()){
+            throw new IndexOutOfBoundsException("position " + position + ", size " + size());
+        }
+        return mEntries[(int) ((firstSequence() + position) % mEntries.length)];
+    }
+
+    //Identifies the message at position for as long as it is held, it never shifts as older ones drop out
+    long sequenceAt(int position){
+        return firstSequence() + position;
+    }
+
+    private long firstSequence(){
+        return mAdded - size();
+    }
+
+    void clear(){
+        for(Entry entry : mEntries){
+            entry.address = null;
+            entry.text = null;
+        }
+        mAdded = 0;
+    }
+}
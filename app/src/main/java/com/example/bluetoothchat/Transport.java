@@ -0,0 +1,18 @@
+package com.example.bluetoothchat;
+
+import java.io.IOException;
+import java.util.UUID;
+
+/*
+ * Factory for the channels ConnectionEngine runs on.
+ * RfcommTransport is what the app uses; TcpTransport and PipedTransport let the same engine
+ * run on a plain JVM so it can be tested and measured without two phones.
+ * */
+interface Transport {
+
+    //Start listening for incoming connections advertised under the given name and service UUID
+    ServerChannel listen(String name, UUID uuid) throws IOException;
+
+    //Create an unconnected channel to the peer at address. Call Channel.connect() to connect it
+    Channel createChannel(String address, UUID uuid) throws IOException;
+}
@@ -0,0 +1,149 @@
+package com.example.bluetoothchat;
+
+import java.nio.ByteBuffer;
+
+/*
+ * UTF-8 for everything that goes over the air, whatever the platform's default charset is.
+ * Text is only ever decoded from a complete frame or a complete length-delimited field, never
+ * from whatever bytes one read() happened to return, so a character can't be cut in half by
+ * the transport. Malformed input (truncated sequences, overlong forms, surrogates) decodes to
+ * U+FFFD instead of throwing, since it comes from a remote device we don't control.
+ * */
+final class Utf8 {
+
+    static final char REPLACEMENT = '\uFFFD';
+
+    private Utf8(){
+    }
+
+    //Bytes value takes encoded. Unpaired surrogates count as the one byte '?' they are sent as
+    static int encodedLength(CharSequence value){
+        int length = 0;
+        for(int i = 0; i < value.length(); i++){
+            char c = value.charAt(i);
+            if(c < 0x80){
+                length++;
+            }else if(c < 0x800){
+                length += 2;
+            }else if(Character.isHighSurrogate(c) && i + 1 < value.length()
+                    && Character.isLowSurrogate(value.charAt(i + 1))){
+                length += 4;
+                i++;
+            }else if(isSurrogate(c)){
+                length++;
+            }else{
+                length += 3;
+            }
+        }
+        return length;
+    }
+
+    /*
+     * Encode value into dst starting at offset, which must have encodedLength(value) bytes of room.
+     * Returns the offset just past the last byte written.
+     * */
+    static int encode(CharSequence value, byte[] dst, int offset){
+        for(int i = 0; i < value.length(); i++){
+            char c = value.charAt(i);
+            if(c < 0x80){
+                dst[offset++] = (byte) c;
+            }else if(c < 0x800){
+                dst[offset++] = (byte) (0xC0 | (c >> 6));
+                dst[offset++] = (byte) (0x80 | (c & 0x3F));
+            }else if(Character.isHighSurrogate(c) && i + 1 < value.length()
+                    && Character.isLowSurrogate(value.charAt(i + 1))){
+                int codePoint = Character.toCodePoint(c, value.charAt(++i));
+                dst[offset++] = (byte) (0xF0 | (codePoint >> 18));
+                dst[offset++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+                dst[offset++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+                dst[offset++] = (byte) (0x80 | (codePoint & 0x3F));
+            }else if(isSurrogate(c)){
+                dst[offset++] = '?';
+            }else{
+                dst[offset++] = (byte) (0xE0 | (c >> 12));
+                dst[offset++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                dst[offset++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+        return offset;
+    }
+
+    static byte[] encode(CharSequence value){
+        byte[] bytes = new byte[encodedLength(value)];
+        encode(value, bytes, 0);
+        return bytes;
+    }
+
+    //Character.isSurrogate() needs API 19
+    private static boolean isSurrogate(char c){
+        return c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE;
+    }
+
+    //Decode src from its position to its limit, which are left as they were
+    static String decode(ByteBuffer src){
+        return decode(src, src.position(), src.remaining());
+    }
+
+    static String decode(byte[] src, int offset, int length){
+        return decode(ByteBuffer.wrap(src), offset, length);
+    }
+
+    //Decode length bytes of src starting at the absolute index offset. Heap or direct
+    static String decode(ByteBuffer src, int offset, int length){
+        //UTF-16 never needs more chars than UTF-8 needs bytes
+        char[] chars = new char[length];
+        int count = 0;
+        int end = offset + length;
+        int i = offset;
+        while(i < end){
+            int b = src.get(i) & 0xFF;
+            if(b < 0x80){
+                chars[count++] = (char) b;
+                i++;
+                continue;
+            }
+            int extra;
+            int codePoint;
+            int min;
+            if(b >= 0xC2 && b < 0xE0){
+                extra = 1;
+                codePoint = b & 0x1F;
+                min = 0x80;
+            }else if(b >= 0xE0 && b < 0xF0){
+                extra = 2;
+                codePoint = b & 0x0F;
+                min = 0x800;
+            }else if(b >= 0xF0 && b < 0xF5){
+                extra = 3;
+                codePoint = b & 0x07;
+                min = 0x10000;
+            }else{
+                //Stray continuation byte or a lead byte no valid sequence starts with
+                chars[count++] = REPLACEMENT;
+                i++;
+                continue;
+            }
+            int j = i + 1;
+            while(j < end && j <= i + extra && (src.get(j) & 0xC0) == 0x80){
+                codePoint = (codePoint << 6) | (src.get(j) & 0x3F);
+                j++;
+            }
+            if(j - i - 1 < extra || codePoint < min || codePoint > Character.MAX_CODE_POINT
+                    || (codePoint >= Character.MIN_SURROGATE && codePoint <= Character.MAX_SURROGATE)){
+                //One replacement for the whole broken sequence, resync on the byte that broke it
+                chars[count++] = REPLACEMENT;
+                i = j;
+                continue;
+            }
+            if(codePoint >= 0x10000){
+                int bits = codePoint - 0x10000;
+                chars[count++] = (char) (Character.MIN_HIGH_SURROGATE + (bits >>> 10));
+                chars[count++] = (char) (Character.MIN_LOW_SURROGATE + (bits & 0x3FF));
+            }else{
+                chars[count++] = (char) codePoint;
+            }
+            i = j;
+        }
+        return new String(chars, 0, count);
+    }
+}
@@ -0,0 +1,81 @@
+package com.example.bluetoothchat;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ByteBufferPoolTest {
+
+    @Test
+    public void lastRelease_recyclesBufferAndHandle() {
+        ByteBufferPool pool = new ByteBufferPool();
+        PooledBuffer first = pool.acquire(100);
+        assertEquals(128, first.buffer().capacity());
+        first.buffer().putInt(42);
+        first.retain();
+        assertEquals(2, first.refCount());
+
+        assertFalse(first.release());
+        assertEquals(0, pool.pooled(100));
+        assertTrue(first.release());
+        assertEquals(1, pool.pooled(100));
+        assertEquals(0, pool.outstanding());
+
+        //The same handle comes back, cleared
+        PooledBuffer second = pool.acquire(120);
+        assertSame(first, second);
+        assertEquals(0, second.buffer().position());
+        assertEquals(128, second.buffer().limit());
+        second.release();
+    }
+
+    @Test
+    public void releasedTooOften_throwsAndLeavesPoolAlone() {
+        ByteBufferPool pool = new ByteBufferPool();
+        PooledBuffer buffer = pool.acquire(16);
+        buffer.release();
+        try {
+            buffer.release();
+            fail("Second release should throw");
+        } catch (IllegalStateException expected) {
+        }
+        try {
+            buffer.buffer();
+            fail("Use after release should throw");
+        } catch (IllegalStateException expected) {
+        }
+        assertEquals(1, pool.pooled(16));
+        assertEquals(0, pool.outstanding());
+    }
+
+    @Test
+    public void oversizedBuffers_areNotPooled() {
+        ByteBufferPool pool = new ByteBufferPool(1024, 4, true);
+        PooledBuffer buffer = pool.acquire(5000);
+        assertTrue(buffer.buffer().isDirect());
+        assertEquals(5000, buffer.buffer().capacity());
+        assertTrue(buffer.release());
+        assertNotSame(buffer, pool.acquire(5000));
+    }
+
+    @Test
+    public void leakDetection_reportsBuffersCollectedWithoutRelease() throws Exception {
+        ByteBufferPool pool = new ByteBufferPool();
+        pool.setLeakDetection(true);
+        pool.acquire(64).release();
+        leak(pool);
+
+        for (int i = 0; i < 50 && pool.leaks() == 0; i++) {
+            System.gc();
+            Thread.sleep(20);
+            pool.checkLeaks();
+        }
+        assertEquals(1, pool.leaks());
+        assertEquals(0, pool.outstanding());
+    }
+
+    //Kept out of the test method so nothing on its stack still points at the buffer
+    private static void leak(ByteBufferPool pool) {
+        pool.acquire(256).buffer().putLong(1);
+    }
+}
@@ -0,0 +1,107 @@
+package com.example.bluetoothchat;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.*;
+
+public class CoalescingDispatcherTest {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    //Stands in for the main thread's Handler: runs posted tasks when told to
+    private static class ManualExecutor implements Executor {
+        final List<Runnable> posted = new ArrayList<>();
+
+        @Override
+        public void execute(Runnable command) {
+            posted.add(command);
+        }
+
+        void runAll() {
+            while (!posted.isEmpty()) {
+                posted.remove(0).run();
+            }
+        }
+    }
+
+    private static class RecordingListener implements CoalescingDispatcher.Listener {
+        final List<String> messages = new ArrayList<>();
+        final List<Integer> batches = new ArrayList<>();
+
+        @Override
+        public void onMessage(String address, int type, ByteBuffer payload) {
+            messages.add(address + ":" + UTF_8.decode(payload));
+        }
+
+        @Override
+        public void onBatchEnd(int count) {
+            batches.add(count);
+        }
+    }
+
+    @Test
+    public void burstOfMessages_isDeliveredInOnePost() {
+        ManualExecutor ui = new ManualExecutor();
+        ByteBufferPool pool = new ByteBufferPool();
+        CoalescingDispatcher dispatcher = new CoalescingDispatcher(ui, pool);
+        RecordingListener listener = new RecordingListener();
+        dispatcher.setListener(listener);
+        MessageBus bus = new MessageBus();
+        bus.subscribe(FrameCodec.TYPE_TEXT, dispatcher);
+
+        //The engine reuses one view for every frame, so the dispatcher has to copy
+        ByteBuffer view = ByteBuffer.allocate(64);
+        for (int i = 0; i < 100; i++) {
+            view.clear();
+            view.put(("message " + i).getBytes(UTF_8));
+            view.flip();
+            bus.publish("peer", FrameCodec.TYPE_TEXT, view);
+        }
+        assertEquals(1, ui.posted.size());
+        ui.runAll();
+
+        assertEquals(100, listener.messages.size());
+        assertEquals("peer:message 0", listener.messages.get(0));
+        assertEquals("peer:message 99", listener.messages.get(99));
+        assertEquals(1, listener.batches.size());
+        //Every copy went back to the pool
+        assertEquals(ByteBufferPool.DEFAULT_BUFFERS_PER_CLASS, pool.pooled(16));
+    }
+
+    @Test
+    public void bus_routesByTypeAndRestoresTheViewBetweenSubscribers() {
+        MessageBus bus = new MessageBus();
+        final List<String> seen = new ArrayList<>();
+        MessageSubscriber consuming = new MessageSubscriber() {
+            @Override
+            public void onMessage(String address, int type, ByteBuffer payload) {
+                seen.add("first:" + UTF_8.decode(payload));
+            }
+        };
+        MessageSubscriber second = new MessageSubscriber() {
+            @Override
+            public void onMessage(String address, int type, ByteBuffer payload) {
+                seen.add("second:" + UTF_8.decode(payload));
+            }
+        };
+        bus.subscribe(FrameCodec.TYPE_TEXT, consuming);
+        bus.subscribe(FrameCodec.TYPE_TEXT, second);
+        bus.subscribe(2, second);
+
+        bus.publish("peer", FrameCodec.TYPE_TEXT, ByteBuffer.wrap("hi".getBytes(UTF_8)));
+        bus.unsubscribe(FrameCodec.TYPE_TEXT, consuming);
+        bus.publish("peer", FrameCodec.TYPE_TEXT, ByteBuffer.wrap("again".getBytes(UTF_8)));
+        bus.publish("peer", 3, ByteBuffer.wrap("nobody".getBytes(UTF_8)));
+
+        assertEquals(3, seen.size());
+        assertEquals("first:hi", seen.get(0));
+        assertEquals("second:hi", seen.get(1));
+        assertEquals("second:again", seen.get(2));
+    }
+}
@@ -0,0 +1,233 @@
+package com.example.bluetoothchat;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class ConnectRaceTest {
+
+    private static final UUID SERVICE_UUID = UUID.fromString("00001101-0000-1000-8000-00805F9B34FB");
+    private static final long LONG = 10000;
+
+    private static final int SUCCEED = 0;
+    private static final int FAIL = 1;
+    private static final int HANG = 2;
+
+    //Connects, fails or blocks until closed, after delayMillis
+    private static class FakeChannel implements Channel {
+        final int behaviour;
+        final long delayMillis;
+        final CountDownLatch closed = new CountDownLatch(1);
+        volatile boolean connectCalled;
+
+        FakeChannel(int behaviour, long delayMillis) {
+            this.behaviour = behaviour;
+            this.delayMillis = delayMillis;
+        }
+
+        @Override
+        public void connect() throws IOException {
+            connectCalled = true;
+            long wait = behaviour == HANG ? LONG * 10 : delayMillis;
+            try {
+                if (closed.await(wait, TimeUnit.MILLISECONDS)) {
+                    throw new IOException("Closed while connecting");
+                }
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            }
+            if (behaviour != SUCCEED) {
+                throw new IOException("Refused");
+            }
+        }
+
+        @Override
+        public String getRemoteAddress() {
+            return "peer";
+        }
+
+        @Override
+        public InputStream getInputStream() {
+            return null;
+        }
+
+        @Override
+        public OutputStream getOutputStream() {
+            return null;
+        }
+
+        @Override
+        public void close() {
+            closed.countDown();
+        }
+
+        boolean isClosed() {
+            return closed.getCount() == 0;
+        }
+    }
+
+    private static class FakeDialer implements ConnectRace.Dialer {
+        final Map<String, FakeChannel> channels = new HashMap<>();
+
+        FakeDialer with(String strategy, int behaviour, long delayMillis) {
+            channels.put(strategy, new FakeChannel(behaviour, delayMillis));
+            return this;
+        }
+
+        @Override
+        public List<String> strategies(String address, UUID uuid) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Channel createChannel(String address, UUID uuid, String strategy) throws IOException {
+            FakeChannel channel = channels.get(strategy);
+            if (channel == null) {
+                throw new IOException("No such strategy");
+            }
+            return channel;
+        }
+    }
+
+    private static class Result implements ConnectRace.Callback {
+        final CountDownLatch done = new CountDownLatch(1);
+        volatile Channel channel;
+        volatile String strategy;
+        volatile IOException error;
+
+        @Override
+        public void onWon(ConnectRace race, Channel channel, String strategy) {
+            this.channel = channel;
+            this.strategy = strategy;
+            done.countDown();
+        }
+
+        @Override
+        public void onLost(ConnectRace race, IOException lastError) {
+            error = lastError;
+            done.countDown();
+        }
+    }
+
+    private EventLoop mLoop;
+
+    @Before
+    public void setUp() throws Exception {
+        mLoop = new EventLoop("ConnectRaceTest");
+    }
+
+    @After
+    public void tearDown() {
+        mLoop.shutdown();
+    }
+
+    private ConnectRace race(FakeDialer dialer, long staggerMillis, long timeoutMillis, Result result, String... strategies) {
+        ConnectRace race = new ConnectRace("peer", SERVICE_UUID, dialer, Arrays.asList(strategies), mLoop,
+                staggerMillis, timeoutMillis, result);
+        race.start();
+        return race;
+    }
+
+    @Test
+    public void firstToConnectWins_andTheOthersAreClosed() throws Exception {
+        FakeDialer dialer = new FakeDialer()
+                .with("secure", HANG, 0)
+                .with("insecure", SUCCEED, 0)
+                .with("channel-1", HANG, 0);
+        Result result = new Result();
+        race(dialer, 50, LONG, result, "secure", "insecure", "channel-1");
+
+        assertTrue(result.done.await(5, TimeUnit.SECONDS));
+        assertEquals("insecure", result.strategy);
+        assertSame(dialer.channels.get("insecure"), result.channel);
+        assertFalse(dialer.channels.get("insecure").isClosed());
+        assertTrue(dialer.channels.get("secure").isClosed());
+        //The winner connected before its stagger ran out, the last strategy was never tried
+        assertFalse(dialer.channels.get("channel-1").connectCalled);
+    }
+
+    @Test
+    public void failedAttempt_startsTheNextWithoutWaitingForTheStagger() throws Exception {
+        FakeDialer dialer = new FakeDialer()
+                .with("secure", FAIL, 0)
+                .with("insecure", SUCCEED, 0);
+        Result result = new Result();
+        long start = System.nanoTime();
+        race(dialer, LONG, LONG, result, "secure", "insecure");
+
+        assertTrue(result.done.await(5, TimeUnit.SECONDS));
+        assertEquals("insecure", result.strategy);
+        assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(LONG));
+    }
+
+    @Test
+    public void bestStrategyGetsItsHeadStart() throws Exception {
+        //Both would connect, the first one given does so before the stagger lets the second start
+        FakeDialer dialer = new FakeDialer()
+                .with("secure", SUCCEED, 50)
+                .with("insecure", SUCCEED, 0);
+        Result result = new Result();
+        race(dialer, 2000, LONG, result, "secure", "insecure");
+
+        assertTrue(result.done.await(5, TimeUnit.SECONDS));
+        assertEquals("secure", result.strategy);
+        assertFalse(dialer.channels.get("insecure").connectCalled);
+    }
+
+    @Test
+    public void hangingAttempt_isClosedAfterItsTimeout() throws Exception {
+        FakeDialer dialer = new FakeDialer().with("secure", HANG, 0);
+        Result result = new Result();
+        race(dialer, 50, 100, result, "secure");
+
+        assertTrue(result.done.await(5, TimeUnit.SECONDS));
+        assertNull(result.channel);
+        assertNotNull(result.error);
+        assertTrue(dialer.channels.get("secure").isClosed());
+    }
+
+    @Test
+    public void everyAttemptFailing_reportsTheLoss() throws Exception {
+        FakeDialer dialer = new FakeDialer()
+                .with("secure", FAIL, 0)
+                .with("insecure", FAIL, 10);
+        Result result = new Result();
+        //"spp-insecure" can't even be created
+        race(dialer, 20, LONG, result, "secure", "spp-insecure", "insecure");
+
+        assertTrue(result.done.await(5, TimeUnit.SECONDS));
+        assertNull(result.channel);
+        assertEquals("Refused", result.error.getMessage());
+    }
+
+    @Test
+    public void close_cancelsEveryAttemptWithoutReporting() throws Exception {
+        FakeDialer dialer = new FakeDialer()
+                .with("secure", HANG, 0)
+                .with("insecure", HANG, 0);
+        Result result = new Result();
+        ConnectRace race = race(dialer, 10, LONG, result, "secure", "insecure");
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!dialer.channels.get("insecure").connectCalled && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+
+        race.close();
+        assertTrue(dialer.channels.get("secure").isClosed());
+        assertTrue(dialer.channels.get("insecure").isClosed());
+        assertFalse(result.done.await(200, TimeUnit.MILLISECONDS));
+    }
+}
@@ -0,0 +1,442 @@
+package com.example.bluetoothchat;
+
+import org.junit.Assume;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs the real accept/connect/read/write paths over JVM transports.
+ */
+public class ConnectionEngineTest {
+
+    private static final UUID SERVICE_UUID = UUID.fromString("00001101-0000-1000-8000-00805F9B34FB");
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int MESSAGES = 5000;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private static class RecordingListener implements ConnectionListener {
+        final CountDownLatch connected = new CountDownLatch(1);
+        final CountDownLatch failed = new CountDownLatch(1);
+        final CountDownLatch received;
+        final AtomicInteger outOfOrder = new AtomicInteger();
+        private int next;
+
+        RecordingListener(int expected) {
+            received = new CountDownLatch(expected);
+        }
+
+        @Override
+        public void onConnected(String address) {
+            connected.countDown();
+        }
+
+        @Override
+        public void onConnectionFailed(String address, IOException e) {
+            failed.countDown();
+        }
+
+        @Override
+        public void onFrame(String address, int type, ByteBuffer payload) {
+            String text = UTF_8.decode(payload).toString();
+            if (!text.equals("message " + next)) {
+                outOfOrder.incrementAndGet();
+            }
+            next++;
+            received.countDown();
+        }
+
+        @Override
+        public void onDisconnected(String address) {
+        }
+
+        @Override
+        public void onBackpressure(String address, boolean congested) {
+        }
+    }
+
+    //Collects text frames and connection events from any number of peers
+    private static class HubListener implements ConnectionListener {
+        final CountDownLatch connected;
+        final CountDownLatch received;
+        final CountDownLatch failed = new CountDownLatch(1);
+        final List<String> messages = Collections.synchronizedList(new ArrayList<String>());
+
+        HubListener(int expectedConnections, int expectedMessages) {
+            connected = new CountDownLatch(expectedConnections);
+            received = new CountDownLatch(expectedMessages);
+        }
+
+        @Override
+        public void onConnected(String address) {
+            connected.countDown();
+        }
+
+        @Override
+        public void onConnectionFailed(String address, IOException e) {
+            failed.countDown();
+        }
+
+        @Override
+        public void onFrame(String address, int type, ByteBuffer payload) {
+            messages.add(address + ":" + UTF_8.decode(payload));
+            received.countDown();
+        }
+
+        @Override
+        public void onDisconnected(String address) {
+        }
+
+        @Override
+        public void onBackpressure(String address, boolean congested) {
+        }
+    }
+
+    private static void assertMessagesFlow(Transport serverTransport, Transport clientTransport)
+            throws InterruptedException {
+        RecordingListener serverListener = new RecordingListener(MESSAGES);
+        RecordingListener clientListener = new RecordingListener(0);
+        ConnectionEngine server = new ConnectionEngine(serverTransport, "test", SERVICE_UUID, serverListener);
+        ConnectionEngine client = new ConnectionEngine(clientTransport, "client", SERVICE_UUID, clientListener);
+        server.start();
+        String address = serverTransport instanceof TcpTransport
+                ? String.valueOf(((TcpTransport) serverTransport).getLocalPort())
+                : "test";
+        try {
+            client.connect(address, SERVICE_UUID);
+            assertTrue(clientListener.connected.await(5, TimeUnit.SECONDS));
+            assertTrue(serverListener.connected.await(5, TimeUnit.SECONDS));
+
+            long wireBytes = 0;
+            for (int i = 0; i < MESSAGES; i++) {
+                byte[] message = ("message " + i).getBytes(UTF_8);
+                //Back off while the writer's queue is full
+                while (!client.write(message)) {
+                    Thread.yield();
+                }
+                wireBytes += FrameCodec.frameSize(message.length);
+            }
+            assertTrue(serverListener.received.await(30, TimeUnit.SECONDS));
+            assertEquals(0, serverListener.outOfOrder.get());
+
+            //Every frame and byte is counted once on each side
+            Metrics.Snapshot received = server.getMetrics().snapshot();
+            assertEquals(MESSAGES, received.value("frames.in"));
+            assertEquals(wireBytes, received.value("bytes.in"));
+            assertEquals(1, received.value("peers"));
+            Metrics.Snapshot sent = client.getMetrics().snapshot();
+            for (long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+                 sent.value("bytes.out") < wireBytes && System.nanoTime() < deadline; ) {
+                //The writer counts a batch after the stream has taken it, the reader may have been faster
+                Thread.sleep(10);
+                sent = client.getMetrics().snapshot();
+            }
+            assertEquals(MESSAGES, sent.value("frames.out"));
+            assertEquals(wireBytes, sent.value("bytes.out"));
+            assertEquals(wireBytes, sent.value(Metrics.peer(address, "bytes.out")));
+            assertTrue(sent.histogram("write.nanos").count > 0);
+        } finally {
+            client.stop();
+            server.stop();
+        }
+    }
+
+    @Test
+    public void tcpLoopback_deliversEveryMessageInOrder() throws Exception {
+        assertMessagesFlow(new TcpTransport(0), new TcpTransport(0));
+    }
+
+    @Test
+    public void pipedTransport_deliversEveryMessageInOrder() throws Exception {
+        PipedTransport transport = new PipedTransport();
+        assertMessagesFlow(transport, transport);
+    }
+
+    @Test
+    public void hub_routesMessagesPerPeerAndRefusesBeyondPiconetLimit() throws Exception {
+        PipedTransport transport = new PipedTransport();
+        int peers = ConnectionEngine.MAX_PEERS;
+        HubListener hubListener = new HubListener(peers, peers);
+        ConnectionEngine hub = new ConnectionEngine(transport, "hub", SERVICE_UUID, hubListener);
+        hub.start();
+
+        List<ConnectionEngine> clients = new ArrayList<>();
+        List<HubListener> clientListeners = new ArrayList<>();
+        try {
+            for (int i = 0; i < peers; i++) {
+                HubListener listener = new HubListener(1, 1);
+                ConnectionEngine client = new ConnectionEngine(transport, "client" + i, SERVICE_UUID, listener);
+                clients.add(client);
+                clientListeners.add(listener);
+                client.connect("hub", SERVICE_UUID);
+                assertTrue(listener.connected.await(5, TimeUnit.SECONDS));
+            }
+            assertTrue(hubListener.connected.await(5, TimeUnit.SECONDS));
+            assertEquals(peers, hub.getConnectedPeers().size());
+
+            //Every client says hello and the hub answers each one by address
+            for (ConnectionEngine client : clients) {
+                assertTrue(client.write("hello".getBytes(UTF_8)));
+            }
+            assertTrue(hubListener.received.await(5, TimeUnit.SECONDS));
+            for (String address : hub.getConnectedPeers()) {
+                assertTrue(hub.write(address, ("reply " + address).getBytes(UTF_8)));
+            }
+            for (HubListener listener : clientListeners) {
+                assertTrue(listener.received.await(5, TimeUnit.SECONDS));
+                String message = listener.messages.get(0);
+                //Each client only gets the reply addressed to it
+                String payload = message.substring(message.indexOf(':') + 1);
+                assertTrue(payload.startsWith("reply pipe-"));
+            }
+            assertEquals(peers, new HashSet<>(collectPayloads(clientListeners)).size());
+
+            //The eighth peer is turned away
+            HubListener extra = new HubListener(1, 0);
+            ConnectionEngine extraClient = new ConnectionEngine(transport, "extra", SERVICE_UUID, extra);
+            clients.add(extraClient);
+            extraClient.connect("hub", SERVICE_UUID);
+            assertTrue(hubListener.failed.await(5, TimeUnit.SECONDS));
+            assertEquals(peers, hub.getConnectedPeers().size());
+            //And leaves no per peer gauge behind
+            int queueGauges = 0;
+            for (String name : hub.getMetrics().snapshot().values.keySet()) {
+                if (name.endsWith(".queue.bytes")) {
+                    queueGauges++;
+                }
+            }
+            assertEquals(peers, queueGauges);
+        } finally {
+            for (ConnectionEngine client : clients) {
+                client.stop();
+            }
+            hub.stop();
+        }
+    }
+
+    private static List<String> collectPayloads(List<HubListener> listeners) {
+        List<String> payloads = new ArrayList<>();
+        for (HubListener listener : listeners) {
+            payloads.addAll(listener.messages);
+        }
+        return payloads;
+    }
+
+    @Test
+    public void connectToMissingPeer_reportsFailureInsteadOfConnecting() throws Exception {
+        RecordingListener listener = new RecordingListener(0);
+        ConnectionEngine client = new ConnectionEngine(new PipedTransport(), "client", SERVICE_UUID, listener);
+        client.connect("nobody", SERVICE_UUID);
+        assertTrue(listener.failed.await(5, TimeUnit.SECONDS));
+        assertEquals(1, listener.connected.getCount());
+        client.stop();
+    }
+
+    //Pipes that can be dialled two ways, only "working" ever connects
+    private static class TwoWayPipes extends PipedTransport implements ConnectRace.Dialer {
+        final AtomicInteger brokenDials = new AtomicInteger();
+
+        @Override
+        public List<String> strategies(String address, UUID uuid) {
+            List<String> strategies = new ArrayList<>();
+            strategies.add("broken");
+            strategies.add("working");
+            return strategies;
+        }
+
+        @Override
+        public Channel createChannel(String address, UUID uuid, String strategy) throws IOException {
+            if (strategy.equals("broken")) {
+                brokenDials.incrementAndGet();
+                return createChannel("nobody", uuid);
+            }
+            return createChannel(address, uuid);
+        }
+    }
+
+    @Test
+    public void racingTransport_connectsTheWayThatWorks_andTriesItFirstNextTime() throws Exception {
+        TwoWayPipes transport = new TwoWayPipes();
+        HubListener serverListener = new HubListener(2, 0);
+        ConnectionEngine server = new ConnectionEngine(transport, "test", SERVICE_UUID, serverListener);
+        server.start();
+        RecordingListener listener = new RecordingListener(0);
+        ConnectionEngine client = new ConnectionEngine(transport, "client", SERVICE_UUID, listener);
+        try {
+            client.connect("test", SERVICE_UUID);
+            assertTrue(listener.connected.await(5, TimeUnit.SECONDS));
+            assertEquals("working", client.getPreferredStrategy("test"));
+            assertEquals(1, transport.brokenDials.get());
+
+            client.disconnect("test");
+            RecordingListener again = new RecordingListener(0);
+            ConnectionEngine second = new ConnectionEngine(transport, "second", SERVICE_UUID, again);
+            second.setPreferredStrategy("test", client.getPreferredStrategy("test"));
+            try {
+                second.connect("test", SERVICE_UUID);
+                assertTrue(again.connected.await(5, TimeUnit.SECONDS));
+                //Connected within the head start, the broken way was never dialled
+                assertEquals(1, transport.brokenDials.get());
+            } finally {
+                second.stop();
+            }
+        } finally {
+            client.stop();
+            server.stop();
+        }
+    }
+
+    //What the app does with an incoming chat line: bus, log and a batched hop to the UI
+    private static class ReceivePath implements ConnectionListener, CoalescingDispatcher.Listener {
+        final MessageBus bus = new MessageBus();
+        volatile Thread loopThread;
+        volatile long delivered;
+        volatile long corrupt;
+
+        @Override
+        public void onConnected(String address) {
+        }
+
+        @Override
+        public void onConnectionFailed(String address, IOException e) {
+        }
+
+        @Override
+        public void onFrame(String address, int type, ByteBuffer payload) {
+            loopThread = Thread.currentThread();
+            bus.publish(address, type, payload);
+        }
+
+        @Override
+        public void onDisconnected(String address) {
+        }
+
+        @Override
+        public void onBackpressure(String address, boolean congested) {
+        }
+
+        @Override
+        public void onMessage(String address, int type, ByteBuffer payload) {
+            if (payload.remaining() != 32 || payload.get(payload.position()) != 7) {
+                corrupt++;
+            }
+            delivered++;
+        }
+
+        @Override
+        public void onBatchEnd(int count) {
+        }
+    }
+
+    @Test
+    public void steadyStateReceivePath_allocatesNothingPerMessage() throws Exception {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(threads instanceof com.sun.management.ThreadMXBean
+                && ((com.sun.management.ThreadMXBean) threads).isThreadAllocatedMemorySupported());
+        com.sun.management.ThreadMXBean allocations = (com.sun.management.ThreadMXBean) threads;
+
+        ReceivePath path = new ReceivePath();
+        ByteBufferPool pool = new ByteBufferPool();
+        //The drain runs right on the event loop, so its allocations are counted with the loop's
+        CoalescingDispatcher dispatcher = new CoalescingDispatcher(new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                command.run();
+            }
+        }, pool);
+        dispatcher.setListener(path);
+        path.bus.subscribe(FrameCodec.TYPE_TEXT, dispatcher);
+        final MessageLog log = new MessageLog(mFolder.newFolder(), pool, null,
+                MessageLog.DEFAULT_MAX_SEGMENT_BYTES, MessageLog.DEFAULT_MAX_TOTAL_BYTES, false);
+        path.bus.subscribe(FrameCodec.TYPE_TEXT, new MessageSubscriber() {
+            @Override
+            public void onMessage(String address, int type, ByteBuffer payload) {
+                log.append(address, false, 0, payload);
+            }
+        });
+
+        PipedTransport transport = new PipedTransport();
+        RecordingListener clientListener = new RecordingListener(0);
+        ConnectionEngine server = new ConnectionEngine(transport, "test", SERVICE_UUID, path);
+        ConnectionEngine client = new ConnectionEngine(transport, "client", SERVICE_UUID, clientListener);
+        server.start();
+        try {
+            client.connect("test", SERVICE_UUID);
+            assertTrue(clientListener.connected.await(5, TimeUnit.SECONDS));
+            byte[] message = new byte[32];
+            message[0] = 7;
+
+            //Warm up so class loading, JIT and the pools filling up are out of the way
+            long sent = sendAndAwait(client, message, path, log, 0, 10000);
+            List<Thread> receiving = new ArrayList<>();
+            receiving.add(path.loopThread);
+            for (Thread thread : Thread.getAllStackTraces().keySet()) {
+                if (thread.getName().startsWith("ReadPump-") || thread.getName().equals("MessageLog")) {
+                    receiving.add(thread);
+                }
+            }
+            long before = allocatedBytes(allocations, receiving);
+            int measured = 10000;
+            sendAndAwait(client, message, path, log, sent, measured);
+            long allocated = allocatedBytes(allocations, receiving) - before;
+
+            assertEquals(0, path.corrupt);
+            assertEquals(0, dispatcher.dropped());
+            assertEquals(0, log.dropped());
+            assertEquals(0, pool.outstanding());
+            //Even one object per message would be at least 16 bytes each
+            assertTrue("Receive path allocated " + allocated + " bytes for " + measured + " messages",
+                    allocated < measured);
+        } finally {
+            client.stop();
+            server.stop();
+            log.close();
+        }
+    }
+
+    //Send count messages one at a time, like chat traffic, waiting for each to be delivered and logged
+    private static long sendAndAwait(ConnectionEngine client, byte[] message, ReceivePath path, MessageLog log,
+                                     long alreadySent, int count) throws InterruptedException {
+        long sent = alreadySent;
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+        for (int i = 0; i < count; i++) {
+            while (!client.write(message)) {
+                Thread.yield();
+            }
+            sent++;
+            while ((path.delivered < sent || log.nextSequence() < sent) && System.nanoTime() < deadline) {
+                Thread.yield();
+            }
+            assertTrue("Timed out with " + path.delivered + " of " + sent + " delivered",
+                    path.delivered >= sent && log.nextSequence() >= sent);
+        }
+        return sent;
+    }
+
+    private static long allocatedBytes(com.sun.management.ThreadMXBean allocations, List<Thread> threads) {
+        long total = 0;
+        for (Thread thread : threads) {
+            total += allocations.getThreadAllocatedBytes(thread.getId());
+        }
+        return total;
+    }
+}
@@ -0,0 +1,585 @@
+package com.example.bluetoothchat;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Breaks links under a stream of messages and checks the sessions survive it.
+ */
+public class ConnectionSupervisorTest {
+
+    private static final UUID SERVICE_UUID = UUID.fromString("00001101-0000-1000-8000-00805F9B34FB");
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int MESSAGES = 1000;
+    //Roughly what RFCOMM manages between two phones
+    private static final long LINK_BYTES_PER_SECOND = 64 * 1024;
+    private static final String[] WORDS = ("hello are you there I will be in five minutes the battery is low "
+            + "see you later thanks let me know when you get this message sure okay what do you think").split(" ");
+
+    private static class SessionListener implements ConnectionListener {
+        final CountDownLatch connected = new CountDownLatch(1);
+        final CountDownLatch received;
+        final AtomicInteger connects = new AtomicInteger();
+        final AtomicInteger disconnects = new AtomicInteger();
+        final AtomicInteger outOfOrder = new AtomicInteger();
+        volatile String address;
+        private int next;
+
+        SessionListener(int expected) {
+            received = new CountDownLatch(expected);
+        }
+
+        @Override
+        public void onConnected(String address) {
+            this.address = address;
+            connects.incrementAndGet();
+            connected.countDown();
+        }
+
+        @Override
+        public void onConnectionFailed(String address, IOException e) {
+        }
+
+        @Override
+        public void onFrame(String address, int type, ByteBuffer payload) {
+            String text = UTF_8.decode(payload).toString();
+            if (!text.equals("message " + next)) {
+                outOfOrder.incrementAndGet();
+            }
+            next++;
+            received.countDown();
+        }
+
+        @Override
+        public void onDisconnected(String address) {
+            disconnects.incrementAndGet();
+        }
+
+        @Override
+        public void onBackpressure(String address, boolean congested) {
+        }
+    }
+
+    private static void assertSurvivesBrokenLinks(int reliableWindow) throws Exception {
+        FaultyTransport transport = new FaultyTransport(new PipedTransport());
+        SessionListener serverListener = new SessionListener(MESSAGES);
+        SessionListener clientListener = new SessionListener(0);
+        ConnectionSupervisor server = new ConnectionSupervisor(transport, "test", SERVICE_UUID, serverListener,
+                10, 100, 10000);
+        ConnectionSupervisor client = new ConnectionSupervisor(transport, "client", SERVICE_UUID, clientListener,
+                10, 100, 10000);
+        client.setReliableWindow(reliableWindow);
+        server.start();
+        try {
+            client.connect("test", SERVICE_UUID);
+            assertTrue(clientListener.connected.await(5, TimeUnit.SECONDS));
+
+            for (int i = 0; i < MESSAGES; i++) {
+                if (i == MESSAGES / 3 || i == 2 * MESSAGES / 3) {
+                    //Writes wait in the lanes while the link is down, so make sure there is a link to break
+                    while (serverListener.received.getCount() > MESSAGES - i) {
+                        Thread.sleep(1);
+                    }
+                }
+                if (i == MESSAGES / 3) {
+                    transport.breakConnections();
+                } else if (i == 2 * MESSAGES / 3) {
+                    //Out of range for a while: the first redials fail too
+                    transport.failNextConnects(2);
+                    transport.breakConnections();
+                }
+                byte[] message = ("message " + i).getBytes(UTF_8);
+                while (!client.write("test", message)) {
+                    Thread.yield();
+                }
+            }
+            assertTrue(serverListener.received.await(30, TimeUnit.SECONDS));
+            //Nothing is delivered twice either
+            Thread.sleep(200);
+            assertEquals(MESSAGES, serverListener.next);
+            assertEquals(0, serverListener.outOfOrder.get());
+
+            //The app saw one connection throughout
+            assertEquals(1, serverListener.connects.get());
+            assertEquals(1, clientListener.connects.get());
+            assertEquals(0, serverListener.disconnects.get());
+            assertEquals(0, clientListener.disconnects.get());
+            assertTrue(transport.connectAttempts() >= 5);
+        } finally {
+            client.stop();
+            server.stop();
+        }
+    }
+
+    @Test
+    public void brokenLinks_deliverEveryMessageOnceAndInOrder() throws Exception {
+        assertSurvivesBrokenLinks(0);
+    }
+
+    @Test
+    public void reliableMode_brokenLinks_deliverEveryMessageOnceAndInOrder() throws Exception {
+        assertSurvivesBrokenLinks(64);
+    }
+
+    @Test
+    public void reliableMode_lossyDelayedLink_deliversEveryMessageOnceAndInOrder() throws Exception {
+        FaultyTransport transport = new FaultyTransport(new PipedTransport());
+        transport.setLatency(5, 3);
+        SessionListener serverListener = new SessionListener(MESSAGES);
+        SessionListener clientListener = new SessionListener(0);
+        ConnectionSupervisor server = new ConnectionSupervisor(transport, "test", SERVICE_UUID, serverListener,
+                10, 100, 10000);
+        ConnectionSupervisor client = new ConnectionSupervisor(transport, "client", SERVICE_UUID, clientListener,
+                10, 100, 10000);
+        client.setReliableWindow(32);
+        server.start();
+        try {
+            client.connect("test", SERVICE_UUID);
+            assertTrue(clientListener.connected.await(5, TimeUnit.SECONDS));
+            //Once the session is up, both directions lose writes: data on the way there, ACKs on the way back
+            transport.setLossRate(0.02);
+            for (int i = 0; i < MESSAGES; i++) {
+                byte[] message = ("message " + i).getBytes(UTF_8);
+                while (!client.write("test", message)) {
+                    Thread.yield();
+                }
+            }
+            assertTrue(serverListener.received.await(30, TimeUnit.SECONDS));
+            Thread.sleep(200);
+            assertEquals(MESSAGES, serverListener.next);
+            assertEquals(0, serverListener.outOfOrder.get());
+            assertTrue(transport.lostWrites() > 0);
+            assertTrue(client.getMetrics().snapshot().value("retransmits") > 0);
+        } finally {
+            client.stop();
+            server.stop();
+        }
+    }
+
+    @Test
+    public void unreachablePeer_isReportedAfterInitialAttempts() throws Exception {
+        FaultyTransport transport = new FaultyTransport(new PipedTransport());
+        final CountDownLatch failed = new CountDownLatch(1);
+        SessionListener listener = new SessionListener(0) {
+            @Override
+            public void onConnectionFailed(String address, IOException e) {
+                failed.countDown();
+            }
+        };
+        ConnectionSupervisor client = new ConnectionSupervisor(transport, "client", SERVICE_UUID, listener,
+                10, 100, 10000);
+        try {
+            client.connect("nobody", SERVICE_UUID);
+            assertTrue(failed.await(5, TimeUnit.SECONDS));
+            assertEquals(ConnectionSupervisor.INITIAL_CONNECT_ATTEMPTS, transport.connectAttempts());
+        } finally {
+            client.stop();
+        }
+    }
+
+    //Counts payload bytes of every frame
+    private static class ByteCountingListener extends SessionListener {
+        final CountDownLatch all;
+        long bytes;
+
+        ByteCountingListener(int messages) {
+            super(0);
+            all = new CountDownLatch(messages);
+        }
+
+        @Override
+        public void onFrame(String address, int type, ByteBuffer payload) {
+            bytes += payload.remaining();
+            all.countDown();
+        }
+    }
+
+    private static List<byte[]> chatLines(Random random, int totalBytes) {
+        List<byte[]> messages = new ArrayList<>();
+        for (int total = 0; total < totalBytes; ) {
+            StringBuilder line = new StringBuilder();
+            for (int words = 3 + random.nextInt(25); words > 0; words--) {
+                line.append(WORDS[random.nextInt(WORDS.length)]).append(' ');
+            }
+            byte[] message = line.toString().getBytes(UTF_8);
+            messages.add(message);
+            total += message.length;
+        }
+        return messages;
+    }
+
+    private static List<byte[]> telemetry(Random random, int totalBytes, int readingsPerMessage) {
+        List<byte[]> messages = new ArrayList<>();
+        for (int total = 0; total < totalBytes; ) {
+            StringBuilder json = new StringBuilder("[");
+            for (int i = 0; i < readingsPerMessage; i++) {
+                json.append("{\"sensor\":\"hc06-").append(random.nextInt(4))
+                        .append("\",\"temperature\":").append(18 + random.nextInt(10)).append('.').append(random.nextInt(10))
+                        .append(",\"humidity\":").append(30 + random.nextInt(40))
+                        .append(",\"timestamp\":").append(1600000000000L + random.nextInt(1000000)).append("},");
+            }
+            byte[] message = json.append(']').toString().getBytes(UTF_8);
+            messages.add(message);
+            total += message.length;
+        }
+        return messages;
+    }
+
+    //Payload bytes per second through a throttled link
+    private static long effectiveBytesPerSecond(List<byte[]> messages, boolean compress) throws Exception {
+        FaultyTransport transport = new FaultyTransport(new PipedTransport());
+        transport.setBytesPerSecond(LINK_BYTES_PER_SECOND);
+        ByteCountingListener serverListener = new ByteCountingListener(messages.size());
+        SessionListener clientListener = new SessionListener(0);
+        ConnectionSupervisor server = new ConnectionSupervisor(transport, "test", SERVICE_UUID, serverListener);
+        ConnectionSupervisor client = new ConnectionSupervisor(transport, "client", SERVICE_UUID, clientListener);
+        server.setCompression(compress);
+        client.setCompression(compress);
+        server.start();
+        try {
+            client.connect("test", SERVICE_UUID);
+            assertTrue(clientListener.connected.await(5, TimeUnit.SECONDS));
+            long total = 0;
+            long start = System.nanoTime();
+            for (byte[] message : messages) {
+                while (!client.write("test", message)) {
+                    Thread.sleep(1);
+                }
+                total += message.length;
+            }
+            assertTrue(serverListener.all.await(30, TimeUnit.SECONDS));
+            long elapsed = System.nanoTime() - start;
+            assertEquals(total, serverListener.bytes);
+            return total * 1000000000L / elapsed;
+        } finally {
+            client.stop();
+            server.stop();
+        }
+    }
+
+    @Test
+    public void compression_raisesEffectiveThroughputOnSlowLink() throws Exception {
+        Random random = new Random(11);
+        String[] names = {"chat lines", "telemetry x2", "telemetry x20"};
+        List<List<byte[]>> workloads = new ArrayList<>();
+        workloads.add(chatLines(random, 32 * 1024));
+        workloads.add(telemetry(random, 32 * 1024, 2));
+        workloads.add(telemetry(random, 32 * 1024, 20));
+        for (int i = 0; i < workloads.size(); i++) {
+            long plain = effectiveBytesPerSecond(workloads.get(i), false);
+            long compressed = effectiveBytesPerSecond(workloads.get(i), true);
+            assertTrue(names[i], compressed > plain);
+        }
+    }
+
+    //Notes how far the file had got when each chat line came in, checks file chunks arrive whole and in order
+    private static class MixedTrafficListener extends SessionListener {
+        final List<byte[]> chunks;
+        final CountDownLatch allChunks;
+        final List<Integer> chunksBeforeLine = new ArrayList<>();
+        int nextChunk;
+        int damagedChunks;
+
+        MixedTrafficListener(List<byte[]> chunks) {
+            super(0);
+            this.chunks = chunks;
+            allChunks = new CountDownLatch(chunks.size());
+        }
+
+        @Override
+        public synchronized void onFrame(String address, int type, ByteBuffer payload) {
+            if (type == FrameCodec.TYPE_TEXT) {
+                chunksBeforeLine.add(nextChunk);
+                return;
+            }
+            byte[] chunk = new byte[payload.remaining()];
+            payload.get(chunk);
+            if (!java.util.Arrays.equals(chunks.get(nextChunk++), chunk)) {
+                damagedChunks++;
+            }
+            allChunks.countDown();
+        }
+    }
+
+    private static void assertChatOvertakesBulkTransfer(int reliableWindow) throws Exception {
+        FaultyTransport transport = new FaultyTransport(new PipedTransport());
+        transport.setBytesPerSecond(LINK_BYTES_PER_SECOND);
+        //Three seconds worth of link, random so compression can't shrink it
+        Random random = new Random(7);
+        List<byte[]> chunks = new ArrayList<>();
+        for (int i = 0; i < 48; i++) {
+            byte[] chunk = new byte[4096];
+            random.nextBytes(chunk);
+            chunks.add(chunk);
+        }
+        MixedTrafficListener serverListener = new MixedTrafficListener(chunks);
+        SessionListener clientListener = new SessionListener(0);
+        ConnectionSupervisor server = new ConnectionSupervisor(transport, "test", SERVICE_UUID, serverListener);
+        ConnectionSupervisor client = new ConnectionSupervisor(transport, "client", SERVICE_UUID, clientListener);
+        client.setReliableWindow(reliableWindow);
+        server.start();
+        try {
+            client.connect("test", SERVICE_UUID);
+            assertTrue(clientListener.connected.await(5, TimeUnit.SECONDS));
+            //The whole file is queued before the chat, so only the lanes can let it through first
+            for (byte[] chunk : chunks) {
+                assertTrue(client.write("test", FrameCodec.TYPE_FILE_CHUNK, chunk));
+            }
+            int lines = 40;
+            for (int i = 0; i < lines; i++) {
+                assertTrue(client.write("test", new byte[64]));
+            }
+            assertTrue(serverListener.allChunks.await(30, TimeUnit.SECONDS));
+            assertEquals(0, serverListener.damagedChunks);
+            Thread.sleep(200);
+            synchronized (serverListener) {
+                assertEquals(lines, serverListener.chunksBeforeLine.size());
+                //Only what was already on its way gets in ahead, the link takes three seconds to clear the rest
+                for (int chunksBefore : serverListener.chunksBeforeLine) {
+                    assertTrue(chunksBefore + " chunks ahead of a chat line", chunksBefore < chunks.size() / 4);
+                }
+            }
+        } finally {
+            client.stop();
+            server.stop();
+        }
+    }
+
+    @Test
+    public void lanes_chatOvertakesQueuedBulkTransfer() throws Exception {
+        assertChatOvertakesBulkTransfer(0);
+    }
+
+    @Test
+    public void reliableMode_lanes_chatOvertakesQueuedBulkTransfer() throws Exception {
+        assertChatOvertakesBulkTransfer(32);
+    }
+
+    private static long deadPeers(ConnectionSupervisor... supervisors) {
+        long dead = 0;
+        for (ConnectionSupervisor supervisor : supervisors) {
+            dead += supervisor.getMetrics().snapshot().value("dead.peers");
+        }
+        return dead;
+    }
+
+    @Test
+    public void heartbeat_measuresRtt_andSilentLinkIsDroppedAndResumed() throws Exception {
+        FaultyTransport transport = new FaultyTransport(new PipedTransport());
+        transport.setLatency(20, 0);
+        SessionListener serverListener = new SessionListener(1);
+        SessionListener clientListener = new SessionListener(0);
+        ConnectionSupervisor server = new ConnectionSupervisor(transport, "test", SERVICE_UUID, serverListener,
+                10, 100, 10000);
+        //Redials wait long enough for the link to be fixed first
+        ConnectionSupervisor client = new ConnectionSupervisor(transport, "client", SERVICE_UUID, clientListener,
+                500, 500, 10000);
+        server.setHeartbeat(50, 3);
+        client.setHeartbeat(50, 3);
+        server.start();
+        try {
+            client.connect("test", SERVICE_UUID);
+            assertTrue(clientListener.connected.await(5, TimeUnit.SECONDS));
+
+            //Nothing else is sent, so the idle link is pinged and the round trip is both latencies
+            long deadline = System.currentTimeMillis() + 5000;
+            while (client.getSmoothedRttNanos("test") < 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            long srtt = client.getSmoothedRttNanos("test");
+            assertTrue(srtt >= TimeUnit.MILLISECONDS.toNanos(40));
+            assertTrue(srtt < TimeUnit.MILLISECONDS.toNanos(1000));
+            assertTrue(client.getJitterNanos("test") >= 0);
+            assertEquals(0, client.getMetrics().snapshot().value("dead.peers"));
+
+            //Half open: the sockets stay up but nothing gets through either way
+            transport.setLossRate(1);
+            deadline = System.currentTimeMillis() + 5000;
+            while (deadPeers(client, server) == 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(5);
+            }
+            transport.setLossRate(0);
+            //Whichever side gives up first closes the link, the other just sees it drop
+            assertTrue(deadPeers(client, server) >= 1);
+
+            //The redial resumes the session, and the app never saw it go
+            assertTrue(client.write("test", "message 0".getBytes(UTF_8)));
+            assertTrue(serverListener.received.await(5, TimeUnit.SECONDS));
+            assertEquals(0, serverListener.outOfOrder.get());
+            assertEquals(0, clientListener.disconnects.get());
+            assertEquals(1, clientListener.connects.get());
+        } finally {
+            client.stop();
+            server.stop();
+        }
+    }
+
+    //A peer that only speaks FrameCodec, like a microcontroller on a serial module
+    private static class PlainPeer extends Thread {
+        final Channel channel;
+        final BlockingQueue<String> texts = new LinkedBlockingQueue<>();
+        final AtomicInteger sessionFrames = new AtomicInteger();
+        final CountDownLatch closed = new CountDownLatch(1);
+
+        PlainPeer(Transport transport) throws IOException {
+            channel = transport.createChannel("test", SERVICE_UUID);
+            channel.connect();
+            start();
+        }
+
+        void send(int type, byte[] payload) throws IOException {
+            OutputStream out = channel.getOutputStream();
+            FrameCodec.writeFrame(out, type, payload, 0, payload.length);
+            out.flush();
+        }
+
+        @Override
+        public void run() {
+            FrameDecoder decoder = new FrameDecoder();
+            FrameDecoder.FrameHandler handler = new FrameDecoder.FrameHandler() {
+                @Override
+                public void onFrame(int type, byte[] buffer, int offset, int length) {
+                    if (type == FrameCodec.TYPE_TEXT) {
+                        texts.add(new String(buffer, offset, length, UTF_8));
+                    } else if (type != FrameCodec.TYPE_SESSION_HELLO) {
+                        sessionFrames.incrementAndGet();
+                    }
+                }
+            };
+            byte[] buffer = new byte[4096];
+            try {
+                InputStream in = channel.getInputStream();
+                int read;
+                while ((read = in.read(buffer)) >= 0) {
+                    decoder.feed(buffer, 0, read, handler);
+                }
+            } catch (IOException e) {
+                //Closed under us
+            }
+            closed.countDown();
+        }
+    }
+
+    @Test
+    public void plainPeer_dataBeforeHello_getsPlainSession() throws Exception {
+        PipedTransport transport = new PipedTransport();
+        SessionListener listener = new SessionListener(2);
+        ConnectionSupervisor server = new ConnectionSupervisor(transport, "test", SERVICE_UUID, listener);
+        server.start();
+        PlainPeer peer = null;
+        try {
+            peer = new PlainPeer(transport);
+            peer.send(FrameCodec.TYPE_TEXT, "message 0".getBytes(UTF_8));
+            peer.send(FrameCodec.TYPE_TEXT, "message 1".getBytes(UTF_8));
+            assertTrue(listener.received.await(5, TimeUnit.SECONDS));
+            assertEquals(0, listener.outOfOrder.get());
+            assertEquals(1, listener.connects.get());
+
+            //Longer than a fragment and very compressible, and still goes out as one plain frame
+            StringBuilder reply = new StringBuilder();
+            while (reply.length() < 3 * ConnectionSupervisor.FRAGMENT_BYTES) {
+                reply.append("reply ");
+            }
+            assertTrue(server.write(listener.address, reply.toString().getBytes(UTF_8)));
+            assertEquals(reply.toString(), peer.texts.poll(5, TimeUnit.SECONDS));
+            //No RESUME, ACKs or PINGs for a peer that can't read them
+            Thread.sleep(2 * ConnectionSupervisor.ACK_DELAY_MILLIS);
+            assertEquals(0, peer.sessionFrames.get());
+
+            //Nothing to resume, so the session ends with the link
+            peer.channel.close();
+            long deadline = System.currentTimeMillis() + 5000;
+            while (server.isConnected(listener.address) && System.currentTimeMillis() < deadline) {
+                Thread.sleep(5);
+            }
+            assertFalse(server.isConnected(listener.address));
+            assertEquals(1, listener.disconnects.get());
+        } finally {
+            if (peer != null) {
+                peer.channel.close();
+            }
+            server.stop();
+        }
+    }
+
+    @Test
+    public void plainPeer_silentPastHelloTimeout_getsPlainSession() throws Exception {
+        PipedTransport transport = new PipedTransport();
+        SessionListener listener = new SessionListener(0);
+        ConnectionSupervisor server = new ConnectionSupervisor(transport, "test", SERVICE_UUID, listener);
+        server.setHelloTimeout(100);
+        server.start();
+        PlainPeer peer = null;
+        try {
+            peer = new PlainPeer(transport);
+            assertTrue(listener.connected.await(5, TimeUnit.SECONDS));
+            assertTrue(server.write(listener.address, "hello".getBytes(UTF_8)));
+            assertEquals("hello", peer.texts.poll(5, TimeUnit.SECONDS));
+        } finally {
+            if (peer != null) {
+                peer.channel.close();
+            }
+            server.stop();
+        }
+    }
+
+    @Test
+    public void truncatedSessionFrame_dropsTheLink() throws Exception {
+        PipedTransport transport = new PipedTransport();
+        SessionListener listener = new SessionListener(0);
+        ConnectionSupervisor server = new ConnectionSupervisor(transport, "test", SERVICE_UUID, listener);
+        server.start();
+        PlainPeer peer = null;
+        PlainPeer pongPeer = null;
+        try {
+            peer = new PlainPeer(transport);
+            //A node id cut short
+            peer.send(FrameCodec.TYPE_SESSION_HELLO, new byte[3]);
+            assertTrue(peer.closed.await(5, TimeUnit.SECONDS));
+            assertEquals(0, listener.connects.get());
+
+            //And a clock
+            pongPeer = new PlainPeer(transport);
+            pongPeer.send(FrameCodec.TYPE_SESSION_PONG, new byte[5]);
+            assertTrue(pongPeer.closed.await(5, TimeUnit.SECONDS));
+        } finally {
+            if (peer != null) {
+                peer.channel.close();
+            }
+            if (pongPeer != null) {
+                pongPeer.channel.close();
+            }
+            server.stop();
+        }
+    }
+
+    @Test
+    public void backoff_staysInUpperHalfOfDoublingCeiling() {
+        Backoff backoff = new Backoff(100, 3000, new Random(42));
+        long ceiling = 100;
+        for (int i = 0; i < 20; i++) {
+            long delay = backoff.nextDelayMillis();
+            assertTrue(delay >= ceiling / 2);
+            assertTrue(delay <= ceiling);
+            ceiling = Math.min(ceiling * 2, 3000);
+        }
+        backoff.reset();
+        assertTrue(backoff.nextDelayMillis() <= 100);
+    }
+}
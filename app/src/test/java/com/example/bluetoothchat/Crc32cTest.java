@@ -0,0 +1,34 @@
+package com.example.bluetoothchat;
+
+import org.junit.Test;
+
+import java.nio.charset.Charset;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class Crc32cTest {
+
+    @Test
+    public void knownVectors() {
+        byte[] check = "123456789".getBytes(Charset.forName("US-ASCII"));
+        assertEquals(0xE3069283, Crc32c.compute(check, 0, check.length));
+        //RFC 3720 B.4
+        assertEquals(0x8A9136AA, Crc32c.compute(new byte[32], 0, 32));
+        byte[] ones = new byte[32];
+        java.util.Arrays.fill(ones, (byte) 0xFF);
+        assertEquals(0x62A8AB43, Crc32c.compute(ones, 0, 32));
+        assertEquals(0, Crc32c.compute(new byte[0], 0, 0));
+    }
+
+    @Test
+    public void update_matchesOneShotAcrossEverySplit() {
+        byte[] data = new byte[100];
+        new Random(7).nextBytes(data);
+        int whole = Crc32c.compute(data, 0, data.length);
+        for (int split = 0; split <= data.length; split++) {
+            int crc = Crc32c.compute(data, 0, split);
+            assertEquals(whole, Crc32c.update(crc, data, split, data.length - split));
+        }
+    }
+}
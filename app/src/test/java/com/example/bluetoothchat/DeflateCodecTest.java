@@ -0,0 +1,86 @@
+package com.example.bluetoothchat;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class DeflateCodecTest {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static byte[] roundTrip(DeflateCodec sender, DeflateCodec receiver, byte[] payload) throws IOException {
+        byte[] body = sender.compress(FrameCodec.TYPE_TEXT, payload, 0, payload.length);
+        assertNotNull(body);
+        ByteBuffer wrapped = ByteBuffer.wrap(body);
+        assertEquals(FrameCodec.TYPE_TEXT, DeflateCodec.innerType(wrapped));
+        ByteBuffer inflated = receiver.inflate(wrapped, FrameCodec.DEFAULT_MAX_PAYLOAD);
+        byte[] out = new byte[inflated.remaining()];
+        inflated.get(out);
+        return out;
+    }
+
+    @Test
+    public void chatLine_shrinksAndRoundTrips() throws Exception {
+        DeflateCodec sender = new DeflateCodec();
+        DeflateCodec receiver = new DeflateCodec();
+        byte[] line = "Are you there? I will be there in 5 minutes, let me know when you get this".getBytes(UTF_8);
+        byte[] body = sender.compress(FrameCodec.TYPE_TEXT, line, 0, line.length);
+        //The dictionary does most of the work on a line this short
+        assertTrue(body.length + " of " + line.length, body.length < line.length / 2);
+        assertArrayEquals(line, roundTrip(sender, receiver, line));
+    }
+
+    @Test
+    public void codecs_areReusedAcrossMessagesOfAnySize() throws Exception {
+        DeflateCodec sender = new DeflateCodec();
+        DeflateCodec receiver = new DeflateCodec();
+        Random random = new Random(3);
+        for (int size : new int[]{60, 5000, 100, 60000, 48}) {
+            StringBuilder text = new StringBuilder();
+            while (text.length() < size) {
+                text.append("{\"temperature\":").append(random.nextInt(40)).append(",\"status\":\"ok\"}");
+            }
+            byte[] payload = text.substring(0, size).getBytes(UTF_8);
+            assertArrayEquals(payload, roundTrip(sender, receiver, payload));
+        }
+    }
+
+    @Test
+    public void shortOrIncompressible_isLeftAlone() {
+        DeflateCodec codec = new DeflateCodec();
+        byte[] shortLine = "ok".getBytes(UTF_8);
+        assertNull(codec.compress(FrameCodec.TYPE_TEXT, shortLine, 0, shortLine.length));
+        byte[] noise = new byte[1000];
+        new Random(1).nextBytes(noise);
+        assertNull(codec.compress(FrameCodec.TYPE_TEXT, noise, 0, noise.length));
+    }
+
+    @Test
+    public void end_canBeCalledTwice_andLeavesLastViewReadable() throws Exception {
+        DeflateCodec sender = new DeflateCodec();
+        DeflateCodec receiver = new DeflateCodec();
+        byte[] line = "Are you there? I will be there in 5 minutes, let me know when you get this".getBytes(UTF_8);
+        byte[] body = sender.compress(FrameCodec.TYPE_TEXT, line, 0, line.length);
+        ByteBuffer view = receiver.inflate(ByteBuffer.wrap(body), FrameCodec.DEFAULT_MAX_PAYLOAD);
+        assertFalse(receiver.isEnded());
+        receiver.end();
+        receiver.end();
+        sender.end();
+        assertTrue(receiver.isEnded());
+        byte[] inflated = new byte[view.remaining()];
+        view.get(inflated);
+        assertArrayEquals(line, inflated);
+    }
+
+    @Test(expected = IOException.class)
+    public void corruptBody_throws() throws Exception {
+        byte[] body = new byte[40];
+        new Random(2).nextBytes(body);
+        new DeflateCodec().inflate(ByteBuffer.wrap(body), FrameCodec.DEFAULT_MAX_PAYLOAD);
+    }
+}
@@ -0,0 +1,80 @@
+package com.example.bluetoothchat;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class DiscoveryCacheTest {
+
+    private static final long TTL = 60000;
+
+    //Records the list operations a ListView adapter would be told about
+    private static class RecordingListener implements DiscoveryCache.Listener<String> {
+        final List<String> events = new ArrayList<>();
+
+        @Override
+        public void onDeviceAdded(int position, DiscoveryCache.Entry<String> entry) {
+            events.add("add " + position + " " + entry.address);
+        }
+
+        @Override
+        public void onDeviceChanged(int position, DiscoveryCache.Entry<String> entry) {
+            events.add("change " + position + " " + entry.address);
+        }
+
+        @Override
+        public void onDeviceRemoved(int position, DiscoveryCache.Entry<String> entry) {
+            events.add("remove " + position + " " + entry.address);
+        }
+    }
+
+    @Test
+    public void repeatedReports_keepOneEntryAndOnlyVisibleChangesAreAnnounced() {
+        DiscoveryCache<String> cache = new DiscoveryCache<>(TTL);
+        RecordingListener listener = new RecordingListener();
+        cache.setListener(listener);
+
+        cache.onFound("A", "a", "HC-06", -60, DiscoveryCache.BOND_NONE, 0);
+        cache.onFound("B", "b", null, DiscoveryCache.UNKNOWN_RSSI, DiscoveryCache.BOND_NONE, 10);
+        //Same values again, then the name resolves and the signal moves
+        cache.onFound("A", "a", "HC-06", -60, DiscoveryCache.BOND_NONE, 20);
+        cache.onFound("B", "b", "phone", DiscoveryCache.UNKNOWN_RSSI, DiscoveryCache.BOND_NONE, 30);
+        cache.onFound("A", "a", null, -48, DiscoveryCache.BOND_NONE, 40);
+
+        assertEquals(2, cache.size());
+        assertEquals("[add 0 A, add 1 B, change 1 B, change 0 A]", listener.events.toString());
+        DiscoveryCache.Entry<String> a = cache.get("A");
+        assertEquals("HC-06", a.name);
+        assertEquals(-48, a.rssi);
+        assertEquals(0, a.firstSeenMillis);
+        assertEquals(40, a.lastSeenMillis);
+        assertNotEquals(a.id, cache.get("B").id);
+    }
+
+    @Test
+    public void quietDevicesExpire_bondedOnesStay() {
+        DiscoveryCache<String> cache = new DiscoveryCache<>(TTL);
+        RecordingListener listener = new RecordingListener();
+        cache.setListener(listener);
+        cache.onFound("A", "a", "old", -70, DiscoveryCache.BOND_NONE, 0);
+        cache.onFound("B", "b", "paired", -70, DiscoveryCache.BOND_NONE, 0);
+        cache.onFound("C", "c", "fresh", -70, DiscoveryCache.BOND_NONE, 0);
+        cache.onBondStateChanged("B", DiscoveryCache.BOND_BONDED);
+        cache.onFound("C", "c", "fresh", -70, DiscoveryCache.BOND_NONE, TTL);
+        listener.events.clear();
+
+        assertEquals(1, cache.evictExpired(TTL + 1));
+        assertEquals("[remove 0 A]", listener.events.toString());
+        assertNull(cache.get("A"));
+        assertEquals("B", cache.get(0).address);
+        assertTrue(cache.get(0).isBonded());
+        assertEquals("C", cache.get(1).address);
+
+        //Seen again after eviction, it comes back as a new row at the end
+        cache.onFound("A", "a", "old", -70, DiscoveryCache.BOND_NONE, TTL + 2);
+        assertEquals("add 2 A", listener.events.get(1));
+    }
+}
@@ -0,0 +1,85 @@
+package com.example.bluetoothchat;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class EventLoopTest {
+
+    private EventLoop mLoop;
+
+    @Before
+    public void setUp() throws Exception {
+        mLoop = new EventLoop("EventLoopTest");
+    }
+
+    @After
+    public void tearDown() {
+        mLoop.shutdown();
+    }
+
+    @Test
+    public void tasksRunInOrderOnTheLoopThread() throws Exception {
+        final List<Integer> order = Collections.synchronizedList(new ArrayList<Integer>());
+        final boolean[] onLoop = new boolean[1];
+        final CountDownLatch done = new CountDownLatch(1);
+        for(int i = 0; i < 3; i++){
+            final int n = i;
+            mLoop.execute(new Runnable() {
+                @Override
+                public void run() {
+                    order.add(n);
+                }
+            });
+        }
+        mLoop.execute(new Runnable() {
+            @Override
+            public void run() {
+                onLoop[0] = mLoop.inEventLoop();
+                done.countDown();
+            }
+        });
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList(0, 1, 2), order);
+        assertTrue(onLoop[0]);
+        assertFalse(mLoop.inEventLoop());
+    }
+
+    @Test
+    public void timersFireByDeadlineAndCancelledOnesDoNot() throws Exception {
+        final List<String> fired = Collections.synchronizedList(new ArrayList<String>());
+        final CountDownLatch done = new CountDownLatch(1);
+        mLoop.schedule(new Runnable() {
+            @Override
+            public void run() {
+                fired.add("late");
+                done.countDown();
+            }
+        }, 60, TimeUnit.MILLISECONDS);
+        EventLoop.Timeout cancelled = mLoop.schedule(new Runnable() {
+            @Override
+            public void run() {
+                fired.add("cancelled");
+            }
+        }, 20, TimeUnit.MILLISECONDS);
+        mLoop.schedule(new Runnable() {
+            @Override
+            public void run() {
+                fired.add("early");
+            }
+        }, 10, TimeUnit.MILLISECONDS);
+        cancelled.cancel();
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList("early", "late"), fired);
+    }
+}
@@ -0,0 +1,205 @@
+package com.example.bluetoothchat;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Two FileTransfers wired back to back through a link that can lose or damage chunks.
+ */
+public class FileTransferTest {
+
+    private static final int CHUNK_BYTES = 4096;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private FileTransfer mSender;
+    private FileTransfer mReceiver;
+
+    //Frames from one side to the other, as if through ConnectionSupervisor
+    private static class TestLink implements FileTransfer.Link {
+        final String localAddress;
+        FileTransfer remote;
+        final AtomicInteger chunks = new AtomicInteger();
+        //Chunks after this many are silently lost, like a session going down
+        volatile int cutAfterChunks = Integer.MAX_VALUE;
+        volatile int corruptChunk = -1;
+
+        TestLink(String localAddress) {
+            this.localAddress = localAddress;
+        }
+
+        @Override
+        public boolean write(String address, int type, byte[] payload) {
+            if (type == FrameCodec.TYPE_FILE_CHUNK) {
+                int chunk = chunks.incrementAndGet();
+                if (chunk > cutAfterChunks) {
+                    return true;
+                }
+                if (chunk == corruptChunk) {
+                    payload = payload.clone();
+                    payload[payload.length - 1] ^= 1;
+                }
+            }
+            remote.onMessage(localAddress, type, ByteBuffer.wrap(payload));
+            return true;
+        }
+    }
+
+    private static class Outcome implements FileTransfer.Listener {
+        final CountDownLatch done = new CountDownLatch(1);
+        volatile File file;
+        volatile IOException failure;
+        volatile FileTransfer.Progress last;
+
+        @Override
+        public void onProgress(FileTransfer.Progress progress) {
+            last = progress;
+        }
+
+        @Override
+        public void onComplete(FileTransfer.Progress progress, File file) {
+            last = progress;
+            this.file = file;
+            done.countDown();
+        }
+
+        @Override
+        public void onFailed(FileTransfer.Progress progress, IOException e) {
+            failure = e;
+            done.countDown();
+        }
+    }
+
+    private TestLink mToReceiver;
+    private TestLink mToSender;
+
+    private void connect(File receiveDir) throws IOException {
+        mToReceiver = new TestLink("sender");
+        mToSender = new TestLink("receiver");
+        ByteBufferPool pool = new ByteBufferPool();
+        mSender = new FileTransfer(mFolder.newFolder(), mToReceiver, pool, CHUNK_BYTES);
+        mReceiver = new FileTransfer(receiveDir, mToSender, pool, CHUNK_BYTES);
+        mToReceiver.remote = mReceiver;
+        mToSender.remote = mSender;
+    }
+
+    @After
+    public void tearDown() {
+        if (mSender != null) {
+            mSender.stop();
+            mReceiver.stop();
+        }
+    }
+
+    private File randomFile(int size) throws IOException {
+        byte[] data = new byte[size];
+        new Random(size).nextBytes(data);
+        File file = mFolder.newFile("firmware.bin");
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    private static byte[] read(File file) throws IOException {
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            byte[] data = new byte[(int) in.length()];
+            in.readFully(data);
+            return data;
+        } finally {
+            in.close();
+        }
+    }
+
+    @Test
+    public void send_deliversIdenticalFile() throws Exception {
+        File receiveDir = mFolder.newFolder();
+        connect(receiveDir);
+        Outcome sent = new Outcome();
+        Outcome received = new Outcome();
+        mSender.setListener(sent);
+        mReceiver.setListener(received);
+        //Not a multiple of the chunk size
+        File source = randomFile(1024 * 1024 + 123);
+
+        mSender.send("receiver", source);
+        assertTrue(received.done.await(30, TimeUnit.SECONDS));
+        assertTrue(sent.done.await(5, TimeUnit.SECONDS));
+        assertNull(received.failure);
+        assertNull(sent.failure);
+        assertArrayEquals(read(source), read(received.file));
+        assertEquals("firmware.bin", received.file.getName());
+        assertEquals(source.length(), sent.last.confirmed);
+        assertEquals((source.length() + CHUNK_BYTES - 1) / CHUNK_BYTES, mToReceiver.chunks.get());
+        assertTrue(mSender.getTransfers().isEmpty());
+    }
+
+    @Test
+    public void damagedChunk_isSentAgain() throws Exception {
+        File receiveDir = mFolder.newFolder();
+        connect(receiveDir);
+        Outcome received = new Outcome();
+        mReceiver.setListener(received);
+        File source = randomFile(64 * CHUNK_BYTES);
+        mToReceiver.corruptChunk = 10;
+
+        mSender.send("receiver", source);
+        assertTrue(received.done.await(30, TimeUnit.SECONDS));
+        assertNull(received.failure);
+        assertArrayEquals(read(source), read(received.file));
+        //The bad chunk and whatever was in flight behind it
+        assertTrue(mToReceiver.chunks.get() > 64);
+        assertTrue(mToReceiver.chunks.get() <= 64 + FileTransfer.WINDOW_CHUNKS);
+    }
+
+    @Test
+    public void lostSession_resumesFromLastConfirmedOffset() throws Exception {
+        File receiveDir = mFolder.newFolder();
+        connect(receiveDir);
+        Outcome received = new Outcome();
+        mReceiver.setListener(received);
+        File source = randomFile(100 * CHUNK_BYTES);
+        mToReceiver.cutAfterChunks = 40;
+
+        mSender.send("receiver", source);
+        //Wait for the sender to fill its window past the cut and stall
+        long deadline = System.currentTimeMillis() + 10000;
+        while (mToReceiver.chunks.get() < 40 + FileTransfer.WINDOW_CHUNKS && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(40 + FileTransfer.WINDOW_CHUNKS, mToReceiver.chunks.get());
+        assertTrue(new File(receiveDir, Long.toHexString(mSender.getTransfers().get(0).id)
+                + FileTransfer.PART_SUFFIX).exists());
+
+        mSender.onPeerDisconnected("receiver");
+        mReceiver.onPeerDisconnected("sender");
+        mToReceiver.cutAfterChunks = Integer.MAX_VALUE;
+        mSender.onPeerConnected("receiver");
+
+        assertTrue(received.done.await(30, TimeUnit.SECONDS));
+        assertNull(received.failure);
+        assertTrue(Arrays.equals(read(source), read(received.file)));
+        //Only what never arrived went out again
+        assertEquals(40 + FileTransfer.WINDOW_CHUNKS + 60, mToReceiver.chunks.get());
+    }
+}
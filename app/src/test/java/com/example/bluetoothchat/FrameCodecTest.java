@@ -0,0 +1,145 @@
+package com.example.bluetoothchat;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class FrameCodecTest {
+
+    private static class CollectingHandler implements FrameDecoder.FrameHandler {
+        final List<Integer> types = new ArrayList<>();
+        final List<byte[]> payloads = new ArrayList<>();
+
+        @Override
+        public void onFrame(int type, byte[] buffer, int offset, int length) {
+            types.add(type);
+            payloads.add(Arrays.copyOfRange(buffer, offset, offset + length));
+        }
+    }
+
+    private static byte[] randomBytes(Random random, int length) {
+        byte[] bytes = new byte[length];
+        random.nextBytes(bytes);
+        return bytes;
+    }
+
+    @Test
+    public void varint_sizeMatchesEncodedLength() {
+        int[] values = {0, 1, 127, 128, 16383, 16384, FrameCodec.DEFAULT_MAX_PAYLOAD};
+        for (int value : values) {
+            byte[] buffer = new byte[FrameCodec.MAX_VARINT_BYTES];
+            int end = FrameCodec.putVarint(buffer, 0, value);
+            assertEquals(FrameCodec.varintSize(value), end);
+        }
+        assertEquals(1, FrameCodec.frameSize(0) - 1);
+        assertEquals(3 + 200, FrameCodec.frameSize(200));
+    }
+
+    @Test
+    public void pipedStream_deliversFramesIntactRegardlessOfReadSizes() throws Exception {
+        final Random random = new Random(42);
+        final List<byte[]> sent = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            sent.add(randomBytes(random, random.nextInt(i % 10 == 0 ? 20000 : 300)));
+        }
+
+        final PipedOutputStream out = new PipedOutputStream();
+        PipedInputStream in = new PipedInputStream(out, 512);
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    for (byte[] payload : sent) {
+                        FrameCodec.writeFrame(out, FrameCodec.TYPE_TEXT, payload, 0, payload.length);
+                    }
+                    out.close();
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        });
+        writer.start();
+
+        FrameDecoder decoder = new FrameDecoder();
+        CollectingHandler handler = new CollectingHandler();
+        while (decoder.readFrom(in, handler) >= 0) {
+            // keep reading until the writer closes the pipe
+        }
+        writer.join();
+
+        assertEquals(sent.size(), handler.payloads.size());
+        for (int i = 0; i < sent.size(); i++) {
+            assertEquals(FrameCodec.TYPE_TEXT, (int) handler.types.get(i));
+            assertArrayEquals(sent.get(i), handler.payloads.get(i));
+        }
+        assertEquals(0, decoder.buffered());
+    }
+
+    @Test
+    public void feed_reassemblesFramesSplitAcrossRingBoundary() throws IOException {
+        Random random = new Random(7);
+        ByteArrayOutputStream wire = new ByteArrayOutputStream();
+        List<byte[]> sent = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            byte[] payload = randomBytes(random, 100 + random.nextInt(900));
+            sent.add(payload);
+            FrameCodec.writeFrame(wire, 3, payload, 0, payload.length);
+        }
+        byte[] bytes = wire.toByteArray();
+
+        //Small ring so that payloads regularly wrap around its end
+        FrameDecoder decoder = new FrameDecoder(1000);
+        CollectingHandler handler = new CollectingHandler();
+        int position = 0;
+        while (position < bytes.length) {
+            int chunk = Math.min(bytes.length - position, 1 + random.nextInt(97));
+            decoder.feed(bytes, position, chunk, handler);
+            position += chunk;
+        }
+
+        assertEquals(sent.size(), handler.payloads.size());
+        for (int i = 0; i < sent.size(); i++) {
+            assertEquals(3, (int) handler.types.get(i));
+            assertArrayEquals(sent.get(i), handler.payloads.get(i));
+        }
+    }
+
+    @Test
+    public void emptyPayload_isDelivered() throws IOException {
+        byte[] frame = FrameCodec.encode(FrameCodec.TYPE_TEXT, new byte[0], 0, 0);
+        assertEquals(2, frame.length);
+
+        CollectingHandler handler = new CollectingHandler();
+        new FrameDecoder().feed(frame, 0, frame.length, handler);
+        assertEquals(1, handler.payloads.size());
+        assertEquals(0, handler.payloads.get(0).length);
+    }
+
+    @Test(expected = IOException.class)
+    public void oversizedFrame_isRejected() throws IOException {
+        byte[] header = new byte[FrameCodec.MAX_HEADER_BYTES];
+        int length = FrameCodec.putHeader(header, 0, FrameCodec.TYPE_TEXT, 5000);
+        new FrameDecoder(4096).feed(header, 0, length, new CollectingHandler());
+    }
+
+    @Test
+    public void readFrom_returnsMinusOneAtEndOfStream() throws IOException {
+        InputStream empty = new InputStream() {
+            @Override
+            public int read() {
+                return -1;
+            }
+        };
+        assertEquals(-1, new FrameDecoder().readFrom(empty, new CollectingHandler()));
+    }
+}
@@ -0,0 +1,193 @@
+package com.example.bluetoothchat;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class FrameWriterTest {
+
+    private static final Executor EXECUTOR = Executors.newCachedThreadPool();
+
+    //Records every write() call so tests can count how the writer batched frames
+    private static class RecordingStream extends OutputStream {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final CountDownLatch release;
+        int writes;
+
+        RecordingStream(CountDownLatch release) {
+            this.release = release;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public synchronized void write(byte[] b, int off, int len) throws IOException {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            }
+            writes++;
+            bytes.write(b, off, len);
+        }
+    }
+
+    private static class RecordingListener implements FrameWriter.Listener {
+        final List<Boolean> backpressure = new ArrayList<>();
+        final CountDownLatch relieved = new CountDownLatch(1);
+
+        @Override
+        public synchronized void onBackpressure(boolean congested) {
+            backpressure.add(congested);
+            if (!congested) {
+                relieved.countDown();
+            }
+        }
+
+        @Override
+        public void onWriteFailed(IOException e) {
+        }
+
+        @Override
+        public void onWritten(int bytes, long nanos) {
+        }
+    }
+
+    private static List<byte[]> decodeAll(byte[] wire) throws IOException {
+        final List<byte[]> frames = new ArrayList<>();
+        new FrameDecoder().feed(wire, 0, wire.length, new FrameDecoder.FrameHandler() {
+            @Override
+            public void onFrame(int type, byte[] buffer, int offset, int length) {
+                frames.add(Arrays.copyOfRange(buffer, offset, offset + length));
+            }
+        });
+        return frames;
+    }
+
+    private static void closeAndWait(FrameWriter writer) throws InterruptedException {
+        writer.close();
+        assertTrue(writer.awaitClosed(5000));
+    }
+
+    @Test
+    public void pendingFrames_areCoalescedIntoFewWrites() throws Exception {
+        RecordingStream out = new RecordingStream(new CountDownLatch(0));
+        FrameWriter writer = new FrameWriter(out, EXECUTOR, new RecordingListener(), 1024, 4096,
+                TimeUnit.MILLISECONDS.toNanos(5), Long.MAX_VALUE);
+        for (int i = 0; i < 200; i++) {
+            assertTrue(writer.enqueue(FrameCodec.TYPE_TEXT, ("message " + i).getBytes(), 0, ("message " + i).length()));
+        }
+        writer.start();
+        closeAndWait(writer);
+
+        synchronized (out) {
+            List<byte[]> frames = decodeAll(out.bytes.toByteArray());
+            assertEquals(200, frames.size());
+            assertEquals("message 199", new String(frames.get(199)));
+            //200 frames of ~12 bytes fit in a handful of 4 KB batches
+            assertTrue("writes: " + out.writes, out.writes <= 3);
+        }
+    }
+
+    @Test
+    public void framesLargerThanBatch_areWrittenIntact() throws Exception {
+        RecordingStream out = new RecordingStream(new CountDownLatch(0));
+        FrameWriter writer = new FrameWriter(out, EXECUTOR, new RecordingListener(), 16, 256, 0, Long.MAX_VALUE);
+        writer.start();
+        byte[] big = new byte[10000];
+        Arrays.fill(big, (byte) 7);
+        writer.enqueue(1, "small".getBytes(), 0, 5);
+        writer.enqueue(2, big, 0, big.length);
+        writer.enqueue(1, "after".getBytes(), 0, 5);
+        closeAndWait(writer);
+
+        synchronized (out) {
+            List<byte[]> frames = decodeAll(out.bytes.toByteArray());
+            assertEquals(3, frames.size());
+            assertArrayEquals(big, frames.get(1));
+            assertEquals("after", new String(frames.get(2)));
+        }
+    }
+
+    @Test
+    public void slowStream_signalsBackpressureAndRejectsWhenFull() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        RecordingStream out = new RecordingStream(release);
+        RecordingListener listener = new RecordingListener();
+        FrameWriter writer = new FrameWriter(out, EXECUTOR, listener, 8, 1024, 0, 100);
+
+        //Fill the queue before starting so the drain can't relieve it halfway
+        byte[] payload = new byte[50];
+        int accepted = 0;
+        while (writer.enqueue(FrameCodec.TYPE_TEXT, payload, 0, payload.length)) {
+            accepted++;
+            assertTrue("queue never filled", accepted < 100);
+        }
+        assertTrue(writer.isCongested());
+
+        writer.start();
+        release.countDown();
+        assertTrue(listener.relieved.await(5, TimeUnit.SECONDS));
+        closeAndWait(writer);
+        synchronized (listener) {
+            assertEquals(Arrays.asList(true, false), listener.backpressure);
+        }
+    }
+
+    @Test
+    public void concurrentProducers_loseNothing() throws Exception {
+        final MpscArrayQueue<Integer> queue = new MpscArrayQueue<>(64);
+        final int producers = 4;
+        final int perProducer = 20000;
+        Thread[] threads = new Thread[producers];
+        for (int p = 0; p < producers; p++) {
+            final int base = p * perProducer;
+            threads[p] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < perProducer; i++) {
+                        while (!queue.offer(base + i)) {
+                            Thread.yield();
+                        }
+                    }
+                }
+            });
+            threads[p].start();
+        }
+        boolean[] seen = new boolean[producers * perProducer];
+        int[] lastPerProducer = new int[producers];
+        Arrays.fill(lastPerProducer, -1);
+        for (int received = 0; received < seen.length; ) {
+            Integer value = queue.poll();
+            if (value == null) {
+                Thread.yield();
+                continue;
+            }
+            assertFalse(seen[value]);
+            seen[value] = true;
+            //Each producer's elements come out in the order it offered them
+            int producer = value / perProducer;
+            assertTrue(value > lastPerProducer[producer]);
+            lastPerProducer[producer] = value;
+            received++;
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertTrue(queue.isEmpty());
+    }
+}
@@ -0,0 +1,145 @@
+package com.example.bluetoothchat;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.*;
+
+public class KnownPeersTest {
+
+    private static final UUID SPP = UUID.fromString("00001101-0000-1000-8000-00805F9B34FB");
+    private static final UUID OTHER = UUID.fromString("8ce255c0-200a-11e0-ac64-0800200c9a66");
+    private static final String A = "00:11:22:33:44:55";
+    private static final String B = "66:77:88:99:AA:BB";
+    private static final String C = "CC:DD:EE:FF:00:11";
+
+    //Saves happen before the call that caused them returns
+    private static final Executor DIRECT = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private File file() {
+        return new File(mFolder.getRoot(), "peers");
+    }
+
+    @Test
+    public void peersSurviveReopening() {
+        KnownPeers peers = new KnownPeers(file(), DIRECT);
+        peers.onConnected(A, OTHER, SPP, RfcommTransport.STRATEGY_INSECURE, 800, 1000);
+        peers.onConnected(B, null, SPP, null, -1, 2000);
+        peers.onConnectFailed(B);
+
+        KnownPeers reopened = new KnownPeers(file(), DIRECT);
+        assertEquals(2, reopened.size());
+        KnownPeers.Peer a = reopened.get(A);
+        assertEquals(OTHER, a.uuid);
+        assertEquals(1000, a.lastSuccessMillis);
+        assertEquals(1, a.successes);
+        assertEquals(800, a.averageConnectMillis);
+        assertEquals(RfcommTransport.STRATEGY_INSECURE, a.strategy);
+        KnownPeers.Peer b = reopened.get(B);
+        //Dialled us, so it is known by the fallback UUID, and its dial was never timed
+        assertEquals(SPP, b.uuid);
+        assertEquals(-1, b.averageConnectMillis);
+        assertEquals(1, b.failures);
+        assertNull(b.strategy);
+    }
+
+    @Test
+    public void mostRecentSuccessRanksFirst_failuresPushItDown() {
+        KnownPeers peers = new KnownPeers(file(), DIRECT);
+        peers.onConnected(A, SPP, SPP, null, 500, 1000);
+        peers.onConnected(B, SPP, SPP, null, 500, 2000);
+        assertEquals(B, peers.ranked().get(0).address);
+
+        peers.onConnectFailed(B);
+        List<KnownPeers.Peer> ranked = peers.ranked();
+        assertEquals(A, ranked.get(0).address);
+        assertEquals(B, ranked.get(1).address);
+
+        //A success clears the failures
+        peers.onConnected(B, SPP, SPP, null, 500, 3000);
+        assertEquals(B, peers.ranked().get(0).address);
+        assertEquals(0, peers.get(B).failures);
+    }
+
+    @Test
+    public void mostLikely_onlyConsidersCandidates() {
+        KnownPeers peers = new KnownPeers(file(), DIRECT);
+        peers.onConnected(A, SPP, SPP, null, 500, 1000);
+        peers.onConnected(B, SPP, SPP, null, 500, 2000);
+
+        List<KnownPeers.Peer> likely = peers.mostLikely(new HashSet<>(Arrays.asList(A, C)), 2);
+        assertEquals(1, likely.size());
+        assertEquals(A, likely.get(0).address);
+        likely = peers.mostLikely(new HashSet<>(Arrays.asList(A, B)), 2);
+        assertEquals(2, likely.size());
+        assertEquals(B, likely.get(0).address);
+        assertEquals(A, likely.get(1).address);
+        //Only the best max of them
+        likely = peers.mostLikely(new HashSet<>(Arrays.asList(A, B)), 1);
+        assertEquals(1, likely.size());
+        assertEquals(B, likely.get(0).address);
+        assertTrue(peers.mostLikely(new HashSet<>(Arrays.asList(C)), 2).isEmpty());
+    }
+
+    @Test
+    public void connectTimeIsAMovingAverage() {
+        KnownPeers peers = new KnownPeers(file(), DIRECT);
+        peers.onConnected(A, SPP, SPP, null, 1000, 1);
+        peers.onConnected(A, SPP, SPP, null, 200, 2);
+        assertEquals(800, peers.get(A).averageConnectMillis);
+        //Untimed connections leave it alone
+        peers.onConnected(A, SPP, SPP, null, -1, 3);
+        assertEquals(800, peers.get(A).averageConnectMillis);
+        assertEquals(3, peers.get(A).successes);
+    }
+
+    @Test
+    public void keepsOnlyTheBestMaxPeers() {
+        KnownPeers peers = new KnownPeers(file(), DIRECT);
+        for (int i = 0; i <= KnownPeers.MAX_PEERS; i++) {
+            peers.onConnected("peer-" + i, SPP, SPP, null, 100, 1000 + i);
+        }
+        assertEquals(KnownPeers.MAX_PEERS, peers.size());
+        //The oldest one went
+        assertNull(peers.get("peer-0"));
+        assertNotNull(peers.get("peer-" + KnownPeers.MAX_PEERS));
+        assertEquals(KnownPeers.MAX_PEERS, new KnownPeers(file(), DIRECT).size());
+    }
+
+    @Test
+    public void failuresOfUnknownPeersAreIgnored() {
+        KnownPeers peers = new KnownPeers(file(), DIRECT);
+        peers.onConnectFailed(A);
+        assertEquals(0, peers.size());
+        assertFalse(file().exists());
+    }
+
+    @Test
+    public void unreadableFile_startsEmpty() throws Exception {
+        FileOutputStream out = new FileOutputStream(file());
+        out.write(new byte[]{0, 0, 0, 1, 0, 0, 0, 5, 0});
+        out.close();
+
+        KnownPeers peers = new KnownPeers(file(), DIRECT);
+        assertEquals(0, peers.size());
+        peers.onConnected(A, SPP, SPP, null, 100, 1);
+        assertEquals(1, new KnownPeers(file(), DIRECT).size());
+    }
+}
@@ -0,0 +1,129 @@
+package com.example.bluetoothchat;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class MessageIndexTest {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final String[] PEERS = {"00:11:22:33:44:55", "66:77:88:99:AA:BB", "pipe-3"};
+    private static final String[] WORDS = {"temperature", "Humidity", "battery", "alarm"};
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private static class Collecting implements MessageLog.RecordVisitor {
+        final List<Long> sequences = new ArrayList<>();
+
+        @Override
+        public void onRecord(long sequence, long timeMillis, boolean outgoing, String address, ByteBuffer payload) {
+            sequences.add(sequence);
+        }
+    }
+
+    //Record i comes from PEERS[i % 3] at time i * 10 and mentions WORDS[i % 4]
+    private static MessageLog fill(File dir, MessageIndex index, int records, int maxSegmentBytes) throws Exception {
+        MessageLog log = new MessageLog(dir, new ByteBufferPool(), index, maxSegmentBytes,
+                MessageLog.DEFAULT_MAX_TOTAL_BYTES, false);
+        for (int i = 0; i < records; i++) {
+            String text = "reading " + i + " " + WORDS[i % WORDS.length];
+            //The log drops records when it falls a whole queue behind, don't let it
+            while (!log.append(PEERS[i % PEERS.length], false, i * 10L, ByteBuffer.wrap(text.getBytes(UTF_8)))) {
+                Thread.yield();
+            }
+        }
+        return log;
+    }
+
+    private static List<Long> expected(int records, String peer, long from, long to, String word) {
+        List<Long> result = new ArrayList<>();
+        for (int i = 0; i < records; i++) {
+            long time = i * 10L;
+            String text = ("reading " + i + " " + WORDS[i % WORDS.length]).toLowerCase();
+            if ((peer == null || peer.equals(PEERS[i % PEERS.length])) && time >= from && time <= to
+                    && (word == null || text.contains(word.toLowerCase()))) {
+                result.add((long) i);
+            }
+        }
+        return result;
+    }
+
+    @Test
+    public void queriesMatchABruteForceScan() throws Exception {
+        int records = 5000;
+        MessageIndex index = new MessageIndex(true);
+        File dir = mFolder.newFolder();
+        //Small segments so blocks straddle segment boundaries
+        fill(dir, index, records, 16 * 1024).close();
+        MessageLog log = new MessageLog(dir, new ByteBufferPool(), null, 16 * 1024,
+                MessageLog.DEFAULT_MAX_TOTAL_BYTES, false);
+
+        Collecting byPeerAndTime = new Collecting();
+        index.query(log, PEERS[1], 1000, 20000, null, Integer.MAX_VALUE, byPeerAndTime);
+        assertEquals(expected(records, PEERS[1], 1000, 20000, null), byPeerAndTime.sequences);
+
+        Collecting byWord = new Collecting();
+        index.query(log, null, Long.MIN_VALUE, Long.MAX_VALUE, "HUMIDITY", Integer.MAX_VALUE, byWord);
+        assertEquals(expected(records, null, Long.MIN_VALUE, Long.MAX_VALUE, "humidity"), byWord.sequences);
+
+        Collecting everything = new Collecting();
+        index.query(log, PEERS[0], 30000, 40000, "alarm", Integer.MAX_VALUE, everything);
+        assertEquals(expected(records, PEERS[0], 30000, 40000, "alarm"), everything.sequences);
+
+        //Too short to use trigrams, falls back to checking every record in range
+        Collecting shortWord = new Collecting();
+        index.query(log, null, 0, 5000, "al", Integer.MAX_VALUE, shortWord);
+        assertEquals(expected(records, null, 0, 5000, "al"), shortWord.sequences);
+
+        Collecting limited = new Collecting();
+        assertEquals(5, index.query(log, PEERS[2], 0, Long.MAX_VALUE, null, 5, limited));
+        assertEquals(expected(records, PEERS[2], 0, Long.MAX_VALUE, null).subList(0, 5), limited.sequences);
+
+        Collecting none = new Collecting();
+        assertEquals(0, index.query(log, "unknown", 0, Long.MAX_VALUE, null, 10, none));
+        assertEquals(0, index.query(log, null, 0, Long.MAX_VALUE, "zebra", 10, none));
+        log.close();
+    }
+
+    @Test
+    public void indexIsRebuiltWhenTheLogOpens() throws Exception {
+        File dir = mFolder.newFolder();
+        fill(dir, null, 1000, MessageLog.DEFAULT_MAX_SEGMENT_BYTES).close();
+
+        MessageIndex index = new MessageIndex(true);
+        MessageLog log = new MessageLog(dir, new ByteBufferPool(), index);
+        assertEquals(1000, index.size());
+        Collecting battery = new Collecting();
+        index.query(log, PEERS[2], 0, Long.MAX_VALUE, "battery", Integer.MAX_VALUE, battery);
+        assertEquals(expected(1000, PEERS[2], 0, Long.MAX_VALUE, "battery"), battery.sequences);
+        log.close();
+    }
+
+    @Test
+    public void largeHistory_peerTimeAndWordQueryFindsEveryMatch() throws Exception {
+        int records = 200000;
+        MessageIndex index = new MessageIndex(true);
+        File dir = mFolder.newFolder();
+        MessageLog log = fill(dir, index, records, MessageLog.DEFAULT_MAX_SEGMENT_BYTES);
+        log.close();
+        log = new MessageLog(dir, new ByteBufferPool(), null);
+
+        //One peer over the whole history, then over a tenth of it
+        Collecting collecting = new Collecting();
+        index.query(log, PEERS[0], 0, records, "alarm", Integer.MAX_VALUE, collecting);
+        assertEquals(expected(records, PEERS[0], 0, records, "alarm"), collecting.sequences);
+        collecting = new Collecting();
+        index.query(log, PEERS[0], records * 4L, records * 5L, "alarm", Integer.MAX_VALUE, collecting);
+        assertEquals(expected(records, PEERS[0], records * 4L, records * 5L, "alarm"), collecting.sequences);
+        log.close();
+    }
+}
@@ -0,0 +1,128 @@
+package com.example.bluetoothchat;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class MessageLogTest {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private static class RecordingVisitor implements MessageLog.RecordVisitor {
+        final List<Long> sequences = new ArrayList<>();
+        final List<String> records = new ArrayList<>();
+
+        @Override
+        public void onRecord(long sequence, long timeMillis, boolean outgoing, String address, ByteBuffer payload) {
+            sequences.add(sequence);
+            records.add((outgoing ? ">" : "<") + address + ":" + UTF_8.decode(payload) + "@" + timeMillis);
+        }
+    }
+
+    private static ByteBuffer text(String s) {
+        return ByteBuffer.wrap(s.getBytes(UTF_8));
+    }
+
+    @Test
+    public void recordsSurviveReopen() throws Exception {
+        File dir = mFolder.newFolder();
+        MessageLog log = new MessageLog(dir, new ByteBufferPool());
+        for (int i = 0; i < 100; i++) {
+            assertTrue(log.append("AA:BB", i % 2 == 0, i, text("message " + i)));
+        }
+        log.close();
+
+        MessageLog reopened = new MessageLog(dir, new ByteBufferPool());
+        assertEquals(100, reopened.nextSequence());
+        RecordingVisitor visitor = new RecordingVisitor();
+        reopened.replay(0, visitor);
+        assertEquals(100, visitor.records.size());
+        assertEquals(">AA:BB:message 0@0", visitor.records.get(0));
+        assertEquals("<AA:BB:message 99@99", visitor.records.get(99));
+
+        RecordingVisitor tail = new RecordingVisitor();
+        reopened.replayTail(10, tail);
+        assertEquals(Long.valueOf(90), tail.sequences.get(0));
+        assertEquals(10, tail.sequences.size());
+        reopened.close();
+    }
+
+    @Test
+    public void segmentsRollAndOldOnesAreDeleted() throws Exception {
+        File dir = mFolder.newFolder();
+        MessageLog log = new MessageLog(dir, new ByteBufferPool(), null, 1024, 4096, false);
+        byte[] payload = new byte[100];
+        for (int i = 0; i < 200; i++) {
+            log.append("peer", false, i, ByteBuffer.wrap(payload));
+        }
+        log.close();
+
+        File[] segments = dir.listFiles();
+        assertTrue("segments: " + segments.length, segments.length > 1);
+        long total = 0;
+        for (File segment : segments) {
+            assertTrue(segment.length() <= 1024);
+            total += segment.length();
+        }
+        assertTrue("total: " + total, total <= 4096 + 1024);
+
+        //Only the newest records are left, still in order and ending at the last one written
+        MessageLog reopened = new MessageLog(dir, new ByteBufferPool(), null, 1024, 4096, false);
+        RecordingVisitor visitor = new RecordingVisitor();
+        reopened.replay(0, visitor);
+        reopened.close();
+        assertEquals(Long.valueOf(199), visitor.sequences.get(visitor.sequences.size() - 1));
+        for (int i = 1; i < visitor.sequences.size(); i++) {
+            assertEquals(visitor.sequences.get(i - 1) + 1, (long) visitor.sequences.get(i));
+        }
+    }
+
+    @Test
+    public void tornTailIsCutOffOnOpen() throws Exception {
+        File dir = mFolder.newFolder();
+        MessageLog log = new MessageLog(dir, new ByteBufferPool());
+        log.append("peer", false, 1, text("kept"));
+        log.append("peer", false, 2, text("torn"));
+        log.close();
+
+        File segment = dir.listFiles()[0];
+        RandomAccessFile file = new RandomAccessFile(segment, "rw");
+        try {
+            file.setLength(file.length() - 2);
+        } finally {
+            file.close();
+        }
+
+        MessageLog reopened = new MessageLog(dir, new ByteBufferPool());
+        assertEquals(1, reopened.nextSequence());
+        reopened.append("peer", false, 3, text("after"));
+        reopened.close();
+
+        RecordingVisitor visitor = new RecordingVisitor();
+        MessageLog check = new MessageLog(dir, new ByteBufferPool());
+        check.replay(0, visitor);
+        check.close();
+        assertEquals(2, visitor.records.size());
+        assertEquals("<peer:kept@1", visitor.records.get(0));
+        assertEquals("<peer:after@3", visitor.records.get(1));
+    }
+
+    @Test(expected = IOException.class)
+    public void unusableDirectory_throws() throws Exception {
+        File file = mFolder.newFile();
+        new MessageLog(new File(file, "messages"), new ByteBufferPool());
+    }
+}
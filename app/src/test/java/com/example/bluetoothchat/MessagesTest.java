@@ -0,0 +1,81 @@
+package com.example.bluetoothchat;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+public class MessagesTest {
+
+    @Test
+    public void command_roundTripsAndAbsentFieldsReadAsNull() {
+        MessageWriter writer = new MessageWriter(4);
+        byte[] payload = Messages.Command.encode(writer, 300, "led", "\u00e9clair");
+        Messages.Command command = new Messages.Command().wrap(ByteBuffer.wrap(payload));
+        assertEquals(300, command.id());
+        assertEquals("led", command.name());
+        assertEquals("\u00e9clair", command.argument());
+
+        //The same view is reused for the next message
+        command.wrap(ByteBuffer.wrap(Messages.Command.encode(writer, 1, "reset", null)));
+        assertEquals("reset", command.name());
+        assertNull(command.argument());
+    }
+
+    @Test
+    public void sensorSample_readsValuesInPlaceFromADirectBuffer() {
+        float[] values = {1.5f, -40f, 1013.25f};
+        byte[] payload = Messages.SensorSample.encode(new MessageWriter(), 7, 1234567890123L, values, 3);
+        ByteBuffer direct = ByteBuffer.allocateDirect(payload.length);
+        direct.put(payload).flip();
+
+        Messages.SensorSample sample = new Messages.SensorSample().wrap(direct);
+        assertEquals(3, sample.valueCount());
+        assertEquals(-40f, sample.value(1), 0f);
+        assertEquals(1013.25f, sample.value(2), 0f);
+        assertEquals(7, sample.sensor());
+        assertEquals(1234567890123L, sample.timeMillis());
+        assertEquals(0, direct.position());
+    }
+
+    @Test
+    public void newerPeer_extraFieldsAreSkipped() {
+        //A later version of CommandAck with a retry hint in field 9 and a big field past MAX_FIELD
+        byte[] payload = new MessageWriter()
+                .varint(Messages.CommandAck.FIELD_COMMAND_ID, 42)
+                .fixed32(9, 500)
+                .string(MessageReader.MAX_FIELD, "ignored")
+                .varint(Messages.CommandAck.FIELD_STATUS, Messages.CommandAck.STATUS_FAILED)
+                .toByteArray();
+        Messages.CommandAck ack = new Messages.CommandAck().wrap(ByteBuffer.wrap(payload));
+        assertEquals(42, ack.commandId());
+        assertEquals(Messages.CommandAck.STATUS_FAILED, ack.status());
+        assertNull(ack.detail());
+    }
+
+    @Test
+    public void reader_onlyDecodesWhatIsAskedFor() {
+        MessageWriter writer = new MessageWriter();
+        byte[] payload = writer.signedVarint(1, -3).string(2, "payload").toByteArray();
+        //Corrupt the text: nobody reading field 1 notices, the text itself decodes with a replacement
+        payload[payload.length - 1] = (byte) 0xFF;
+        MessageReader reader = new MessageReader().wrap(ByteBuffer.wrap(payload));
+        assertEquals(-3, reader.signedVarint(1, 0));
+        assertEquals("payloa\ufffd", reader.string(2));
+        assertFalse(reader.has(3));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void truncatedPayload_throws() {
+        byte[] payload = Messages.Command.encode(new MessageWriter(), 1, "long enough", null);
+        ByteBuffer cut = ByteBuffer.wrap(payload, 0, payload.length - 3);
+        new Messages.Command().wrap(cut).id();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void wrongWireType_throws() {
+        byte[] payload = new MessageWriter().string(Messages.Command.FIELD_ID, "not a number").toByteArray();
+        new Messages.Command().wrap(ByteBuffer.wrap(payload)).id();
+    }
+}
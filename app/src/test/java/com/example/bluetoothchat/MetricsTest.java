@@ -0,0 +1,137 @@
+package com.example.bluetoothchat;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.*;
+
+public class MetricsTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void histogram_percentilesWithinBucketPrecision() {
+        Metrics.Histogram histogram = new Metrics().histogram("rtt.nanos");
+        //1 us to 1 s, uniformly
+        for (long value = 1000; value <= 1000000000L; value += 1000) {
+            histogram.record(value);
+        }
+        Metrics.HistogramSnapshot snapshot = histogram.snapshot();
+        assertEquals(1000000, snapshot.count);
+        assertEquals(1000, snapshot.min);
+        assertEquals(1000000000L, snapshot.max);
+        double[] percentiles = {1, 50, 90, 99, 99.9};
+        for (double percentile : percentiles) {
+            double exact = percentile * 10000000L;
+            long reported = snapshot.percentile(percentile);
+            assertTrue(percentile + ": " + reported, reported >= exact && reported <= exact * 1.032);
+        }
+        assertEquals(1000000000L, snapshot.percentile(100));
+    }
+
+    @Test
+    public void histogram_bucketsCoverEveryValue() {
+        Random random = new Random(3);
+        for (int i = 0; i < 100000; i++) {
+            long value = random.nextLong() >>> (1 + random.nextInt(63));
+            int index = Metrics.Histogram.index(value);
+            assertTrue(value <= Metrics.Histogram.highestValue(index));
+            assertTrue(index == 0 || value > Metrics.Histogram.highestValue(index - 1));
+        }
+        assertEquals(Long.MAX_VALUE, Metrics.Histogram.highestValue(Metrics.Histogram.index(Long.MAX_VALUE)));
+    }
+
+    @Test
+    public void concurrentRecording_losesNothing() throws Exception {
+        final Metrics metrics = new Metrics();
+        final int threads = 4;
+        final int perThread = 100000;
+        final CountDownLatch start = new CountDownLatch(1);
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            workers[t] = new Thread() {
+                @Override
+                public void run() {
+                    //Looked up by name on purpose, every thread must get the same objects
+                    Metrics.Counter counter = metrics.counter("frames.in");
+                    Metrics.Histogram histogram = metrics.histogram("read.bytes");
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int i = 0; i < perThread; i++) {
+                        counter.increment();
+                        histogram.record(i);
+                    }
+                }
+            };
+            workers[t].start();
+        }
+        start.countDown();
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        Metrics.Snapshot snapshot = metrics.snapshot();
+        assertEquals(threads * perThread, snapshot.value("frames.in"));
+        assertEquals(threads * perThread, snapshot.histogram("read.bytes").count);
+        assertEquals(perThread - 1, snapshot.histogram("read.bytes").max);
+        assertEquals(0, snapshot.histogram("read.bytes").min);
+    }
+
+    @Test
+    public void gauges_areSampledAndRemovedOnlyByTheirOwner() {
+        Metrics metrics = new Metrics();
+        final long[] depth = {7};
+        Metrics.Gauge first = new Metrics.Gauge() {
+            @Override
+            public long value() {
+                return depth[0];
+            }
+        };
+        Metrics.Gauge second = new Metrics.Gauge() {
+            @Override
+            public long value() {
+                return 42;
+            }
+        };
+        String name = Metrics.peer("AA:BB", "queue.bytes");
+        metrics.gauge(name, first);
+        depth[0] = 9;
+        assertEquals(9, metrics.snapshot().value(name));
+        //A reconnect registers its own gauge before the old connection goes away
+        metrics.gauge(name, second);
+        metrics.removeGauge(name, first);
+        assertEquals(42, metrics.snapshot().value(name));
+        metrics.removeGauge(name, second);
+        assertFalse(metrics.snapshot().values.containsKey(name));
+    }
+
+    @Test
+    public void reporter_appendsSnapshotsAndRollsOver() throws Exception {
+        Metrics metrics = new Metrics();
+        metrics.counter("frames.in").add(12345);
+        metrics.histogram("write.nanos").record(2500000);
+        File file = new File(folder.getRoot(), "metrics.txt");
+        MetricsReporter reporter = new MetricsReporter(metrics, file, 10, 512);
+        reporter.start();
+        File rolled = new File(file.getPath() + ".1");
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!rolled.exists() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        reporter.stop();
+        assertTrue(rolled.exists());
+        assertTrue(rolled.length() <= 512);
+        assertTrue(file.length() <= 512);
+        String report = new String(java.nio.file.Files.readAllBytes(rolled.toPath()), "UTF-8");
+        assertTrue(report, report.contains("frames.in 12345\n"));
+        assertTrue(report, report.contains("write.nanos n=1 p50=2.5ms"));
+    }
+}
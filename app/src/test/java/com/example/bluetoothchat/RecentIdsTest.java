@@ -0,0 +1,43 @@
+package com.example.bluetoothchat;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class RecentIdsTest {
+
+    @Test
+    public void repeatsAreRefused() {
+        RecentIds ids = new RecentIds(16, 1000);
+        assertTrue(ids.add(42, 0));
+        assertTrue(ids.add(0, 0));
+        assertTrue(ids.add(-1, 0));
+        assertFalse(ids.add(42, 1));
+        assertFalse(ids.add(0, 1));
+        assertFalse(ids.add(-1, 1));
+    }
+
+    @Test
+    public void rememberAtLeastCapacity_thenForgetTheOldest() {
+        RecentIds ids = new RecentIds(100, Long.MAX_VALUE);
+        for (long id = 1; id <= 1000; id++) {
+            assertTrue(ids.add(id, 0));
+            //The last hundred are always still there
+            for (long back = Math.max(1, id - 99); back <= id; back += 33) {
+                assertFalse(ids.add(back, 0));
+            }
+        }
+        //Long gone
+        assertTrue(ids.add(1, 0));
+    }
+
+    @Test
+    public void idsAreForgottenAfterTwoGenerations() {
+        RecentIds ids = new RecentIds(100, 1000);
+        assertTrue(ids.add(7, 0));
+        assertTrue(ids.add(8, 1000));
+        assertFalse(ids.add(7, 1500));
+        assertTrue(ids.add(9, 2000));
+        assertTrue(ids.add(7, 2001));
+    }
+}
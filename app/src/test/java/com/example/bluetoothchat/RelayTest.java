@@ -0,0 +1,166 @@
+package com.example.bluetoothchat;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class RelayTest {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    //One device: its relay, what reached its app, and the links to its neighbours
+    private static class Node implements Relay.Link {
+        final String name;
+        final MessageBus bus = new MessageBus();
+        final Metrics metrics = new Metrics();
+        final Relay relay;
+        final Map<String, Node> neighbours = new HashMap<>();
+        final List<String> received = new ArrayList<>();
+        int framesIn;
+
+        Node(String name, long nodeId) {
+            this.name = name;
+            relay = new Relay(nodeId, this, bus, metrics);
+            bus.subscribe(FrameCodec.TYPE_RELAY, relay);
+            bus.subscribe(FrameCodec.TYPE_TEXT, new MessageSubscriber() {
+                @Override
+                public void onMessage(String address, int type, ByteBuffer payload) {
+                    received.add(address + " " + UTF_8.decode(payload));
+                }
+            });
+        }
+
+        @Override
+        public boolean write(String address, int type, byte[] payload) {
+            Node peer = neighbours.get(address);
+            peer.framesIn++;
+            //Delivered straight away, like a link with no delay
+            peer.bus.publish(name, type, ByteBuffer.wrap(payload).asReadOnlyBuffer());
+            return true;
+        }
+
+        @Override
+        public Set<String> peers() {
+            return new LinkedHashSet<>(neighbours.keySet());
+        }
+    }
+
+    private static void link(Node a, Node b) {
+        a.neighbours.put(b.name, b);
+        b.neighbours.put(a.name, a);
+    }
+
+    private static long counter(Node node, String name) {
+        return node.metrics.snapshot().value(name);
+    }
+
+    @Test
+    public void broadcastCrossesForwardingNodes_untilTheTtlRunsOut() {
+        Node a = new Node("a", 1);
+        Node b = new Node("b", 2);
+        Node c = new Node("c", 3);
+        Node d = new Node("d", 4);
+        link(a, b);
+        link(b, c);
+        link(c, d);
+        b.relay.setForwarding(true);
+        c.relay.setForwarding(true);
+
+        assertTrue(a.relay.broadcast(FrameCodec.TYPE_TEXT, "hello".getBytes(UTF_8), 3));
+        String from = Relay.originAddress(1);
+        assertEquals("[" + from + " hello]", b.received.toString());
+        assertEquals("[" + from + " hello]", c.received.toString());
+        assertEquals("[" + from + " hello]", d.received.toString());
+        assertTrue(a.received.isEmpty());
+
+        //Two hops only reach c
+        assertTrue(a.relay.broadcast(FrameCodec.TYPE_TEXT, "near".getBytes(UTF_8), 2));
+        assertEquals(2, c.received.size());
+        assertEquals(1, d.received.size());
+    }
+
+    @Test
+    public void nodeNotForwarding_stillReceivesButPassesNothingOn() {
+        Node a = new Node("a", 1);
+        Node b = new Node("b", 2);
+        Node c = new Node("c", 3);
+        link(a, b);
+        link(b, c);
+
+        a.relay.broadcast(FrameCodec.TYPE_TEXT, "hello".getBytes(UTF_8), Relay.DEFAULT_TTL);
+        assertEquals(1, b.received.size());
+        assertTrue(c.received.isEmpty());
+        assertEquals(0, counter(b, "relay.forwarded"));
+    }
+
+    @Test
+    public void loopsAndSecondPaths_deliverEachMessageOnce() {
+        //A ring of four, every frame comes round both ways
+        Node[] ring = {new Node("a", 1), new Node("b", 2), new Node("c", 3), new Node("d", 4)};
+        for (int i = 0; i < ring.length; i++) {
+            link(ring[i], ring[(i + 1) % ring.length]);
+            ring[i].relay.setForwarding(true);
+        }
+
+        for (int i = 0; i < 10; i++) {
+            ring[0].relay.broadcast(FrameCodec.TYPE_TEXT, ("message " + i).getBytes(UTF_8), Relay.MAX_TTL);
+        }
+        for (int i = 1; i < ring.length; i++) {
+            assertEquals(10, ring[i].received.size());
+        }
+        //The originator drops its own frames coming back
+        assertTrue(ring[0].received.isEmpty());
+        long duplicates = 0;
+        for (Node node : ring) {
+            duplicates += counter(node, "relay.duplicates");
+        }
+        assertTrue(duplicates > 0);
+        //Each node sends a message on to each neighbour at most once
+        for (Node node : ring) {
+            assertTrue(node.framesIn <= 10 * 2);
+        }
+    }
+
+    @Test
+    public void forwardedFrameIsTheSameBytesWithOneHopLess() {
+        final List<byte[]> sent = new ArrayList<>();
+        Relay.Link capture = new Relay.Link() {
+            @Override
+            public boolean write(String address, int type, byte[] payload) {
+                assertEquals(FrameCodec.TYPE_RELAY, type);
+                sent.add(payload);
+                return true;
+            }
+
+            @Override
+            public Set<String> peers() {
+                Set<String> peers = new LinkedHashSet<>();
+                peers.add("from");
+                peers.add("onward");
+                return peers;
+            }
+        };
+        Relay relay = new Relay(2, capture, new MessageBus(), new Metrics());
+        relay.setForwarding(true);
+
+        byte[] frame = new byte[Relay.HEADER_BYTES + 3];
+        ByteBuffer.wrap(frame).putLong(1).putInt(7).put((byte) 5).put((byte) FrameCodec.TYPE_TEXT)
+                .put(new byte[]{'a', 'b', 'c'});
+        relay.onMessage("from", FrameCodec.TYPE_RELAY, ByteBuffer.wrap(frame));
+
+        //Not back where it came from
+        assertEquals(1, sent.size());
+        byte[] forwarded = sent.get(0);
+        frame[12] = 4;
+        assertArrayEquals(frame, forwarded);
+    }
+}
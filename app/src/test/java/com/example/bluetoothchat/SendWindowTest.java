@@ -0,0 +1,70 @@
+package com.example.bluetoothchat;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class SendWindowTest {
+
+    private static final long MS = 1000000L;
+
+    //One round trip: ack everything sent so far, next round ends at sent + window
+    private static long round(SendWindow window, long sent, long rttNanos) {
+        long next = sent + window.window();
+        window.onAck(sent, rttNanos, next);
+        return next;
+    }
+
+    @Test
+    public void emptyPipe_growsToMaxWindow() {
+        SendWindow window = new SendWindow(4, 64);
+        long sent = 4;
+        for (int i = 0; i < 20; i++) {
+            sent = round(window, sent, 20 * MS);
+        }
+        assertEquals(64, window.window());
+    }
+
+    @Test
+    public void queueingDelay_shrinksWindow() {
+        SendWindow window = new SendWindow(4, 64);
+        long sent = 4;
+        //Slow start until the link saturates at 16 frames per 20 ms
+        for (int i = 0; i < 10; i++) {
+            long rtt = 20 * MS * Math.max(1, window.window() / 16);
+            sent = round(window, sent, rtt);
+        }
+        int settled = window.window();
+        assertTrue("window " + settled, settled >= 16 && settled <= 40);
+
+        //The peer slows down, every frame now waits in a queue
+        for (int i = 0; i < 30; i++) {
+            sent = round(window, sent, 20 * MS * Math.max(1, window.window() / 4));
+        }
+        assertTrue("window " + window.window(), window.window() < settled);
+        assertTrue(window.window() <= 4 + 4);
+    }
+
+    @Test
+    public void retransmitTimeout_followsRttAndBacksOff() {
+        SendWindow window = new SendWindow(8, 64);
+        assertEquals(SendWindow.INITIAL_RTO_MILLIS, window.rtoMillis());
+        long sent = 8;
+        for (int i = 0; i < 10; i++) {
+            sent = round(window, sent, 100 * MS);
+        }
+        assertEquals(100, window.srttMillis());
+        assertTrue(window.rtoMillis() >= SendWindow.MIN_RTO_MILLIS && window.rtoMillis() < 400);
+
+        int before = window.window();
+        long rto = window.rtoMillis();
+        window.onTimeout();
+        assertEquals(Math.max(1, before / 2), window.window());
+        assertEquals(2 * rto, window.rtoMillis());
+        for (int i = 0; i < 20; i++) {
+            window.onTimeout();
+        }
+        assertEquals(SendWindow.MAX_RTO_MILLIS, window.rtoMillis());
+        assertEquals(1, window.window());
+    }
+}
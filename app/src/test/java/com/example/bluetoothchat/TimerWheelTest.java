@@ -0,0 +1,116 @@
+package com.example.bluetoothchat;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class TimerWheelTest {
+
+    private static class Timer extends TimerWheel.Node {
+        final String name;
+        boolean cancelled;
+
+        Timer(String name) {
+            this.name = name;
+        }
+
+        @Override
+        boolean isCancelled() {
+            return cancelled;
+        }
+    }
+
+    private static List<String> names(List<TimerWheel.Node> nodes) {
+        List<String> names = new ArrayList<>();
+        for (TimerWheel.Node node : nodes) {
+            names.add(((Timer) node).name);
+        }
+        return names;
+    }
+
+    @Test
+    public void timersExpireByDeadline_sameTickInOrderAdded() {
+        TimerWheel wheel = new TimerWheel(0);
+        wheel.add(new Timer("c"), 30);
+        wheel.add(new Timer("a"), 10);
+        wheel.add(new Timer("b1"), 20);
+        wheel.add(new Timer("b2"), 20);
+        assertEquals(10, wheel.nextDeadlineTick());
+
+        List<TimerWheel.Node> expired = new ArrayList<>();
+        wheel.advance(9, expired);
+        assertTrue(expired.isEmpty());
+        wheel.advance(25, expired);
+        assertEquals("[a, b1, b2]", names(expired).toString());
+        assertEquals(30, wheel.nextDeadlineTick());
+        assertEquals(1, wheel.size());
+    }
+
+    @Test
+    public void removedAndCancelledTimersNeverExpire() {
+        TimerWheel wheel = new TimerWheel(0);
+        Timer removed = new Timer("removed");
+        Timer cancelled = new Timer("cancelled");
+        wheel.add(removed, 5);
+        wheel.add(cancelled, 6);
+        wheel.add(new Timer("kept"), 7);
+        wheel.remove(removed);
+        //Removing twice is harmless
+        wheel.remove(removed);
+        cancelled.cancelled = true;
+        assertEquals(2, wheel.size());
+
+        List<TimerWheel.Node> expired = new ArrayList<>();
+        wheel.advance(10, expired);
+        assertEquals("[kept]", names(expired).toString());
+        assertEquals(0, wheel.size());
+        assertEquals(-1, wheel.nextDeadlineTick());
+    }
+
+    @Test
+    public void timersBeyondOneRotationWaitForTheirRound() {
+        TimerWheel wheel = new TimerWheel(0);
+        //Same bucket, one rotation apart
+        wheel.add(new Timer("later"), 5 + TimerWheel.WHEEL_SIZE);
+        wheel.add(new Timer("sooner"), 5);
+
+        List<TimerWheel.Node> expired = new ArrayList<>();
+        wheel.advance(100, expired);
+        assertEquals("[sooner]", names(expired).toString());
+        assertEquals(5 + TimerWheel.WHEEL_SIZE, wheel.nextDeadlineTick());
+
+        expired.clear();
+        wheel.advance(4 + TimerWheel.WHEEL_SIZE, expired);
+        assertTrue(expired.isEmpty());
+        wheel.advance(5 + TimerWheel.WHEEL_SIZE, expired);
+        assertEquals("[later]", names(expired).toString());
+    }
+
+    @Test
+    public void longJump_expiresEverythingDueInDeadlineOrder() {
+        TimerWheel wheel = new TimerWheel(0);
+        wheel.add(new Timer("third"), 2 * TimerWheel.WHEEL_SIZE + 1);
+        wheel.add(new Timer("second"), TimerWheel.WHEEL_SIZE + 2);
+        wheel.add(new Timer("first"), 3);
+        wheel.add(new Timer("pending"), 10 * TimerWheel.WHEEL_SIZE);
+
+        List<TimerWheel.Node> expired = new ArrayList<>();
+        wheel.advance(5 * TimerWheel.WHEEL_SIZE, expired);
+        assertEquals("[first, second, third]", names(expired).toString());
+        assertEquals(10 * TimerWheel.WHEEL_SIZE, wheel.nextDeadlineTick());
+    }
+
+    @Test
+    public void pastDeadline_expiresOnTheNextTick() {
+        TimerWheel wheel = new TimerWheel(0);
+        List<TimerWheel.Node> expired = new ArrayList<>();
+        wheel.advance(50, expired);
+        wheel.add(new Timer("late"), 20);
+        assertEquals(51, wheel.nextDeadlineTick());
+        wheel.advance(51, expired);
+        assertEquals("[late]", names(expired).toString());
+    }
+}
@@ -0,0 +1,41 @@
+package com.example.bluetoothchat;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class TranscriptModelTest {
+
+    @Test
+    public void keepsOnlyTheNewestMessagesOnceFull() {
+        TranscriptModel model = new TranscriptModel(3);
+        for (int i = 0; i < 5; i++) {
+            model.add("peer", "message " + i, i);
+        }
+        assertEquals(3, model.size());
+        assertEquals("message 2", model.get(0).text);
+        assertEquals("message 4", model.get(2).text);
+        assertEquals(4, model.get(2).timeMillis);
+    }
+
+    @Test
+    public void sequenceOfAMessageDoesNotShiftAsOlderOnesDropOut() {
+        TranscriptModel model = new TranscriptModel(4);
+        model.add("peer", "first", 0);
+        model.add("peer", "second", 0);
+        assertEquals(1, model.sequenceAt(1));
+        for (int i = 0; i < 3; i++) {
+            model.add("peer", "more", 0);
+        }
+        //"second" is now the oldest message held
+        assertEquals("second", model.get(0).text);
+        assertEquals(1, model.sequenceAt(0));
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void getBeyondSize_throws() {
+        TranscriptModel model = new TranscriptModel(4);
+        model.add("peer", "only", 0);
+        model.get(1);
+    }
+}
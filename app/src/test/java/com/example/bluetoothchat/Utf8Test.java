@@ -0,0 +1,46 @@
+package com.example.bluetoothchat;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+import static org.junit.Assert.*;
+
+public class Utf8Test {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    @Test
+    public void roundTrip_matchesTheJdkForEveryWidth() {
+        String text = "plain, \u00e9t\u00e9, \u20ac 5, \u4f60\u597d, \ud83d\ude00 done";
+        byte[] encoded = Utf8.encode(text);
+        assertArrayEquals(text.getBytes(UTF_8), encoded);
+        assertEquals(encoded.length, Utf8.encodedLength(text));
+        assertEquals(text, Utf8.decode(ByteBuffer.wrap(encoded)));
+
+        //Direct buffers and a window into a bigger buffer read the same
+        ByteBuffer direct = ByteBuffer.allocateDirect(encoded.length + 4);
+        direct.position(2);
+        direct.put(encoded);
+        direct.position(2).limit(2 + encoded.length);
+        assertEquals(text, Utf8.decode(direct));
+        assertEquals(2, direct.position());
+    }
+
+    @Test
+    public void malformedInput_decodesToReplacementCharacters() {
+        //Truncated euro sign, stray continuation byte, overlong '/', encoded surrogate
+        byte[] bad = {'a', (byte) 0xE2, (byte) 0x82, 'b', (byte) 0x80, 'c',
+                (byte) 0xC0, (byte) 0xAF, 'd', (byte) 0xED, (byte) 0xA0, (byte) 0x80};
+        String decoded = Utf8.decode(bad, 0, bad.length);
+        assertEquals("a\ufffdb\ufffdc\ufffd\ufffdd\ufffd", decoded);
+    }
+
+    @Test
+    public void unpairedSurrogate_isSentAsQuestionMark() {
+        String text = "x\ud83dy";
+        assertEquals(3, Utf8.encodedLength(text));
+        assertEquals("x?y", Utf8.decode(ByteBuffer.wrap(Utf8.encode(text))));
+    }
+}
@@ -0,0 +1,69 @@
+package com.example.bluetoothchat;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+//DeflateCodec on the kinds of payload the app sends: chat lines, sensor readings and bulk text
+@State(Scope.Thread)
+public class CompressionBenchmark {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    @Param({"chat", "telemetry", "bulk"})
+    public String message;
+
+    private DeflateCodec mCodec;
+    private byte[] mPayload;
+    private ByteBuffer mCompressed;
+
+    @Setup
+    public void setup(){
+        String text;
+        switch(message){
+            case "chat":
+                text = "Are you there? I will be there in 5 minutes, let me know when you get this.";
+                break;
+            case "telemetry":
+                text = "{\"device\":\"HC-06\",\"uptime\":86400,\"battery\":87,\"rssi\":-71,"
+                        + "\"temperature\":23.4,\"humidity\":51,\"status\":\"ok\",\"timestamp\":1600000123456}";
+                break;
+            default:
+                StringBuilder bulk = new StringBuilder();
+                for(int i = 0; bulk.length() < 4096; i++){
+                    bulk.append("line ").append(i).append(": sensor reading ok, value ").append(i * 7 % 100).append('\n');
+                }
+                text = bulk.toString();
+                break;
+        }
+        mPayload = text.getBytes(UTF_8);
+        mCodec = new DeflateCodec();
+        byte[] body = mCodec.compress(FrameCodec.TYPE_TEXT, mPayload, 0, mPayload.length);
+        if(body == null){
+            throw new IllegalStateException(message + " does not compress");
+        }
+        mCompressed = ByteBuffer.wrap(body);
+    }
+
+    @TearDown
+    public void tearDown(){
+        mCodec.end();
+    }
+
+    @Benchmark
+    public byte[] compress(){
+        return mCodec.compress(FrameCodec.TYPE_TEXT, mPayload, 0, mPayload.length);
+    }
+
+    @Benchmark
+    public ByteBuffer inflate() throws IOException {
+        return mCodec.inflate(mCompressed.duplicate(), FrameCodec.DEFAULT_MAX_PAYLOAD);
+    }
+}
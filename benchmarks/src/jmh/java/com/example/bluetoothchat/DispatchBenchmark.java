@@ -0,0 +1,115 @@
+package com.example.bluetoothchat;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+/*
+ * Receive dispatch, from a decoded frame to the UI thread's listener, for a burst of messages.
+ *
+ * busAndCoalescer is the current path: MessageBus to CoalescingDispatcher, one pooled copy per
+ * message and one post per burst. stringAndIntent stands in for the path it replaced, a String
+ * and an Intent per message each posted on its own; the Intent is modelled by its extras map
+ * since there is no framework here. The UI thread is a queue that is run after the burst.
+ * */
+@State(Scope.Thread)
+public class DispatchBenchmark {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final String ADDRESS = "00:11:22:33:44:55";
+    //Per invocation, a multiple of every burst size
+    private static final int MESSAGES = 256;
+    private static final int FRAME_OFFSET = 100;
+
+    @Param({"1", "16", "256"})
+    public int burst;
+
+    private final ArrayDeque<Runnable> mUiQueue = new ArrayDeque<>();
+    private final Executor mUiExecutor = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            mUiQueue.add(command);
+        }
+    };
+
+    //A frame somewhere in the middle of the receive buffer
+    private ByteBuffer mFrame;
+    private int mLength;
+    private MessageBus mBus;
+    private Blackhole mBlackhole;
+
+    @Setup
+    public void setup(final Blackhole blackhole){
+        mBlackhole = blackhole;
+        byte[] receiveBuffer = new byte[1024];
+        byte[] text = "Are you there? I will be there in 5 minutes.".getBytes(UTF_8);
+        System.arraycopy(text, 0, receiveBuffer, FRAME_OFFSET, text.length);
+        mLength = text.length;
+        mFrame = ByteBuffer.wrap(receiveBuffer);
+
+        CoalescingDispatcher dispatcher = new CoalescingDispatcher(mUiExecutor, new ByteBufferPool());
+        dispatcher.setListener(new CoalescingDispatcher.Listener() {
+            @Override
+            public void onMessage(String address, int type, ByteBuffer payload) {
+                blackhole.consume(payload.get(payload.limit() - 1));
+            }
+
+            @Override
+            public void onBatchEnd(int count) {
+                blackhole.consume(count);
+            }
+        });
+        mBus = new MessageBus();
+        mBus.subscribe(FrameCodec.TYPE_TEXT, dispatcher);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(MESSAGES)
+    public void busAndCoalescer(){
+        for(int sent = 0; sent < MESSAGES; sent += burst){
+            for(int i = 0; i < burst; i++){
+                //The engine points its view at each frame the same way
+                mFrame.limit(FRAME_OFFSET + mLength).position(FRAME_OFFSET);
+                mBus.publish(ADDRESS, FrameCodec.TYPE_TEXT, mFrame);
+            }
+            runUiQueue();
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(MESSAGES)
+    public void stringAndIntent(){
+        for(int sent = 0; sent < MESSAGES; sent += burst){
+            for(int i = 0; i < burst; i++){
+                final String message = new String(mFrame.array(), FRAME_OFFSET, mLength, UTF_8);
+                final Map<String, Object> extras = new HashMap<>();
+                extras.put("theMessage", message);
+                mUiExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        mBlackhole.consume(extras.get("theMessage"));
+                    }
+                });
+            }
+            runUiQueue();
+        }
+    }
+
+    private void runUiQueue(){
+        Runnable task;
+        while((task = mUiQueue.poll()) != null){
+            task.run();
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package com.example.bluetoothchat;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.util.Random;
+
+/*
+ * Frame encode and decode. decode feeds a stream of frames in RFCOMM sized reads, so frames
+ * split across reads and across the end of the ring are part of what is measured.
+ * */
+@State(Scope.Thread)
+public class FrameCodecBenchmark {
+
+    private static final int FRAMES = 256;
+    //About what one RFCOMM read returns
+    private static final int READ_BYTES = 990;
+
+    @Param({"16", "256", "4096"})
+    public int payloadBytes;
+
+    private byte[] mPayload;
+    private byte[] mFrame;
+    private byte[] mStream;
+    private FrameDecoder mDecoder;
+    private Blackhole mBlackhole;
+
+    private final FrameDecoder.FrameHandler mHandler = new FrameDecoder.FrameHandler() {
+        @Override
+        public void onFrame(int type, byte[] buffer, int offset, int length) {
+            mBlackhole.consume(buffer[offset + length - 1]);
+        }
+    };
+
+    @Setup
+    public void setup(Blackhole blackhole){
+        mBlackhole = blackhole;
+        mPayload = new byte[payloadBytes];
+        new Random(1).nextBytes(mPayload);
+        mFrame = new byte[FrameCodec.frameSize(payloadBytes)];
+        int frameSize = FrameCodec.frameSize(payloadBytes);
+        mStream = new byte[FRAMES * frameSize];
+        for(int i = 0; i < FRAMES; i++){
+            FrameCodec.encode(mStream, i * frameSize, FrameCodec.TYPE_TEXT, mPayload, 0, payloadBytes);
+        }
+        mDecoder = new FrameDecoder();
+    }
+
+    @Benchmark
+    public int encodeInto(){
+        return FrameCodec.encode(mFrame, 0, FrameCodec.TYPE_TEXT, mPayload, 0, payloadBytes);
+    }
+
+    //What callers of ConnectionEngine.write pay, a fresh array per frame
+    @Benchmark
+    public byte[] encodeAllocating(){
+        return FrameCodec.encode(FrameCodec.TYPE_TEXT, mPayload, 0, payloadBytes);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(FRAMES)
+    public void decode() throws IOException {
+        for(int offset = 0; offset < mStream.length; offset += READ_BYTES){
+            mDecoder.feed(mStream, offset, Math.min(READ_BYTES, mStream.length - offset), mHandler);
+        }
+    }
+}
@@ -0,0 +1,153 @@
+package com.example.bluetoothchat;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * End to end through two ConnectionEngines: writer, transport, event loop, decoder and listener.
+ * throughput sends bursts of chat sized frames one way; roundTrip sends one frame that the
+ * server echoes back and waits for it, sampled so the JSON carries the latency percentiles.
+ * */
+@State(Scope.Benchmark)
+public class LoopbackBenchmark {
+
+    private static final UUID SERVICE_UUID = UUID.fromString("00001101-0000-1000-8000-00805F9B34FB");
+    private static final int BURST = 1000;
+    //Application frame type the server sends straight back
+    private static final int TYPE_ECHO = 0x10;
+
+    @Param({"piped", "tcp"})
+    public String transport;
+
+    @Param({"32", "1024"})
+    public int payloadBytes;
+
+    private final CountDownLatch mConnected = new CountDownLatch(2);
+    private volatile long mReceived;
+    private volatile long mEchoes;
+
+    private ConnectionEngine mServer;
+    private ConnectionEngine mClient;
+    private String mServerAddress;
+    private byte[] mPayload;
+    private long mSent;
+    private long mEchoed;
+
+    private final ConnectionListener mServerListener = new Listener() {
+        @Override
+        public void onConnected(String address) {
+            mConnected.countDown();
+        }
+
+        @Override
+        public void onFrame(String address, int type, ByteBuffer payload) {
+            if(type == TYPE_ECHO){
+                byte[] echo = new byte[payload.remaining()];
+                payload.get(echo);
+                mServer.write(address, TYPE_ECHO, echo);
+            }else{
+                //Only the server's event loop thread counts
+                mReceived = mReceived + 1;
+            }
+        }
+    };
+
+    private final ConnectionListener mClientListener = new Listener() {
+        @Override
+        public void onConnected(String address) {
+            mConnected.countDown();
+        }
+
+        @Override
+        public void onFrame(String address, int type, ByteBuffer payload) {
+            mEchoes = mEchoes + 1;
+        }
+    };
+
+    private abstract static class Listener implements ConnectionListener {
+        @Override
+        public void onConnectionFailed(String address, IOException e) {
+            throw new IllegalStateException("Could not connect to " + address, e);
+        }
+
+        @Override
+        public void onDisconnected(String address) {
+        }
+
+        @Override
+        public void onBackpressure(String address, boolean congested) {
+        }
+    }
+
+    @Setup
+    public void setup() throws Exception {
+        Transport serverTransport;
+        Transport clientTransport;
+        if(transport.equals("tcp")){
+            serverTransport = new TcpTransport(0);
+            clientTransport = new TcpTransport(0);
+        }else{
+            serverTransport = new PipedTransport();
+            clientTransport = serverTransport;
+        }
+        mServer = new ConnectionEngine(serverTransport, "bench", SERVICE_UUID, mServerListener);
+        mClient = new ConnectionEngine(clientTransport, "client", SERVICE_UUID, mClientListener);
+        mServer.start();
+        mServerAddress = serverTransport instanceof TcpTransport
+                ? String.valueOf(((TcpTransport) serverTransport).getLocalPort())
+                : "bench";
+        mClient.connect(mServerAddress, SERVICE_UUID);
+        if(!mConnected.await(10, TimeUnit.SECONDS)){
+            throw new IllegalStateException("Loopback did not connect");
+        }
+        mPayload = new byte[payloadBytes];
+    }
+
+    @TearDown
+    public void tearDown(){
+        mClient.stop();
+        mServer.stop();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BURST)
+    public void throughput(){
+        for(int i = 0; i < BURST; i++){
+            //Back off while the writer's queue is full
+            while(!mClient.write(mServerAddress, FrameCodec.TYPE_TEXT, mPayload)){
+                Thread.yield();
+            }
+        }
+        mSent += BURST;
+        while(mReceived < mSent){
+            Thread.yield();
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SampleTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public void roundTrip(){
+        if(!mClient.write(mServerAddress, TYPE_ECHO, mPayload)){
+            throw new IllegalStateException("Writer queue full");
+        }
+        mEchoed++;
+        while(mEchoes < mEchoed){
+            Thread.yield();
+        }
+    }
+}
@@ -0,0 +1,110 @@
+package com.example.bluetoothchat;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/*
+ * FrameWriter throughput for bursts of chat sized frames, from enqueue until the stream has
+ * taken the last byte. The stream stands in for the socket: each write() costs writeNanos,
+ * spun rather than slept, about what a syscall into the Bluetooth stack takes.
+ * A 64 byte batch holds a single frame, so that case is the writer without batching.
+ * */
+@State(Scope.Thread)
+public class WriteBatchingBenchmark {
+
+    private static final int FRAMES = 512;
+    private static final int PAYLOAD_BYTES = 32;
+
+    @Param({"64", "2048", "8192"})
+    public int maxBatchBytes;
+
+    @Param({"0", "5000"})
+    public long writeNanos;
+
+    private static final class SinkStream extends OutputStream {
+        private final long mmWriteNanos;
+        volatile long mmWritten;
+
+        SinkStream(long writeNanos){
+            mmWriteNanos = writeNanos;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            long end = System.nanoTime() + mmWriteNanos;
+            while(mmWriteNanos > 0 && System.nanoTime() < end){
+                //Spin, a sleep this short would oversleep
+            }
+            //Only the drain thread writes
+            mmWritten = mmWritten + len;
+        }
+    }
+
+    private final FrameWriter.Listener mListener = new FrameWriter.Listener() {
+        @Override
+        public void onBackpressure(boolean congested) {
+        }
+
+        @Override
+        public void onWriteFailed(IOException e) {
+            throw new IllegalStateException(e);
+        }
+
+        @Override
+        public void onWritten(int bytes, long nanos) {
+        }
+    };
+
+    private ExecutorService mExecutor;
+    private SinkStream mSink;
+    private FrameWriter mWriter;
+    private byte[] mPayload;
+    private long mExpected;
+
+    @Setup
+    public void setup(){
+        mExecutor = Executors.newSingleThreadExecutor();
+        mSink = new SinkStream(writeNanos);
+        //No linger, so only what is already queued is batched and nothing waits on a timer
+        mWriter = new FrameWriter(mSink, mExecutor, mListener, FRAMES, maxBatchBytes, 0, Long.MAX_VALUE);
+        mWriter.start();
+        mPayload = new byte[PAYLOAD_BYTES];
+        mExpected = 0;
+    }
+
+    @TearDown
+    public void tearDown() throws InterruptedException {
+        mWriter.close();
+        mWriter.awaitClosed(5000);
+        mExecutor.shutdown();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(FRAMES)
+    public void burst(){
+        for(int i = 0; i < FRAMES; i++){
+            if(!mWriter.enqueue(FrameCodec.TYPE_TEXT, mPayload, 0, PAYLOAD_BYTES)){
+                throw new IllegalStateException("Writer queue full");
+            }
+        }
+        mExpected += FRAMES * FrameCodec.frameSize(PAYLOAD_BYTES);
+        while(mSink.mmWritten < mExpected){
+            Thread.yield();
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package android.util;
+
+/*
+ * Stand-in for the framework's Log so the connection layers run on the desktop JVM.
+ * Debug output is dropped, it would only measure the console; errors still go to stderr.
+ * */
+public final class Log {
+
+    public static final int VERBOSE = 2;
+    public static final int DEBUG = 3;
+    public static final int INFO = 4;
+    public static final int WARN = 5;
+    public static final int ERROR = 6;
+
+    private Log(){
+    }
+
+    public static boolean isLoggable(String tag, int level){
+        return false;
+    }
+
+    public static int v(String tag, String msg){
+        return 0;
+    }
+
+    public static int d(String tag, String msg){
+        return 0;
+    }
+
+    public static int i(String tag, String msg){
+        return 0;
+    }
+
+    public static int w(String tag, String msg){
+        return 0;
+    }
+
+    public static int e(String tag, String msg){
+        System.err.println(tag + ": " + msg);
+        return 0;
+    }
+
+    public static int e(String tag, String msg, Throwable tr){
+        System.err.println(tag + ": " + msg);
+        tr.printStackTrace();
+        return 0;
+    }
+}
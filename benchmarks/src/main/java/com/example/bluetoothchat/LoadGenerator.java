@@ -0,0 +1,591 @@
+package com.example.bluetoothchat;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/*
+ * Headless soak test for the connection stack. A hub configured like BluetoothConnectionService
+ * dials simulated HC-06 peers over PipedTransport or TCP and keeps them busy: it probes the echo
+ * peers at a steady rate with sizes drawn from a mix, and the streaming peers send readings at
+ * the same rate. FaultyTransport on every end adds latency, loses writes and drops links.
+ *
+ * Every report period it prints throughput, round trip and reading latency percentiles, and
+ * heap (after a GC) and thread counts. At the end it waits for what is in flight, stops
+ * everything and names any thread that outlived it, so a run of an hour or so shows both slow
+ * leaks and ones that only happen on teardown.
+ *
+ *   ./gradlew :benchmarks:soak -Psoak="--peers 7 --duration 3600 --latency 20 --loss 0.001 --disconnect-every 120"
+ *
+ * Exits with 1 if any message was lost or a thread was left behind, 2 on bad options.
+ * A peer that hears nothing for the stall timeout with messages outstanding is counted as stalled
+ * and its link is dropped to get it going again; with lost writes that happens when a HELLO
+ * or RESUME is lost, which nothing else recovers from.
+ * */
+final class LoadGenerator implements ConnectionListener {
+
+    private static final UUID SERVICE_UUID = UUID.fromString("00001101-0000-1000-8000-00805F9B34FB");
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final long TICK_MILLIS = 10;
+    private static final long DRAIN_MILLIS = 30 * 1000;
+    private static final long THREAD_EXIT_MILLIS = 5 * 1000;
+
+    private static final String USAGE = "Options:\n"
+            + "  --peers N               simulated peers (7)\n"
+            + "  --streamers N           how many of them stream readings instead of echoing (2)\n"
+            + "  --transport piped|tcp   (piped)\n"
+            + "  --duration SECONDS      (60)\n"
+            + "  --rate N                messages per second per peer (20)\n"
+            + "  --sizes SIZE:WEIGHT,..  payload size mix (16:60,64:25,512:10,4096:5)\n"
+            + "  --latency MS            one way, on every link (0)\n"
+            + "  --jitter MS             up to this much either side of the latency (0)\n"
+            + "  --bandwidth BYTES       per second each way per link, 0 for no limit (0)\n"
+            + "  --loss RATE             chance of each write being lost, needs a reliable window (0)\n"
+            + "  --disconnect-every S    drop a random peer's link this often, 0 for never (0)\n"
+            + "  --window N              reliable window, 0 for plain mode (32, as the app)\n"
+            + "  --report SECONDS        (10)\n"
+            + "  --stall-timeout SECONDS (15)\n"
+            + "  --seed N                (random)\n";
+
+    static final class Options {
+        int peers = 7;
+        int streamers = 2;
+        boolean tcp;
+        long durationSeconds = 60;
+        double rate = 20;
+        int[] sizes = {16, 64, 512, 4096};
+        int[] weights = {60, 25, 10, 5};
+        long latencyMillis;
+        long jitterMillis;
+        long bandwidth;
+        double loss;
+        long disconnectEverySeconds;
+        int window = 32;
+        long reportSeconds = 10;
+        long stallTimeoutSeconds = 15;
+        long seed = System.nanoTime();
+
+        static Options parse(String[] args){
+            Options options = new Options();
+            if(args.length % 2 != 0){
+                throw new IllegalArgumentException("Every option takes a value");
+            }
+            for(int i = 0; i < args.length; i += 2){
+                String name = args[i];
+                String value = args[i + 1];
+                switch(name){
+                    case "--peers": options.peers = Integer.parseInt(value); break;
+                    case "--streamers": options.streamers = Integer.parseInt(value); break;
+                    case "--transport":
+                        if(!value.equals("piped") && !value.equals("tcp")){
+                            throw new IllegalArgumentException("Unknown transport " + value);
+                        }
+                        options.tcp = value.equals("tcp");
+                        break;
+                    case "--duration": options.durationSeconds = Long.parseLong(value); break;
+                    case "--rate": options.rate = Double.parseDouble(value); break;
+                    case "--sizes": options.parseSizes(value); break;
+                    case "--latency": options.latencyMillis = Long.parseLong(value); break;
+                    case "--jitter": options.jitterMillis = Long.parseLong(value); break;
+                    case "--bandwidth": options.bandwidth = Long.parseLong(value); break;
+                    case "--loss": options.loss = Double.parseDouble(value); break;
+                    case "--disconnect-every": options.disconnectEverySeconds = Long.parseLong(value); break;
+                    case "--window": options.window = Integer.parseInt(value); break;
+                    case "--report": options.reportSeconds = Long.parseLong(value); break;
+                    case "--stall-timeout": options.stallTimeoutSeconds = Long.parseLong(value); break;
+                    case "--seed": options.seed = Long.parseLong(value); break;
+                    default: throw new IllegalArgumentException("Unknown option " + name);
+                }
+            }
+            if(options.peers < 1 || options.streamers < 0 || options.streamers > options.peers){
+                throw new IllegalArgumentException("Need at least one peer and no more streamers than peers");
+            }
+            if(options.loss > 0 && options.window == 0){
+                //Plain mode assumes the link itself loses nothing
+                throw new IllegalArgumentException("--loss needs a reliable --window");
+            }
+            if(options.rate <= 0 || options.reportSeconds <= 0){
+                throw new IllegalArgumentException("Rate and report period must be positive");
+            }
+            return options;
+        }
+
+        private void parseSizes(String value){
+            String[] entries = value.split(",");
+            sizes = new int[entries.length];
+            weights = new int[entries.length];
+            for(int i = 0; i < entries.length; i++){
+                String[] parts = entries[i].split(":");
+                sizes[i] = Integer.parseInt(parts[0]);
+                weights[i] = parts.length > 1 ? Integer.parseInt(parts[1]) : 1;
+                //The payload starts with its send time
+                if(sizes[i] < 8 || sizes[i] > FrameCodec.DEFAULT_MAX_PAYLOAD || weights[i] < 0){
+                    throw new IllegalArgumentException("Bad size " + entries[i]);
+                }
+            }
+            int total = 0;
+            for(int weight : weights){
+                total += weight;
+            }
+            if(total == 0){
+                throw new IllegalArgumentException("Sizes need a weight");
+            }
+        }
+    }
+
+    //The hub's view of one peer. Counts are of messages, either direction
+    private static final class PeerStats {
+        final SimulatedPeer peer;
+        final AtomicLong sent = new AtomicLong();
+        final AtomicLong received = new AtomicLong();
+        volatile long lastHeardNanos = System.nanoTime();
+        //Only touched on the load loop
+        double credit;
+
+        PeerStats(SimulatedPeer peer){
+            this.peer = peer;
+        }
+
+        long inFlight(){
+            return sent.get() - received.get() - peer.droppedEchoes();
+        }
+    }
+
+    private final Options mOptions;
+    private final Random mRandom;
+    private final byte[] mFiller;
+    private final int mTotalWeight;
+    private final EventLoop mLoop;
+    private final FaultyTransport mHubTransport;
+    private final ConnectionSupervisor mHub;
+    private final List<SimulatedPeer> mPeers = new ArrayList<>();
+    //By address as the hub dials it, filled in before the load starts
+    private final Map<String, PeerStats> mStats = new HashMap<>();
+
+    private final AtomicLong mBytesSent = new AtomicLong();
+    private final AtomicLong mBytesReceived = new AtomicLong();
+    private final AtomicLong mRejected = new AtomicLong();
+    private final Metrics.Histogram mRoundTrips = new Metrics.Histogram();
+    private final Metrics.Histogram mReadings = new Metrics.Histogram();
+    private final AtomicReference<Metrics.Histogram> mIntervalRoundTrips = new AtomicReference<>(new Metrics.Histogram());
+    private final AtomicReference<Metrics.Histogram> mIntervalReadings = new AtomicReference<>(new Metrics.Histogram());
+
+    //Only touched on mLoop
+    private long mStartNanos;
+    private long mLastTickNanos;
+    private long mLastSent;
+    private long mLastReceived;
+    private long mLastBytes;
+    private long mStalls;
+    private long mBreaks;
+    private final List<long[]> mHeapSamples = new ArrayList<>();
+    private int mFirstThreads = -1;
+    private int mLastThreads;
+    private boolean mLoadStopped;
+
+    private final Runnable mTick = new Runnable() {
+        @Override
+        public void run() {
+            tick();
+        }
+    };
+
+    LoadGenerator(Options options) throws IOException {
+        mOptions = options;
+        mRandom = new Random(options.seed);
+        StringBuilder filler = new StringBuilder();
+        for(int i = 0; filler.length() < FrameCodec.DEFAULT_MAX_PAYLOAD; i++){
+            filler.append("{\"device\":\"HC-06\",\"seq\":").append(i).append(",\"temperature\":")
+                    .append(20 + i % 7).append('.').append(i % 10).append(",\"status\":\"ok\"}\n");
+        }
+        mFiller = filler.toString().getBytes(UTF_8);
+        int total = 0;
+        for(int weight : options.weights){
+            total += weight;
+        }
+        mTotalWeight = total;
+        mLoop = new EventLoop("LoadGenerator");
+
+        PipedTransport piped = new PipedTransport();
+        mHubTransport = new FaultyTransport(options.tcp ? new TcpTransport(0) : piped);
+        mHub = new ConnectionSupervisor(mHubTransport, "hub", SERVICE_UUID, this);
+        mHub.setReliableWindow(options.window);
+        for(int i = 0; i < options.peers; i++){
+            Transport transport = options.tcp ? new TcpTransport(0) : piped;
+            mPeers.add(new SimulatedPeer("hc06-" + i, i < options.streamers, transport, SERVICE_UUID, options.window));
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Options options;
+        try {
+            options = Options.parse(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.print(USAGE);
+            System.exit(2);
+            return;
+        }
+        System.exit(new LoadGenerator(options).run() ? 0 : 1);
+    }
+
+    //Returns false if anything was lost or leaked
+    boolean run() throws InterruptedException {
+        Set<Thread> before = Thread.getAllStackTraces().keySet();
+        final Options o = mOptions;
+        System.out.printf(Locale.US, "%d peers (%d streaming) over %s, %.0f msg/s each, %d s, latency %d+-%d ms, "
+                        + "loss %.4f, bandwidth %d B/s, disconnect every %d s, window %d, seed %d%n",
+                o.peers, o.streamers, o.tcp ? "tcp" : "piped", o.rate, o.durationSeconds, o.latencyMillis,
+                o.jitterMillis, o.loss, o.bandwidth, o.disconnectEverySeconds, o.window, o.seed);
+
+        for(FaultyTransport transport : transports()){
+            transport.setLatency(o.latencyMillis, o.jitterMillis);
+            transport.setBytesPerSecond(o.bandwidth);
+        }
+        for(SimulatedPeer peer : mPeers){
+            peer.start();
+            mStats.put(peer.getAddress(), new PeerStats(peer));
+            mHub.connect(peer.getAddress(), SERVICE_UUID);
+        }
+        //Lost writes only from here on, see the class comment for what they do to a handshake
+        for(FaultyTransport transport : transports()){
+            transport.setLossRate(o.loss);
+        }
+
+        mLoop.execute(new Runnable() {
+            @Override
+            public void run() {
+                mStartNanos = mLastTickNanos = System.nanoTime();
+                mLoop.schedule(mTick, TICK_MILLIS, TimeUnit.MILLISECONDS);
+                scheduleEvery(o.reportSeconds, new Runnable() {
+                    @Override
+                    public void run() {
+                        report();
+                    }
+                });
+                if(o.disconnectEverySeconds > 0){
+                    scheduleEvery(o.disconnectEverySeconds, new Runnable() {
+                        @Override
+                        public void run() {
+                            mPeers.get(mRandom.nextInt(mPeers.size())).breakLink();
+                            mBreaks++;
+                        }
+                    });
+                }
+            }
+        });
+        Thread.sleep(TimeUnit.SECONDS.toMillis(o.durationSeconds));
+
+        //Stop the load and give what is in flight time to arrive
+        mLoop.execute(new Runnable() {
+            @Override
+            public void run() {
+                mLoadStopped = true;
+            }
+        });
+        for(SimulatedPeer peer : mPeers){
+            peer.getTransport().setLossRate(0);
+        }
+        mHubTransport.setLossRate(0);
+        long deadline = System.currentTimeMillis() + DRAIN_MILLIS;
+        while(inFlight() > 0 && System.currentTimeMillis() < deadline){
+            mLoop.execute(new Runnable() {
+                @Override
+                public void run() {
+                    checkStalls(System.nanoTime());
+                }
+            });
+            Thread.sleep(100);
+        }
+        final long lost = inFlight();
+        final Metrics.Snapshot hub = mHub.getMetrics().snapshot();
+        final CountDownLatch summarized = new CountDownLatch(1);
+        mLoop.execute(new Runnable() {
+            @Override
+            public void run() {
+                summarize(lost, hub);
+                summarized.countDown();
+            }
+        });
+        summarized.await();
+
+        mHub.stop();
+        for(SimulatedPeer peer : mPeers){
+            peer.stop();
+        }
+        final CountDownLatch done = new CountDownLatch(1);
+        mLoop.execute(new Runnable() {
+            @Override
+            public void run() {
+                mLoop.shutdown();
+                done.countDown();
+            }
+        });
+        done.await(THREAD_EXIT_MILLIS, TimeUnit.MILLISECONDS);
+        List<Thread> leaked = leakedThreads(before);
+        for(Thread thread : leaked){
+            System.out.println("LEAKED thread \"" + thread.getName() + "\" " + thread.getState());
+        }
+        System.out.println(lost == 0 && leaked.isEmpty() ? "PASS" : "FAIL");
+        return lost == 0 && leaked.isEmpty();
+    }
+
+    private List<FaultyTransport> transports(){
+        List<FaultyTransport> transports = new ArrayList<>();
+        transports.add(mHubTransport);
+        for(SimulatedPeer peer : mPeers){
+            transports.add(peer.getTransport());
+        }
+        return transports;
+    }
+
+    //Run task every period until the load stops
+    private void scheduleEvery(final long seconds, final Runnable task){
+        mLoop.schedule(new Runnable() {
+            @Override
+            public void run() {
+                if(mLoadStopped){
+                    return;
+                }
+                task.run();
+                mLoop.schedule(this, seconds, TimeUnit.SECONDS);
+            }
+        }, seconds, TimeUnit.SECONDS);
+    }
+
+    //Send every peer what its rate has earned since the last tick
+    private void tick(){
+        if(mLoadStopped){
+            return;
+        }
+        long now = System.nanoTime();
+        double earned = mOptions.rate * (now - mLastTickNanos) / 1e9;
+        mLastTickNanos = now;
+        for(PeerStats stats : mStats.values()){
+            stats.credit = Math.min(stats.credit + earned, mOptions.rate);
+            while(stats.credit >= 1){
+                stats.credit--;
+                send(stats);
+            }
+        }
+        mLoop.schedule(mTick, TICK_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    private void send(PeerStats stats){
+        int pick = mRandom.nextInt(mTotalWeight);
+        int size = mOptions.sizes[0];
+        for(int i = 0; i < mOptions.weights.length; i++){
+            if(pick < mOptions.weights[i]){
+                size = mOptions.sizes[i];
+                break;
+            }
+            pick -= mOptions.weights[i];
+        }
+        byte[] payload = new byte[size];
+        System.arraycopy(mFiller, mRandom.nextInt(mFiller.length - size + 1), payload, 0, size);
+        ByteBuffer.wrap(payload).putLong(0, System.nanoTime());
+        boolean queued = stats.peer.isStreaming()
+                ? stats.peer.sendReading(payload)
+                : mHub.write(stats.peer.getAddress(), SimulatedPeer.TYPE_PROBE, payload);
+        if(queued){
+            stats.sent.incrementAndGet();
+            mBytesSent.addAndGet(size);
+        }else{
+            mRejected.incrementAndGet();
+        }
+    }
+
+    private long inFlight(){
+        long inFlight = 0;
+        for(PeerStats stats : mStats.values()){
+            inFlight += stats.inFlight();
+        }
+        return inFlight;
+    }
+
+    //Messages out and nothing heard for a while is a stuck link, drop it so it comes back
+    private void checkStalls(long now){
+        for(PeerStats stats : mStats.values()){
+            if(stats.inFlight() > 0 && now - stats.lastHeardNanos > TimeUnit.SECONDS.toNanos(mOptions.stallTimeoutSeconds)){
+                System.out.println("STALLED " + stats.peer.getName() + " with " + stats.inFlight() + " in flight");
+                mStalls++;
+                stats.lastHeardNanos = now;
+                stats.peer.breakLink();
+            }
+        }
+    }
+
+    private void report(){
+        long now = System.nanoTime();
+        checkStalls(now);
+        long sent = 0;
+        long received = 0;
+        for(PeerStats stats : mStats.values()){
+            sent += stats.sent.get();
+            received += stats.received.get();
+        }
+        long bytes = mBytesSent.get();
+        double seconds = mOptions.reportSeconds;
+        Metrics.HistogramSnapshot roundTrips = mIntervalRoundTrips.getAndSet(new Metrics.Histogram()).snapshot();
+        Metrics.HistogramSnapshot readings = mIntervalReadings.getAndSet(new Metrics.Histogram()).snapshot();
+
+        System.gc();
+        long heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+        int threads = ManagementFactory.getThreadMXBean().getThreadCount();
+        long elapsedSeconds = TimeUnit.NANOSECONDS.toSeconds(now - mStartNanos);
+        mHeapSamples.add(new long[]{elapsedSeconds, heap});
+        if(mFirstThreads < 0){
+            mFirstThreads = threads;
+        }
+        mLastThreads = threads;
+        Metrics.Snapshot hub = mHub.getMetrics().snapshot();
+        System.out.printf(Locale.US, "[%6ds] sent %.0f/s received %.0f/s %.1f KB/s | rtt %s | reading %s | in flight %d,"
+                        + " rejected %d, stalls %d, reconnects %d, retransmits %d | heap %.1f MB, threads %d%n",
+                elapsedSeconds, (sent - mLastSent) / seconds, (received - mLastReceived) / seconds,
+                (bytes - mLastBytes) / seconds / 1024, percentiles(roundTrips), percentiles(readings), inFlight(),
+                mRejected.get(), mStalls, hub.value("reconnects"), hub.value("retransmits"), heap / 1048576.0, threads);
+        mLastSent = sent;
+        mLastReceived = received;
+        mLastBytes = bytes;
+    }
+
+    private void summarize(long lost, Metrics.Snapshot hub){
+        long sent = 0;
+        long received = 0;
+        long droppedEchoes = 0;
+        for(PeerStats stats : mStats.values()){
+            sent += stats.sent.get();
+            received += stats.received.get();
+            droppedEchoes += stats.peer.droppedEchoes();
+        }
+        long lostWrites = 0;
+        for(FaultyTransport transport : transports()){
+            lostWrites += transport.lostWrites();
+        }
+        double seconds = mOptions.durationSeconds;
+        System.out.println("---");
+        System.out.printf(Locale.US, "messages sent %d, received %d, lost %d, echoes dropped on full lanes %d, rejected %d%n",
+                sent, received, lost, droppedEchoes, mRejected.get());
+        System.out.printf(Locale.US, "throughput %.0f msg/s, %.1f KB/s out and %.1f KB/s back%n",
+                sent / seconds, mBytesSent.get() / seconds / 1024, mBytesReceived.get() / seconds / 1024);
+        System.out.println("round trip " + percentiles(mRoundTrips.snapshot()));
+        System.out.println("reading    " + percentiles(mReadings.snapshot()));
+        System.out.printf(Locale.US, "links dropped %d, stalls %d, reconnects %d, retransmits %d, writes lost %d%n",
+                mBreaks, mStalls, hub.value("reconnects"), hub.value("retransmits"), lostWrites);
+        if(mHeapSamples.size() >= 2){
+            long[] first = mHeapSamples.get(0);
+            long[] last = mHeapSamples.get(mHeapSamples.size() - 1);
+            System.out.printf(Locale.US, "heap %.1f MB -> %.1f MB, trend %+.1f KB/min%n", first[1] / 1048576.0,
+                    last[1] / 1048576.0, heapSlope() * 60 / 1024);
+        }
+        if(mFirstThreads >= 0){
+            System.out.println("threads " + mFirstThreads + " -> " + mLastThreads);
+        }
+    }
+
+    //Least squares fit of heap after GC over time, in bytes per second
+    private double heapSlope(){
+        double n = mHeapSamples.size();
+        double sumT = 0;
+        double sumH = 0;
+        for(long[] sample : mHeapSamples){
+            sumT += sample[0];
+            sumH += sample[1];
+        }
+        double meanT = sumT / n;
+        double meanH = sumH / n;
+        double covariance = 0;
+        double variance = 0;
+        for(long[] sample : mHeapSamples){
+            covariance += (sample[0] - meanT) * (sample[1] - meanH);
+            variance += (sample[0] - meanT) * (sample[0] - meanT);
+        }
+        return variance == 0 ? 0 : covariance / variance;
+    }
+
+    private static String percentiles(Metrics.HistogramSnapshot histogram){
+        if(histogram.count == 0){
+            return "n=0";
+        }
+        return String.format(Locale.US, "n=%d p50=%.1fms p99=%.1fms p999=%.1fms max=%.1fms", histogram.count,
+                histogram.percentile(50) / 1e6, histogram.percentile(99) / 1e6, histogram.percentile(99.9) / 1e6,
+                histogram.max / 1e6);
+    }
+
+    //Threads started since before, still alive once everything is stopped and has had time to exit
+    private static List<Thread> leakedThreads(Set<Thread> before) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + THREAD_EXIT_MILLIS;
+        List<Thread> leaked = new ArrayList<>();
+        do {
+            leaked.clear();
+            Set<Thread> now = new HashSet<>(Thread.getAllStackTraces().keySet());
+            now.removeAll(before);
+            for(Thread thread : now){
+                if(thread.isAlive() && thread != Thread.currentThread()){
+                    leaked.add(thread);
+                }
+            }
+            if(leaked.isEmpty()){
+                break;
+            }
+            Thread.sleep(100);
+        } while(System.currentTimeMillis() < deadline);
+        return leaked;
+    }
+
+    private void heard(String address, ByteBuffer payload, Metrics.Histogram total,
+                       AtomicReference<Metrics.Histogram> interval){
+        long now = System.nanoTime();
+        PeerStats stats = mStats.get(address);
+        if(stats == null || payload.remaining() < 8){
+            return;
+        }
+        long latency = now - payload.getLong(payload.position());
+        total.record(latency);
+        interval.get().record(latency);
+        mBytesReceived.addAndGet(payload.remaining());
+        stats.received.incrementAndGet();
+        stats.lastHeardNanos = now;
+    }
+
+    @Override
+    public void onConnected(String address) {
+    }
+
+    @Override
+    public void onConnectionFailed(String address, IOException e) {
+        System.out.println("Connection to " + address + " failed: " + e.getMessage());
+    }
+
+    @Override
+    public void onFrame(String address, int type, ByteBuffer payload) {
+        if(type == SimulatedPeer.TYPE_ECHO){
+            heard(address, payload, mRoundTrips, mIntervalRoundTrips);
+        }else if(type == SimulatedPeer.TYPE_READING){
+            heard(address, payload, mReadings, mIntervalReadings);
+        }
+    }
+
+    @Override
+    public void onDisconnected(String address) {
+        System.out.println("Session with " + address + " ended");
+    }
+
+    @Override
+    public void onBackpressure(String address, boolean congested) {
+    }
+}
@@ -0,0 +1,115 @@
+package com.example.bluetoothchat;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * A remote device for LoadGenerator, listening on its own FaultyTransport with the same
+ * connection stack as the app. An echo peer sends every probe straight back, like an HC-06
+ * wired to a loopback sketch; a streaming peer sends readings when told to, like one wired
+ * to a sensor. Faults injected on its transport hit the link to the hub from this end.
+ * */
+final class SimulatedPeer implements ConnectionListener {
+
+    //Hub to peer, sent back as TYPE_ECHO
+    static final int TYPE_PROBE = 0x20;
+    static final int TYPE_ECHO = 0x21;
+    //Peer to hub, unprompted
+    static final int TYPE_READING = 0x22;
+
+    private final String mName;
+    private final boolean mStreaming;
+    private final Transport mListening;
+    private final FaultyTransport mTransport;
+    private final ConnectionSupervisor mSupervisor;
+    private final AtomicLong mDroppedEchoes = new AtomicLong();
+    //The hub as this peer knows it, null until it has connected
+    private volatile String mHub;
+
+    //Listens as name on transport, through a FaultyTransport of its own
+    SimulatedPeer(String name, boolean streaming, Transport transport, UUID uuid, int reliableWindow){
+        mName = name;
+        mStreaming = streaming;
+        mListening = transport;
+        mTransport = new FaultyTransport(transport);
+        mSupervisor = new ConnectionSupervisor(mTransport, name, uuid, this);
+        mSupervisor.setReliableWindow(reliableWindow);
+    }
+
+    String getName(){
+        return mName;
+    }
+
+    //What the hub dials to reach this peer, known once it has started
+    String getAddress(){
+        return mListening instanceof TcpTransport
+                ? String.valueOf(((TcpTransport) mListening).getLocalPort())
+                : mName;
+    }
+
+    boolean isStreaming(){
+        return mStreaming;
+    }
+
+    FaultyTransport getTransport(){
+        return mTransport;
+    }
+
+    //Probes that couldn't be echoed because the lane back to the hub was full
+    long droppedEchoes(){
+        return mDroppedEchoes.get();
+    }
+
+    void start(){
+        mSupervisor.start();
+    }
+
+    void stop(){
+        mSupervisor.stop();
+    }
+
+    //Drop the link like the module going out of range, the hub redials and resumes
+    void breakLink(){
+        mTransport.breakConnections();
+    }
+
+    //Send one reading to the hub. False if there is no hub yet or its lane is full
+    boolean sendReading(byte[] reading){
+        String hub = mHub;
+        return hub != null && mSupervisor.write(hub, TYPE_READING, reading);
+    }
+
+    @Override
+    public void onConnected(String address) {
+        mHub = address;
+    }
+
+    @Override
+    public void onConnectionFailed(String address, IOException e) {
+    }
+
+    @Override
+    public void onFrame(String address, int type, ByteBuffer payload) {
+        if(type != TYPE_PROBE){
+            return;
+        }
+        byte[] echo = new byte[payload.remaining()];
+        payload.get(echo);
+        if(!mSupervisor.write(address, TYPE_ECHO, echo)){
+            mDroppedEchoes.incrementAndGet();
+        }
+    }
+
+    @Override
+    public void onDisconnected(String address) {
+        if(address.equals(mHub)){
+            mHub = null;
+        }
+    }
+
+    @Override
+    public void onBackpressure(String address, boolean congested) {
+    }
+}